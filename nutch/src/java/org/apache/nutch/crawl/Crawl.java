@@ -31,6 +31,7 @@ import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.parse.ParseSegment;
+import org.apache.nutch.indexer.solr.SolrConstants;
 import org.apache.nutch.indexer.solr.SolrDeleteDuplicates;
 import org.apache.nutch.indexer.solr.SolrIndexer;
 import org.apache.nutch.util.HadoopFSUtil;
@@ -60,7 +61,7 @@ public class Crawl extends Configured implements Tool {
   public int run(String[] args) throws Exception {
     if (args.length < 1) {
       System.out.println
-      ("Usage: Crawl <urlDir> -solr <solrURL> [-dir d] [-threads n] [-depth i] [-topN N]");
+      ("Usage: Crawl <urlDir> -solr <solrURL> [-dir d] [-threads n] [-depth i] [-topN N] [-hostdb] [-indexstate]");
       return -1;
     }
     Path rootUrlDir = null;
@@ -69,6 +70,8 @@ public class Crawl extends Configured implements Tool {
     int depth = 5;
     long topN = Long.MAX_VALUE;
     String solrUrl = null;
+    boolean useHostDb = false;
+    boolean useIndexState = false;
     
     for (int i = 0; i < args.length; i++) {
       if ("-dir".equals(args[i])) {
@@ -83,6 +86,10 @@ public class Crawl extends Configured implements Tool {
       } else if ("-topN".equals(args[i])) {
           topN = Integer.parseInt(args[i+1]);
           i++;
+      } else if ("-hostdb".equals(args[i])) {
+        useHostDb = true;
+      } else if ("-indexstate".equals(args[i])) {
+        useIndexState = true;
       } else if ("-solr".equals(args[i])) {
         solrUrl = args[i + 1];
         i++;
@@ -111,6 +118,9 @@ public class Crawl extends Configured implements Tool {
     
     Path crawlDb = new Path(dir + "/crawldb");
     Path linkDb = new Path(dir + "/linkdb");
+    if (useHostDb) {
+      getConf().set(Fetcher.HOSTDB, dir + "/hostdb");
+    }
     Path segments = new Path(dir + "/segments");
     Path indexes = new Path(dir + "/indexes");
     Path index = new Path(dir + "/index");
@@ -146,8 +156,16 @@ public class Crawl extends Configured implements Tool {
         // index, dedup & merge
         FileStatus[] fstats = fs.listStatus(segments, HadoopFSUtil.getPassDirectoriesFilter(fs));
         SolrIndexer indexer = new SolrIndexer(getConf());
-        indexer.indexSolr(solrUrl, crawlDb, linkDb, 
-          Arrays.asList(HadoopFSUtil.getPaths(fstats)));
+        if (useIndexState) {
+          // only the new segments, and the documents which changed
+          boolean noCommit = !getConf().getBoolean(SolrConstants.COMMIT_INDEX, true);
+          indexer.indexSolr(solrUrl, crawlDb, linkDb,
+            Arrays.asList(HadoopFSUtil.getPaths(fstats)), noCommit, false, null,
+            false, false, new Path(dir + "/indexstate"));
+        } else {
+          indexer.indexSolr(solrUrl, crawlDb, linkDb, 
+            Arrays.asList(HadoopFSUtil.getPaths(fstats)));
+        }
         SolrDeleteDuplicates dedup = new SolrDeleteDuplicates();
         dedup.setConf(getConf());
         dedup.dedup(solrUrl);
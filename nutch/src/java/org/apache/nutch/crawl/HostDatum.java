@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VersionMismatchException;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * What is known about a host across fetch jobs: its parsed robots.txt
+ * rules, and statistics about its fetches.
+ *
+ * <p>The robots.txt rules are kept as an ordered list of path prefixes,
+ * each allowed or disallowed, the first matching prefix deciding.</p>
+ */
+public class HostDatum implements Writable, Cloneable {
+
+  private static final byte CUR_VERSION = 1;
+
+  private static final String[] NO_PREFIXES = new String[0];
+  private static final boolean[] NO_ALLOWED = new boolean[0];
+
+  /** When the robots.txt rules were fetched, 0 if they are unknown. */
+  private long robotsTime = 0;
+  private String[] robotsPrefixes = NO_PREFIXES;
+  private boolean[] robotsAllowed = NO_ALLOWED;
+  private long crawlDelay = -1;
+
+  private long lastFetchTime = 0;
+  private int responseTime = -1;
+  private int fetches = 0;
+  private int errors = 0;
+
+  public HostDatum() {}
+
+  /** Whether the robots.txt rules of the host are known. */
+  public boolean hasRobotRules() {
+    return robotsTime > 0;
+  }
+
+  /**
+   * Sets the robots.txt rules of the host.
+   *
+   * @param prefixes the path prefixes, in order of precedence.
+   * @param allowed whether each prefix is allowed.
+   * @param crawlDelay the crawl delay in milliseconds, or -1 if unset.
+   * @param time when the rules were fetched.
+   */
+  public void setRobotRules(String[] prefixes, boolean[] allowed,
+      long crawlDelay, long time) {
+    if (prefixes.length != allowed.length) {
+      throw new IllegalArgumentException("One allowed flag per prefix expected");
+    }
+    this.robotsPrefixes = prefixes;
+    this.robotsAllowed = allowed;
+    this.crawlDelay = crawlDelay;
+    this.robotsTime = time;
+  }
+
+  public long getRobotsTime() { return robotsTime; }
+
+  public String[] getRobotsPrefixes() { return robotsPrefixes; }
+
+  public boolean[] getRobotsAllowed() { return robotsAllowed; }
+
+  /** Returns the crawl delay in milliseconds, or -1 if unset. */
+  public long getCrawlDelay() { return crawlDelay; }
+
+  /**
+   * Counts a fetch from the host.
+   *
+   * @param time when the fetch happened.
+   * @param responseTime how long it took, in milliseconds.
+   * @param error whether it failed with an error or timeout.
+   */
+  public void addFetch(long time, int responseTime, boolean error) {
+    fetches++;
+    if (error) {
+      errors++;
+    }
+    if (time >= lastFetchTime) {
+      lastFetchTime = time;
+      this.responseTime = responseTime;
+    }
+  }
+
+  public long getLastFetchTime() { return lastFetchTime; }
+
+  /** Returns the response time of the last fetch, in milliseconds. */
+  public int getResponseTime() { return responseTime; }
+
+  public int getFetches() { return fetches; }
+
+  public int getErrors() { return errors; }
+
+  /** Forgets the robots.txt rules, when they are too old to be used. */
+  public void clearRobotRules() {
+    robotsPrefixes = NO_PREFIXES;
+    robotsAllowed = NO_ALLOWED;
+    crawlDelay = -1;
+    robotsTime = 0;
+  }
+
+  /**
+   * Merges what another job found out about the host: the most recent
+   * robots.txt rules and fetch are kept, and fetches and errors are added.
+   */
+  public void merge(HostDatum other) {
+    if (other.robotsTime > robotsTime) {
+      setRobotRules(other.robotsPrefixes, other.robotsAllowed,
+          other.crawlDelay, other.robotsTime);
+    }
+    if (other.lastFetchTime >= lastFetchTime) {
+      lastFetchTime = other.lastFetchTime;
+      responseTime = other.responseTime;
+    }
+    fetches += other.fetches;
+    errors += other.errors;
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version > CUR_VERSION) {
+      throw new VersionMismatchException(CUR_VERSION, version);
+    }
+    robotsTime = in.readLong();
+    int count = in.readInt();
+    robotsPrefixes = count == 0 ? NO_PREFIXES : new String[count];
+    robotsAllowed = count == 0 ? NO_ALLOWED : new boolean[count];
+    for (int i = 0; i < count; i++) {
+      robotsPrefixes[i] = Text.readString(in);
+      robotsAllowed[i] = in.readBoolean();
+    }
+    crawlDelay = in.readLong();
+    lastFetchTime = in.readLong();
+    responseTime = in.readInt();
+    fetches = in.readInt();
+    errors = in.readInt();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(CUR_VERSION);
+    out.writeLong(robotsTime);
+    out.writeInt(robotsPrefixes.length);
+    for (int i = 0; i < robotsPrefixes.length; i++) {
+      Text.writeString(out, robotsPrefixes[i]);
+      out.writeBoolean(robotsAllowed[i]);
+    }
+    out.writeLong(crawlDelay);
+    out.writeLong(lastFetchTime);
+    out.writeInt(responseTime);
+    out.writeInt(fetches);
+    out.writeInt(errors);
+  }
+
+  public static HostDatum read(DataInput in) throws IOException {
+    HostDatum result = new HostDatum();
+    result.readFields(in);
+    return result;
+  }
+
+  public Object clone() {
+    try {
+      return super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append("Robots time: ").append(robotsTime == 0 ? "unknown"
+        : new java.util.Date(robotsTime).toString()).append('\n');
+    for (int i = 0; i < robotsPrefixes.length; i++) {
+      buf.append(robotsAllowed[i] ? "  Allow: " : "  Disallow: ")
+        .append(robotsPrefixes[i]).append('\n');
+    }
+    buf.append("Crawl delay: ").append(crawlDelay).append(" ms\n");
+    buf.append("Last fetch: ").append(lastFetchTime == 0 ? "never"
+        : new java.util.Date(lastFetchTime).toString()).append('\n');
+    buf.append("Response time: ").append(responseTime).append(" ms\n");
+    buf.append("Fetches: ").append(fetches).append('\n');
+    buf.append("Errors: ").append(errors).append('\n');
+    return buf.toString();
+  }
+
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+// Commons Logging imports
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import org.apache.nutch.util.LockUtil;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+
+/**
+ * Maintains a database of what is known about hosts across fetch jobs,
+ * keyed on the lower cased host name: see {@link HostDatum}.
+ *
+ * <p>Fetch tasks given a host db look the robots.txt rules of hosts up in
+ * it before fetching them (see {@link HostDbStore}), and write what they
+ * found out in the {@link #FETCH_DIR_NAME} directory of the segment, which
+ * is then merged into the db by {@link #update(Path, Path[])}.</p>
+ */
+public class HostDb extends Configured implements Tool {
+  public static final Logger LOG = LoggerFactory.getLogger(HostDb.class);
+
+  public static final String CURRENT_NAME = "current";
+
+  public static final String LOCK_NAME = ".locked";
+
+  /** Directory of a segment holding the host data found by its fetch. */
+  public static final String FETCH_DIR_NAME = "host_fetch";
+
+  /** Age after which robots.txt rules are fetched again, in seconds. */
+  public static final String ROBOTS_MAX_AGE = "hostdb.robots.max.age";
+
+  public static final long DEFAULT_ROBOTS_MAX_AGE = 86400;
+
+  public HostDb() {}
+
+  public HostDb(Configuration conf) {
+    setConf(conf);
+  }
+
+  /**
+   * Merges into the db the host data found by the fetch of segments, and
+   * forgets the robots.txt rules older than {@link #ROBOTS_MAX_AGE}.
+   */
+  public void update(Path hostDb, Path[] segments) throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    Path lock = new Path(hostDb, LOCK_NAME);
+    LockUtil.createLockFile(fs, lock, false);
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    if (LOG.isInfoEnabled()) {
+      LOG.info("HostDb update: starting at " + sdf.format(start));
+      LOG.info("HostDb update: db: " + hostDb);
+    }
+
+    Path newHostDb =
+      new Path(hostDb,
+               Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+    JobConf job = new NutchJob(getConf());
+    job.setJobName("hostdb " + hostDb);
+
+    Path current = new Path(hostDb, CURRENT_NAME);
+    if (fs.exists(current)) {
+      FileInputFormat.addInputPath(job, current);
+    }
+    List<Path> inputs = new ArrayList<Path>();
+    for (int i = 0; i < segments.length; i++) {
+      Path fetch = new Path(segments[i], FETCH_DIR_NAME);
+      if (fs.exists(fetch)) {
+        FileInputFormat.addInputPath(job, fetch);
+        inputs.add(fetch);
+      } else {
+        LOG.info(" - skipping segment without host data " + segments[i]);
+      }
+    }
+    if (inputs.isEmpty()) {
+      LockUtil.removeLockFile(fs, lock);
+      LOG.info("HostDb update: no host data to merge.");
+      return;
+    }
+    job.setInputFormat(SequenceFileInputFormat.class);
+
+    job.setReducerClass(Merger.class);
+
+    FileOutputFormat.setOutputPath(job, newHostDb);
+    job.setOutputFormat(MapFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(HostDatum.class);
+
+    // https://issues.apache.org/jira/browse/NUTCH-1110
+    job.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs", false);
+
+    try {
+      JobClient.runJob(job);
+    } catch (IOException e) {
+      LockUtil.removeLockFile(fs, lock);
+      if (fs.exists(newHostDb)) fs.delete(newHostDb, true);
+      throw e;
+    }
+
+    install(job, hostDb);
+    long end = System.currentTimeMillis();
+    LOG.info("HostDb update: finished at " + sdf.format(end) + ", elapsed: " + TimingUtil.elapsedTime(start, end));
+  }
+
+  public static void install(JobConf job, Path hostDb) throws IOException {
+    Path newHostDb = FileOutputFormat.getOutputPath(job);
+    FileSystem fs = new JobClient(job).getFs();
+    Path old = new Path(hostDb, "old");
+    Path current = new Path(hostDb, CURRENT_NAME);
+    if (fs.exists(current)) {
+      if (fs.exists(old)) fs.delete(old, true);
+      fs.rename(current, old);
+    }
+    fs.mkdirs(hostDb);
+    fs.rename(newHostDb, current);
+    if (fs.exists(old)) fs.delete(old, true);
+    LockUtil.removeLockFile(fs, new Path(hostDb, LOCK_NAME));
+  }
+
+  /** Merges the data of a host, and drops its rules when too old. */
+  public static class Merger extends MapReduceBase
+      implements Reducer<Text, HostDatum, Text, HostDatum> {
+
+    private long maxAge;
+
+    public void configure(JobConf job) {
+      maxAge = job.getLong(ROBOTS_MAX_AGE, DEFAULT_ROBOTS_MAX_AGE) * 1000;
+    }
+
+    public void reduce(Text key, Iterator<HostDatum> values,
+        OutputCollector<Text, HostDatum> output, Reporter reporter)
+        throws IOException {
+      HostDatum result = new HostDatum();
+      while (values.hasNext()) {
+        result.merge(values.next());
+      }
+      if (result.hasRobotRules()
+          && result.getRobotsTime() < System.currentTimeMillis() - maxAge) {
+        result.clearRobotRules();
+        reporter.incrCounter("HostDb", "expired robots rules", 1);
+      }
+      output.collect(key, result);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(), new HostDb(), args);
+    System.exit(res);
+  }
+
+  public int run(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: HostDb <hostdb> <seg1> <seg2> ...");
+      System.err.println("\thostdb\thost db to update");
+      System.err.println("\tseg1 seg2 ...\tfetched segments to update from");
+      return -1;
+    }
+    Path[] segments = new Path[args.length - 1];
+    for (int i = 1; i < args.length; i++) {
+      segments[i - 1] = new Path(args[i]);
+    }
+    try {
+      update(new Path(args[0]), segments);
+      return 0;
+    } catch (Exception e) {
+      LOG.error("HostDb update: " + StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+
+/**
+ * The view of a fetch task on the {@link HostDb}: hosts are looked up in
+ * the db the first time they are needed, and what the task finds out about
+ * them is collected to be written in the segment.
+ *
+ * <p>The store opened by the running fetch task is available to the
+ * protocol plugins through {@link #get()}.</p>
+ */
+public class HostDbStore implements Closeable {
+
+  private static final Partitioner<Text, HostDatum> PARTITIONER =
+    new HashPartitioner<Text, HostDatum>();
+
+  /** Marks the hosts missing from the db. */
+  private static final HostDatum MISSING = new HostDatum();
+
+  private static volatile HostDbStore current = null;
+
+  private final Configuration conf;
+  private final MapFile.Reader[] readers;
+  private final long maxAge;
+
+  private final ConcurrentHashMap<String, HostDatum> stored =
+    new ConcurrentHashMap<String, HostDatum>();
+  private final ConcurrentHashMap<String, HostDatum> updates =
+    new ConcurrentHashMap<String, HostDatum>();
+
+  private final AtomicLong robotsReused = new AtomicLong();
+  private final AtomicLong robotsStale = new AtomicLong();
+
+  /**
+   * Opens a host db for a fetch task, and makes it the current store.
+   *
+   * @param hostDb the host db, which may not exist yet.
+   */
+  public static HostDbStore open(Configuration conf, Path hostDb)
+      throws IOException {
+    HostDbStore store = new HostDbStore(conf, hostDb);
+    current = store;
+    return store;
+  }
+
+  /**
+   * Returns the store of the running fetch task, or <code>null</code> if
+   * it doesn't use a host db.
+   */
+  public static HostDbStore get() {
+    return current;
+  }
+
+  HostDbStore(Configuration conf, Path hostDb) throws IOException {
+    this.conf = conf;
+    this.maxAge = conf.getLong(HostDb.ROBOTS_MAX_AGE, HostDb.DEFAULT_ROBOTS_MAX_AGE) * 1000;
+    Path currentDb = new Path(hostDb, HostDb.CURRENT_NAME);
+    FileSystem fs = currentDb.getFileSystem(conf);
+    if (fs.exists(currentDb)) {
+      readers = MapFileOutputFormat.getReaders(fs, currentDb, conf);
+    } else {
+      readers = null;
+    }
+  }
+
+  /**
+   * Returns the data stored for a host by the previous jobs, or
+   * <code>null</code> if there is none.
+   */
+  public HostDatum getStored(String host) throws IOException {
+    HostDatum datum = stored.get(host);
+    if (datum == null) {
+      datum = lookup(host);
+      stored.put(host, datum == null ? MISSING : datum);
+    }
+    return datum == MISSING ? null : datum;
+  }
+
+  private HostDatum lookup(String host) throws IOException {
+    if (readers == null) {
+      return null;
+    }
+    synchronized (readers) {
+      return (HostDatum) MapFileOutputFormat.getEntry(readers, PARTITIONER,
+          new Text(host), new HostDatum());
+    }
+  }
+
+  /**
+   * Returns the data stored for a host if its robots.txt rules are known
+   * and not older than {@link HostDb#ROBOTS_MAX_AGE}, or <code>null</code>.
+   */
+  public HostDatum getRobotRules(String host) throws IOException {
+    HostDatum datum = getStored(host);
+    if (datum == null || !datum.hasRobotRules()) {
+      return null;
+    }
+    if (datum.getRobotsTime() < System.currentTimeMillis() - maxAge) {
+      robotsStale.incrementAndGet();
+      return null;
+    }
+    robotsReused.incrementAndGet();
+    return datum;
+  }
+
+  /** Records the robots.txt rules just fetched for a host. */
+  public void setRobotRules(String host, String[] prefixes, boolean[] allowed,
+      long crawlDelay) {
+    HostDatum datum = update(host);
+    synchronized (datum) {
+      datum.setRobotRules(prefixes, allowed, crawlDelay, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Records a fetch from a host.
+   *
+   * @param responseTime how long it took, in milliseconds.
+   * @param error whether it failed with an error or timeout.
+   */
+  public void addFetch(String host, int responseTime, boolean error) {
+    HostDatum datum = update(host);
+    synchronized (datum) {
+      datum.addFetch(System.currentTimeMillis(), responseTime, error);
+    }
+  }
+
+  private HostDatum update(String host) {
+    HostDatum datum = updates.get(host);
+    if (datum == null) {
+      HostDatum created = new HostDatum();
+      datum = updates.putIfAbsent(host, created);
+      if (datum == null) {
+        datum = created;
+      }
+    }
+    return datum;
+  }
+
+  /** Number of hosts whose stored robots.txt rules were used. */
+  public long getRobotsReused() {
+    return robotsReused.get();
+  }
+
+  /** Number of hosts whose stored robots.txt rules were too old. */
+  public long getRobotsStale() {
+    return robotsStale.get();
+  }
+
+  /** Number of hosts with data to write. */
+  public int getUpdated() {
+    return updates.size();
+  }
+
+  /** Writes the data collected about hosts to a sequence file. */
+  public void write(Path out) throws IOException {
+    FileSystem fs = out.getFileSystem(conf);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, out,
+        Text.class, HostDatum.class);
+    try {
+      Text key = new Text();
+      for (Map.Entry<String, HostDatum> entry : updates.entrySet()) {
+        key.set(entry.getKey());
+        HostDatum datum = entry.getValue();
+        synchronized (datum) {
+          writer.append(key, datum);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  public void close() throws IOException {
+    if (current == this) {
+      current = null;
+    }
+    if (readers != null) {
+      synchronized (readers) {
+        for (int i = 0; i < readers.length; i++) {
+          readers[i].close();
+        }
+      }
+    }
+  }
+
+}
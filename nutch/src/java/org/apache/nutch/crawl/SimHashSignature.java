@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import org.apache.nutch.parse.Parse;
+import org.apache.nutch.protocol.Content;
+
+/**
+ * <p>An implementation of a page signature for near duplicate detection.
+ * It calculates a 64 bit SimHash of the plain text of a page: pages whose
+ * texts differ a little have signatures which differ in a few bits. In case
+ * there is no text, it calculates a hash using the {@link MD5Signature}.</p>
+ * <p>The text is split into tokens as by {@link TextProfileSignature}:
+ * consecutive letters and digits, brought to lower case, longer than
+ * <code>db.signature.simhash.min_token_len</code> (default 2 characters).
+ * Each token is hashed to 64 bits, and each bit of the signature is set
+ * if more tokens have it set than not.</p>
+ * <p>Signatures are compared by {@link #distance(byte[], byte[])}, see
+ * {@link org.apache.nutch.indexer.solr.SolrDeleteNearDuplicates}.</p>
+ */
+public class SimHashSignature extends Signature {
+
+  /** Length of a SimHash signature, in bytes. */
+  public static final int LENGTH = 8;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  Signature fallback = new MD5Signature();
+
+  public byte[] calculate(Content content, Parse parse) {
+    int minTokenLen = getConf().getInt("db.signature.simhash.min_token_len", 2);
+    String text = null;
+    if (parse != null) text = parse.getText();
+    if (text == null || text.length() == 0) return fallback.calculate(content, parse);
+    return toBytes(simHash(text, minTokenLen));
+  }
+
+  /** Returns the SimHash of some text. */
+  static long simHash(String text, int minTokenLen) {
+    // how many more tokens have each bit set than not
+    int[] votes = new int[64];
+    int start = -1;
+    long hash = 0;
+    for (int i = 0; i <= text.length(); i++) {
+      char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        if (start < 0) {
+          start = i;
+          hash = FNV_OFFSET;
+        }
+        // FNV-1a, of the chars
+        hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+      } else if (start >= 0) {
+        if (i - start > minTokenLen) {
+          vote(votes, mix(hash));
+        }
+        start = -1;
+      }
+    }
+    long simHash = 0;
+    for (int bit = 0; bit < 64; bit++) {
+      if (votes[bit] > 0) {
+        simHash |= 1L << bit;
+      }
+    }
+    return simHash;
+  }
+
+  private static void vote(int[] votes, long hash) {
+    for (int bit = 0; bit < 64; bit++) {
+      votes[bit] += ((hash >>> bit) & 1L) == 0 ? -1 : 1;
+    }
+  }
+
+  /** Spreads the bits of short tokens, as MurmurHash3 finalizes. */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** Returns a SimHash as a signature. */
+  public static byte[] toBytes(long simHash) {
+    byte[] bytes = new byte[LENGTH];
+    for (int i = LENGTH - 1; i >= 0; i--) {
+      bytes[i] = (byte) simHash;
+      simHash >>>= 8;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the SimHash of a signature, which must be {@link #LENGTH}
+   * bytes long.
+   */
+  public static long toLong(byte[] signature) {
+    long simHash = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      simHash = (simHash << 8) | (signature[i] & 0xff);
+    }
+    return simHash;
+  }
+
+  /** Returns the number of bits two SimHashes differ in. */
+  public static int distance(long simHash1, long simHash2) {
+    return Long.bitCount(simHash1 ^ simHash2);
+  }
+
+  /**
+   * Returns the number of bits two signatures differ in, or -1 if they
+   * aren't both SimHashes.
+   */
+  public static int distance(byte[] signature1, byte[] signature2) {
+    if (signature1.length != LENGTH || signature2.length != LENGTH) {
+      return -1;
+    }
+    return distance(toLong(signature1), toLong(signature2));
+  }
+
+}
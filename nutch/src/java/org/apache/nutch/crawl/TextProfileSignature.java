@@ -22,10 +22,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.nutch.parse.Parse;
@@ -56,6 +58,11 @@ import org.apache.nutch.util.NutchConfiguration;
  * in the order of decreasing frequency.</li>
  * </ul>
  * This list is then submitted to an MD5 hash calculation.
+ * <p>Tokens of equal frequency are listed in the order a
+ * <code>HashMap</code> iterates over them, which depends on the JDK.
+ * {@link Profile} counts the tokens without a <code>HashMap</code>, then
+ * puts each distinct token once in one to list them in that order, so the
+ * signatures are those this JVM always calculated.</p>
  * 
  * @author Andrzej Bialecki &lt;ab@getopt.org&gt;
  */
@@ -66,10 +73,21 @@ public class TextProfileSignature extends Signature {
   public byte[] calculate(Content content, Parse parse) {
     int MIN_TOKEN_LEN = getConf().getInt("db.signature.text_profile.min_token_len", 2);
     float QUANT_RATE = getConf().getFloat("db.signature.text_profile.quant_rate", 0.01f);
-    HashMap<String, Token> tokens = new HashMap<String, Token>();
     String text = null;
     if (parse != null) text = parse.getText();
     if (text == null || text.length() == 0) return fallback.calculate(content, parse);
+    String profile = new Profile(text, MIN_TOKEN_LEN).toString(QUANT_RATE);
+    return MD5Hash.digest(profile).getDigest();
+  }
+
+  /**
+   * Returns the profile of a text, counting its tokens in a
+   * <code>HashMap</code>: tokens of equal frequency are listed in the order
+   * in which it iterates over them. {@link Profile} calculates the same
+   * profiles.
+   */
+  static String getProfile(String text, int MIN_TOKEN_LEN, float QUANT_RATE) {
+    HashMap<String, Token> tokens = new HashMap<String, Token>();
     StringBuffer curToken = new StringBuffer();
     int maxFreq = 0;
     for (int i = 0; i < text.length(); i++) {
@@ -108,11 +126,7 @@ public class TextProfileSignature extends Signature {
     Iterator<Token> it = tokens.values().iterator();
     ArrayList<Token> profile = new ArrayList<Token>();
     // calculate the QUANT value
-    int QUANT = Math.round(maxFreq * QUANT_RATE);
-    if (QUANT < 2) {
-      if (maxFreq > 1) QUANT = 2;
-      else QUANT = 1;
-    }
+    int QUANT = getQuant(maxFreq, QUANT_RATE);
     while(it.hasNext()) {
       Token t = it.next();
       // round down to the nearest QUANT
@@ -131,7 +145,187 @@ public class TextProfileSignature extends Signature {
       if (newText.length() > 0) newText.append("\n");
       newText.append(t.toString());
     }
-    return MD5Hash.digest(newText.toString()).getDigest();
+    return newText.toString();
+  }
+
+  private static int getQuant(int maxFreq, float QUANT_RATE) {
+    int QUANT = Math.round(maxFreq * QUANT_RATE);
+    if (QUANT < 2) {
+      if (maxFreq > 1) QUANT = 2;
+      else QUANT = 1;
+    }
+    return QUANT;
+  }
+
+  /**
+   * The tokens of a text and their counts. Tokens are hashed as they are
+   * read, and kept as offsets in the text, in an open addressing table
+   * of primitives, so that a token seen again costs no allocation.
+   *
+   * <p>To list tokens of equal frequency in the same order as
+   * {@link TextProfileSignature#getProfile(String, int, float)},
+   * {@link #toString(float)} puts each distinct token in a
+   * <code>HashMap</code>, in the order they were first seen. The order
+   * a <code>HashMap</code> iterates in depends on all the keys put in it
+   * and on the JDK, but not on how often the same key is put again, so it
+   * is that of the <code>HashMap</code> counting the tokens.</p>
+   */
+  static class Profile {
+
+    private static final boolean[] ASCII_LETTER_OR_DIGIT = new boolean[128];
+    static {
+      for (char c = 0; c < 128; c++) {
+        ASCII_LETTER_OR_DIGIT[c] = Character.isLetterOrDigit(c);
+      }
+    }
+
+    private final String text;
+
+    // the tokens, in the order they were first seen
+    private int size = 0;
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] hashes = new int[64];
+    private int[] counts = new int[64];
+    private int maxFreq = 0;
+
+    // indexes + 1 of the tokens, by hash
+    private int[] slots = new int[128];
+
+    Profile(String text, int minTokenLen) {
+      this.text = text;
+      int start = -1;
+      int hash = 0;
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c < 128 ? ASCII_LETTER_OR_DIGIT[c] : Character.isLetterOrDigit(c)) {
+          if (start < 0) {
+            start = i;
+            hash = 0;
+          }
+          // as String.hashCode() of the lower cased token
+          hash = 31 * hash + toLowerCase(c);
+        } else if (start >= 0) {
+          if (i - start > minTokenLen) {
+            add(start, i - start, hash);
+          }
+          start = -1;
+        }
+      }
+      // check the last token
+      if (start >= 0 && text.length() - start > minTokenLen) {
+        add(start, text.length() - start, hash);
+      }
+    }
+
+    private void add(int start, int length, int hash) {
+      int mask = slots.length - 1;
+      int slot = mix(hash) & mask;
+      int index;
+      while ((index = slots[slot]) != 0) {
+        index--;
+        if (hashes[index] == hash && lengths[index] == length
+            && equals(starts[index], start, length)) {
+          if (++counts[index] > maxFreq) maxFreq = counts[index];
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        lengths = Arrays.copyOf(lengths, size * 2);
+        hashes = Arrays.copyOf(hashes, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      starts[size] = start;
+      lengths[size] = length;
+      hashes[size] = hash;
+      counts[size] = 1;
+      if (maxFreq == 0) maxFreq = 1;
+      slots[slot] = ++size;
+
+      if (size * 2 > slots.length) {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+          slot = mix(hashes[i]) & mask;
+          while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          slots[slot] = i + 1;
+        }
+      }
+    }
+
+    private boolean equals(int start1, int start2, int length) {
+      for (int i = 0; i < length; i++) {
+        char c1 = text.charAt(start1 + i);
+        char c2 = text.charAt(start2 + i);
+        if (c1 != c2 && toLowerCase(c1) != toLowerCase(c2)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static char toLowerCase(char c) {
+      if (c < 128) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+      }
+      return Character.toLowerCase(c);
+    }
+
+    /** Scatters similar hashes, which linear probing would cluster. */
+    private static int mix(int hash) {
+      hash *= 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+    }
+
+    /** Returns the lower cased token at an index. */
+    private String getToken(int index) {
+      char[] token = new char[lengths[index]];
+      for (int i = 0; i < token.length; i++) {
+        token[i] = toLowerCase(text.charAt(starts[index] + i));
+      }
+      return new String(token);
+    }
+
+    /** Returns the profile of the text. */
+    String toString(float quantRate) {
+      int quant = getQuant(maxFreq, quantRate);
+
+      // the tokens put as getProfile() puts them, to iterate in its order
+      HashMap<String, Integer> tokens = new HashMap<String, Integer>();
+      for (int i = 0; i < size; i++) {
+        tokens.put(getToken(i), i);
+      }
+
+      // the tokens kept, by decreasing rounded down count, ties keeping
+      // the HashMap order
+      String[] kept = new String[size];
+      long[] sorted = new long[size];
+      int n = 0;
+      for (Map.Entry<String, Integer> entry : tokens.entrySet()) {
+        int count = counts[entry.getValue()] / quant * quant;
+        if (count < quant) {
+          continue;
+        }
+        kept[n] = entry.getKey();
+        sorted[n] = (long) (Integer.MAX_VALUE - count) << 32 | n;
+        n++;
+      }
+      Arrays.sort(sorted, 0, n);
+
+      StringBuilder profile = new StringBuilder();
+      for (int i = 0; i < n; i++) {
+        int index = (int) sorted[i];
+        if (i > 0) profile.append('\n');
+        profile.append(kept[index]).append(' ')
+          .append(Integer.MAX_VALUE - (int) (sorted[i] >>> 32));
+      }
+      return profile.toString();
+    }
   }
   
   private static class Token {
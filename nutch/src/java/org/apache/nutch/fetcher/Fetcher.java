@@ -24,7 +24,11 @@ import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.atomic.AtomicLong;
 
 // Slf4j Logging imports
@@ -40,6 +44,8 @@ import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.HostDb;
+import org.apache.nutch.crawl.HostDbStore;
 import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.crawl.SignatureFactory;
 import org.apache.nutch.metadata.Metadata;
@@ -81,8 +87,8 @@ import org.apache.nutch.util.*;
  * host's queue is not yet ready.
  *
  * <p>If there are still unfetched items in the queues, but none of the items
- * are ready, FetcherThread-s will spin-wait until either some items become
- * available, or a timeout is reached (at which point the Fetcher will abort,
+ * are ready, FetcherThread-s will wait until the earliest queue becomes
+ * ready, or a timeout is reached (at which point the Fetcher will abort,
  * assuming the task is hung).
  *
  * @author Andrzej Bialecki
@@ -96,6 +102,9 @@ public class Fetcher extends Configured implements Tool,
 
   public static final String PROTOCOL_REDIR = "protocol";
 
+  /** The host db used by the fetch tasks, if any. */
+  public static final String HOSTDB = "fetcher.hostdb";
+
   public static final Logger LOG = LoggerFactory.getLogger(Fetcher.class);
 
   public static class InputFormat extends SequenceFileInputFormat<Text, CrawlDatum> {
@@ -113,6 +122,7 @@ public class Fetcher extends Configured implements Tool,
     }
   }
 
+  private JobConf job;
   private OutputCollector<Text, NutchWritable> output;
   private Reporter reporter;
 
@@ -130,6 +140,12 @@ public class Fetcher extends Configured implements Tool,
   private boolean storingContent;
   private boolean parsing;
   FetchItemQueues fetchQueues;
+
+  /** Normalized and filtered outlinks, shared by the fetcher threads. */
+  private URLNormalizeFilterCache outlinkCache;
+
+  /** What the task finds out about hosts, if a host db is used. */
+  private volatile HostDbStore hostDbStore;
   QueueFeeder feeder;
 
   /**
@@ -224,14 +240,19 @@ public class Fetcher extends Configured implements Tool,
    * progress and elapsed time between requests.
    */
   private static class FetchItemQueue {
-    List<FetchItem> queue = Collections.synchronizedList(new LinkedList<FetchItem>());
-    Set<FetchItem>  inProgress = Collections.synchronizedSet(new HashSet<FetchItem>());
+    List<FetchItem> queue = new LinkedList<FetchItem>();
+    Set<FetchItem>  inProgress = new HashSet<FetchItem>();
     AtomicLong nextFetchTime = new AtomicLong();
     AtomicInteger exceptionCounter = new AtomicInteger();
-    long crawlDelay;
+    volatile long crawlDelay;
     long minCrawlDelay;
     int maxThreads;
     Configuration conf;
+    String id;
+    // set once the queue is idle and removed from FetchItemQueues
+    boolean reaped = false;
+    // sequence number of the valid schedule entry, -1 if not scheduled
+    long scheduleSeq = -1;
 
     public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay, long minCrawlDelay) {
       this.conf = conf;
@@ -248,11 +269,11 @@ public class Fetcher extends Configured implements Tool,
       return presize;
     }
 
-    public int getQueueSize() {
+    public synchronized int getQueueSize() {
       return queue.size();
     }
 
-    public int getInProgressSize() {
+    public synchronized int getInProgressSize() {
       return inProgress.size();
     }
 
@@ -260,38 +281,54 @@ public class Fetcher extends Configured implements Tool,
       return exceptionCounter.incrementAndGet();
     }
 
-    public void finishFetchItem(FetchItem it, boolean asap) {
+    public synchronized void finishFetchItem(FetchItem it, boolean asap) {
       if (it != null) {
         inProgress.remove(it);
         setEndTime(System.currentTimeMillis(), asap);
       }
     }
 
-    public void addFetchItem(FetchItem it) {
-      if (it == null) return;
-      queue.add(it);
+    /** Add an item, returns false if the queue was reaped meanwhile. */
+    public synchronized boolean addFetchItem(FetchItem it) {
+      if (reaped) return false;
+      if (it != null) queue.add(it);
+      return true;
     }
 
-    public void addInProgressFetchItem(FetchItem it) {
-      if (it == null) return;
-      inProgress.add(it);
+    /** Add an item in progress, returns false if the queue was reaped meanwhile. */
+    public synchronized boolean addInProgressFetchItem(FetchItem it) {
+      if (reaped) return false;
+      if (it != null) inProgress.add(it);
+      return true;
     }
 
-    public FetchItem getFetchItem() {
+    public synchronized FetchItem getFetchItem() {
       if (inProgress.size() >= maxThreads) return null;
       long now = System.currentTimeMillis();
       if (nextFetchTime.get() > now) return null;
-      FetchItem it = null;
       if (queue.size() == 0) return null;
-      try {
-        it = queue.remove(0);
-        inProgress.add(it);
-      } catch (Exception e) {
-        LOG.error("Cannot remove FetchItem from queue or cannot add it to inProgress queue", e);
-      }
+      FetchItem it = queue.remove(0);
+      inProgress.add(it);
       return it;
     }
 
+    /**
+     * Time from which an item of this queue may be fetched, or -1 if the queue
+     * has nothing to offer until one of its requests in progress finishes.
+     */
+    synchronized long getEligibleTime() {
+      if (queue.size() == 0 || inProgress.size() >= maxThreads) return -1;
+      return nextFetchTime.get();
+    }
+
+    /** Mark the queue as reaped if it holds no items at all. */
+    synchronized boolean reapIfIdle() {
+      if (queue.size() == 0 && inProgress.size() == 0) {
+        reaped = true;
+      }
+      return reaped;
+    }
+
     public synchronized void dump() {
       LOG.info("  maxThreads    = " + maxThreads);
       LOG.info("  inProgress    = " + inProgress.size());
@@ -317,13 +354,41 @@ public class Fetcher extends Configured implements Tool,
     }
   }
 
+  /**
+   * An entry of the fetch schedule: the queue may hand out an item from the
+   * given time on. Entries are never updated in place; rescheduling a queue
+   * adds a new entry and leaves the old one to be skipped.
+   */
+  private static class ScheduledQueue implements Comparable<ScheduledQueue> {
+    final FetchItemQueue queue;
+    final long time;
+    final long seq;
+
+    ScheduledQueue(FetchItemQueue queue, long time, long seq) {
+      this.queue = queue;
+      this.time = time;
+      this.seq = seq;
+    }
+
+    public int compareTo(ScheduledQueue other) {
+      if (time != other.time) return time < other.time ? -1 : 1;
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+  }
+
   /**
    * Convenience class - a collection of queues that keeps track of the total
    * number of items, and provides items eligible for fetching from any queue.
+   *
+   * <p>Queues with items ready to be handed out are kept in a schedule ordered
+   * by the time they become eligible, so that finding the next item does not
+   * scan all queues, and threads asking for an item sleep exactly until the
+   * earliest queue is ready or an earlier one gets scheduled. The schedule
+   * lock is only held to update the schedule; the queues guard their own items.
    */
   private static class FetchItemQueues {
     public static final String DEFAULT_ID = "default";
-    Map<String, FetchItemQueue> queues = new HashMap<String, FetchItemQueue>();
+    Map<String, FetchItemQueue> queues = new ConcurrentHashMap<String, FetchItemQueue>();
     AtomicInteger totalSize = new AtomicInteger(0);
     int maxThreads;
     long crawlDelay;
@@ -332,6 +397,11 @@ public class Fetcher extends Configured implements Tool,
     int maxExceptionsPerQueue = -1;
     Configuration conf;
 
+    PriorityQueue<ScheduledQueue> schedule = new PriorityQueue<ScheduledQueue>();
+    long scheduleSeq = 0;
+    ReentrantLock scheduleLock = new ReentrantLock();
+    Condition scheduleChanged = scheduleLock.newCondition();
+
     public static final String QUEUE_MODE_HOST = "byHost";
     public static final String QUEUE_MODE_DOMAIN = "byDomain";
     public static final String QUEUE_MODE_IP = "byIP";
@@ -369,10 +439,20 @@ public class Fetcher extends Configured implements Tool,
       if (it != null) addFetchItem(it);
     }
 
-    public synchronized void addFetchItem(FetchItem it) {
-      FetchItemQueue fiq = getFetchItemQueue(it.queueID);
-      fiq.addFetchItem(it);
+    public void addFetchItem(FetchItem it) {
+      FetchItemQueue fiq;
+      do {
+        fiq = getFetchItemQueue(it.queueID);
+      } while (!fiq.addFetchItem(it));
       totalSize.incrementAndGet();
+      schedule(fiq);
+    }
+
+    public void addInProgressFetchItem(FetchItem it) {
+      FetchItemQueue fiq;
+      do {
+        fiq = getFetchItemQueue(it.queueID);
+      } while (!fiq.addInProgressFetchItem(it));
     }
 
     public void finishFetchItem(FetchItem it) {
@@ -386,39 +466,115 @@ public class Fetcher extends Configured implements Tool,
         return;
       }
       fiq.finishFetchItem(it, asap);
+      schedule(fiq);
     }
 
-    public synchronized FetchItemQueue getFetchItemQueue(String id) {
+    public FetchItemQueue getFetchItemQueue(String id) {
       FetchItemQueue fiq = queues.get(id);
       if (fiq == null) {
-        // initialize queue
-        fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
-        queues.put(id, fiq);
+        synchronized (queues) {
+          fiq = queues.get(id);
+          if (fiq == null) {
+            // initialize queue
+            fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
+            fiq.id = id;
+            queues.put(id, fiq);
+          }
+        }
       }
       return fiq;
     }
 
-    public synchronized FetchItem getFetchItem() {
-      Iterator<Map.Entry<String, FetchItemQueue>> it =
-        queues.entrySet().iterator();
-      while (it.hasNext()) {
-        FetchItemQueue fiq = it.next().getValue();
-        // reap empty queues
-        if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
-          it.remove();
-          continue;
+    /**
+     * Bring the schedule entry of a queue up to date with its state, after
+     * any change that may affect when the queue can hand out its next item.
+     * Queues without any items are reaped.
+     */
+    private void schedule(FetchItemQueue fiq) {
+      scheduleLock.lock();
+      try {
+        // read the state under the lock, so that a concurrent update of the
+        // same queue cannot be overwritten with an older view
+        long time = fiq.getEligibleTime();
+        if (time == -1) {
+          fiq.scheduleSeq = -1;
+          if (fiq.reapIfIdle()) {
+            synchronized (queues) {
+              if (queues.get(fiq.id) == fiq) queues.remove(fiq.id);
+            }
+          }
+          return;
         }
-        FetchItem fit = fiq.getFetchItem();
-        if (fit != null) {
-          totalSize.decrementAndGet();
-          return fit;
+        ScheduledQueue entry = new ScheduledQueue(fiq, time, ++scheduleSeq);
+        fiq.scheduleSeq = entry.seq;
+        schedule.add(entry);
+        if (schedule.peek() == entry) {
+          // the earliest time changed, let a waiting thread re-check
+          scheduleChanged.signal();
         }
+      } finally {
+        scheduleLock.unlock();
       }
-      return null;
+    }
+
+    /** Get an item eligible for fetching, or null if there is none right now. */
+    public FetchItem getFetchItem() {
+      return getFetchItem(0);
+    }
+
+    /**
+     * Get an item eligible for fetching, waiting up to <code>maxWait</code>
+     * milliseconds for one to become eligible.
+     */
+    public FetchItem getFetchItem(long maxWait) {
+      long deadline = System.currentTimeMillis() + maxWait;
+      FetchItemQueue fiq = null;
+      FetchItem fit = null;
+      scheduleLock.lock();
+      try {
+        while (fit == null) {
+          ScheduledQueue first = schedule.peek();
+          long now = System.currentTimeMillis();
+          if (first != null && first.seq != first.queue.scheduleSeq) {
+            schedule.poll();                    // outdated entry
+            continue;
+          }
+          long wait = deadline - now;
+          if (first != null && first.time <= now) {
+            schedule.poll();
+            fiq = first.queue;
+            fiq.scheduleSeq = -1;
+            fit = fiq.getFetchItem();
+            if (fit == null) {
+              // changed since it was scheduled, e.g. emptied
+              fiq = null;
+              continue;
+            }
+            break;
+          }
+          if (first != null) wait = Math.min(wait, first.time - now);
+          if (wait <= 0) return null;
+          try {
+            scheduleChanged.await(wait, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            return null;
+          }
+        }
+        if (!schedule.isEmpty()) {
+          // pass the turn on to the next waiting thread
+          scheduleChanged.signal();
+        }
+      } finally {
+        scheduleLock.unlock();
+      }
+      totalSize.decrementAndGet();
+      // more items from the same queue may be ready, e.g. with several threads per queue
+      schedule(fiq);
+      return fit;
     }
 
     // called only once the feeder has stopped
-    public synchronized int checkTimelimit() {
+    public int checkTimelimit() {
       int count = 0;
 
       if (System.currentTimeMillis() >= timelimit && timelimit != -1) {
@@ -434,18 +590,19 @@ public class Fetcher extends Configured implements Tool,
     }
 
     // empties the queues (used by timebomb and throughput threshold)
-    public synchronized int emptyQueues() {
+    public int emptyQueues() {
       int count = 0;
 
       for (String id : queues.keySet()) {
         FetchItemQueue fiq = queues.get(id);
-        if (fiq.getQueueSize() == 0) continue;
+        if (fiq == null || fiq.getQueueSize() == 0) continue;
         LOG.info("* queue: " + id + " >> dropping! ");
         int deleted = fiq.emptyQueue();
         for (int i = 0; i < deleted; i++) {
           totalSize.decrementAndGet();
         }
         count += deleted;
+        schedule(fiq);
       }
 
       return count;
@@ -458,7 +615,7 @@ public class Fetcher extends Configured implements Tool,
      * @param queueid
      * @return number of purged items
      */
-    public synchronized int checkExceptionThreshold(String queueid) {
+    public int checkExceptionThreshold(String queueid) {
       FetchItemQueue fiq = queues.get(queueid);
       if (fiq == null) {
         return 0;
@@ -475,16 +632,17 @@ public class Fetcher extends Configured implements Tool,
         for (int i = 0; i < deleted; i++) {
           totalSize.decrementAndGet();
         }
+        schedule(fiq);
         return deleted;
       }
       return 0;
     }
 
 
-    public synchronized void dump() {
+    public void dump() {
       for (String id : queues.keySet()) {
         FetchItemQueue fiq = queues.get(id);
-        if (fiq.getQueueSize() == 0) continue;
+        if (fiq == null || fiq.getQueueSize() == 0) continue;
         LOG.info("* queue: " + id);
         fiq.dump();
       }
@@ -594,6 +752,9 @@ public class Fetcher extends Configured implements Tool,
     private boolean skipTruncated;
 
     public FetcherThread(Configuration conf) {
+      // a small stack lets a task run thousands of fetcher threads, which
+      // mostly sit waiting on sockets or the fetch schedule
+      super(null, null, "FetcherThread", conf.getLong("fetcher.threads.stack.size", 0));
       this.setDaemon(true);                       // don't hang JVM on exit
       this.setName("FetcherThread");              // use an informative name
       this.conf = conf;
@@ -636,14 +797,12 @@ public class Fetcher extends Configured implements Tool,
           fit = fetchQueues.getFetchItem();
           if (fit == null) {
             if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
-              LOG.debug(getName() + " spin-waiting ...");
-              // spin-wait.
+              LOG.debug(getName() + " waiting ...");
+              // wait until an item becomes eligible
               spinWaiting.incrementAndGet();
-              try {
-                Thread.sleep(500);
-              } catch (Exception e) {}
-                spinWaiting.decrementAndGet();
-              continue;
+              fit = fetchQueues.getFetchItem(1000);
+              spinWaiting.decrementAndGet();
+              if (fit == null) continue;
             } else {
               // all done, finish this thread
               return;
@@ -668,6 +827,9 @@ public class Fetcher extends Configured implements Tool,
               }
               redirecting = false;
               Protocol protocol = this.protocolFactory.getProtocol(fit.url.toString());
+              if (protocol instanceof ReporterAware) {
+                ((ReporterAware) protocol).setReporter(reporter);
+              }
               RobotRules rules = protocol.getRobotRules(fit.url, fit.datum);
               if (!rules.isAllowed(fit.u)) {
                 // unblock
@@ -692,6 +854,7 @@ public class Fetcher extends Configured implements Tool,
                   fiq.crawlDelay = rules.getCrawlDelay();
                 }
               }
+              long fetchStart = System.currentTimeMillis();
               ProtocolOutput output = protocol.getProtocolOutput(fit.url, fit.datum);
               ProtocolStatus status = output.getStatus();
               Content content = output.getContent();
@@ -699,6 +862,14 @@ public class Fetcher extends Configured implements Tool,
               // unblock queue
               fetchQueues.finishFetchItem(fit);
 
+              HostDbStore hosts = hostDbStore;
+              if (hosts != null && status.getCode() != ProtocolStatus.WOULDBLOCK) {
+                hosts.addFetch(fit.u.getHost().toLowerCase(),
+                    (int) (System.currentTimeMillis() - fetchStart),
+                    status.getCode() == ProtocolStatus.EXCEPTION
+                    || status.getCode() == ProtocolStatus.RETRY);
+              }
+
               String urlString = fit.url.toString();
 
               reporter.incrCounter("FetcherStatus", status.getName(), 1);
@@ -734,9 +905,7 @@ public class Fetcher extends Configured implements Tool,
                     }
                     fit = FetchItem.create(redirUrl, newDatum, queueMode);
                     if (fit != null) {
-                      FetchItemQueue fiq =
-                        fetchQueues.getFetchItemQueue(fit.queueID);
-                      fiq.addInProgressFetchItem(fit);
+                      fetchQueues.addInProgressFetchItem(fit);
                     } else {
                       // stop redirecting
                       redirecting = false;
@@ -775,9 +944,7 @@ public class Fetcher extends Configured implements Tool,
                   }
                   fit = FetchItem.create(redirUrl, newDatum, queueMode);
                   if (fit != null) {
-                    FetchItemQueue fiq =
-                      fetchQueues.getFetchItemQueue(fit.queueID);
-                    fiq.addInProgressFetchItem(fit);
+                    fetchQueues.addInProgressFetchItem(fit);
                   } else {
                     // stop redirecting
                     redirecting = false;
@@ -1033,7 +1200,7 @@ public class Fetcher extends Configured implements Tool,
             for (int i = 0; i < links.length && validCount < outlinksToStore; i++) {
               String toUrl = links[i].getToUrl();
 
-              toUrl = ParseOutputFormat.filterNormalize(url.toString(), toUrl, fromHost, ignoreExternalLinks, urlFilters, normalizers);
+              toUrl = ParseOutputFormat.filterNormalize(url.toString(), toUrl, fromHost, ignoreExternalLinks, urlFilters, normalizers, outlinkCache);
               if (toUrl == null) {
                 continue;
               }
@@ -1135,6 +1302,7 @@ public class Fetcher extends Configured implements Tool,
   public void configure(JobConf job) {
     setConf(job);
 
+    this.job = job;
     this.segmentName = job.get(Nutch.SEGMENT_NAME_KEY);
     this.storingContent = isStoringContent(job);
     this.parsing = isParsing(job);
@@ -1161,9 +1329,18 @@ public class Fetcher extends Configured implements Tool,
     this.output = output;
     this.reporter = reporter;
     this.fetchQueues = new FetchItemQueues(getConf());
+    this.outlinkCache = URLNormalizeFilterCache.create(getConf());
+    String hostDb = getConf().get(HOSTDB);
+    if (hostDb != null) {
+      this.hostDbStore = HostDbStore.open(getConf(), new Path(hostDb));
+    }
 
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: threads: " + threadCount); }
+    long stackSize = getConf().getLong("fetcher.threads.stack.size", 0);
+    if (stackSize > 0 && LOG.isInfoEnabled()) {
+      LOG.info("Fetcher: thread stack size: " + stackSize);
+    }
 
     int timeoutDivisor = getConf().getInt("fetcher.threads.timeout.divisor", 2);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: time-out divisor: " + timeoutDivisor); }
@@ -1260,16 +1437,69 @@ public class Fetcher extends Configured implements Tool,
         if (LOG.isWarnEnabled()) {
           LOG.warn("Aborting with "+activeThreads+" hung threads.");
         }
+        reportOutlinkCache();
+        reportParses();
+        closeHostDbStore();
         return;
       }
 
     } while (activeThreads.get() > 0);
     LOG.info("-activeThreads=" + activeThreads);
+    reportOutlinkCache();
+    reportParses();
+    closeHostDbStore();
+
+  }
+
+  private void reportParses() {
+    if (parsing) {
+      ParseExecutor.get(getConf()).logStats();
+      EncodingDetector.reportDecisions(reporter);
+    }
+  }
 
+  private void reportOutlinkCache() {
+    if (outlinkCache != null) {
+      LOG.info("Outlink cache: " + outlinkCache);
+      ParseOutputFormat.reportCacheCounters(reporter, outlinkCache);
+    }
+  }
+
+  /**
+   * Writes what the task found out about hosts in the segment, for the
+   * host db to be updated with at the end of the job.
+   */
+  private void closeHostDbStore() throws IOException {
+    if (hostDbStore == null) {
+      return;
+    }
+    Path out = new Path(new Path(FileOutputFormat.getWorkOutputPath(job),
+        HostDb.FETCH_DIR_NAME), FileOutputFormat.getUniqueName(job, "part"));
+    hostDbStore.write(out);
+    LOG.info("Fetcher: host db: robots rules reused=" + hostDbStore.getRobotsReused()
+        + ", stale=" + hostDbStore.getRobotsStale() + ", hosts updated="
+        + hostDbStore.getUpdated());
+    reporter.incrCounter("HostDb", "robots rules reused", hostDbStore.getRobotsReused());
+    reporter.incrCounter("HostDb", "robots rules stale", hostDbStore.getRobotsStale());
+    reporter.incrCounter("HostDb", "hosts updated", hostDbStore.getUpdated());
+    hostDbStore.close();
+    hostDbStore = null;
   }
 
   public void fetch(Path segment, int threads)
     throws IOException {
+    String hostDb = getConf().get(HOSTDB);
+    fetch(segment, threads, hostDb == null ? null : new Path(hostDb));
+  }
+
+  /**
+   * Fetches a segment.
+   *
+   * @param hostDb the host db to reuse robots.txt rules from and to update
+   *        at the end of the job, or <code>null</code>.
+   */
+  public void fetch(Path segment, int threads, Path hostDb)
+    throws IOException {
 
     checkConfiguration();
 
@@ -1278,6 +1508,9 @@ public class Fetcher extends Configured implements Tool,
     if (LOG.isInfoEnabled()) {
       LOG.info("Fetcher: starting at " + sdf.format(start));
       LOG.info("Fetcher: segment: " + segment);
+      if (hostDb != null) {
+        LOG.info("Fetcher: host db: " + hostDb);
+      }
     }
 
     // set the actual time for the timelimit relative
@@ -1315,6 +1548,9 @@ public class Fetcher extends Configured implements Tool,
 
     job.setInt("fetcher.threads.fetch", threads);
     job.set(Nutch.SEGMENT_NAME_KEY, segment.getName());
+    if (hostDb != null) {
+      job.set(HOSTDB, hostDb.toString());
+    }
 
     // for politeness, don't permit parallel execution of a single task
     job.setSpeculativeExecution(false);
@@ -1331,6 +1567,10 @@ public class Fetcher extends Configured implements Tool,
 
     JobClient.runJob(job);
 
+    if (hostDb != null) {
+      new HostDb(getConf()).update(hostDb, new Path[] { segment });
+    }
+
     long end = System.currentTimeMillis();
     LOG.info("Fetcher: finished at " + sdf.format(end) + ", elapsed: " + TimingUtil.elapsedTime(start, end));
   }
@@ -1344,7 +1584,7 @@ public class Fetcher extends Configured implements Tool,
 
   public int run(String[] args) throws Exception {
 
-    String usage = "Usage: Fetcher <segment> [-threads n]";
+    String usage = "Usage: Fetcher <segment> [-threads n] [-hostdb <hostdb>]";
 
     if (args.length < 1) {
       System.err.println(usage);
@@ -1355,17 +1595,20 @@ public class Fetcher extends Configured implements Tool,
 
     int threads = getConf().getInt("fetcher.threads.fetch", 10);
     boolean parsing = false;
+    String hostDb = getConf().get(HOSTDB);
 
     for (int i = 1; i < args.length; i++) {       // parse command line
       if (args[i].equals("-threads")) {           // found -threads option
         threads =  Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hostdb")) {
+        hostDb = args[++i];
       }
     }
 
     getConf().setInt("fetcher.threads.fetch", threads);
 
     try {
-      fetch(segment, threads);
+      fetch(segment, threads, hostDb == null ? null : new Path(hostDb));
       return 0;
     } catch (Exception e) {
       LOG.error("Fetcher: " + StringUtils.stringifyException(e));
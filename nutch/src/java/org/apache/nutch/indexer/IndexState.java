@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VersionMismatchException;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * What was sent to the index for a url: the signature of the page and the
+ * boost it was indexed with, and when. Kept in an {@link IndexStateDb}.
+ */
+public class IndexState implements Writable {
+
+  private static final byte CUR_VERSION = 1;
+
+  private String signature = "";
+  private float boost = 0;
+  private long lastIndexed = 0;
+
+  public IndexState() {}
+
+  public IndexState(String signature, float boost, long lastIndexed) {
+    this.signature = signature;
+    this.boost = boost;
+    this.lastIndexed = lastIndexed;
+  }
+
+  public String getSignature() { return signature; }
+
+  public float getBoost() { return boost; }
+
+  /** When the document was last sent to the index, in milliseconds. */
+  public long getLastIndexed() { return lastIndexed; }
+
+  /**
+   * Whether a document with this signature and boost is the one in the
+   * index.
+   */
+  public boolean isIndexed(String signature, float boost) {
+    return signature != null && signature.equals(this.signature)
+      && Float.floatToIntBits(boost) == Float.floatToIntBits(this.boost);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version != CUR_VERSION) {
+      throw new VersionMismatchException(CUR_VERSION, version);
+    }
+    signature = Text.readString(in);
+    boost = in.readFloat();
+    lastIndexed = in.readLong();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(CUR_VERSION);
+    Text.writeString(out, signature);
+    out.writeFloat(boost);
+    out.writeLong(lastIndexed);
+  }
+
+  public String toString() {
+    return "signature: " + signature + ", boost: " + boost
+      + ", lastIndexed: " + lastIndexed;
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.util.LockUtil;
+
+/**
+ * Keeps track of what has been sent to the index, so that indexing jobs
+ * send only what changed: a MapFile of url to {@link IndexState}, and the
+ * list of the segments indexed.
+ *
+ * <p>An indexing job given an index state db reads the current states
+ * along with the crawl db, skips the documents whose signature and boost
+ * are those indexed, and writes the new states in the
+ * {@link #STATE_DIR_NAME} directory of its output, which is then installed
+ * by {@link #install(JobConf, Path, List)}.</p>
+ *
+ * <p>With {@link #SKIP_SEGMENTS} set, the job is only fed the segments
+ * which are new or changed since they were indexed (see
+ * {@link #selectSegments(FileSystem, Path, List)}). The boosts of the
+ * documents of the other segments are then not computed again, so a boost
+ * changed since, e.g. in the kirsten db, does not reach the index: set
+ * <code>kirsten.boost.external</code> and export the boosts to an external
+ * file field instead (see <code>KirstenBoostExport</code>).</p>
+ *
+ * <p>The db must be deleted whenever the index is emptied or rebuilt,
+ * otherwise the documents it holds would never be sent again. Documents
+ * deleted by the indexing job itself, or by <code>SolrClean</code> (gone
+ * in the crawl db), are dropped from the db. Those deleted by
+ * <code>SolrDeleteDuplicates</code> or <code>SolrDeleteNearDuplicates</code>
+ * are not: they are not sent again until their signature or boost change,
+ * even if the document kept in their place goes away. Do not run the
+ * dedup jobs on an index maintained with an index state db.</p>
+ */
+public class IndexStateDb {
+  public static final Logger LOG = LoggerFactory.getLogger(IndexStateDb.class);
+
+  public static final String CURRENT_NAME = "current";
+
+  public static final String LOCK_NAME = ".locked";
+
+  /** File listing the segments indexed, with their modification times. */
+  public static final String SEGMENTS_NAME = "segments";
+
+  /**
+   * Whether to skip the segments indexed and unchanged since. False by
+   * default, so that every document's boost is computed again.
+   */
+  public static final String SKIP_SEGMENTS = "indexer.state.skip.segments";
+
+  /** Directory of the indexing job output holding the new index states. */
+  public static final String STATE_DIR_NAME = "index_state";
+
+  private IndexStateDb() {}
+
+  /**
+   * Returns the segments which have not been indexed yet, or have changed
+   * since.
+   */
+  public static List<Path> selectSegments(FileSystem fs, Path stateDb,
+      List<Path> segments) throws IOException {
+    Map<String, Long> indexed = readSegments(fs, stateDb);
+    List<Path> selected = new ArrayList<Path>();
+    for (Path segment : segments) {
+      Long time = indexed.get(segment.getName());
+      if (time == null || time.longValue() != getModificationTime(fs, segment)) {
+        selected.add(segment);
+      } else {
+        LOG.info("IndexStateDb: skipping indexed segment " + segment);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Returns when the fetch or parse data of a segment were last written, or
+   * -1 if it has not been parsed.
+   */
+  static long getModificationTime(FileSystem fs, Path segment)
+      throws IOException {
+    Path parseData = new Path(segment, ParseData.DIR_NAME);
+    Path fetch = new Path(segment, CrawlDatum.FETCH_DIR_NAME);
+    if (!fs.exists(parseData) || !fs.exists(fetch)) {
+      return -1;
+    }
+    return Math.max(fs.getFileStatus(parseData).getModificationTime(),
+        fs.getFileStatus(fetch).getModificationTime());
+  }
+
+  private static Map<String, Long> readSegments(FileSystem fs, Path stateDb)
+      throws IOException {
+    Map<String, Long> segments = new TreeMap<String, Long>();
+    Path file = new Path(stateDb, SEGMENTS_NAME);
+    if (!fs.exists(file)) {
+      return segments;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.lastIndexOf('\t');
+        if (tab > 0) {
+          segments.put(line.substring(0, tab),
+              Long.parseLong(line.substring(tab + 1)));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return segments;
+  }
+
+  /**
+   * Locks the db, and has the indexing job read its current states and
+   * write the new ones.
+   */
+  public static void initJob(JobConf job, Path stateDb) throws IOException {
+    FileSystem fs = stateDb.getFileSystem(job);
+    LockUtil.createLockFile(fs, new Path(stateDb, LOCK_NAME), false);
+    Path current = new Path(stateDb, CURRENT_NAME);
+    if (fs.exists(current)) {
+      FileInputFormat.addInputPath(job, current);
+    }
+    job.setBoolean(IndexerMapReduce.INDEXER_STATE, true);
+    LOG.info("IndexerMapReduce: index state db: " + stateDb);
+  }
+
+  /** Unlocks the db, when the indexing job failed. */
+  public static void unlock(JobConf job, Path stateDb) throws IOException {
+    LockUtil.removeLockFile(stateDb.getFileSystem(job),
+        new Path(stateDb, LOCK_NAME));
+  }
+
+  /**
+   * Installs the states written by an indexing job, once its documents are
+   * committed, and adds its segments to the segments indexed.
+   */
+  public static void install(JobConf job, Path stateDb, List<Path> segments)
+      throws IOException {
+    FileSystem fs = new JobClient(job).getFs();
+    Map<String, Long> indexed = readSegments(fs, stateDb);
+    for (Path segment : segments) {
+      long time = getModificationTime(fs, segment);
+      if (time >= 0) {
+        indexed.put(segment.getName(), time);
+      }
+    }
+
+    Path newState = new Path(FileOutputFormat.getOutputPath(job), STATE_DIR_NAME);
+    Path old = new Path(stateDb, "old");
+    Path current = new Path(stateDb, CURRENT_NAME);
+    if (!fs.exists(newState)) {
+      fs.mkdirs(newState);
+    }
+    if (fs.exists(current)) {
+      if (fs.exists(old)) fs.delete(old, true);
+      fs.rename(current, old);
+    }
+    fs.mkdirs(stateDb);
+    fs.rename(newState, current);
+    if (fs.exists(old)) fs.delete(old, true);
+
+    Path tmp = new Path(stateDb, SEGMENTS_NAME + ".tmp");
+    Writer writer = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+    try {
+      for (Map.Entry<String, Long> entry : indexed.entrySet()) {
+        writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    Path file = new Path(stateDb, SEGMENTS_NAME);
+    fs.delete(file, false);
+    fs.rename(tmp, file);
+    unlock(job, stateDb);
+  }
+}
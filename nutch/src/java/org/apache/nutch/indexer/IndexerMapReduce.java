@@ -25,9 +25,11 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -61,6 +63,8 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
   public static final String INDEXER_SKIP_NOTMODIFIED = "indexer.skip.notmodified";
   public static final String URL_FILTERING = "indexer.url.filters";
   public static final String URL_NORMALIZING = "indexer.url.normalizers";
+  /** Set when the job reads and writes an {@link IndexStateDb}. */
+  public static final String INDEXER_STATE = "indexer.state";
 
   private boolean skip = false;
   private boolean delete = false;
@@ -76,6 +80,11 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
   private URLNormalizers urlNormalizers;
   private URLFilters urlFilters;
 
+  // what has been sent to the index, only used with an index state db
+  private boolean state = false;
+  private JobConf job;
+  private MapFile.Writer stateWriter;
+
   public void configure(JobConf job) {
     setConf(job);
     this.filters = new IndexingFilters(getConf());
@@ -83,6 +92,8 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
     this.delete = job.getBoolean(INDEXER_DELETE, false);
     this.deleteRobotsNoIndex = job.getBoolean(INDEXER_DELETE_ROBOTS_NOINDEX, false);
     this.skip = job.getBoolean(INDEXER_SKIP_NOTMODIFIED, false);
+    this.state = job.getBoolean(INDEXER_STATE, false);
+    this.job = job;
 
     normalize = job.getBoolean(URL_NORMALIZING, false);
     filter = job.getBoolean(URL_FILTERING, false);
@@ -168,6 +179,7 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
     CrawlDatum fetchDatum = null;
     ParseData parseData = null;
     ParseText parseText = null;
+    IndexState indexState = null;
 
     while (values.hasNext()) {
       final Writable value = values.next().get(); // unwrap
@@ -230,24 +242,35 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
         }
       } else if (value instanceof ParseText) {
         parseText = (ParseText)value;
+      } else if (value instanceof IndexState) {
+        indexState = (IndexState)value;
       } else if (LOG.isWarnEnabled()) {
         LOG.warn("Unrecognized type: "+value.getClass());
       }
     }
 
+    // SolrClean deletes gone documents, which are sent again if they return
+    if (dbDatum != null && dbDatum.getStatus() == CrawlDatum.STATUS_DB_GONE) {
+      indexState = null;
+    }
+
+    // whatever is not sent or deleted stays in the index as it was
     if (fetchDatum == null || dbDatum == null
         || parseText == null || parseData == null) {
+      writeState(key, indexState);
       return;                                     // only have inlinks
     }
 
     // Whether to skip DB_NOTMODIFIED pages
     if (skip && dbDatum.getStatus() == CrawlDatum.STATUS_DB_NOTMODIFIED) {
       reporter.incrCounter("IndexerStatus", "Skipped", 1);
+      writeState(key, indexState);
       return;
     }
 
     if (!parseData.getStatus().isSuccess() ||
         fetchDatum.getStatus() != CrawlDatum.STATUS_FETCH_SUCCESS) {
+      writeState(key, indexState);
       return;
     }
 
@@ -273,17 +296,20 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
     } catch (final IndexingException e) {
       if (LOG.isWarnEnabled()) { LOG.warn("Error indexing "+key+": "+e); }
       reporter.incrCounter("IndexerStatus", "Errors", 1);
+      writeState(key, indexState);
       return;
     }
 
     // skip documents discarded by indexing filters
     if (doc == null) {
       reporter.incrCounter("IndexerStatus", "Skipped by filters", 1);
+      writeState(key, indexState);
       return;
     }
 
     float boost = 1.0f;
     // run scoring filters
+    scfilters.setReporter(reporter);
     try {
       boost = this.scfilters.indexerScore(key, doc, dbDatum,
               fetchDatum, parse, inlinks, boost);
@@ -291,6 +317,16 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
       if (LOG.isWarnEnabled()) {
         LOG.warn("Error calculating score " + key + ": " + e);
       }
+      writeState(key, indexState);
+      return;
+    }
+
+    // skip documents which are in the index as they are
+    String signature = doc.getFieldValue("digest") == null ? null
+        : doc.getFieldValue("digest").toString();
+    if (indexState != null && indexState.isIndexed(signature, boost)) {
+      reporter.incrCounter("IndexerStatus", "Skipped unchanged", 1);
+      writeState(key, indexState);
       return;
     }
     // apply boost to all indexed fields.
@@ -305,9 +341,35 @@ implements Mapper<Text, Writable, Text, NutchWritable>,
 
     NutchIndexAction action = new NutchIndexAction(doc, NutchIndexAction.ADD);
     output.collect(key, action);
+    if (signature != null) {
+      writeState(key, new IndexState(signature, boost, System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Writes the state of a url, which is either the one just sent or the one
+   * kept from the last run. The reducer sees the urls in order, as the
+   * MapFile needs.
+   */
+  private void writeState(Text url, IndexState indexState) throws IOException {
+    if (!state || indexState == null) {
+      return;
+    }
+    if (stateWriter == null) {
+      // opened by the first reduce, map tasks write no state
+      Path out = new Path(new Path(FileOutputFormat.getWorkOutputPath(job),
+          IndexStateDb.STATE_DIR_NAME), FileOutputFormat.getUniqueName(job, "part"));
+      stateWriter = new MapFile.Writer(job, out.getFileSystem(job),
+          out.toString(), Text.class, IndexState.class);
+    }
+    stateWriter.append(url, indexState);
   }
 
-  public void close() throws IOException { }
+  public void close() throws IOException {
+    if (stateWriter != null) {
+      stateWriter.close();
+    }
+  }
 
   public static void initMRJob(Path crawlDb, Path linkDb,
                            Collection<Path> segments,
@@ -91,7 +91,7 @@ public class SolrClean implements Tool {
   }
 
   public static class SolrDeleter implements Reducer<ByteWritable, Text, Text, ByteWritable> {
-    private static final int NUM_MAX_DELETE_REQUEST = 1000;
+    private int maxDeleteRequest = 1000;
     private int numDeletes = 0;
     private int totalDeleted = 0;
     private SolrServer solr;
@@ -103,6 +103,7 @@ public class SolrClean implements Tool {
       try {
         solr = SolrUtils.getCommonsHttpSolrServer(job);
         noCommit = job.getBoolean("noCommit", false);
+        maxDeleteRequest = job.getInt(SolrConstants.COMMIT_SIZE, maxDeleteRequest);
       } catch (MalformedURLException e) {
         throw new RuntimeException(e);
       }
@@ -136,7 +137,7 @@ public class SolrClean implements Tool {
         updateRequest.deleteById(document.toString());
         numDeletes++;
         reporter.incrCounter("SolrCleanStatus", "Deleted documents", 1);
-        if (numDeletes >= NUM_MAX_DELETE_REQUEST) {
+        if (numDeletes >= maxDeleteRequest) {
           try {
             LOG.info("SolrClean: deleting " + numDeletes + " documents");
             updateRequest.process(solr);
@@ -35,6 +35,27 @@ public interface SolrConstants {
   
   public static final String PARAMS = SOLR_PREFIX + "params";
 
+  public static final String HTTP_MAX_CONNECTIONS = SOLR_PREFIX + "http.max.connections";
+
+  public static final String HTTP_MAX_CONNECTIONS_HOST = SOLR_PREFIX + "http.max.connections.host";
+
+  public static final String HTTP_TIMEOUT = SOLR_PREFIX + "http.timeout";
+
+  public static final String HTTP_JAVABIN = SOLR_PREFIX + "http.javabin";
+
+  public static final String HTTP_COMPRESSION = SOLR_PREFIX + "http.compression";
+
+  public static final String WRITER_THREADS = SOLR_PREFIX + "writer.threads";
+
+  public static final String WRITER_QUEUE_SIZE = SOLR_PREFIX + "writer.queue.size";
+
+  public static final String WRITER_RETRIES = SOLR_PREFIX + "writer.retries";
+
+  public static final String WRITER_RETRY_DELAY = SOLR_PREFIX + "writer.retry.delay";
+
+  /** Number of documents fetched per query by the dedup jobs. */
+  public static final String DEDUP_PAGE_SIZE = SOLR_PREFIX + "dedup.page.size";
+
   public static final String ID_FIELD = "id";
   
   public static final String URL_FIELD = "url";
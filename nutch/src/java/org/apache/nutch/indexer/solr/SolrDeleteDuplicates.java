@@ -21,8 +21,15 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +56,7 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 
@@ -61,8 +69,10 @@ import org.apache.solr.common.SolrDocumentList;
  * <ol>
  * <li>Query the solr server for the number of documents (say, N)</li>
  * <li>Partition N among M map tasks. For example, if we have two map tasks
- * the first map task will deal with solr documents from 0 - (N / 2 - 1) and
- * the second will deal with documents from (N / 2) to (N - 1).</li>
+ * the first map task will deal with the solr documents sorted on id from the
+ * first to the one before the (N / 2)th, and the second will deal with the
+ * documents from the (N / 2)th id on. Each map task pages through its ids
+ * (see {@link SolrConstants#DEDUP_PAGE_SIZE}).</li>
  * </ol>
  * 
  * MapReduce:
@@ -144,22 +154,33 @@ Tool {
     } 
   }
 
+  /**
+   * The documents whose ids are from <code>lowerId</code> (inclusive) to
+   * <code>upperId</code> (exclusive). An empty bound is open.
+   */
   public static class SolrInputSplit implements InputSplit {
 
-    private int docBegin;
+    private String lowerId = "";
+    private String upperId = "";
     private int numDocs;
 
     public SolrInputSplit() { }
 
-    public SolrInputSplit(int docBegin, int numDocs) {
-      this.docBegin = docBegin;
+    public SolrInputSplit(String lowerId, String upperId, int numDocs) {
+      this.lowerId = lowerId;
+      this.upperId = upperId;
       this.numDocs = numDocs;
     }
 
-    public int getDocBegin() {
-      return docBegin;
+    public String getLowerId() {
+      return lowerId;
     }
 
+    public String getUpperId() {
+      return upperId;
+    }
+
+    /** Number of documents in the split when it was made. */
     public int getNumDocs() {
       return numDocs;
     }
@@ -173,25 +194,42 @@ Tool {
     }
 
     public void readFields(DataInput in) throws IOException {
-      docBegin = in.readInt();
+      lowerId = Text.readString(in);
+      upperId = Text.readString(in);
       numDocs = in.readInt();
     }
 
     public void write(DataOutput out) throws IOException {
-      out.writeInt(docBegin);
+      Text.writeString(out, lowerId);
+      Text.writeString(out, upperId);
       out.writeInt(numDocs);
     }
   }
 
+  /**
+   * Returns a filter query on the ids after <code>lowerId</code>, and before
+   * <code>upperId</code>. An empty bound is open.
+   */
+  static String getRangeQuery(String lowerId, boolean inclusive,
+      String upperId) {
+    return SolrConstants.ID_FIELD + ":" + (inclusive ? "[" : "{")
+      + (lowerId.length() == 0 ? "*" : ClientUtils.escapeQueryChars(lowerId))
+      + " TO "
+      + (upperId.length() == 0 ? "*]" : ClientUtils.escapeQueryChars(upperId) + "}");
+  }
+
   public static class SolrInputFormat implements InputFormat<Text, SolrRecord> {
 
-    /** Return each index as a split. */
+    /**
+     * Cuts the index in ranges of ids holding about the same number of
+     * documents.
+     */
     public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
       SolrServer solr = SolrUtils.getCommonsHttpSolrServer(job);
 
       final SolrQuery solrQuery = new SolrQuery(SOLR_GET_ALL_QUERY);
       solrQuery.setFields(SolrConstants.ID_FIELD);
-      solrQuery.setRows(1);
+      solrQuery.setRows(0);
 
       QueryResponse response;
       try {
@@ -201,14 +239,36 @@ Tool {
       }
 
       int numResults = (int)response.getResults().getNumFound();
-      int numDocsPerSplit = (numResults / numSplits); 
-      int currentDoc = 0;
+      if (numResults < numSplits) {
+        numSplits = 1;
+      }
+      int numDocsPerSplit = (numResults / numSplits);
+
+      // The first id of each split, but the first one. One document is
+      // fetched per split, the readers then page on the ids.
+      solrQuery.addSortField(SolrConstants.ID_FIELD, SolrQuery.ORDER.asc);
+      solrQuery.setRows(1);
+      String lowerId = "";
       SolrInputSplit[] splits = new SolrInputSplit[numSplits];
       for (int i = 0; i < numSplits - 1; i++) {
-        splits[i] = new SolrInputSplit(currentDoc, numDocsPerSplit);
-        currentDoc += numDocsPerSplit;
+        solrQuery.setStart((i + 1) * numDocsPerSplit);
+        try {
+          response = solr.query(solrQuery);
+        } catch (final SolrServerException e) {
+          throw new IOException(e);
+        }
+        if (response.getResults().isEmpty()) {
+          // documents deleted meanwhile: the last split takes the rest
+          splits = Arrays.copyOf(splits, i + 1);
+          break;
+        }
+        String upperId = (String) response.getResults().get(0)
+          .getFieldValue(SolrConstants.ID_FIELD);
+        splits[i] = new SolrInputSplit(lowerId, upperId, numDocsPerSplit);
+        lowerId = upperId;
       }
-      splits[splits.length - 1] = new SolrInputSplit(currentDoc, numResults - currentDoc);
+      splits[splits.length - 1] = new SolrInputSplit(lowerId, "",
+          numResults - (splits.length - 1) * numDocsPerSplit);
 
       return splits;
     }
@@ -217,63 +277,117 @@ Tool {
         final JobConf job, 
         Reporter reporter)
         throws IOException {
+      return new SolrRecordReader(SolrUtils.getCommonsHttpSolrServer(job),
+          (SolrInputSplit) split, job.getInt(SolrConstants.DEDUP_PAGE_SIZE, 1000));
+    }
+  }
 
-      SolrServer solr = SolrUtils.getCommonsHttpSolrServer(job);
-      SolrInputSplit solrSplit = (SolrInputSplit) split;
-      final int numDocs = solrSplit.getNumDocs();
-      
-      SolrQuery solrQuery = new SolrQuery(SOLR_GET_ALL_QUERY);
+  /**
+   * Reads the documents of a split in pages sorted on id, each page starting
+   * after the last id of the previous one, so that the pages cost the same
+   * however deep in the index. The next page is fetched while the current
+   * one is read, and at most these two pages are held.
+   */
+  static class SolrRecordReader implements RecordReader<Text, SolrRecord> {
+
+    private final SolrServer solr;
+    private final SolrInputSplit split;
+    private final int pageSize;
+    private final ExecutorService fetcher;
+
+    private SolrDocumentList page;
+    private Future<SolrDocumentList> nextPage;
+    private int pagePos = 0;
+    private long pos = 0;
+
+    public SolrRecordReader(SolrServer solr, SolrInputSplit split, int pageSize) {
+      this.solr = solr;
+      this.split = split;
+      this.pageSize = pageSize;
+      fetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "SolrRecordReader");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      nextPage = fetch(split.getLowerId(), true);
+    }
+
+    private Future<SolrDocumentList> fetch(String lowerId, boolean inclusive) {
+      final SolrQuery solrQuery = new SolrQuery(SOLR_GET_ALL_QUERY);
+      solrQuery.addFilterQuery(getRangeQuery(lowerId, inclusive,
+          split.getUpperId()));
       solrQuery.setFields(SolrConstants.ID_FIELD, SolrConstants.BOOST_FIELD,
                           SolrConstants.TIMESTAMP_FIELD,
                           SolrConstants.DIGEST_FIELD);
-      solrQuery.setStart(solrSplit.getDocBegin());
-      solrQuery.setRows(numDocs);
+      solrQuery.addSortField(SolrConstants.ID_FIELD, SolrQuery.ORDER.asc);
+      solrQuery.setRows(pageSize);
+      return fetcher.submit(new Callable<SolrDocumentList>() {
+        public SolrDocumentList call() throws SolrServerException {
+          return solr.query(solrQuery).getResults();
+        }
+      });
+    }
 
-      QueryResponse response;
+    private boolean nextPage() throws IOException {
+      if (nextPage == null) {
+        return false;
+      }
       try {
-        response = solr.query(solrQuery);
-      } catch (final SolrServerException e) {
+        page = nextPage.get();
+      } catch (InterruptedException e) {
         throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
       }
+      pagePos = 0;
+      if (page.size() < pageSize) {
+        nextPage = null;
+      } else {
+        String lastId = (String) page.get(page.size() - 1)
+          .getFieldValue(SolrConstants.ID_FIELD);
+        nextPage = fetch(lastId, false);
+      }
+      return true;
+    }
 
-      final SolrDocumentList solrDocs = response.getResults();
-
-      return new RecordReader<Text, SolrRecord>() {
-
-        private int currentDoc = 0;
+    public void close() throws IOException {
+      fetcher.shutdownNow();
+    }
 
-        public void close() throws IOException { }
+    public Text createKey() {
+      return new Text();
+    }
 
-        public Text createKey() {
-          return new Text();
-        }
+    public SolrRecord createValue() {
+      return new SolrRecord();
+    }
 
-        public SolrRecord createValue() {
-          return new SolrRecord();
-        }
+    public long getPos() throws IOException {
+      return pos;
+    }
 
-        public long getPos() throws IOException {
-          return currentDoc;
-        }
+    public float getProgress() throws IOException {
+      int numDocs = split.getNumDocs();
+      return numDocs == 0 ? 1 : Math.min(1, pos / (float) numDocs);
+    }
 
-        public float getProgress() throws IOException {
-          return currentDoc / (float) numDocs;
+    public boolean next(Text key, SolrRecord value) throws IOException {
+      while (page == null || pagePos >= page.size()) {
+        if (!nextPage()) {
+          return false;
         }
+      }
 
-        public boolean next(Text key, SolrRecord value) throws IOException {
-          if (currentDoc >= numDocs) {
-            return false;
-          }
-
-          SolrDocument doc = solrDocs.get(currentDoc);
-          String digest = (String) doc.getFieldValue(SolrConstants.DIGEST_FIELD);
-          key.set(digest);
-          value.readSolrDocument(doc);
+      SolrDocument doc = page.get(pagePos);
+      String digest = (String) doc.getFieldValue(SolrConstants.DIGEST_FIELD);
+      key.set(digest);
+      value.readSolrDocument(doc);
 
-          currentDoc++;
-          return true;
-        }    
-      };
+      pagePos++;
+      pos++;
+      return true;
     }
   }
 
@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer.solr;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.crawl.SimHashSignature;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrInputFormat;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrRecord;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+/**
+ * Utility class for deleting near duplicate documents from a solr index,
+ * whose digests were calculated by {@link SimHashSignature}.
+ *
+ * <p>Two documents are near duplicates when their digests differ in at most
+ * {@link #DISTANCE} bits. The digests are cut into {@link #BANDS} bands:
+ * with more bands than {@link #DISTANCE}, near duplicates have at least one
+ * band in common, so that only the documents of a band need to be compared
+ * with each other.</p>
+ *
+ * MapReduce:
+ * <ul>
+ * <li>Map: the documents of the index are read as by
+ * {@link SolrDeleteDuplicates}, and put under each of their bands.</li>
+ * <li>Reduce: the documents of a band are taken from the best to the
+ * worst, and a document is a duplicate if it is near one kept before it.
+ * As in {@link SolrDeleteDuplicates}, the document with the highest score
+ * (boost field) is better, then the one with the latest timestamp. Each
+ * duplicate is output with the ids of the documents it is near.</li>
+ * <li>A second job drops the duplicates of documents which are duplicates
+ * themselves in another band, so that a document is only deleted when it
+ * is near one staying in the index.</li>
+ * <li>A third job deletes the duplicates from the solr index, once each
+ * whatever the number of bands they were found in.</li>
+ * </ul>
+ *
+ * Digests which are not SimHashes are ignored.
+ */
+public class SolrDeleteNearDuplicates extends Configured implements Tool {
+
+  public static final Logger LOG = LoggerFactory.getLogger(SolrDeleteNearDuplicates.class);
+
+  /** Maximum number of bits near duplicates differ in. */
+  public static final String DISTANCE = "solr.neardedup.distance";
+
+  /** Number of bands of the digests, by default one more than the distance. */
+  public static final String BANDS = "solr.neardedup.bands";
+
+  /**
+   * Maximum number of documents kept in a band a document is compared to.
+   * It bounds the time taken by the bands of many documents.
+   */
+  public static final String MAX_COMPARED = "solr.neardedup.max.compared";
+
+  private static final int NUM_MAX_DELETE_REQUEST = 1000;
+
+  /** A document, with its digest. */
+  public static class SimHashRecord extends SolrRecord {
+
+    private long simHash;
+
+    public SimHashRecord() { }
+
+    public SimHashRecord(SimHashRecord old) {
+      super(old);
+      this.simHash = old.simHash;
+    }
+
+    public SimHashRecord(SolrRecord record, long simHash) {
+      super(record);
+      this.simHash = simHash;
+    }
+
+    public long getSimHash() {
+      return simHash;
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      simHash = in.readLong();
+    }
+
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeLong(simHash);
+    }
+  }
+
+  /** Orders documents from the best to the worst. */
+  static final Comparator<SolrRecord> BEST_FIRST = new Comparator<SolrRecord>() {
+    public int compare(SolrRecord r1, SolrRecord r2) {
+      if (r1.getBoost() != r2.getBoost()) {
+        return r1.getBoost() > r2.getBoost() ? -1 : 1;
+      }
+      if (r1.getTstamp() != r2.getTstamp()) {
+        return r1.getTstamp() > r2.getTstamp() ? -1 : 1;
+      }
+      // the same in every band
+      return r1.getId().compareTo(r2.getId());
+    }
+  };
+
+  /** Returns the number of bands of a job. */
+  static int getBands(JobConf job) {
+    int bands = job.getInt(BANDS, job.getInt(DISTANCE, 3) + 1);
+    return Math.max(1, Math.min(64, bands));
+  }
+
+  /**
+   * Returns the value of a band of a SimHash. The 64 bits are shared
+   * between the bands, the first ones getting one more when they don't
+   * divide evenly.
+   */
+  static long getBand(long simHash, int band, int bands) {
+    int start = 0;
+    int width = 0;
+    for (int i = 0; i <= band; i++) {
+      start += width;
+      width = 64 / bands + (i < 64 % bands ? 1 : 0);
+    }
+    long value = simHash >>> start;
+    return width == 64 ? value : value & ((1L << width) - 1);
+  }
+
+  /** Puts each document under each band of its digest. */
+  public static class BandMapper extends MapReduceBase
+  implements Mapper<Text, SolrRecord, Text, SimHashRecord> {
+
+    private int bands;
+    private Text band = new Text();
+
+    public void configure(JobConf job) {
+      bands = getBands(job);
+    }
+
+    public void map(Text digest, SolrRecord record,
+        OutputCollector<Text, SimHashRecord> output, Reporter reporter)
+    throws IOException {
+      String hex = digest.toString();
+      if (hex.length() != SimHashSignature.LENGTH * 2) {
+        reporter.incrCounter("SolrDedupStatus", "Not SimHash digests", 1);
+        return;
+      }
+      long simHash;
+      try {
+        // as two halves, which parseLong can't overflow
+        simHash = Long.parseLong(hex.substring(0, 8), 16) << 32
+          | Long.parseLong(hex.substring(8), 16);
+      } catch (NumberFormatException e) {
+        reporter.incrCounter("SolrDedupStatus", "Not SimHash digests", 1);
+        return;
+      }
+      SimHashRecord value = new SimHashRecord(record, simHash);
+      for (int i = 0; i < bands; i++) {
+        band.set(i + ":" + Long.toHexString(getBand(simHash, i, bands)));
+        output.collect(band, value);
+      }
+    }
+  }
+
+  /**
+   * Finds the duplicates of a band, output with the id of each document
+   * kept they are near.
+   */
+  public static class BandReducer extends MapReduceBase
+  implements Reducer<Text, SimHashRecord, Text, Text> {
+
+    private int distance;
+    private int maxCompared;
+    private Text id = new Text();
+    private Text keptId = new Text();
+
+    public void configure(JobConf job) {
+      distance = job.getInt(DISTANCE, 3);
+      maxCompared = job.getInt(MAX_COMPARED, 1000);
+    }
+
+    public void reduce(Text band, Iterator<SimHashRecord> values,
+        OutputCollector<Text, Text> output, Reporter reporter)
+    throws IOException {
+      List<SimHashRecord> records = new ArrayList<SimHashRecord>();
+      while (values.hasNext()) {
+        records.add(new SimHashRecord(values.next()));
+      }
+      if (records.size() < 2) {
+        return;
+      }
+      Map<String, List<String>> duplicates =
+        new LinkedHashMap<String, List<String>>();
+      if (findDuplicates(records, distance, maxCompared, duplicates)) {
+        reporter.incrCounter("SolrDedupStatus", "Bands truncated", 1);
+      }
+      for (Map.Entry<String, List<String>> duplicate : duplicates.entrySet()) {
+        id.set(duplicate.getKey());
+        for (String kept : duplicate.getValue()) {
+          keptId.set(kept);
+          output.collect(id, keptId);
+        }
+      }
+      reporter.progress();
+    }
+  }
+
+  /**
+   * Puts in <code>duplicates</code> the documents of a band which are near
+   * a better one kept, with the ids of the kept documents they are near.
+   * Documents are compared to the <code>maxCompared</code> best kept.
+   *
+   * @return whether some document was not compared to all those kept
+   */
+  static boolean findDuplicates(List<SimHashRecord> records, int distance,
+      int maxCompared, Map<String, List<String>> duplicates) {
+    Collections.sort(records, BEST_FIRST);
+    List<SimHashRecord> kept = new ArrayList<SimHashRecord>();
+    boolean truncated = false;
+    for (SimHashRecord record : records) {
+      if (kept.size() > maxCompared) {
+        truncated = true;
+      }
+      List<String> near = null;
+      for (int j = 0; j < kept.size() && j < maxCompared; j++) {
+        if (SimHashSignature.distance(record.getSimHash(),
+            kept.get(j).getSimHash()) <= distance) {
+          if (near == null) {
+            near = new ArrayList<String>();
+          }
+          near.add(kept.get(j).getId());
+        }
+      }
+      if (near == null) {
+        kept.add(record);
+      } else {
+        duplicates.put(record.getId(), near);
+      }
+    }
+    return truncated;
+  }
+
+  /**
+   * Groups the duplicates by the id of the document kept they are near,
+   * and marks the documents which are duplicates themselves.
+   */
+  public static class KeptMapper extends MapReduceBase
+  implements Mapper<Text, Text, Text, Text> {
+
+    private static final Text DUPLICATE = new Text();
+
+    public void map(Text id, Text keptId, OutputCollector<Text, Text> output,
+        Reporter reporter) throws IOException {
+      output.collect(keptId, id);
+      output.collect(id, DUPLICATE);
+    }
+  }
+
+  /**
+   * Outputs the duplicates of a document kept, unless it is a duplicate
+   * itself in another band.
+   */
+  public static class SurvivorReducer extends MapReduceBase
+  implements Reducer<Text, Text, Text, NullWritable> {
+
+    public void reduce(Text keptId, Iterator<Text> values,
+        OutputCollector<Text, NullWritable> output, Reporter reporter)
+    throws IOException {
+      List<Text> duplicates = new ArrayList<Text>();
+      boolean survives = true;
+      while (values.hasNext()) {
+        Text id = values.next();
+        if (id.getLength() == 0) {
+          survives = false;
+        } else if (survives) {
+          duplicates.add(new Text(id));
+        }
+      }
+      if (!survives) {
+        return;
+      }
+      for (Text id : duplicates) {
+        output.collect(id, NullWritable.get());
+      }
+    }
+  }
+
+  /** Deletes the duplicates from the solr index. */
+  public static class DeleteReducer extends MapReduceBase
+  implements Reducer<Text, NullWritable, Text, NullWritable> {
+
+    private SolrServer solr;
+    private boolean noCommit = false;
+    private int numDeletes = 0;
+    private UpdateRequest updateRequest = new UpdateRequest();
+
+    public void configure(JobConf job) {
+      try {
+        solr = SolrUtils.getCommonsHttpSolrServer(job);
+        noCommit = job.getBoolean("noCommit", false);
+      } catch (MalformedURLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void reduce(Text id, Iterator<NullWritable> values,
+        OutputCollector<Text, NullWritable> output, Reporter reporter)
+    throws IOException {
+      updateRequest.deleteById(id.toString());
+      numDeletes++;
+      reporter.incrCounter("SolrDedupStatus", "Deleted near duplicates", 1);
+      if (numDeletes >= NUM_MAX_DELETE_REQUEST) {
+        try {
+          LOG.info("SolrDeleteNearDuplicates: deleting " + numDeletes + " near duplicates");
+          updateRequest.process(solr);
+        } catch (SolrServerException e) {
+          throw new IOException(e);
+        }
+        updateRequest = new UpdateRequest();
+        numDeletes = 0;
+      }
+    }
+
+    public void close() throws IOException {
+      try {
+        if (numDeletes > 0) {
+          LOG.info("SolrDeleteNearDuplicates: deleting " + numDeletes + " near duplicates");
+          updateRequest.process(solr);
+
+          if (!noCommit) {
+            solr.commit();
+          }
+        }
+      } catch (SolrServerException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  public void dedup(String solrUrl) throws IOException {
+    dedup(solrUrl, false);
+  }
+
+  public void dedup(String solrUrl, boolean noCommit) throws IOException {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    LOG.info("SolrDeleteNearDuplicates: starting at " + sdf.format(start));
+    LOG.info("SolrDeleteNearDuplicates: Solr url: " + solrUrl);
+
+    String tmp = getConf().get("mapred.temp.dir", ".") + "/neardedup-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE));
+    Path pairs = new Path(tmp + "-pairs");
+    Path duplicates = new Path(tmp);
+
+    JobConf job = new NutchJob(getConf());
+    job.setJobName("neardedup-find " + solrUrl);
+    job.set(SolrConstants.SERVER_URL, solrUrl);
+    if (getBands(job) <= job.getInt(DISTANCE, 3)) {
+      LOG.warn("SolrDeleteNearDuplicates: with no more bands than the distance,"
+          + " some near duplicates are missed");
+    }
+    job.setInputFormat(SolrInputFormat.class);
+    job.setMapperClass(BandMapper.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(SimHashRecord.class);
+    job.setReducerClass(BandReducer.class);
+    FileOutputFormat.setOutputPath(job, pairs);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(Text.class);
+
+    FileSystem fs = FileSystem.get(getConf());
+    try {
+      JobClient.runJob(job);
+
+      job = new NutchJob(getConf());
+      job.setJobName("neardedup-survivors " + solrUrl);
+      FileInputFormat.addInputPath(job, pairs);
+      job.setInputFormat(SequenceFileInputFormat.class);
+      job.setMapperClass(KeptMapper.class);
+      job.setMapOutputKeyClass(Text.class);
+      job.setMapOutputValueClass(Text.class);
+      job.setReducerClass(SurvivorReducer.class);
+      FileOutputFormat.setOutputPath(job, duplicates);
+      job.setOutputFormat(SequenceFileOutputFormat.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(NullWritable.class);
+
+      JobClient.runJob(job);
+
+      job = new NutchJob(getConf());
+      job.setJobName("neardedup-delete " + solrUrl);
+      job.set(SolrConstants.SERVER_URL, solrUrl);
+      job.setBoolean("noCommit", noCommit);
+      FileInputFormat.addInputPath(job, duplicates);
+      job.setInputFormat(SequenceFileInputFormat.class);
+      job.setMapperClass(IdentityMapper.class);
+      job.setMapOutputKeyClass(Text.class);
+      job.setMapOutputValueClass(NullWritable.class);
+      job.setReducerClass(DeleteReducer.class);
+      job.setOutputFormat(NullOutputFormat.class);
+
+      JobClient.runJob(job);
+    } finally {
+      fs.delete(pairs, true);
+      fs.delete(duplicates, true);
+    }
+
+    long end = System.currentTimeMillis();
+    LOG.info("SolrDeleteNearDuplicates: finished at " + sdf.format(end) + ", elapsed: " + TimingUtil.elapsedTime(start, end));
+  }
+
+  public int run(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: SolrDeleteNearDuplicates <solr url> [-noCommit]");
+      return 1;
+    }
+
+    boolean noCommit = false;
+    if (args.length == 2 && args[1].equals("-noCommit")) {
+      noCommit = true;
+    }
+
+    dedup(args[0], noCommit);
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int result = ToolRunner.run(NutchConfiguration.create(),
+        new SolrDeleteNearDuplicates(), args);
+    System.exit(result);
+  }
+
+}
@@ -29,6 +29,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.indexer.IndexStateDb;
 import org.apache.nutch.indexer.IndexerMapReduce;
 import org.apache.nutch.indexer.NutchIndexWriterFactory;
 import org.apache.nutch.util.HadoopFSUtil;
@@ -79,6 +80,19 @@ public class SolrIndexer extends Configured implements Tool {
   public void indexSolr(String solrUrl, Path crawlDb, Path linkDb,
       List<Path> segments, boolean noCommit, boolean deleteGone, String solrParams,
       boolean filter, boolean normalize) throws IOException {
+    indexSolr(solrUrl, crawlDb, linkDb, segments, noCommit, deleteGone, solrParams,
+        filter, normalize, null);
+  }
+
+  /**
+   * Indexes segments. With an index state db, only the documents whose
+   * signature or boost changed are sent, and with
+   * {@link IndexStateDb#SKIP_SEGMENTS} only the segments new or changed
+   * since they were indexed are read: see {@link IndexStateDb}.
+   */
+  public void indexSolr(String solrUrl, Path crawlDb, Path linkDb,
+      List<Path> segments, boolean noCommit, boolean deleteGone, String solrParams,
+      boolean filter, boolean normalize, Path indexState) throws IOException {
       
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     long start = System.currentTimeMillis();
@@ -90,8 +104,19 @@ public class SolrIndexer extends Configured implements Tool {
     LOG.info("SolrIndexer: deleting gone documents: " + deleteGone);
     LOG.info("SolrIndexer: URL filtering: " + filter);
     LOG.info("SolrIndexer: URL normalizing: " + normalize);
+
+    if (indexState != null && job.getBoolean(IndexStateDb.SKIP_SEGMENTS, false)) {
+      segments = IndexStateDb.selectSegments(FileSystem.get(job), indexState, segments);
+      if (segments.isEmpty()) {
+        LOG.info("SolrIndexer: no new or changed segments to index");
+        return;
+      }
+    }
     
     IndexerMapReduce.initMRJob(crawlDb, linkDb, segments, job);
+    if (indexState != null) {
+      IndexStateDb.initJob(job, indexState);
+    }
 
     job.set(SolrConstants.SERVER_URL, solrUrl);
     job.setBoolean(IndexerMapReduce.INDEXER_DELETE, deleteGone);
@@ -116,19 +141,26 @@ public class SolrIndexer extends Configured implements Tool {
       if (!noCommit) {
         solr.commit();
       }
+      if (indexState != null) {
+        IndexStateDb.install(job, indexState, segments);
+        indexState = null;
+      }
       long end = System.currentTimeMillis();
       LOG.info("SolrIndexer: finished at " + sdf.format(end) + ", elapsed: " + TimingUtil.elapsedTime(start, end));
     }
     catch (Exception e){
       LOG.error(e.toString());
     } finally {
+      if (indexState != null) {
+        IndexStateDb.unlock(job, indexState);
+      }
       FileSystem.get(job).delete(tmp, true);
     }
   }
 
   public int run(String[] args) throws Exception {
     if (args.length < 3) {
-      System.err.println("Usage: SolrIndexer <solr url> <crawldb> [-linkdb <linkdb>] [-params k1=v1&k2=v2...] (<segment> ... | -dir <segments>) [-noCommit] [-deleteGone] [-filter] [-normalize]");
+      System.err.println("Usage: SolrIndexer <solr url> <crawldb> [-linkdb <linkdb>] [-params k1=v1&k2=v2...] (<segment> ... | -dir <segments>) [-noCommit] [-deleteGone] [-filter] [-normalize] [-indexState <indexstate>]");
       return -1;
     }
 
@@ -142,6 +174,7 @@ public class SolrIndexer extends Configured implements Tool {
     boolean deleteGone = false;
     boolean filter = false;
     boolean normalize = false;
+    Path indexState = null;
 
     for (int i = 2; i < args.length; i++) {
     	if (args[i].equals("-linkdb")) {
@@ -166,13 +199,15 @@ public class SolrIndexer extends Configured implements Tool {
         normalize = true;
       } else if (args[i].equals("-params")) {
         params = args[++i];
+      } else if (args[i].equals("-indexState")) {
+        indexState = new Path(args[++i]);
       } else {
         segments.add(new Path(args[i]));
       }
     }
 
     try {
-      indexSolr(args[0], crawlDb, linkDb, segments, noCommit, deleteGone, params, filter, normalize);
+      indexSolr(args[0], crawlDb, linkDb, segments, noCommit, deleteGone, params, filter, normalize, indexState);
       return 0;
     } catch (final Exception e) {
       LOG.error("SolrIndexer: " + StringUtils.stringifyException(e));
@@ -17,12 +17,16 @@
 package org.apache.nutch.indexer.solr;
 
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
 import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 
 import java.net.MalformedURLException;
@@ -31,8 +35,37 @@ public class SolrUtils {
 
   public static Logger LOG = LoggerFactory.getLogger(SolrIndexer.class);
 
+  // shared by all writers, deleters and readers of a task, so that their
+  // keep-alive connections to Solr are reused
+  private static MultiThreadedHttpConnectionManager connectionManager;
+
+  /**
+   * Sends updates in the javabin format to the request's own path. Solr 4
+   * picks the loader by content type, so there is no need for the separate
+   * /update/javabin handler {@link BinaryRequestWriter} assumes.
+   */
+  static class JavaBinRequestWriter extends BinaryRequestWriter {
+    public String getPath(SolrRequest req) {
+      return req.getPath();
+    }
+  }
+
+  static synchronized MultiThreadedHttpConnectionManager getConnectionManager(JobConf job) {
+    if (connectionManager == null) {
+      connectionManager = new MultiThreadedHttpConnectionManager();
+      HttpConnectionManagerParams params = connectionManager.getParams();
+      params.setMaxTotalConnections(job.getInt(SolrConstants.HTTP_MAX_CONNECTIONS, 100));
+      params.setDefaultMaxConnectionsPerHost(job.getInt(SolrConstants.HTTP_MAX_CONNECTIONS_HOST, 20));
+      params.setConnectionTimeout(job.getInt(SolrConstants.HTTP_TIMEOUT, 60000));
+      params.setSoTimeout(job.getInt(SolrConstants.HTTP_TIMEOUT, 60000));
+      params.setStaleCheckingEnabled(true);
+      params.setTcpNoDelay(true);
+    }
+    return connectionManager;
+  }
+
   public static CommonsHttpSolrServer getCommonsHttpSolrServer(JobConf job) throws MalformedURLException {
-    HttpClient client=new HttpClient();
+    HttpClient client=new HttpClient(getConnectionManager(job));
 
     // Check for username/password
     if (job.getBoolean(SolrConstants.USE_AUTH, false)) {
@@ -50,7 +83,12 @@ public class SolrUtils {
       client.setParams(params);
     }
 
-    return new CommonsHttpSolrServer(job.get(SolrConstants.SERVER_URL), client);
+    CommonsHttpSolrServer server = new CommonsHttpSolrServer(job.get(SolrConstants.SERVER_URL), client);
+    if (job.getBoolean(SolrConstants.HTTP_JAVABIN, true)) {
+      server.setRequestWriter(new JavaBinRequestWriter());
+    }
+    server.setAllowCompression(job.getBoolean(SolrConstants.HTTP_COMPRESSION, false));
+    return server;
   }
 
   public static String stripNonCharCodepoints(String input) {
@@ -21,6 +21,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +36,7 @@ import org.apache.nutch.indexer.IndexerMapReduce;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.DateUtil;
@@ -47,10 +52,21 @@ public class SolrWriter implements NutchIndexWriter {
   private final List<SolrInputDocument> inputDocs =
     new ArrayList<SolrInputDocument>();
 
+  private final List<String> deleteIds = new ArrayList<String>();
+
   private int commitSize;
-  private int numDeletes = 0;
   private boolean delete = false;
 
+  private int maxRetries;
+  private long retryDelay;
+
+  // asynchronous mode: batches are sent by a pool of sender threads, at most
+  // threads + queue size batches are in flight before write() blocks
+  private ExecutorService senders;
+  private Semaphore inFlight;
+  private int maxInFlight;
+  private volatile Throwable sendError;
+
   public void open(JobConf job, String name) throws IOException {
     SolrServer server = SolrUtils.getCommonsHttpSolrServer(job);
     init(server, job);
@@ -60,6 +76,16 @@ public class SolrWriter implements NutchIndexWriter {
   void init(SolrServer server, JobConf job) throws IOException {
     solr = server;
     commitSize = job.getInt(SolrConstants.COMMIT_SIZE, 1000);
+    maxRetries = job.getInt(SolrConstants.WRITER_RETRIES, 3);
+    retryDelay = job.getLong(SolrConstants.WRITER_RETRY_DELAY, 1000);
+    int threads = job.getInt(SolrConstants.WRITER_THREADS, 0);
+    if (threads > 0) {
+      maxInFlight = threads + job.getInt(SolrConstants.WRITER_QUEUE_SIZE, threads);
+      inFlight = new Semaphore(maxInFlight);
+      senders = Executors.newFixedThreadPool(threads);
+      LOG.info("Sending batches with " + threads + " threads, at most "
+          + maxInFlight + " batches in flight");
+    }
     solrMapping = SolrMappingReader.getInstance(job);
     delete = job.getBoolean(IndexerMapReduce.INDEXER_DELETE, false);
     // parse optional params
@@ -79,12 +105,9 @@ public class SolrWriter implements NutchIndexWriter {
 
   public void delete(String key) throws IOException {
     if (delete) {
-      try {
-        solr.deleteById(key);
-        numDeletes++;
-      } catch (final SolrServerException e) {
-        throw makeIOException(e);
-      }
+      // sent along with the next batch of added documents
+      deleteIds.add(key);
+      flushIfFull();
     }
   }
 
@@ -113,38 +136,136 @@ public class SolrWriter implements NutchIndexWriter {
 
     inputDoc.setDocumentBoost(doc.getWeight());
     inputDocs.add(inputDoc);
-    if (inputDocs.size() + numDeletes >= commitSize) {
-      try {
-        LOG.info("Indexing " + Integer.toString(inputDocs.size()) + " documents");
-        LOG.info("Deleting " + Integer.toString(numDeletes) + " documents");
-        numDeletes = 0;
-        UpdateRequest req = new UpdateRequest();
-        req.add(inputDocs);
-        req.setParams(params);
-        req.process(solr);
-      } catch (final SolrServerException e) {
-        throw makeIOException(e);
-      }
-      inputDocs.clear();
+    flushIfFull();
+  }
+
+  private void flushIfFull() throws IOException {
+    if (inputDocs.size() + deleteIds.size() >= commitSize) {
+      LOG.info("Indexing " + Integer.toString(inputDocs.size()) + " documents");
+      LOG.info("Deleting " + Integer.toString(deleteIds.size()) + " documents");
+      send(newUpdateRequest());
     }
   }
 
   public void close() throws IOException {
     try {
-      if (!inputDocs.isEmpty()) {
+      if (!inputDocs.isEmpty() || !deleteIds.isEmpty()) {
         LOG.info("Indexing " + Integer.toString(inputDocs.size()) + " documents");
-        if (numDeletes > 0) {
-          LOG.info("Deleting " + Integer.toString(numDeletes) + " documents");
+        if (!deleteIds.isEmpty()) {
+          LOG.info("Deleting " + Integer.toString(deleteIds.size()) + " documents");
         }
-        UpdateRequest req = new UpdateRequest();
-        req.add(inputDocs);
-        req.setParams(params);
-        req.process(solr);
-        inputDocs.clear();
+        send(newUpdateRequest());
       }
       // solr.commit();
-    } catch (final SolrServerException e) {
-      throw makeIOException(e);
+    } finally {
+      if (senders != null) {
+        senders.shutdown();
+      }
+    }
+    if (senders != null) {
+      // wait for every batch in flight, the job must not succeed before
+      // all of them are in Solr
+      try {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+      } catch (InterruptedException e) {
+        senders.shutdownNow();
+        throw new IOException("Interrupted while waiting for batches to be sent");
+      }
+      checkSendError();
+    }
+  }
+
+  /** Move the buffered documents and deletes into a new update request. */
+  private UpdateRequest newUpdateRequest() {
+    UpdateRequest req = new UpdateRequest();
+    if (!inputDocs.isEmpty()) {
+      req.add(new ArrayList<SolrInputDocument>(inputDocs));
+    }
+    if (!deleteIds.isEmpty()) {
+      req.deleteById(new ArrayList<String>(deleteIds));
+    }
+    req.setParams(params);
+    inputDocs.clear();
+    deleteIds.clear();
+    return req;
+  }
+
+  /**
+   * Send an update request, either right away or, in asynchronous mode, by
+   * handing it to a sender thread. Blocks while too many batches are in
+   * flight. A failure of an earlier batch is rethrown here.
+   */
+  private void send(final UpdateRequest req) throws IOException {
+    if (senders == null) {
+      process(req);
+      return;
+    }
+    checkSendError();
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting to send a batch");
+    }
+    try {
+      senders.execute(new Runnable() {
+        public void run() {
+          try {
+            if (sendError == null) {
+              process(req);
+            }
+          } catch (Throwable t) {
+            LOG.error("Failed to send batch to Solr", t);
+            sendError = t;
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  /** Process an update request, retrying transient failures with backoff. */
+  private void process(UpdateRequest req) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        req.process(solr);
+        return;
+      } catch (final SolrServerException e) {
+        if (attempt >= maxRetries) throw makeIOException(e);
+        retryLater(attempt, e);
+      } catch (final SolrException e) {
+        // client errors such as a bad document will fail again
+        if (attempt >= maxRetries || (e.code() >= 400 && e.code() < 500)) throw e;
+        retryLater(attempt, e);
+      } catch (final IOException e) {
+        if (attempt >= maxRetries) throw e;
+        retryLater(attempt, e);
+      }
+    }
+  }
+
+  private void retryLater(int attempt, Exception e) throws IOException {
+    long delay = retryDelay << Math.min(attempt, 16);
+    LOG.warn("Sending batch failed (" + e + "), retrying in " + delay + " ms");
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException ie) {
+      throw new IOException("Interrupted while retrying to send a batch");
+    }
+  }
+
+  private void checkSendError() throws IOException {
+    Throwable t = sendError;
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t != null) {
+      final IOException ioe = new IOException("Failed to send batch to Solr");
+      ioe.initCause(t);
+      throw ioe;
     }
   }
 
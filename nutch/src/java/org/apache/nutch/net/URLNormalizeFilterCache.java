@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A bounded LRU cache of the result of normalizing then filtering a url.
+ *
+ * <p>Navigation and footer links repeat on nearly every page of a site,
+ * so the outlinks of a task are mostly urls whose normalized and filtered
+ * form was already computed. Entries are keyed on the normalizer scope and
+ * the raw url, and urls rejected by a filter are cached too.</p>
+ *
+ * <p>The cache is bounded by the approximate memory used by its entries,
+ * split over independently locked segments so that it can be shared by all
+ * the threads of a task. It must only be used with normalizers and filters
+ * built from the same configuration.</p>
+ */
+public class URLNormalizeFilterCache {
+
+  /** Approximate memory budget of the cache, in bytes. 0 disables it. */
+  public static final String CACHE_SIZE = "urlnormalizer.filter.cache.size";
+
+  public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+  private static final int SEGMENTS = 16;
+
+  /** Approximate overhead of an entry: key, map entry and string headers. */
+  private static final int ENTRY_OVERHEAD = 160;
+
+  /** Cached value of the urls that normalize or filter to nothing. */
+  private static final String REJECTED = new String("");
+
+  private final Segment[] segments;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most about <code>maxSize</code> bytes of
+   * entries.
+   */
+  public URLNormalizeFilterCache(long maxSize) {
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(maxSize / SEGMENTS);
+    }
+  }
+
+  /**
+   * Creates the cache configured by {@link #CACHE_SIZE}.
+   *
+   * @return the cache, or <code>null</code> if caching is disabled.
+   */
+  public static URLNormalizeFilterCache create(Configuration conf) {
+    long size = conf.getLong(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    return size > 0 ? new URLNormalizeFilterCache(size) : null;
+  }
+
+  /**
+   * Normalizes then filters a url, or returns the cached result of doing
+   * so.
+   *
+   * @param url the raw url.
+   * @param scope the scope passed to the normalizers.
+   * @param normalizers the normalizers, or <code>null</code> if urls are
+   *        not normalized.
+   * @param filters the filters, or <code>null</code> if urls are not
+   *        filtered.
+   * @return the normalized url, or <code>null</code> if it is rejected or
+   *         can't be normalized.
+   */
+  public String normalizeAndFilter(String url, String scope,
+      URLNormalizers normalizers, URLFilters filters) {
+    Key key = new Key(scope, url);
+    Segment segment = segments[(key.hash >>> 16) & (SEGMENTS - 1)];
+    String value = segment.lookup(key);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value == REJECTED ? null : value;
+    }
+    misses.incrementAndGet();
+    String result;
+    try {
+      result = compute(url, scope, normalizers, filters);
+    } catch (Exception e) {
+      result = null;
+    }
+    if (result != null && result.equals(url)) {
+      // share the key's string
+      result = url;
+    }
+    // two threads missing on the same url both compute it, which is
+    // harmless as the result is the same
+    evictions.addAndGet(segment.store(key, result == null ? REJECTED : result));
+    return result;
+  }
+
+  /** Computes the value of a url missing from the cache. */
+  String compute(String url, String scope, URLNormalizers normalizers,
+      URLFilters filters) throws Exception {
+    String result = url;
+    if (normalizers != null) {
+      result = normalizers.normalize(result, scope);
+    }
+    if (filters != null && result != null) {
+      result = filters.filter(result);
+    }
+    return result;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /** Fraction of the lookups answered from the cache. */
+  public float getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (float) h / total;
+  }
+
+  /** Number of cached urls. */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.count();
+    }
+    return size;
+  }
+
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+        + getEvictions() + ", hit rate=" + getHitRate() + ", entries=" + size();
+  }
+
+
+  private static class Key {
+
+    private final String scope;
+    private final String url;
+    private final int hash;
+
+    Key(String scope, String url) {
+      this.scope = scope;
+      this.url = url;
+      int h = url.hashCode() * 31 + scope.hashCode();
+      // spread the bits used to select the segment
+      this.hash = h ^ (h >>> 16) * 0x85ebca6b;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return url.equals(other.url) && scope.equals(other.scope);
+    }
+  }
+
+
+  private static class Segment {
+
+    private final LinkedHashMap<Key, String> map =
+      new LinkedHashMap<Key, String>(64, 0.75f, true);
+    private final long maxSize;
+    private long size = 0;
+
+    Segment(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized String lookup(Key key) {
+      return map.get(key);
+    }
+
+    /**
+     * Stores an entry and evicts the least recently used ones over budget.
+     *
+     * @return the number of evicted entries.
+     */
+    synchronized int store(Key key, String value) {
+      String previous = map.put(key, value);
+      if (previous != null) {
+        size -= weight(key, previous);
+      }
+      size += weight(key, value);
+      int evicted = 0;
+      Iterator<Map.Entry<Key, String>> it = map.entrySet().iterator();
+      while (size > maxSize && it.hasNext()) {
+        Map.Entry<Key, String> eldest = it.next();
+        size -= weight(eldest.getKey(), eldest.getValue());
+        it.remove();
+        evicted++;
+      }
+      return evicted;
+    }
+
+    synchronized int count() {
+      return map.size();
+    }
+
+    private static long weight(Key key, String value) {
+      // a value equal to its url shares the string, but counting it twice
+      // keeps the weight of an entry independent of which key is stored
+      return ENTRY_OVERHEAD + 2L * (key.url.length() + value.length());
+    }
+  }
+
+}
@@ -89,6 +89,17 @@ public class HtmlParseFilters {
         }
     }                  
 
+  /**
+   * Whether some filter needs the DOM tree of the page, i.e. is not a
+   * {@link NoDomHtmlParseFilter}.
+   */
+  public boolean needsDom() {
+    for (int i = 0; i < this.htmlParseFilters.length; i++) {
+      if (!(this.htmlParseFilters[i] instanceof NoDomHtmlParseFilter)) return true;
+    }
+    return false;
+  }
+
   /** Run all defined filters. */
   public ParseResult filter(Content content, ParseResult parseResult, HTMLMetaTags metaTags, DocumentFragment doc) {
 
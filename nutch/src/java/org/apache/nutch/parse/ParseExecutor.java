@@ -0,0 +1,440 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.Content;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the parses of a JVM on a bounded pool of threads, and gives them up
+ * when they take too long.
+ *
+ * <p>A parse given up can't be stopped: its thread is interrupted, but
+ * keeps counting against {@link #THREADS} until the parse ends, so that
+ * hung parses can't make the number of threads grow. When all the threads
+ * are taken, parses fail rather than wait for longer than their
+ * timeout.</p>
+ *
+ * <p>A host whose parses time out {@link #QUARANTINE_TIMEOUTS} times in a
+ * row is quarantined for {@link #QUARANTINE_TIME} seconds, see
+ * {@link #isQuarantined(Content)}. Content types are only quarantined with
+ * {@link #QUARANTINE_CONTENT_TYPES}, since a few slow pages would otherwise
+ * stop the parsing of a common type such as <code>text/html</code>.
+ * The time taken by the parses is kept for each parser, and logged by
+ * {@link #logStats()}.</p>
+ */
+public class ParseExecutor {
+
+  public static final Logger LOG = LoggerFactory.getLogger(ParseExecutor.class);
+
+  /** Maximum number of parses running at once, hung ones included. */
+  public static final String THREADS = "parser.threads";
+
+  /**
+   * Number of consecutive timeouts after which a host, or content type, is
+   * quarantined, 0 to never quarantine.
+   */
+  public static final String QUARANTINE_TIMEOUTS = "parser.quarantine.timeouts";
+
+  /** How long a host or content type is quarantined, in seconds. */
+  public static final String QUARANTINE_TIME = "parser.quarantine.time";
+
+  /** Whether content types are quarantined as well as hosts. */
+  public static final String QUARANTINE_CONTENT_TYPES =
+    "parser.quarantine.content.types";
+
+  /** Upper bounds of the buckets of parse times, in milliseconds. */
+  private static final long[] BUCKETS = { 10, 100, 1000, 10000 };
+
+  /** Offenders kept before those not quarantined are forgotten. */
+  private static final int MAX_OFFENDERS = 10000;
+
+  /** Whether the current thread runs a parse. */
+  private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+
+  private static ParseExecutor executor = null;
+
+  /** A host or content type whose parses time out. */
+  private static class Offender {
+    int timeouts = 0;
+    long until = 0;
+  }
+
+  private final int threads;
+  private final int maxTimeouts;
+  private final long quarantineTime;
+  private final boolean quarantineContentTypes;
+
+  private final ThreadPoolExecutor pool;
+  private final Semaphore permits;
+  private final Map<String, Offender> offenders = new HashMap<String, Offender>();
+
+  private final ConcurrentHashMap<String, AtomicLongArray> times =
+    new ConcurrentHashMap<String, AtomicLongArray>();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong quarantined = new AtomicLong();
+  private final AtomicInteger hung = new AtomicInteger();
+
+  /**
+   * Returns the executor of the JVM, created with the configuration of its
+   * first user.
+   */
+  public static synchronized ParseExecutor get(Configuration conf) {
+    if (executor == null) {
+      executor = new ParseExecutor(conf);
+    }
+    return executor;
+  }
+
+  ParseExecutor(Configuration conf) {
+    threads = conf.getInt(THREADS, 50);
+    maxTimeouts = conf.getInt(QUARANTINE_TIMEOUTS, 3);
+    quarantineTime = conf.getLong(QUARANTINE_TIME, 3600) * 1000;
+    quarantineContentTypes = conf.getBoolean(QUARANTINE_CONTENT_TYPES, false);
+    permits = new Semaphore(threads);
+    pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+        .setNameFormat("parse-%d").setDaemon(true).build());
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs a parse.
+   *
+   * @param name what parses, to time it.
+   * @param content the content parsed.
+   * @param parse the parse. If it is {@link Closeable}, it is closed when
+   *        given up.
+   * @param timeout the time after which the parse is given up, in seconds,
+   *        or -1 to run it in the calling thread.
+   * @return the result of the parse, or <code>null</code> if it failed,
+   *         was given up or couldn't get a thread.
+   */
+  public ParseResult run(String name, Content content,
+      Callable<ParseResult> parse, int timeout) {
+    if (timeout == -1 || Boolean.TRUE.equals(WORKER.get())) {
+      // nested parses are bounded by the parse they are part of
+      return runInline(name, content, parse);
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      if (!permits.tryAcquire(timeout, TimeUnit.SECONDS)) {
+        rejected.incrementAndGet();
+        LOG.warn("No thread to parse " + content.getUrl() + " with " + name
+            + ", " + hung.get() + " parses hung");
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+
+    Task task = new Task(parse);
+    Future<ParseResult> future = pool.submit(task);
+    long remaining = Math.max(1,
+        timeout * 1000L - (System.currentTimeMillis() - start));
+    try {
+      ParseResult result = future.get(remaining, TimeUnit.MILLISECONDS);
+      record(name, System.currentTimeMillis() - start);
+      succeeded(content);
+      return result;
+    } catch (TimeoutException e) {
+      giveUp(task, future);
+      record(name, System.currentTimeMillis() - start);
+      timeouts.incrementAndGet();
+      LOG.warn("Timed out parsing " + content.getUrl() + " with " + name
+          + " after " + timeout + "s");
+      timedOut(content);
+    } catch (ExecutionException e) {
+      record(name, System.currentTimeMillis() - start);
+      LOG.warn("Error parsing " + content.getUrl() + " with " + name,
+          e.getCause());
+    } catch (InterruptedException e) {
+      giveUp(task, future);
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  private ParseResult runInline(String name, Content content,
+      Callable<ParseResult> parse) {
+    long start = System.currentTimeMillis();
+    try {
+      return parse.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      LOG.warn("Error parsing " + content.getUrl() + " with " + name, e);
+      return null;
+    } finally {
+      record(name, System.currentTimeMillis() - start);
+    }
+  }
+
+  private void giveUp(Task task, Future<ParseResult> future) {
+    if (task.giveUp()) {
+      future.cancel(true);
+    }
+  }
+
+  /** A parse, which keeps its thread until it ends, even if given up. */
+  private class Task implements Callable<ParseResult> {
+
+    private final Callable<ParseResult> parse;
+    private boolean started = false;
+    private boolean ended = false;
+    private boolean givenUp = false;
+
+    Task(Callable<ParseResult> parse) {
+      this.parse = parse;
+    }
+
+    public ParseResult call() throws Exception {
+      synchronized (this) {
+        if (givenUp) {
+          permits.release();
+          return null;
+        }
+        started = true;
+      }
+      WORKER.set(Boolean.TRUE);
+      try {
+        return parse.call();
+      } finally {
+        WORKER.set(Boolean.FALSE);
+        synchronized (this) {
+          ended = true;
+          if (givenUp) {
+            hung.decrementAndGet();
+          }
+        }
+        permits.release();
+      }
+    }
+
+    /** Gives the parse up, and returns whether it is running. */
+    boolean giveUp() {
+      boolean running;
+      synchronized (this) {
+        givenUp = true;
+        running = started && !ended;
+        if (running) {
+          hung.incrementAndGet();
+        }
+      }
+      if (parse instanceof Closeable) {
+        try {
+          ((Closeable) parse).close();
+        } catch (Exception e) {
+          LOG.warn("Error closing given up parse", e);
+        }
+      }
+      return running;
+    }
+  }
+
+  /**
+   * Returns whether the host, or the content type, of some content are
+   * quarantined, after too many of their parses timed out.
+   */
+  public boolean isQuarantined(Content content) {
+    if (maxTimeouts <= 0) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (offenders) {
+      if (offenders.isEmpty()) {
+        return false;
+      }
+      for (String key : getKeys(content)) {
+        Offender offender = offenders.get(key);
+        if (offender != null && offender.until > now) {
+          quarantined.incrementAndGet();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void timedOut(Content content) {
+    if (maxTimeouts <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (offenders) {
+      if (offenders.size() >= MAX_OFFENDERS) {
+        Iterator<Offender> i = offenders.values().iterator();
+        while (i.hasNext()) {
+          if (i.next().until <= now) {
+            i.remove();
+          }
+        }
+      }
+      for (String key : getKeys(content)) {
+        Offender offender = offenders.get(key);
+        if (offender == null) {
+          offender = new Offender();
+          offenders.put(key, offender);
+        }
+        if (++offender.timeouts >= maxTimeouts) {
+          LOG.warn("Quarantining " + key + " for " + quarantineTime / 1000
+              + "s after " + offender.timeouts + " parse timeouts");
+          offender.timeouts = 0;
+          offender.until = now + quarantineTime;
+        }
+      }
+    }
+  }
+
+  private void succeeded(Content content) {
+    if (maxTimeouts <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (offenders) {
+      if (offenders.isEmpty()) {
+        return;
+      }
+      for (String key : getKeys(content)) {
+        Offender offender = offenders.get(key);
+        if (offender != null && offender.until <= now) {
+          offenders.remove(key);
+        }
+      }
+    }
+  }
+
+  private String[] getKeys(Content content) {
+    String host = null;
+    try {
+      host = new URL(content.getUrl()).getHost().toLowerCase();
+    } catch (MalformedURLException e) {}
+    if (!quarantineContentTypes) {
+      return new String[] { "host " + host };
+    }
+    return new String[] { "content type " + content.getContentType(),
+        "host " + host };
+  }
+
+  private void record(String name, long time) {
+    AtomicLongArray counts = times.get(name);
+    if (counts == null) {
+      // one count per bucket, and the total time
+      AtomicLongArray created = new AtomicLongArray(BUCKETS.length + 2);
+      counts = times.putIfAbsent(name, created);
+      if (counts == null) {
+        counts = created;
+      }
+    }
+    int bucket = 0;
+    while (bucket < BUCKETS.length && time >= BUCKETS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    counts.addAndGet(BUCKETS.length + 1, time);
+  }
+
+  /**
+   * Returns how many parses of a parser took less than 10ms, 100ms, 1s,
+   * 10s, and longer, or <code>null</code> if it didn't parse.
+   */
+  public long[] getTimes(String name) {
+    AtomicLongArray counts = times.get(name);
+    if (counts == null) {
+      return null;
+    }
+    long[] result = new long[BUCKETS.length + 1];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+
+  /** Number of parses given up after their timeout. */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /** Number of parses which found no thread to run. */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /** Number of contents found quarantined. */
+  public long getQuarantined() {
+    return quarantined.get();
+  }
+
+  /** Number of parses given up which are still running. */
+  public int getHung() {
+    return hung.get();
+  }
+
+  /** Logs the time taken by the parses, and how many went wrong. */
+  public void logStats() {
+    if (!LOG.isInfoEnabled()) {
+      return;
+    }
+    for (Map.Entry<String, AtomicLongArray> entry : times.entrySet()) {
+      AtomicLongArray counts = entry.getValue();
+      long parses = 0;
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        parses += counts.get(i);
+      }
+      StringBuilder buf = new StringBuilder();
+      buf.append(entry.getKey()).append(": ").append(parses)
+        .append(" parses, average ")
+        .append(parses == 0 ? 0 : counts.get(BUCKETS.length + 1) / parses)
+        .append("ms");
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        buf.append(i < BUCKETS.length ? ", <" + BUCKETS[i] : ", >="
+            + BUCKETS[BUCKETS.length - 1]).append("ms: ").append(counts.get(i));
+      }
+      LOG.info(buf.toString());
+    }
+    LOG.info("Parses timed out: " + timeouts.get() + ", still running: "
+        + hung.get() + ", without a thread: " + rejected.get()
+        + ", quarantined: " + quarantined.get());
+  }
+
+}
@@ -51,6 +51,7 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
 
   private URLFilters filters;
   private URLNormalizers normalizers;
+  private URLNormalizeFilterCache outlinkCache;
   private ScoringFilters scfilters;
 
   private static class SimpleEntry implements Entry<Text, CrawlDatum> {
@@ -101,6 +102,7 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
     }
 
     this.scfilters = new ScoringFilters(job);
+    this.outlinkCache = URLNormalizeFilterCache.create(job);
     final int interval = job.getInt("db.fetch.interval.default", 2592000);
     final boolean ignoreExternalLinks = job.getBoolean("db.ignore.external.links", false);
     int maxOutlinksPerPage = job.getInt("db.max.outlinks.per.page", 100);
@@ -225,7 +227,7 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
 
             // Only normalize and filter if fetcher.parse = false
             if (!isParsing) {
-              toUrl = ParseOutputFormat.filterNormalize(fromUrl, toUrl, fromHost, ignoreExternalLinks, filters, normalizers);
+              toUrl = ParseOutputFormat.filterNormalize(fromUrl, toUrl, fromHost, ignoreExternalLinks, filters, normalizers, outlinkCache);
               if (toUrl == null) {
                 continue;
               }
@@ -284,6 +286,12 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
           textOut.close();
           dataOut.close();
           crawlOut.close();
+          if (outlinkCache != null) {
+            LOG.info("Outlink cache: " + outlinkCache);
+            if (reporter != null) {
+              reportCacheCounters(reporter, outlinkCache);
+            }
+          }
         }
         
       };
@@ -291,6 +299,14 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
   }
 
   public static String filterNormalize(String fromUrl, String toUrl, String fromHost, boolean ignoreExternalLinks, URLFilters filters, URLNormalizers normalizers) {
+    return filterNormalize(fromUrl, toUrl, fromHost, ignoreExternalLinks, filters, normalizers, null);
+  }
+
+  /**
+   * Normalizes and filters an outlink, looking up the result in
+   * <code>cache</code> first if it is not <code>null</code>.
+   */
+  public static String filterNormalize(String fromUrl, String toUrl, String fromHost, boolean ignoreExternalLinks, URLFilters filters, URLNormalizers normalizers, URLNormalizeFilterCache cache) {
     // ignore links to self (or anchors within the page)
     if (fromUrl.equals(toUrl)) {
       return null;
@@ -306,6 +322,10 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
         return null; // skip it
       }
     }
+    if (cache != null) {
+      return cache.normalizeAndFilter(toUrl, URLNormalizers.SCOPE_OUTLINK,
+          normalizers, filters);
+    }
     try {
       if(normalizers != null) {
         toUrl = normalizers.normalize(toUrl,
@@ -324,4 +344,11 @@ public class ParseOutputFormat implements OutputFormat<Text, Parse> {
     return toUrl;
   }
 
+  /** Adds the statistics of an outlink cache to the task counters. */
+  public static void reportCacheCounters(Reporter reporter, URLNormalizeFilterCache cache) {
+    reporter.incrCounter("OutlinkCache", "hits", cache.getHits());
+    reporter.incrCounter("OutlinkCache", "misses", cache.getMisses());
+    reporter.incrCounter("OutlinkCache", "evictions", cache.getEvictions());
+  }
+
 }
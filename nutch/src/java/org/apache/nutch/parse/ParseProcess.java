@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.protocol.Content;
+
+/**
+ * Parses some content in a new JVM, which can be killed if the parse hangs
+ * or uses up its memory.
+ *
+ * <p>The configuration and the content are written to the standard input
+ * of the new JVM, which runs {@link #main(String[])} and writes the parses
+ * back on its standard output.</p>
+ */
+public class ParseProcess implements Callable<ParseResult>, Closeable {
+
+  public static final Logger LOG = LoggerFactory.getLogger(ParseProcess.class);
+
+  /** Options of the JVM parsing, split on whitespace. */
+  public static final String JAVA_OPTS = "parser.isolate.java.opts";
+
+  private final Configuration conf;
+  private final Content content;
+  private final String extId;
+  private Process process = null;
+  private boolean closed = false;
+
+  /**
+   * @param extId the extension id of the parser to use, or
+   *        <code>null</code> to use the parsers of the content type.
+   */
+  public ParseProcess(Configuration conf, Content content, String extId) {
+    this.conf = conf;
+    this.content = content;
+    this.extId = extId;
+  }
+
+  public ParseResult call() throws Exception {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"),
+        "java").getPath());
+    for (String opt : conf.get(JAVA_OPTS, "-Xmx512m").trim().split("\\s+")) {
+      if (opt.length() > 0) command.add(opt);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ParseProcess.class.getName());
+    if (extId != null) command.add(extId);
+
+    Process process;
+    synchronized (this) {
+      if (closed) {
+        return null;
+      }
+      process = this.process = new ProcessBuilder(command).start();
+    }
+    try {
+      logErrors(process.getErrorStream());
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(process.getOutputStream()));
+      conf.write(out);
+      content.write(out);
+      out.close();
+
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(process.getInputStream()));
+      ParseResult result = new ParseResult(content.getUrl());
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Text url = new Text();
+        url.readFields(in);
+        ParseText text = new ParseText();
+        text.readFields(in);
+        ParseData data = new ParseData();
+        data.readFields(in);
+        result.put(url, text, data);
+      }
+      in.close();
+      int status = process.waitFor();
+      if (status != 0) {
+        throw new IOException("Parse process exited with " + status);
+      }
+      return result;
+    } finally {
+      process.destroy();
+    }
+  }
+
+  private void logErrors(final InputStream err) {
+    Thread thread = new Thread("parse-process-errors") {
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(err));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            LOG.debug(line);
+          }
+          reader.close();
+        } catch (IOException e) {}
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Kills the parse process. */
+  public synchronized void close() {
+    closed = true;
+    if (process != null) {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Reads a configuration and some content on the standard input, and
+   * writes their parses on the standard output.
+   *
+   * <p>Usage: ParseProcess [extension id]</p>
+   */
+  public static void main(String[] args) throws Exception {
+    // nothing but the parses goes to the standard output
+    PrintStream stdout = System.out;
+    System.setOut(System.err);
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    Configuration conf = new Configuration();
+    conf.readFields(in);
+    Content content = new Content();
+    content.readFields(in);
+    in.close();
+
+    // the parent enforces the timeout
+    conf.setInt("parser.timeout", -1);
+    conf.set(ParseUtil.ISOLATE_TYPES, "");
+    conf.setBoolean(ParseUtil.ISOLATE_QUARANTINED, false);
+    ParseUtil parseUtil = new ParseUtil(conf);
+    ParseResult result = args.length > 0
+      ? parseUtil.parseByExtensionId(args[0], content)
+      : parseUtil.parse(content);
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdout));
+    out.writeInt(result.size());
+    for (Map.Entry<Text, Parse> entry : result) {
+      Parse parse = entry.getValue();
+      entry.getKey().write(out);
+      new ParseText(parse.getText()).write(out);
+      parse.getData().write(out);
+    }
+    out.close();
+    System.exit(0);
+  }
+
+}
@@ -67,7 +67,9 @@ public class ParseSegment extends Configured implements Tool,
     skipTruncated=job.getBoolean(SKIP_TRUNCATED, true);
   }
 
-  public void close() {}
+  public void close() {
+    ParseExecutor.get(getConf()).logStats();
+  }
   
   private Text newKey = new Text();
 
@@ -98,6 +100,8 @@ public class ParseSegment extends Configured implements Tool,
     } catch (Exception e) {
       LOG.warn("Error parsing: " + key + ": " + StringUtils.stringifyException(e));
       return;
+    } finally {
+      EncodingDetector.reportDecisions(reporter);
     }
 
     for (Entry<Text, Parse> entry : parseResult) {
@@ -18,24 +18,26 @@ package org.apache.nutch.parse;
 
 // Commons Logging imports
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.protocol.Content;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 
 /**
  * A Utility class containing methods to simply perform parsing utilities such
  * as iterating through a preferred list of {@link Parser}s to obtain
  * {@link Parse} objects.
  *
+ * <p>Parses run on the threads of the {@link ParseExecutor}, which gives
+ * them up after <code>parser.timeout</code> seconds. The content types
+ * listed in {@link #ISOLATE_TYPES} are parsed in a new JVM by
+ * {@link ParseProcess}.</p>
+ *
  * @author mattmann
  * @author J&eacute;r&ocirc;me Charron
  * @author S&eacute;bastien Le Callonnec
@@ -44,20 +46,36 @@ public class ParseUtil {
   
   /* our log stream */
   public static final Logger LOG = LoggerFactory.getLogger(ParseUtil.class);
+
+  /** Content types parsed in a new JVM. */
+  public static final String ISOLATE_TYPES = "parser.isolate.types";
+
+  /**
+   * Whether content quarantined by the {@link ParseExecutor} is parsed in a
+   * new JVM rather than not parsed.
+   */
+  public static final String ISOLATE_QUARANTINED = "parser.isolate.quarantined";
+
+  private Configuration conf;
   private ParserFactory parserFactory;
   /** Parser timeout set to 30 sec by default. Set -1 to deactivate **/
   private int maxParseTime = 30;
-  private ExecutorService executorService;
+  private ParseExecutor executor;
+  private Set<String> isolateTypes;
+  private boolean isolateQuarantined;
   
   /**
    * 
    * @param conf
    */
   public ParseUtil(Configuration conf) {
+    this.conf = conf;
     this.parserFactory = new ParserFactory(conf);
     maxParseTime=conf.getInt("parser.timeout", 30);
-    executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-      .setNameFormat("parse-%d").setDaemon(true).build());
+    executor = ParseExecutor.get(conf);
+    isolateTypes = new HashSet<String>(
+        Arrays.asList(conf.getStrings(ISOLATE_TYPES, new String[0])));
+    isolateQuarantined = conf.getBoolean(ISOLATE_QUARANTINED, false);
   }
   
   /**
@@ -84,6 +102,14 @@ public class ParseUtil {
       throw new ParseException(e.getMessage());
     }
     
+    if (isolate(content)) {
+      return runIsolated(content, null);
+    }
+    if (isQuarantined(content)) {
+      return new ParseStatus(ParseStatus.FAILED, "Parses of this content type or host time out")
+        .getEmptyParseResult(content.getUrl(), null);
+    }
+
     ParseResult parseResult = null;
     for (int i=0; i<parsers.length; i++) {
       if (LOG.isDebugEnabled()) {
@@ -138,6 +164,14 @@ public class ParseUtil {
       throw new ParseException(e.getMessage());
     }
     
+    if (isolate(content)) {
+      return runIsolated(content, extId);
+    }
+    if (isQuarantined(content)) {
+      return new ParseStatus(ParseStatus.FAILED, "Parses of this content type or host time out")
+        .getEmptyParseResult(content.getUrl(), null);
+    }
+
     ParseResult parseResult = null;
     if (maxParseTime!=-1)
     	parseResult = runParser(p, content);
@@ -155,18 +189,46 @@ public class ParseUtil {
   }
 
   private ParseResult runParser(Parser p, Content content) {
-    ParseCallable pc = new ParseCallable(p, content);
-    Future<ParseResult> task = executorService.submit(pc);
-    ParseResult res = null;
-    try {
-      res = task.get(maxParseTime, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      LOG.warn("Error parsing " + content.getUrl() + " with " + p, e);
-      task.cancel(true);
-    } finally {
-      pc = null;
+    return executor.run(p.getClass().getName(), content,
+        new ParseCallable(p, content), maxParseTime);
+  }
+
+  /**
+   * Whether some content is parsed in a new JVM: if its type is listed in
+   * {@link #ISOLATE_TYPES}, or if it is quarantined and
+   * {@link #ISOLATE_QUARANTINED} is set.
+   */
+  private boolean isolate(Content content) {
+    if (maxParseTime == -1) {
+      return false;
+    }
+    return isolateTypes.contains(content.getContentType())
+      || (isolateQuarantined && executor.isQuarantined(content));
+  }
+
+  private boolean isQuarantined(Content content) {
+    if (maxParseTime == -1 || isolateQuarantined
+        || !executor.isQuarantined(content)) {
+      return false;
     }
-    return res;
+    if (LOG.isWarnEnabled()) {
+      LOG.warn("Not parsing quarantined content " + content.getUrl() +
+          " of type " + content.getContentType());
+    }
+    return true;
+  }
+
+  private ParseResult runIsolated(Content content, String extId) {
+    ParseResult parseResult = executor.run(ParseProcess.class.getName(),
+        content, new ParseProcess(conf, content, extId), maxParseTime);
+    if (parseResult != null && !parseResult.isEmpty()) {
+      return parseResult;
+    }
+    if (LOG.isWarnEnabled()) {
+      LOG.warn("Unable to successfully parse content " + content.getUrl() +
+          " of type " + content.getContentType() + " in a new process");
+    }
+    return new ParseStatus(new ParseException("Unable to successfully parse content")).getEmptyParseResult(content.getUrl(), null);
   }
   
 }
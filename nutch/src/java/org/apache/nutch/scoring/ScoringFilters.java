@@ -33,10 +33,12 @@ import org.apache.nutch.plugin.PluginRuntimeException;
 import org.apache.nutch.plugin.PluginRepository;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.util.ObjectCache;
+import org.apache.nutch.util.ReporterAware;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
 
 /**
  * Creates and caches {@link ScoringFilter} implementing plugins.
@@ -88,6 +90,15 @@ public class ScoringFilters extends Configured implements ScoringFilter {
     }
   }
 
+  /** Pass the task reporter on to filters implementing {@link ReporterAware}. */
+  public void setReporter(Reporter reporter) {
+    for (int i = 0; i < this.filters.length; i++) {
+      if (this.filters[i] instanceof ReporterAware) {
+        ((ReporterAware) this.filters[i]).setReporter(reporter);
+      }
+    }
+  }
+
   /** Calculate a sort value for Generate. */
   public float generatorSortValue(Text url, CrawlDatum datum, float initSort) throws ScoringFilterException {
     for (int i = 0; i < this.filters.length; i++) {
@@ -25,10 +25,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
@@ -61,6 +65,14 @@ import com.ibm.icu.text.CharsetMatch;
  *        available;</li>
  *    <li>Run step (2) to guess what the most probable answer is.</li>
  * </p>
+ *
+ * <p>
+ * Step (2) first tries the cheap clues: a byte order mark decides, else
+ * the other clues do if they all agree. The content is only run through
+ * the statistical detection of ICU when they disagree or there are none.
+ * How often each source decided is counted, see
+ * {@link #reportDecisions(Reporter)}.
+ * </p>
  */
 public class EncodingDetector {
 
@@ -149,15 +161,22 @@ public class EncodingDetector {
 
   }
 
+  /** How often each source of clues decided, since last reported. */
+  private static final ConcurrentHashMap<String, AtomicLong> DECISIONS =
+    new ConcurrentHashMap<String, AtomicLong>();
+
   private int minConfidence;
 
   private CharsetDetector detector;
 
   private List<EncodingClue> clues;
 
+  // the content to run the detection on, if the other clues don't decide
+  private byte[] detectData;
+  private boolean detectFilter;
+
   public EncodingDetector(Configuration conf) {
     minConfidence = conf.getInt(MIN_CONFIDENCE_KEY, -1);
-    detector = new CharsetDetector();
     clues = new ArrayList<EncodingClue>();
   }
 
@@ -166,32 +185,70 @@ public class EncodingDetector {
 
     if (minConfidence >= 0 && DETECTABLES.contains(content.getContentType())
         && data.length > MIN_LENGTH) {
-      CharsetMatch[] matches = null;
-
-      // do all these in a try/catch; setText and detect/detectAll
-      // will sometimes throw exceptions
-      try {
-        detector.enableInputFilter(filter);
-        if (data.length > MIN_LENGTH) {
-          detector.setText(data);
-          matches = detector.detectAll();
-        }
-      } catch (Exception e) {
-        LOG.debug("Exception from ICU4J (ignoring): ", e);
-      }
-
-      if (matches != null) {
-        for (CharsetMatch match : matches) {
-          addClue(match.getName(), "detect", match.getConfidence());
-        }
-      }
+      // only detected when guessing, if needed
+      detectData = data;
+      detectFilter = filter;
     }
 
+    // add character encoding coming from a byte order mark
+    addClue(detectByteOrderMark(data), "bom");
+
     // add character encoding coming from HTTP response header
     addClue(parseCharacterEncoding(
         content.getMetadata().get(Response.CONTENT_TYPE)), "header");
   }
 
+  /** Runs the detection of ICU, adding its clues before the others. */
+  private void detect() {
+    byte[] data = detectData;
+    detectData = null;
+    if (data == null) {
+      return;
+    }
+    CharsetMatch[] matches = null;
+
+    // do all these in a try/catch; setText and detect/detectAll
+    // will sometimes throw exceptions
+    try {
+      if (detector == null) {
+        detector = new CharsetDetector();
+      }
+      detector.enableInputFilter(detectFilter);
+      detector.setText(data);
+      matches = detector.detectAll();
+    } catch (Exception e) {
+      LOG.debug("Exception from ICU4J (ignoring): ", e);
+    }
+
+    if (matches != null) {
+      List<EncodingClue> others = new ArrayList<EncodingClue>(clues);
+      clues.clear();
+      for (CharsetMatch match : matches) {
+        addClue(match.getName(), "detect", match.getConfidence());
+      }
+      clues.addAll(others);
+    }
+  }
+
+  /**
+   * Returns the clue which decides without a detection: that of a byte
+   * order mark, or the first one if they all agree, or <code>null</code>.
+   */
+  private EncodingClue decide() {
+    EncodingClue first = null;
+    for (EncodingClue clue : clues) {
+      if ("bom".equals(clue.source)) {
+        return clue;
+      }
+      if (first == null) {
+        first = clue;
+      } else if (!first.value.equals(clue.value)) {
+        return null;
+      }
+    }
+    return first;
+  }
+
   public void addClue(String value, String source, int confidence) {
     if (value == null || "".equals(value)) {
       return;
@@ -227,6 +284,17 @@ public class EncodingDetector {
 
     String base = content.getBaseUrl();
 
+    EncodingClue decided = decide();
+    if (decided != null) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace(base + ": Choosing encoding: " + decided);
+      }
+      detectData = null;
+      countDecision(decided.source);
+      return decided.value.toLowerCase();
+    }
+    detect();
+
     if (LOG.isTraceEnabled()) {
       findDisagreements(base, clues);
     }
@@ -250,6 +318,7 @@ public class EncodingDetector {
           LOG.trace(base + ": Choosing encoding: " + charset +
                     " with confidence " + clue.confidence);
         }
+        countDecision(clue.source);
         return resolveEncodingAlias(charset).toLowerCase();
       } else if (clue.confidence == NO_THRESHOLD && bestClue == defaultClue) {
         bestClue = clue;
@@ -259,12 +328,206 @@ public class EncodingDetector {
     if (LOG.isTraceEnabled()) {
       LOG.trace(base + ": Choosing encoding: " + bestClue);
     }
+    countDecision(bestClue.source);
     return bestClue.value.toLowerCase();
   }
 
   /** Clears all clues. */
   public void clearClues() {
     clues.clear();
+    detectData = null;
+  }
+
+  private static void countDecision(String source) {
+    AtomicLong count = DECISIONS.get(source);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = DECISIONS.putIfAbsent(source, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Adds how often each source of clues decided of an encoding in the JVM
+   * since last reported to the counters of a task.
+   */
+  public static void reportDecisions(Reporter reporter) {
+    for (Map.Entry<String, AtomicLong> entry : DECISIONS.entrySet()) {
+      long count = entry.getValue().getAndSet(0);
+      if (count > 0) {
+        reporter.incrCounter("EncodingDetector", "decided by " + entry.getKey(), count);
+      }
+    }
+  }
+
+  /**
+   * Returns the encoding given by the byte order mark at the start of some
+   * content, or <code>null</code>.
+   */
+  public static String detectByteOrderMark(byte[] data) {
+    if (data.length >= 3 && (data[0] & 0xff) == 0xef
+        && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf) {
+      return "UTF-8";
+    }
+    if (data.length >= 4 && data[0] == 0 && data[1] == 0
+        && (data[2] & 0xff) == 0xfe && (data[3] & 0xff) == 0xff) {
+      return "UTF-32";
+    }
+    if (data.length >= 4 && (data[0] & 0xff) == 0xff
+        && (data[1] & 0xff) == 0xfe && data[2] == 0 && data[3] == 0) {
+      // "UTF-32" only reads big endian marks
+      return "UTF-32LE";
+    }
+    if (data.length >= 2 && (((data[0] & 0xff) == 0xfe && (data[1] & 0xff) == 0xff)
+        || ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xfe))) {
+      // reads the mark to tell the byte order
+      return "UTF-16";
+    }
+    return null;
+  }
+
+  /**
+   * Returns the charset declared by the first META tag of the first
+   * <code>length</code> bytes of an html page which declares one, or
+   * <code>null</code>. The tag is either
+   * <code>&lt;meta http-equiv="content-type" content="...; charset=..."&gt;</code>
+   * or <code>&lt;meta charset="..."&gt;</code>.
+   *
+   * <p>The bytes are scanned as ASCII, without being decoded: encodings
+   * which don't encode ASCII as single bytes, as UTF-16, can't be told
+   * from their META tags.</p>
+   */
+  public static String sniffCharacterEncoding(byte[] content, int length) {
+    length = Math.min(length, content.length);
+    int i = 0;
+    while ((i = indexOf(content, i, length, META)) >= 0) {
+      i += META.length;
+      if (i >= length || !isSpace(content[i])) {
+        continue;
+      }
+      int end = i;
+      while (end < length && content[end] != '>') {
+        end++;
+      }
+      if (end == length) {
+        // as a regular expression, needs the end of the tag
+        return null;
+      }
+      String charset;
+      if (indexOfContentType(content, i, end) >= 0) {
+        charset = charsetAfter(content, i, end, false);
+      } else {
+        charset = charsetAfter(content, i, end, true);
+      }
+      if (charset != null) {
+        return charset;
+      }
+      i = end;
+    }
+    return null;
+  }
+
+  private static final byte[] META = ascii("<meta");
+  private static final byte[] HTTP_EQUIV = ascii("http-equiv=");
+  private static final byte[] CONTENT_TYPE = ascii("content-type");
+  private static final byte[] CHARSET = ascii("charset=");
+
+  private static byte[] ascii(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) s.charAt(i);
+    }
+    return bytes;
+  }
+
+  /** Returns where http-equiv content-type is in a tag, or -1. */
+  private static int indexOfContentType(byte[] content, int start, int end) {
+    int i = start;
+    while ((i = indexOf(content, i, end, HTTP_EQUIV)) >= 0) {
+      i += HTTP_EQUIV.length;
+      int value = i < end && (content[i] == '"' || content[i] == '\'') ? i + 1 : i;
+      if (regionMatches(content, value, end, CONTENT_TYPE)) {
+        return value;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the first charset of a tag, a letter followed by letters,
+   * digits, '_' or '-', after optional spaces. If it is a charset
+   * attribute, its value may be quoted.
+   */
+  private static String charsetAfter(byte[] content, int start, int end,
+      boolean attribute) {
+    int i = start;
+    while ((i = indexOf(content, i, end, CHARSET)) >= 0) {
+      if (attribute && !isSpace(content[i - 1])) {
+        i += CHARSET.length;
+        continue;
+      }
+      i += CHARSET.length;
+      while (i < end && isSpace(content[i])) {
+        i++;
+      }
+      if (attribute && i < end && (content[i] == '"' || content[i] == '\'')) {
+        i++;
+      }
+      if (i < end && isLetter(content[i])) {
+        int nameEnd = i + 1;
+        while (nameEnd < end && (isLetter(content[nameEnd])
+            || (content[nameEnd] >= '0' && content[nameEnd] <= '9')
+            || content[nameEnd] == '_' || content[nameEnd] == '-')) {
+          nameEnd++;
+        }
+        char[] name = new char[nameEnd - i];
+        for (int j = 0; j < name.length; j++) {
+          name[j] = (char) content[i + j];
+        }
+        return new String(name);
+      }
+    }
+    return null;
+  }
+
+  /** Returns where some lower case ASCII is, ignoring case, or -1. */
+  private static int indexOf(byte[] content, int start, int end, byte[] lower) {
+    for (int i = start; i <= end - lower.length; i++) {
+      if (regionMatches(content, i, end, lower)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean regionMatches(byte[] content, int start, int end,
+      byte[] lower) {
+    if (end - start < lower.length) {
+      return false;
+    }
+    for (int i = 0; i < lower.length; i++) {
+      byte b = content[start + i];
+      if (b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != lower[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  /** As \s in a regular expression. */
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == 0x0b || b == '\f'
+      || b == '\r';
   }
 
   /*
@@ -27,37 +27,16 @@ import org.apache.nutch.indexer.IndexingException;
 import org.apache.nutch.indexer.IndexingFilter;
 import org.apache.nutch.indexer.NutchDocument;
 import org.apache.nutch.parse.Parse;
-import java.util.Collection;
-import java.util.Map.Entry;
-import java.util.Iterator;
-import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.PreparedStatement;
 
 /**
  * Module to modify indexed content
  */
 public class KirstenIndexingFilter implements IndexingFilter {
   private static final Logger LOG = LoggerFactory.getLogger(KirstenIndexingFilter.class);
-  private static final String CONF_URL = "kirsten.db.url";
-  private static final String CONF_DB = "kirsten.db.dbname";
-  private static final String CONF_USERNAME = "kirsten.db.username";
-  private static final String CONF_PASSWORD = "kirsten.db.password";
   private static final Pattern urlPattern = Pattern.compile("(http:\\/\\/|https:\\/\\/)([A-Za-z0-9.-]+(?!.*\\|\\w*$))");
-  private static String confUrl;
-  private static String confDB;
-  private static String confUsername;
-  private static String confPassword;
   private Configuration conf;
-  private Connection connect = null;
-  private Statement statement = null;
-  private ResultSet resultSet = null;
 
 	/**
 	 * This will take the metatags that you have listed in your "urlmeta.tags"
@@ -74,75 +53,15 @@ public class KirstenIndexingFilter implements IndexingFilter {
 		if (doc == null)
 			return doc;
 
-    open();
-    
-    doc = addUrlBasedMetaData(doc, url);
-    
-    doc = addRuleBasedMetaData(parse, doc, url);
-    
+    // The webpage boost and the metadata rules of the url are applied by
+    // KirstenScoringFilter
+
     // Add domain 
     doc = addDomainField(doc, url);
     
-    close();
-    
 		return doc;
 	}
   
-  public NutchDocument addUrlBasedMetaData(NutchDocument doc, Text url) {
-    try {
-      // Statements allow to issue SQL queries to the database
-      statement = connect.createStatement();
-      // Result set get the result of the SQL query
-      resultSet = statement
-          .executeQuery("SELECT * FROM webpage WHERE url = '" + url + "'");
-    } catch (Exception e) {
-      LOG.error("Exception on executeQuery looking up webpage metadata", e);
-    } finally {
-      try {
-        resultSet.next();
-        //String boost = resultSet.getString("boost");
-        return doc;
-      }
-      catch (SQLException e) {
-        return doc;
-      }
-    }
-  }
-
-  public NutchDocument addRuleBasedMetaData(Parse parse, NutchDocument doc, Text url) {
-    String title = parse.getData().getTitle();
-    Float boostFactor = 1.0f;
-
-          return doc;
-/*    
-    
-    try {
-      // Statements allow to issue SQL queries to the database
-      statement = connect.createStatement();
-      // Result set get the result of the SQL query
-      // TODO: Test regular expressions
-      resultSet = statement
-          .executeQuery(
-          "SELECT * FROM metadata_rules WHERE '" + url + "' LIKE CONCAT('%', rule, '%') AND type ='url' AND is_regex <> TRUE " +
-          "UNION SELECT * FROM metadata_rules WHERE '" + url + "' REGEXP rule AND type ='url' AND is_regex = TRUE " +
-          "UNION SELECT * FROM metadata_rules WHERE '" + title + "' LIKE CONCAT('%', rule, '%') AND type ='title' AND is_regex <> TRUE " +
-          "UNION SELECT * FROM metadata_rules WHERE '" + title + "' REGEXP rule AND type ='title' AND is_regex = TRUE"
-      );
-    } catch (Exception e) {
-      LOG.error("Exception on executeQuery (metadata_rules.*)", e);
-    } finally {
-      try {
-        while (resultSet.next()) {
-          //String boost = resultSet.getString("boost");
-        }
-        return doc;
-      }
-      catch (SQLException e) {
-        return doc;
-      }
-    }*/
-  }
-  
   /**
    * Extract domain to separate field 
    */
@@ -163,49 +82,8 @@ public class KirstenIndexingFilter implements IndexingFilter {
 		return conf;
 	}
 
-	/**
-	 * handles conf assignment and pulls the value assignment from the
-	 * kirsten.db settings
-	 */
+	/** Boilerplate */
   public void setConf(Configuration conf) {
     this.conf = conf;
-
-    confUrl = conf.get(CONF_URL);
-    confDB = conf.get(CONF_DB);
-    confUsername = conf.get(CONF_USERNAME);
-    confPassword = conf.get(CONF_PASSWORD);
-  }
-
-  // Open DB connection
-  private void open() {
-    try {
-      Class.forName("com.mysql.jdbc.Driver");
-      // Setup the connection with the DB
-      connect = DriverManager
-        .getConnection(confUrl + "/" + confDB, confUsername, confPassword);
-    } catch (Exception e) {
-      LOG.error("Error connecting to DB");
-    }
-  }
-
-
-  // You need to close the resultSet
-  private void close() {
-    try {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-
-      if (statement != null) {
-        statement.close();
-      }
-
-      if (connect != null) {
-        connect.close();
-      }
-    } catch (Exception e) {
-
-    }
   }
 }
-
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton finding all of a fixed set of strings in a text
+ * in a single pass over the text.
+ * <p>
+ * The automaton is built once and then read-only, so it can be shared by
+ * several threads.
+ */
+public class AhoCorasick {
+
+  // Per state: sorted transition characters and their target states
+  private char[][] chars;
+  private int[][] targets;
+  // Per state: failure link and the patterns ending in this state
+  private int[] fail;
+  private int[][] outputs;
+  private final int patternCount;
+
+  /**
+   * Build an automaton for the given strings. The index of a string in
+   * <code>patterns</code> is the number reported when it is found. Empty
+   * strings are never reported.
+   */
+  public AhoCorasick(List<String> patterns) {
+    patternCount = patterns.size();
+
+    // Build the trie
+    List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+    List<List<Integer>> out = new ArrayList<List<Integer>>();
+    trie.add(new TreeMap<Character, Integer>());
+    out.add(new ArrayList<Integer>());
+    for (int p = 0; p < patterns.size(); p++) {
+      String pattern = patterns.get(p);
+      if (pattern.length() == 0) {
+        continue;
+      }
+      int state = 0;
+      for (int i = 0; i < pattern.length(); i++) {
+        Integer next = trie.get(state).get(pattern.charAt(i));
+        if (next == null) {
+          next = trie.size();
+          trie.add(new TreeMap<Character, Integer>());
+          out.add(new ArrayList<Integer>());
+          trie.get(state).put(pattern.charAt(i), next);
+        }
+        state = next;
+      }
+      out.get(state).add(p);
+    }
+
+    int size = trie.size();
+    chars = new char[size][];
+    targets = new int[size][];
+    for (int s = 0; s < size; s++) {
+      TreeMap<Character, Integer> edges = trie.get(s);
+      chars[s] = new char[edges.size()];
+      targets[s] = new int[edges.size()];
+      int i = 0;
+      for (Character c : edges.keySet()) {
+        chars[s][i] = c;
+        targets[s][i] = edges.get(c);
+        i++;
+      }
+    }
+
+    // Failure links, breadth first so shorter states are done first
+    fail = new int[size];
+    int[] queue = new int[size];
+    int head = 0, tail = 0;
+    for (int i = 0; i < targets[0].length; i++) {
+      queue[tail++] = targets[0][i];
+    }
+    while (head < tail) {
+      int state = queue[head++];
+      for (int i = 0; i < chars[state].length; i++) {
+        char c = chars[state][i];
+        int child = targets[state][i];
+        int f = fail[state];
+        while (f != 0 && next(f, c) < 0) {
+          f = fail[f];
+        }
+        int n = next(f, c);
+        fail[child] = n < 0 ? 0 : n;
+        // A state also outputs everything its failure state outputs
+        out.get(child).addAll(out.get(fail[child]));
+        queue[tail++] = child;
+      }
+    }
+
+    outputs = new int[size][];
+    for (int s = 0; s < size; s++) {
+      List<Integer> o = out.get(s);
+      outputs[s] = new int[o.size()];
+      for (int i = 0; i < o.size(); i++) {
+        outputs[s][i] = o.get(i);
+      }
+    }
+  }
+
+  /** Number of patterns the automaton was built from. */
+  public int getPatternCount() {
+    return patternCount;
+  }
+
+  /** Number of states of the automaton. */
+  public int getStateCount() {
+    return chars.length;
+  }
+
+  /**
+   * Find all patterns occurring in <code>text</code>.
+   *
+   * @return the indexes of the patterns found, each set at most once
+   */
+  public BitSet match(CharSequence text) {
+    BitSet found = new BitSet(patternCount);
+    match(text, found);
+    return found;
+  }
+
+  /** Like {@link #match(CharSequence)}, adding the indexes to <code>found</code>. */
+  public void match(CharSequence text, BitSet found) {
+    int state = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int n;
+      while ((n = next(state, c)) < 0 && state != 0) {
+        state = fail[state];
+      }
+      state = n < 0 ? 0 : n;
+      int[] o = outputs[state];
+      for (int j = 0; j < o.length; j++) {
+        found.set(o[j]);
+      }
+    }
+  }
+
+  private int next(int state, char c) {
+    int i = Arrays.binarySearch(chars[state], c);
+    return i < 0 ? -1 : targets[state][i];
+  }
+}
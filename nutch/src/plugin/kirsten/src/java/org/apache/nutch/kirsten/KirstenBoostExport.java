@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.indexer.solr.SolrConstants;
+import org.apache.nutch.indexer.solr.SolrUtils;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.TimingUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * Writes the boost values and the metadata rule factors of all indexed
+ * documents to a Solr external file, so they can be changed without
+ * re-indexing the documents.
+ * <p>
+ * The file holds a line <code>id=value</code> for every url with a boost set
+ * in <code>webpage.boost</code>, and for every document in the index with no
+ * boost set but matching metadata rules (the product of their importance
+ * factors). Documents without a line get the default value of the
+ * <code>file</code> field type, 1.0. It is written to
+ * <code>external_&lt;field&gt;</code> in the Solr data directory given by
+ * <code>kirsten.boost.file.dir</code>, where <code>&lt;field&gt;</code> is
+ * <code>kirsten.boost.file.field</code> (default <code>eff_boost</code>, a
+ * field of the <code>eff_*</code> dynamic field). The new file is then loaded
+ * by a request to <code>kirsten.boost.file.reload</code> (default
+ * <code>/reloadCache</code>, which needs the
+ * <code>FileFloatSource$ReloadCacheRequestHandler</code> to be registered in
+ * solrconfig.xml; empty to not reload).
+ * <p>
+ * Queries use the values as a multiplicative boost, e.g.
+ * <code>{!boost b=eff_boost}</code>, and <code>kirsten.boost.external</code>
+ * keeps {@link org.apache.nutch.scoring.kirsten.KirstenScoringFilter} from
+ * also putting them in the document boost. The export should run after each
+ * indexing job, since rules on titles only apply to indexed documents, and
+ * after each boost change.
+ */
+public class KirstenBoostExport extends Configured implements Tool {
+
+  public static final Logger LOG = LoggerFactory.getLogger(KirstenBoostExport.class);
+
+  public static final String CONF_DIR = "kirsten.boost.file.dir";
+  public static final String CONF_FIELD = "kirsten.boost.file.field";
+  public static final String CONF_RELOAD = "kirsten.boost.file.reload";
+
+  /** The smallest value written, as the smallest boost indexed. */
+  public static final float MIN_BOOST = 0.00001f;
+
+  private static final String SELECT_BOOSTS =
+    "SELECT url, boost FROM webpage WHERE boost IS NOT NULL";
+
+  /** Number of documents read from Solr per request. */
+  private static final int ROWS = 1000;
+
+  /** Writes the lines of an external file. */
+  static class BoostFileWriter {
+    private final Writer out;
+    private final Map<String, Float> boosts;
+    private final KirstenSnapshot rules;
+    private int lines = 0;
+
+    BoostFileWriter(Writer out, Map<String, Float> boosts, KirstenSnapshot rules) {
+      this.out = out;
+      this.boosts = boosts;
+      this.rules = rules;
+    }
+
+    /** Writes the boost values set in the DB. */
+    void writeBoosts() throws IOException {
+      for (Map.Entry<String, Float> entry : boosts.entrySet()) {
+        write(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /**
+     * Writes the rule factor of an indexed document, unless its boost is
+     * set or no rule matches.
+     */
+    void writeDocument(String id, String title) throws IOException {
+      if (boosts.containsKey(id)) {
+        return;
+      }
+      float factor = rules.getRuleFactor(id, title);
+      if (factor != 1.0f) {
+        write(id, factor);
+      }
+    }
+
+    private void write(String id, float value) throws IOException {
+      // Solr splits the lines at the last '=', so ids may contain one
+      if (id.indexOf('\n') >= 0 || id.indexOf('\r') >= 0) {
+        LOG.warn("Skipping id with a line break: " + id);
+        return;
+      }
+      out.write(id);
+      out.write('=');
+      out.write(Float.toString(Math.max(value, MIN_BOOST)));
+      out.write('\n');
+      lines++;
+    }
+
+    int getLines() {
+      return lines;
+    }
+  }
+
+  /** Reads all boost values set in the DB. */
+  static Map<String, Float> loadBoosts(KirstenDB db) throws SQLException {
+    Map<String, Float> boosts = new HashMap<String, Float>();
+    KirstenDB.PooledConnection connection = db.acquire();
+    boolean broken = true;
+    try {
+      ResultSet resultSet = connection.prepare(SELECT_BOOSTS).executeQuery();
+      while (resultSet.next()) {
+        String url = resultSet.getString("url");
+        String boost = resultSet.getString("boost");
+        try {
+          boosts.put(url, Float.parseFloat(boost));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid boost '" + boost + "' for " + url);
+        }
+      }
+      resultSet.close();
+      broken = false;
+    } finally {
+      db.release(connection, broken);
+    }
+    return boosts;
+  }
+
+  /**
+   * Writes the rule factors of all documents in the index, reading them in
+   * order of id, each request starting after the last id read.
+   */
+  private static int writeDocuments(SolrServer solr, BoostFileWriter writer)
+      throws Exception {
+    int documents = 0;
+    String last = null;
+    while (true) {
+      SolrQuery query = new SolrQuery("*:*");
+      if (last != null) {
+        query.addFilterQuery(SolrConstants.ID_FIELD + ":{"
+            + ClientUtils.escapeQueryChars(last) + " TO *]");
+      }
+      query.setFields(SolrConstants.ID_FIELD, "title");
+      query.addSortField(SolrConstants.ID_FIELD, SolrQuery.ORDER.asc);
+      query.setRows(ROWS);
+      SolrDocumentList docs = solr.query(query).getResults();
+      for (SolrDocument doc : docs) {
+        last = (String) doc.getFieldValue(SolrConstants.ID_FIELD);
+        Object title = doc.getFirstValue("title");
+        writer.writeDocument(last, title == null ? null : title.toString());
+      }
+      documents += docs.size();
+      if (docs.size() < ROWS) {
+        return documents;
+      }
+    }
+  }
+
+  public void export(File dir, String field) throws Exception {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    LOG.info("KirstenBoostExport: starting at " + sdf.format(start));
+
+    KirstenDB db = KirstenDB.get(getConf().get("kirsten.db.url") + "/"
+        + getConf().get("kirsten.db.dbname"), getConf().get("kirsten.db.username"),
+        getConf().get("kirsten.db.password"), getConf().getInt("kirsten.db.pool.size", 2));
+    Map<String, Float> boosts = loadBoosts(db);
+    KirstenSnapshot rules = KirstenSnapshot.load(db);
+    SolrServer solr = SolrUtils.getCommonsHttpSolrServer(new JobConf(getConf()));
+
+    // written next to the file and renamed, so Solr never reads half a file;
+    // the name must not start with external_<field> or Solr would read it
+    File file = new File(dir, "external_" + field);
+    File tmp = new File(dir, "." + file.getName() + ".tmp");
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(tmp), "UTF-8"));
+    BoostFileWriter writer = new BoostFileWriter(out, boosts, rules);
+    int documents;
+    try {
+      writer.writeBoosts();
+      documents = writeDocuments(solr, writer);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // not atomic, but some platforms won't rename over a file
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot rename " + tmp + " to " + file);
+      }
+    }
+    LOG.info("KirstenBoostExport: wrote " + writer.getLines() + " values to "
+        + file + ": " + boosts.size() + " boosts, " + documents
+        + " documents read");
+
+    String reload = getConf().get(CONF_RELOAD, "/reloadCache");
+    if (reload.length() > 0) {
+      QueryRequest request = new QueryRequest(new ModifiableSolrParams());
+      request.setPath(reload);
+      request.process(solr);
+      LOG.info("KirstenBoostExport: reloaded " + reload);
+    }
+
+    long end = System.currentTimeMillis();
+    LOG.info("KirstenBoostExport: finished at " + sdf.format(end)
+        + ", elapsed: " + TimingUtil.elapsedTime(start, end));
+  }
+
+  public int run(String[] args) throws Exception {
+    String dir = getConf().get(CONF_DIR);
+    String field = getConf().get(CONF_FIELD, "eff_boost");
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-dir") && i + 1 < args.length) {
+        dir = args[++i];
+      } else if (args[i].equals("-field") && i + 1 < args.length) {
+        field = args[++i];
+      } else if (args[i].equals("-solr") && i + 1 < args.length) {
+        getConf().set(SolrConstants.SERVER_URL, args[++i]);
+      } else {
+        dir = null;
+        break;
+      }
+    }
+    if (dir == null || getConf().get(SolrConstants.SERVER_URL) == null) {
+      System.err.println("Usage: KirstenBoostExport [-solr <solr url>] "
+          + "[-dir <solr data dir>] [-field <field>]");
+      return 1;
+    }
+    try {
+      export(new File(dir), field);
+      return 0;
+    } catch (Exception e) {
+      LOG.error("KirstenBoostExport: " + e);
+      return -1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(),
+        new KirstenBoostExport(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,339 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Data access to the Kirsten DB, shared by the indexing filter, the scoring
+ * filter and the web service.
+ * <p>
+ * Holds a bounded pool of connections, each of which keeps its
+ * {@link PreparedStatement}s open for reuse. All SQL is parameterized, so
+ * MySQL can cache the statements. Connection acquire latency and pool
+ * saturation are counted and can be read with the getters or
+ * {@link #getStats()} to size the pool.
+ * <p>
+ * Instances are shared per DB and user within a JVM, see
+ * {@link #get(String, String, String, int)}. This class has no Hadoop
+ * dependencies, so the web service can use it from <code>kirsten.jar</code>.
+ */
+public class KirstenDB {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KirstenDB.class);
+
+  public static final String DRIVER = "com.mysql.jdbc.Driver";
+
+  /** Connector/J options enabling server side prepared statement caching. */
+  public static final String JDBC_OPTIONS = "useServerPrepStmts=true&cachePrepStmts=true";
+
+  /** Maximum time to wait for a free connection. */
+  public static final long ACQUIRE_TIMEOUT = 30000;
+
+  /** Idle connections are validated before reuse after this many ms. */
+  private static final long VALIDATE_AFTER = 60000;
+
+  private static final String UPSERT_BOOST =
+    "INSERT INTO webpage (url, boost) VALUES (?, ?) " +
+    "ON DUPLICATE KEY UPDATE boost = ?";
+
+  private static final Map<String, KirstenDB> INSTANCES = new HashMap<String, KirstenDB>();
+
+  private final String jdbcUrl;
+  private final String username;
+  private final String password;
+  private final int maxConnections;
+  private final Semaphore permits;
+  private final BlockingQueue<PooledConnection> idle;
+
+  // Metrics
+  private final AtomicLong acquires = new AtomicLong();
+  private final AtomicLong acquireNanos = new AtomicLong();
+  private final AtomicLong maxAcquireNanos = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong peakInUse = new AtomicLong();
+
+  /**
+   * @param jdbcUrl JDBC url including the DB name, e.g.
+   *          <code>jdbc:mysql://localhost:3306/kirsten</code>
+   * @param maxConnections maximum number of open connections
+   */
+  public KirstenDB(String jdbcUrl, String username, String password,
+      int maxConnections) {
+    if (jdbcUrl.indexOf('?') < 0) {
+      jdbcUrl = jdbcUrl + "?" + JDBC_OPTIONS;
+    }
+    this.jdbcUrl = jdbcUrl;
+    this.username = username;
+    this.password = password;
+    this.maxConnections = Math.max(1, maxConnections);
+    this.permits = new Semaphore(this.maxConnections, true);
+    this.idle = new ArrayBlockingQueue<PooledConnection>(this.maxConnections);
+    try {
+      Class.forName(DRIVER);
+    } catch (ClassNotFoundException e) {
+      LOG.error("JDBC driver " + DRIVER + " not found", e);
+    }
+  }
+
+  /**
+   * Returns the shared instance for the given DB and user, creating it if
+   * needed. <code>maxConnections</code> only applies to a new instance.
+   */
+  public static KirstenDB get(String jdbcUrl, String username,
+      String password, int maxConnections) {
+    String key = jdbcUrl + "\u0000" + username;
+    synchronized (INSTANCES) {
+      KirstenDB db = INSTANCES.get(key);
+      if (db == null) {
+        db = new KirstenDB(jdbcUrl, username, password, maxConnections);
+        INSTANCES.put(key, db);
+        LOG.info("Created Kirsten DB pool for " + jdbcUrl + " with "
+            + db.maxConnections + " connections");
+      }
+      return db;
+    }
+  }
+
+  /**
+   * Borrow a connection from the pool. Waits up to {@link #ACQUIRE_TIMEOUT}
+   * ms when all connections are in use. The connection must be handed back
+   * with {@link #release(PooledConnection)}.
+   */
+  public PooledConnection acquire() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire()) {
+        waits.incrementAndGet();
+        if (!permits.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+          timeouts.incrementAndGet();
+          throw new SQLException("Timeout waiting for a Kirsten DB connection, "
+              + maxConnections + " in use");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a Kirsten DB connection");
+    }
+
+    PooledConnection connection = null;
+    try {
+      while ((connection = idle.poll()) != null) {
+        if (connection.isUsable()) {
+          break;
+        }
+        connection.closeQuietly();
+      }
+      if (connection == null) {
+        connection = new PooledConnection(
+            DriverManager.getConnection(jdbcUrl, username, password));
+        opened.incrementAndGet();
+      }
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+
+    long nanos = System.nanoTime() - start;
+    acquires.incrementAndGet();
+    acquireNanos.addAndGet(nanos);
+    updateMax(maxAcquireNanos, nanos);
+    updateMax(peakInUse, getInUse());
+    return connection;
+  }
+
+  /**
+   * Hand a connection back to the pool. A connection that failed should be
+   * passed with <code>broken</code> set, so it is closed instead of reused.
+   */
+  public void release(PooledConnection connection, boolean broken) {
+    if (connection == null) {
+      return;
+    }
+    if (broken || !idle.offer(connection.idle())) {
+      connection.closeQuietly();
+    }
+    permits.release();
+  }
+
+  public void release(PooledConnection connection) {
+    release(connection, false);
+  }
+
+  /** Close all idle connections. */
+  public void close() {
+    PooledConnection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.closeQuietly();
+    }
+  }
+
+  /** Insert or update the boosts of several urls as one JDBC batch. */
+  public void upsertBoosts(Map<String, String> boosts) throws SQLException {
+    if (boosts.isEmpty()) {
+      return;
+    }
+    PooledConnection connection = acquire();
+    boolean broken = true;
+    try {
+      PreparedStatement pstmt = connection.prepare(UPSERT_BOOST);
+      for (Map.Entry<String, String> entry : boosts.entrySet()) {
+        pstmt.setString(1, entry.getKey());
+        pstmt.setString(2, entry.getValue());
+        pstmt.setString(3, entry.getValue());
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      broken = false;
+    } finally {
+      release(connection, broken);
+    }
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /** Number of connections currently borrowed. */
+  public int getInUse() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  /** Highest number of connections borrowed at the same time. */
+  public long getPeakInUse() {
+    return peakInUse.get();
+  }
+
+  public long getAcquireCount() {
+    return acquires.get();
+  }
+
+  /** Number of acquires that found all connections in use and had to wait. */
+  public long getWaitCount() {
+    return waits.get();
+  }
+
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /** Number of physical connections opened. */
+  public long getOpenedCount() {
+    return opened.get();
+  }
+
+  /** Total time spent acquiring connections, in microseconds. */
+  public long getAcquireMicros() {
+    return acquireNanos.get() / 1000;
+  }
+
+  public long getMaxAcquireMicros() {
+    return maxAcquireNanos.get() / 1000;
+  }
+
+  public String getStats() {
+    long count = acquires.get();
+    return "acquires=" + count + ", avgAcquireUs="
+        + (count == 0 ? 0 : getAcquireMicros() / count) + ", maxAcquireUs="
+        + getMaxAcquireMicros() + ", waits=" + waits.get() + ", timeouts="
+        + timeouts.get() + ", opened=" + opened.get() + ", inUse="
+        + getInUse() + ", peakInUse=" + peakInUse.get() + "/" + maxConnections;
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+    }
+  }
+
+  /** A pooled connection with its cached prepared statements. */
+  public static class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements =
+      new HashMap<String, PreparedStatement>();
+    private long idleSince = System.currentTimeMillis();
+
+    PooledConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    public Connection getConnection() {
+      return connection;
+    }
+
+    /** Returns the cached statement for <code>sql</code>, preparing it once. */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement pstmt = statements.get(sql);
+      if (pstmt == null) {
+        pstmt = connection.prepareStatement(sql);
+        statements.put(sql, pstmt);
+      }
+      return pstmt;
+    }
+
+    PooledConnection idle() {
+      idleSince = System.currentTimeMillis();
+      return this;
+    }
+
+    boolean isUsable() {
+      try {
+        if (connection.isClosed()) {
+          return false;
+        }
+        return System.currentTimeMillis() - idleSince < VALIDATE_AFTER
+            || connection.isValid(5);
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    void closeQuietly() {
+      for (PreparedStatement pstmt : statements.values()) {
+        try {
+          pstmt.close();
+        } catch (SQLException e) {
+        }
+      }
+      statements.clear();
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        LOG.warn("Error closing DB connection", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,544 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+/**
+ * Matches a document against all {@link MetadataRule}s at once.
+ * <p>
+ * Rules are compiled per type (url or title). A single {@link AhoCorasick}
+ * pass over the lower-cased text finds all plain substring rules, together
+ * with the required literal of every regex or LIKE rule that has one (for
+ * <code>sbi\\.dk/[a-z]+</code> that is <code>sbi.dk/</code>). Only rules
+ * whose literal was found are then checked with their own dk.brics automaton,
+ * so a document is typically matched in one linear pass no matter how many
+ * rules there are.
+ * <p>
+ * Regex rules without a required literal are unioned into combined
+ * automata, a group being closed before its worst case size (the product of
+ * the state counts) would exceed {@value #MAX_GROUP_STATES} states. A
+ * document matching none of them is rejected in one pass per group.
+ * <p>
+ * Regexes using syntax the automaton library does not support (back
+ * references, word boundaries, POSIX classes, anchors inside alternatives)
+ * fall back to {@link Pattern}. Matching ignores case, like MySQL did with
+ * the default collation. The engine is read-only once built and can be
+ * shared between threads.
+ */
+public class KirstenRuleEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KirstenRuleEngine.class);
+
+  static final int MAX_GROUP_RULES = 32;
+  static final int MAX_GROUP_STATES = 10000;
+
+  // Shorthand classes, written for lower-cased text
+  private static final Map<Character, String> SHORTHANDS = new HashMap<Character, String>();
+  private static final Map<Character, String> CLASS_SHORTHANDS = new HashMap<Character, String>();
+  static {
+    SHORTHANDS.put('d', "[0-9]");
+    SHORTHANDS.put('D', "[^0-9]");
+    SHORTHANDS.put('w', "[a-z0-9_]");
+    SHORTHANDS.put('W', "[^a-z0-9_]");
+    SHORTHANDS.put('s', "[ \t\n\u000B\f\r]");
+    SHORTHANDS.put('S', "[^ \t\n\u000B\f\r]");
+    CLASS_SHORTHANDS.put('d', "0-9");
+    CLASS_SHORTHANDS.put('w', "a-z0-9_");
+    CLASS_SHORTHANDS.put('s', " \t\n\u000B\f\r");
+  }
+
+  private static final Map<String, String> POSIX_CLASSES = new HashMap<String, String>();
+  static {
+    String[] names = { "alnum", "Alnum", "alpha", "Alpha", "blank", "Blank",
+        "cntrl", "Cntrl", "digit", "Digit", "graph", "Graph", "lower", "Lower",
+        "print", "Print", "punct", "Punct", "space", "Space", "upper", "Upper",
+        "xdigit", "XDigit" };
+    for (int i = 0; i < names.length; i += 2) {
+      POSIX_CLASSES.put(names[i], names[i + 1]);
+    }
+  }
+
+  private final RuleSet urlRules;
+  private final RuleSet titleRules;
+
+  public KirstenRuleEngine(Collection<MetadataRule> rules) {
+    List<MetadataRule> url = new ArrayList<MetadataRule>();
+    List<MetadataRule> title = new ArrayList<MetadataRule>();
+    for (MetadataRule rule : rules) {
+      if (rule.getRule() == null || rule.getRule().length() == 0) {
+        continue;
+      }
+      if (MetadataRule.TYPE_URL.equalsIgnoreCase(rule.getType())) {
+        url.add(rule);
+      } else if (MetadataRule.TYPE_TITLE.equalsIgnoreCase(rule.getType())) {
+        title.add(rule);
+      }
+    }
+    urlRules = new RuleSet(url);
+    titleRules = new RuleSet(title);
+    LOG.info("Compiled url rules: " + urlRules + ", title rules: " + titleRules);
+  }
+
+  /** Find all rules matching the url or the title of a document. */
+  public Result match(String url, String title) {
+    List<MetadataRule> matched = new ArrayList<MetadataRule>();
+    if (url != null && url.length() > 0) {
+      urlRules.match(url, matched);
+    }
+    if (title != null && title.length() > 0) {
+      titleRules.match(title, matched);
+    }
+    return new Result(matched);
+  }
+
+  public int getRuleCount() {
+    return urlRules.size() + titleRules.size();
+  }
+
+  /** Rules matched by a document. */
+  public static class Result {
+    private final List<MetadataRule> rules;
+
+    Result(List<MetadataRule> rules) {
+      this.rules = rules;
+    }
+
+    public List<MetadataRule> getRules() {
+      return rules;
+    }
+
+    /** The ids of the matching rules. */
+    public int[] getRuleIds() {
+      int[] ids = new int[rules.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = rules.get(i).getId();
+      }
+      return ids;
+    }
+
+    /**
+     * The product of the importance factors of all matching rules, or 1.0
+     * if no rule matches.
+     */
+    public float getFactor() {
+      float factor = 1.0f;
+      for (MetadataRule rule : rules) {
+        factor *= rule.getFactor();
+      }
+      return factor;
+    }
+
+    public boolean isEmpty() {
+      return rules.isEmpty();
+    }
+  }
+
+  /** All compiled rules of one type. */
+  private static class RuleSet {
+    // Rules triggered by the literal pass, by index of their literal
+    private final CompiledRule[] triggered;
+    private final AhoCorasick literals;
+    private final List<AutomatonGroup> groups = new ArrayList<AutomatonGroup>();
+    private final List<CompiledRule> unanchored = new ArrayList<CompiledRule>();
+    private int substringRules = 0;
+    private int automatonRules = 0;
+    private int patternRules = 0;
+
+    RuleSet(List<MetadataRule> rules) {
+      List<CompiledRule> anchored = new ArrayList<CompiledRule>();
+      List<String> strings = new ArrayList<String>();
+      List<CompiledRule> grouped = new ArrayList<CompiledRule>();
+      Automaton combined = null;
+
+      for (MetadataRule rule : rules) {
+        if (!rule.isRegex() && !rule.hasWildcards()) {
+          anchored.add(new CompiledRule(rule, null, null));
+          strings.add(rule.getRule().toLowerCase());
+          substringRules++;
+          continue;
+        }
+
+        CompiledRule compiled;
+        Automaton automaton = rule.isRegex() ? regexToAutomaton(rule.getRule())
+            : likeToAutomaton(rule.getRule());
+        if (automaton != null) {
+          compiled = new CompiledRule(rule, new RunAutomaton(automaton), null);
+          automatonRules++;
+        } else {
+          try {
+            compiled = new CompiledRule(rule, null, Pattern.compile(
+                toJavaRegex(rule.getRule()),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+            patternRules++;
+          } catch (PatternSyntaxException e) {
+            LOG.warn("Ignoring invalid rule " + rule + ": " + e.getMessage());
+            continue;
+          }
+        }
+
+        String literal = rule.isRegex() ? requiredLiteral(rule.getRule())
+            : likeLiteral(rule.getRule());
+        if (literal != null) {
+          anchored.add(compiled);
+          strings.add(literal.toLowerCase());
+        } else if (automaton != null) {
+          if (combined != null && (grouped.size() == MAX_GROUP_RULES
+              || combined.getNumberOfStates() * automaton.getNumberOfStates() > MAX_GROUP_STATES)) {
+            groups.add(new AutomatonGroup(grouped, combined));
+            grouped = new ArrayList<CompiledRule>();
+            combined = null;
+          }
+          grouped.add(compiled);
+          combined = combined == null ? automaton : combined.union(automaton);
+          combined.minimize();
+        } else {
+          unanchored.add(compiled);
+        }
+      }
+      if (combined != null) {
+        groups.add(new AutomatonGroup(grouped, combined));
+      }
+      triggered = anchored.toArray(new CompiledRule[anchored.size()]);
+      literals = new AhoCorasick(strings);
+    }
+
+    void match(String text, List<MetadataRule> matched) {
+      String lowerText = text.toLowerCase();
+      if (triggered.length > 0) {
+        BitSet found = literals.match(lowerText);
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+          if (triggered[i].matches(text, lowerText)) {
+            matched.add(triggered[i].rule);
+          }
+        }
+      }
+      for (AutomatonGroup group : groups) {
+        group.match(text, lowerText, matched);
+      }
+      for (CompiledRule rule : unanchored) {
+        if (rule.matches(text, lowerText)) {
+          matched.add(rule.rule);
+        }
+      }
+    }
+
+    int size() {
+      return substringRules + automatonRules + patternRules;
+    }
+
+    public String toString() {
+      return substringRules + " substring, " + automatonRules + " automaton, "
+          + patternRules + " java.util.regex (" + literals.getStateCount()
+          + " literal states, " + groups.size() + " combined automata, "
+          + unanchored.size() + " unanchored)";
+    }
+  }
+
+  /** A rule with the matcher verifying it. */
+  private static class CompiledRule {
+    private final MetadataRule rule;
+    private final RunAutomaton automaton;
+    private final Pattern pattern;
+
+    CompiledRule(MetadataRule rule, RunAutomaton automaton, Pattern pattern) {
+      this.rule = rule;
+      this.automaton = automaton;
+      this.pattern = pattern;
+    }
+
+    boolean matches(String text, String lowerText) {
+      if (automaton != null) {
+        return automaton.run(lowerText);
+      }
+      if (pattern != null) {
+        return pattern.matcher(text).find();
+      }
+      return true;                    // substring rule, found by the literal pass
+    }
+  }
+
+  /** Rules sharing one combined automaton. */
+  private static class AutomatonGroup {
+    private final CompiledRule[] rules;
+    private final RunAutomaton union;
+
+    AutomatonGroup(List<CompiledRule> rules, Automaton union) {
+      this.rules = rules.toArray(new CompiledRule[rules.size()]);
+      this.union = new RunAutomaton(union);
+    }
+
+    void match(String text, String lowerText, List<MetadataRule> matched) {
+      if (!union.run(lowerText)) {
+        return;
+      }
+      for (int i = 0; i < rules.length; i++) {
+        if (rules[i].matches(text, lowerText)) {
+          matched.add(rules[i].rule);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the longest string every match of <code>regex</code> must
+   * contain, or <code>null</code> if there is none that can be found
+   * without fully parsing the regex.
+   */
+  static String requiredLiteral(String regex) {
+    String best = "";
+    StringBuilder current = new StringBuilder();
+    int depth = 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\' && i + 1 < regex.length()) {
+        char e = regex.charAt(++i);
+        if (Character.isLetterOrDigit(e)) {
+          best = longest(best, current);
+        } else if (depth == 0) {
+          current.append(e);
+        }
+      } else if (c == '|') {
+        if (depth == 0) {
+          return null;
+        }
+      } else if (c == '[') {
+        best = longest(best, current);
+        i = classEnd(regex, i);
+      } else if (c == '*' || c == '?' || c == '{') {
+        // The preceding character is optional
+        if (current.length() > 0) {
+          current.setLength(current.length() - 1);
+        }
+        best = longest(best, current);
+        if (c == '{') {
+          int close = regex.indexOf('}', i);
+          i = close < 0 ? regex.length() : close;
+        }
+      } else if (c == '(' || c == ')' || c == '.' || c == '^' || c == '$'
+          || c == '+') {
+        // For '+' the preceding character is required, the repetition is not
+        if (c == '(') {
+          depth++;
+        } else if (c == ')') {
+          depth--;
+        }
+        best = longest(best, current);
+      } else if (depth == 0) {
+        current.append(c);
+      }
+    }
+    best = longest(best, current);
+    return best.length() > 0 ? best : null;
+  }
+
+  /** Returns the longest literal part of a LIKE pattern, or <code>null</code>. */
+  static String likeLiteral(String like) {
+    String best = "";
+    StringBuilder current = new StringBuilder();
+    for (int i = 0; i < like.length(); i++) {
+      char c = like.charAt(i);
+      if (c == '\\' && i + 1 < like.length()) {
+        current.append(like.charAt(++i));
+      } else if (c == '%' || c == '_') {
+        best = longest(best, current);
+      } else {
+        current.append(c);
+      }
+    }
+    best = longest(best, current);
+    return best.length() > 0 ? best : null;
+  }
+
+  // Keeps the longer of best and current, and clears current
+  private static String longest(String best, StringBuilder current) {
+    if (current.length() > best.length()) {
+      best = current.toString();
+    }
+    current.setLength(0);
+    return best;
+  }
+
+  // Index of the ']' closing the character class starting at start
+  private static int classEnd(String regex, int start) {
+    int i = start + 1;
+    if (i < regex.length() && regex.charAt(i) == '^') {
+      i++;
+    }
+    if (i < regex.length() && regex.charAt(i) == ']') {
+      i++;
+    }
+    for (; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '[' && i + 1 < regex.length() && regex.charAt(i + 1) == ':') {
+        int close = regex.indexOf(":]", i + 2);
+        if (close > 0) {
+          i = close + 1;
+        }
+      } else if (c == ']') {
+        return i;
+      }
+    }
+    return regex.length();
+  }
+
+  /**
+   * Translate the MySQL-only parts of a regex (POSIX character classes and
+   * word boundaries) to {@link Pattern} syntax.
+   */
+  static String toJavaRegex(String regex) {
+    String java = regex.replace("[[:<:]]", "\\b").replace("[[:>:]]", "\\b");
+    StringBuilder result = new StringBuilder();
+    int i = 0;
+    int start;
+    while ((start = java.indexOf("[:", i)) >= 0) {
+      int end = java.indexOf(":]", start + 2);
+      if (end < 0) {
+        break;
+      }
+      String name = java.substring(start + 2, end);
+      String property = POSIX_CLASSES.get(name);
+      result.append(java, i, start);
+      if (property != null) {
+        result.append("\\p{").append(property).append('}');
+      } else {
+        result.append(java, start, end + 2);
+      }
+      i = end + 2;
+    }
+    result.append(java.substring(i));
+    return result.toString();
+  }
+
+  /**
+   * Compile a MySQL regex to an automaton accepting every (lower-cased)
+   * text the regex is found in, or return <code>null</code> if the regex
+   * uses syntax that has a different meaning for the automaton library.
+   */
+  static Automaton regexToAutomaton(String regex) {
+    boolean anchorStart = regex.startsWith("^");
+    boolean anchorEnd = regex.endsWith("$") && !isEscaped(regex, regex.length() - 1);
+    int end = anchorEnd ? regex.length() - 1 : regex.length();
+    if ((anchorStart || anchorEnd) && regex.indexOf('|') >= 0) {
+      return null;
+    }
+
+    StringBuilder core = new StringBuilder();
+    boolean inClass = false;
+    for (int i = anchorStart ? 1 : 0; i < end; i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        if (++i >= end) {
+          return null;
+        }
+        char e = regex.charAt(i);
+        String shorthand = inClass ? CLASS_SHORTHANDS.get(e) : SHORTHANDS.get(e);
+        if (shorthand != null) {
+          core.append(shorthand);
+        } else if (Character.isLetterOrDigit(e)) {
+          return null;                            // \b, \1, \p ...
+        } else {
+          core.append(c).append(e);
+        }
+      } else if (inClass) {
+        if (c == ']' && core.charAt(core.length() - 1) != '[') {
+          inClass = false;
+        } else if (c == '[' && i + 1 < end && regex.charAt(i + 1) == ':') {
+          return null;                            // POSIX classes
+        }
+        core.append(Character.toLowerCase(c));
+      } else if (c == '[') {
+        inClass = true;
+        core.append(c);
+        if (i + 1 < end && regex.charAt(i + 1) == '^') {
+          core.append(regex.charAt(++i));
+        }
+      } else if (c == '^' || c == '$' || c == '"'
+          || (c == '(' && i + 1 < end && regex.charAt(i + 1) == '?')) {
+        return null;                              // anchors, quotes, flags
+      } else {
+        core.append(Character.toLowerCase(c));
+      }
+    }
+
+    Automaton automaton;
+    try {
+      automaton = new RegExp(core.toString(), RegExp.NONE).toAutomaton();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!anchorStart) {
+      automaton = Automaton.makeAnyString().concatenate(automaton);
+    }
+    if (!anchorEnd) {
+      automaton = automaton.concatenate(Automaton.makeAnyString());
+    }
+    automaton.minimize();
+    return automaton;
+  }
+
+  /**
+   * Compile a LIKE pattern to an automaton accepting every (lower-cased)
+   * text the pattern is found in.
+   */
+  static Automaton likeToAutomaton(String like) {
+    String lower = like.toLowerCase();
+    List<Automaton> parts = new ArrayList<Automaton>();
+    parts.add(Automaton.makeAnyString());
+    for (int i = 0; i < lower.length(); i++) {
+      char c = lower.charAt(i);
+      if (c == '\\' && i + 1 < lower.length()) {
+        parts.add(Automaton.makeChar(lower.charAt(++i)));
+      } else if (c == '%') {
+        parts.add(Automaton.makeAnyString());
+      } else if (c == '_') {
+        parts.add(Automaton.makeAnyChar());
+      } else {
+        parts.add(Automaton.makeChar(c));
+      }
+    }
+    parts.add(Automaton.makeAnyString());
+    Automaton automaton = Automaton.concatenate(parts);
+    automaton.minimize();
+    return automaton;
+  }
+
+  private static boolean isEscaped(String s, int pos) {
+    int backslashes = 0;
+    while (pos - backslashes - 1 >= 0 && s.charAt(pos - backslashes - 1) == '\\') {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only, in-memory copy of the <code>webpage.boost</code> values and the
+ * <code>metadata_rules</code> table. A snapshot is loaded once and then
+ * queried for every indexed document, instead of sending one query per
+ * document to MySQL.
+ * <p>
+ * Rules are compiled into a {@link KirstenRuleEngine}. Compiling some
+ * thousand rules takes seconds, so a reload keeps the engine of the previous
+ * snapshot as long as the rules have not changed.
+ */
+public class KirstenSnapshot {
+
+  private static final Logger LOG = LoggerFactory.getLogger(KirstenSnapshot.class);
+
+  private static final String SELECT_BOOSTS =
+    "SELECT url, boost FROM webpage WHERE boost IS NOT NULL";
+  private static final String SELECT_RULES =
+    "SELECT id, rule, type, is_regex, importance_factor FROM metadata_rules";
+
+  private final UrlBoostMap boosts;
+  private final List<MetadataRule> ruleList;
+  private final KirstenRuleEngine rules;
+  private final long loadTime;
+
+  public KirstenSnapshot(UrlBoostMap boosts, List<MetadataRule> rules) {
+    this(boosts, rules, new KirstenRuleEngine(rules));
+  }
+
+  private KirstenSnapshot(UrlBoostMap boosts, List<MetadataRule> ruleList,
+      KirstenRuleEngine rules) {
+    this.boosts = boosts;
+    this.ruleList = ruleList;
+    this.rules = rules;
+    this.loadTime = System.currentTimeMillis();
+  }
+
+  /**
+   * A snapshot of <code>boosts</code> and <code>rules</code>, reusing the
+   * compiled rules of <code>previous</code> (which may be null) if they are
+   * the same.
+   */
+  static KirstenSnapshot create(UrlBoostMap boosts, List<MetadataRule> rules,
+      KirstenSnapshot previous) {
+    if (previous != null && previous.ruleList.equals(rules)) {
+      return new KirstenSnapshot(boosts, previous.ruleList, previous.rules);
+    }
+    return new KirstenSnapshot(boosts, rules);
+  }
+
+  /** An empty snapshot, used while the DB cannot be reached. */
+  public static KirstenSnapshot empty() {
+    return new KirstenSnapshot(new UrlBoostMap(), new ArrayList<MetadataRule>());
+  }
+
+  /** Load all boost values and rules from the DB. */
+  public static KirstenSnapshot load(KirstenDB db) throws SQLException {
+    return load(db, null);
+  }
+
+  /**
+   * Load all boost values and rules from the DB, reusing the compiled rules
+   * of <code>previous</code> (which may be null) if the rules are unchanged.
+   */
+  public static KirstenSnapshot load(KirstenDB db, KirstenSnapshot previous)
+      throws SQLException {
+    UrlBoostMap boosts = new UrlBoostMap();
+    List<MetadataRule> rules = new ArrayList<MetadataRule>();
+    KirstenDB.PooledConnection connection = db.acquire();
+    boolean broken = true;
+    try {
+      ResultSet resultSet = connection.prepare(SELECT_BOOSTS).executeQuery();
+      while (resultSet.next()) {
+        String url = resultSet.getString("url");
+        String boost = resultSet.getString("boost");
+        try {
+          boosts.put(url, Float.parseFloat(boost));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid boost '" + boost + "' for " + url);
+        }
+      }
+      resultSet.close();
+
+      resultSet = connection.prepare(SELECT_RULES).executeQuery();
+      while (resultSet.next()) {
+        rules.add(new MetadataRule(resultSet.getInt("id"),
+            resultSet.getString("rule"), resultSet.getString("type"),
+            resultSet.getBoolean("is_regex"),
+            resultSet.getFloat("importance_factor")));
+      }
+      resultSet.close();
+      broken = false;
+    } finally {
+      db.release(connection, broken);
+    }
+    LOG.info("Loaded " + boosts.size() + " boost values and " + rules.size()
+        + " metadata rules");
+    return create(boosts, rules, previous);
+  }
+
+  /**
+   * Returns the boost set for <code>url</code>, or {@link Float#NaN} if no
+   * boost has been set.
+   */
+  public float getBoost(String url) {
+    return boosts.get(url);
+  }
+
+  /** Returns the rules matching the url or the title of a document. */
+  public KirstenRuleEngine.Result matchRules(String url, String title) {
+    return rules.match(url, title);
+  }
+
+  /**
+   * Returns the product of the importance factors of all rules matching the
+   * url or the title, or 1.0 if no rule matches.
+   */
+  public float getRuleFactor(String url, String title) {
+    return rules.match(url, title).getFactor();
+  }
+
+  KirstenRuleEngine getRuleEngine() {
+    return rules;
+  }
+
+  public int getBoostCount() {
+    return boosts.size();
+  }
+
+  public int getRuleCount() {
+    return rules.getRuleCount();
+  }
+
+  /** The time this snapshot was loaded, in milliseconds. */
+  public long getLoadTime() {
+    return loadTime;
+  }
+}
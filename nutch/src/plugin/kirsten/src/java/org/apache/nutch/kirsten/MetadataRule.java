@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+/**
+ * A single row of the <code>metadata_rules</code> table.
+ * <p>
+ * A rule matches a document when its text occurs anywhere in the url or
+ * title (depending on <code>type</code>), ignoring case, the way MySQL
+ * evaluated <code>LIKE CONCAT('%', rule, '%')</code> and
+ * <code>REGEXP rule</code>.
+ */
+public class MetadataRule {
+
+  public static final String TYPE_URL = "url";
+  public static final String TYPE_TITLE = "title";
+
+  private final int id;
+  private final String rule;
+  private final String type;
+  private final boolean regex;
+  private final float factor;
+
+  public MetadataRule(int id, String rule, String type, boolean regex,
+      float factor) {
+    this.id = id;
+    this.rule = rule;
+    this.type = type;
+    this.regex = regex;
+    this.factor = factor;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getRule() {
+    return rule;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public boolean isRegex() {
+    return regex;
+  }
+
+  /** The importance factor of the rule. */
+  public float getFactor() {
+    return factor;
+  }
+
+  /** Whether the rule contains LIKE wildcards (<code>%</code> or <code>_</code>). */
+  public boolean hasWildcards() {
+    return !regex && (rule.indexOf('%') >= 0 || rule.indexOf('_') >= 0);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof MetadataRule)) {
+      return false;
+    }
+    MetadataRule other = (MetadataRule) o;
+    return id == other.id && regex == other.regex
+        && Float.floatToIntBits(factor) == Float.floatToIntBits(other.factor)
+        && rule.equals(other.rule) && type.equals(other.type);
+  }
+
+  public int hashCode() {
+    return id * 31 + rule.hashCode();
+  }
+
+  public String toString() {
+    return id + ":" + type + (regex ? " REGEXP " : " LIKE ") + rule;
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * Open addressing map from URL to boost value. URLs are not stored, only the
+ * first 64 bits of their MD5 hash, so a map with a hundred thousand pages
+ * takes a couple of megabytes instead of the tens of megabytes a
+ * <code>HashMap&lt;String, Float&gt;</code> would need.
+ */
+public class UrlBoostMap {
+
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private float[] values;
+  private boolean[] used;
+  private int size = 0;
+
+  public UrlBoostMap() {
+    this(1024);
+  }
+
+  public UrlBoostMap(int expectedSize) {
+    int capacity = 16;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    keys = new long[capacity];
+    values = new float[capacity];
+    used = new boolean[capacity];
+  }
+
+  /** Returns the key under which <code>url</code> is stored. */
+  public static long hash(String url) {
+    return MD5Hash.digest(url).halfDigest();
+  }
+
+  public void put(String url, float boost) {
+    put(hash(url), boost);
+  }
+
+  public void put(long key, float boost) {
+    if ((size + 1) > keys.length * LOAD_FACTOR) {
+      rehash(keys.length << 1);
+    }
+    int slot = slot(key);
+    if (!used[slot]) {
+      used[slot] = true;
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = boost;
+  }
+
+  /**
+   * Returns the boost stored for <code>url</code>, or {@link Float#NaN} if
+   * there is none.
+   */
+  public float get(String url) {
+    return get(hash(url));
+  }
+
+  public float get(long key) {
+    int slot = slot(key);
+    return used[slot] ? values[slot] : Float.NaN;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // Linear probing; the table is never full, so this always terminates
+  private int slot(long key) {
+    int mask = keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (used[slot] && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    float[] oldValues = values;
+    boolean[] oldUsed = used;
+    keys = new long[capacity];
+    values = new float[capacity];
+    used = new boolean[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int slot = slot(oldKeys[i]);
+        used[slot] = true;
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -17,52 +17,68 @@
 
 package org.apache.nutch.scoring.kirsten;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map.Entry;
-import java.util.Iterator;
 import java.util.List;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.PreparedStatement;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.Inlinks;
 import org.apache.nutch.indexer.NutchDocument;
+import org.apache.nutch.kirsten.KirstenDB;
+import org.apache.nutch.kirsten.KirstenRuleEngine;
+import org.apache.nutch.kirsten.KirstenSnapshot;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseData;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.scoring.ScoringFilter;
 import org.apache.nutch.scoring.ScoringFilterException;
+import org.apache.nutch.util.ReporterAware;
 
 /**
+ * Boost values and metadata rules are read from the DB into a
+ * {@link KirstenSnapshot} on first use and re-read every
+ * <code>kirsten.cache.ttl</code> seconds (default 600, a negative value
+ * never re-reads).
+ * <p>
+ * With <code>kirsten.boost.external</code> set to true, the score is indexed
+ * as it is: the boost values and rule factors are left to the external file
+ * written by {@link org.apache.nutch.kirsten.KirstenBoostExport}, so changing
+ * them needs no re-indexing. Note that in the file a boost value multiplies
+ * the score of the document instead of replacing it.
+ * <p>
  * For documentation:
  * 
  * @see KirstenIndexingFilter
  */
-public class KirstenScoringFilter implements ScoringFilter {
+public class KirstenScoringFilter implements ScoringFilter, ReporterAware {
 
   private static final Logger LOG = LoggerFactory.getLogger(KirstenScoringFilter.class);
   private static final String CONF_URL = "kirsten.db.url";
   private static final String CONF_DB = "kirsten.db.dbname";
   private static final String CONF_USERNAME = "kirsten.db.username";
   private static final String CONF_PASSWORD = "kirsten.db.password";
+  private static final String CONF_POOL_SIZE = "kirsten.db.pool.size";
+  private static final String CONF_CACHE_TTL = "kirsten.cache.ttl";
+  private static final String CONF_EXTERNAL = "kirsten.boost.external";
+  private static final String COUNTER_GROUP = "KirstenScoring";
   private static String confUrl;
   private static String confDB;
   private static String confUsername;
   private static String confPassword;
   private Configuration conf;
-  private Connection connect = null;
-  private Statement statement = null;
-  private ResultSet resultSet = null;
+  private KirstenDB db = null;
+  private KirstenSnapshot snapshot = null;
+  private long cacheTtl;
+  private boolean external;
+  private long nextLoad = 0;
+  private Reporter reporter = null;
 
   public Configuration getConf() {
     return conf;
@@ -75,6 +91,15 @@ public class KirstenScoringFilter implements ScoringFilter {
     confDB = conf.get(CONF_DB);
     confUsername = conf.get(CONF_USERNAME);
     confPassword = conf.get(CONF_PASSWORD);
+    db = KirstenDB.get(confUrl + "/" + confDB, confUsername, confPassword,
+        conf.getInt(CONF_POOL_SIZE, 2));
+    long ttl = conf.getLong(CONF_CACHE_TTL, 600);
+    cacheTtl = ttl < 0 ? -1 : ttl * 1000;
+    external = conf.getBoolean(CONF_EXTERNAL, false);
+  }
+
+  public void setReporter(Reporter reporter) {
+    this.reporter = reporter;
   }
 
 
@@ -120,23 +145,32 @@ public class KirstenScoringFilter implements ScoringFilter {
   public float indexerScore(Text url, NutchDocument doc, CrawlDatum dbDatum,
       CrawlDatum fetchDatum, Parse parse, Inlinks inlinks, float initScore)
       throws ScoringFilterException {
-    open();
+    if (external) {
+      return Math.max(initScore, 0.00001f);
+    }
+    KirstenSnapshot snapshot = getSnapshot();
     String urlString = url.toString();
-    String setBoost = readUrlBoostFromDB(url);
+    float setBoost = snapshot.getBoost(urlString);
     float newBoost = 0;
 
     // If a boost value is set we force this value as boost value when updating
-    if (setBoost != "" && setBoost != "0") {
+    if (!Float.isNaN(setBoost)) {
       LOG.info("Boost: " + setBoost + " for " + urlString);
+      incrCounter("Boost found");
       // Return forced boost value
-      close();
-      newBoost = Float.valueOf(setBoost);
+      newBoost = setBoost;
     }
     else {
+      incrCounter("Boost not found");
       // Pass existing automatically calculated score on
       // But first check if any rules exists
-      Float factoredBoost = readRuleBasedBoostFactorFromDB(url, parse);
-      close();
+      KirstenRuleEngine.Result rules = snapshot.matchRules(urlString, parse.getData().getTitle());
+      float factoredBoost = rules.getFactor();
+      if (!rules.isEmpty()) {
+        LOG.info("Rule-based boost: " + factoredBoost + " rules: "
+            + Arrays.toString(rules.getRuleIds()) + " url: " + urlString);
+        incrCounter("Rule matches");
+      }
       newBoost = factoredBoost * initScore;
     }
     if (newBoost < 0.00001) {
@@ -164,87 +198,32 @@ public class KirstenScoringFilter implements ScoringFilter {
     return adjust;
   }
 
-  public String readUrlBoostFromDB(Text url) {
-    try {
-      // Statements allow to issue SQL queries to the database
-      statement = connect.createStatement();
-      // Result set get the result of the SQL query
-      resultSet = statement
-          .executeQuery("SELECT boost FROM webpage WHERE url = '" + url + "'");
-    } catch (Exception e) {
-      LOG.error("Exception on executeQuery", e);
-    } finally {
+  /**
+   * Returns the current snapshot, (re)loading it from the DB when there is
+   * none yet or the TTL has passed. If the DB cannot be read the previous
+   * snapshot is kept, or an empty one is used until the next attempt.
+   */
+  private synchronized KirstenSnapshot getSnapshot() {
+    long now = System.currentTimeMillis();
+    if (snapshot == null || (cacheTtl >= 0 && now >= nextLoad)) {
+      nextLoad = now + cacheTtl;
       try {
-        resultSet.next();
-        String boost = resultSet.getString("boost");
-        if (resultSet.wasNull()) {
-          return "";
+        snapshot = KirstenSnapshot.load(db, snapshot);
+        incrCounter("Snapshot loads");
+      } catch (Exception e) {
+        LOG.error("Error loading boost values and rules from DB", e);
+        if (snapshot == null) {
+          snapshot = KirstenSnapshot.empty();
         }
-        else {
-          return boost;
-        }
-      }
-      catch (SQLException e) {
-        return "";
-      }
-    }
-  }
-
-  public Float readRuleBasedBoostFactorFromDB(Text url, Parse parse) {
-    String title = parse.getData().getTitle();
-    Float boostFactor = 1.0f;
-    try {
-      // Statements allow to issue SQL queries to the database
-      statement = connect.createStatement();
-      // Result set get the result of the SQL query
-      // TODO: Test regular expressions
-      resultSet = statement
-          .executeQuery(
-          "SELECT importance_factor FROM metadata_rules WHERE '" + url + "' LIKE CONCAT('%', rule, '%') AND type ='url' AND is_regex <> TRUE " +
-          "UNION SELECT importance_factor FROM metadata_rules WHERE '" + url + "' REGEXP rule AND type ='url' AND is_regex = TRUE " +
-          "UNION SELECT importance_factor FROM metadata_rules WHERE '" + title + "' LIKE CONCAT('%', rule, '%') AND type ='title' AND is_regex <> TRUE " +
-          "UNION SELECT importance_factor FROM metadata_rules WHERE '" + title + "' REGEXP rule AND type ='title' AND is_regex = TRUE"
-      );
-      while (resultSet.next()) {
-        Float thisBoostFactor = resultSet.getFloat("importance_factor");
-        boostFactor = boostFactor * thisBoostFactor;
-        LOG.info("Rule boost: " + thisBoostFactor + " - new total rule-based boost: " + boostFactor + " url: " + url + " title: " + title);
       }
-    } catch (Exception e) {
-      LOG.error("Exception on executeQuery (metadata_rules.importance_factor", e);
-    }
-    return boostFactor;
-  }
-
-  // Open DB connection
-  private void open() {
-    try {
-      Class.forName("com.mysql.jdbc.Driver");
-      // Setup the connection with the DB
-      connect = DriverManager
-        .getConnection(confUrl + "/" + confDB, confUsername, confPassword);
-    } catch (Exception e) {
-      LOG.error("Error connecting to DB");
+      LOG.info("Kirsten DB pool: " + db.getStats());
     }
+    return snapshot;
   }
 
-
-  // You need to close the resultSet
-  private void close() {
-    try {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-
-      if (statement != null) {
-        statement.close();
-      }
-
-      if (connect != null) {
-        connect.close();
-      }
-    } catch (Exception e) {
-
+  private void incrCounter(String counter) {
+    if (reporter != null) {
+      reporter.incrCounter(COUNTER_GROUP, counter, 1);
     }
   }
 }
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/** Unit tests for the lines of the boost file. */
+public class TestKirstenBoostExport extends TestCase {
+
+  public void testLines() throws Exception {
+    Map<String, Float> boosts = new LinkedHashMap<String, Float>();
+    boosts.put("http://www.sbi.dk/boosted", 0.5f);
+    boosts.put("http://www.sbi.dk/a=b?c=d", 0.25f);
+    boosts.put("http://www.sbi.dk/zero", 0f);
+    KirstenSnapshot rules = new KirstenSnapshot(new UrlBoostMap(), Arrays.asList(
+        new MetadataRule(1, "beton", "url", false, 0.5f),
+        new MetadataRule(2, "vejledning", "title", false, 0.2f),
+        new MetadataRule(3, "neutral", "url", false, 1.0f)));
+
+    StringWriter out = new StringWriter();
+    KirstenBoostExport.BoostFileWriter writer =
+      new KirstenBoostExport.BoostFileWriter(out, boosts, rules);
+    writer.writeBoosts();
+    // the boost set wins over the rules
+    writer.writeDocument("http://www.sbi.dk/boosted", "Vejledning");
+    writer.writeDocument("http://www.sbi.dk/beton", "Vejledning");
+    writer.writeDocument("http://www.sbi.dk/beton", null);
+    // no rule, or rules without effect, need no line
+    writer.writeDocument("http://www.sbi.dk/other", "Other");
+    writer.writeDocument("http://www.sbi.dk/neutral", null);
+    writer.writeDocument("http://www.sbi.dk/\nbroken", "Vejledning");
+
+    assertEquals("http://www.sbi.dk/boosted=0.5\n"
+        + "http://www.sbi.dk/a=b?c=d=0.25\n"
+        + "http://www.sbi.dk/zero=" + KirstenBoostExport.MIN_BOOST + "\n"
+        + "http://www.sbi.dk/beton=" + (0.5f * 0.2f) + "\n"
+        + "http://www.sbi.dk/beton=0.5\n", out.toString());
+    assertEquals(5, writer.getLines());
+  }
+}
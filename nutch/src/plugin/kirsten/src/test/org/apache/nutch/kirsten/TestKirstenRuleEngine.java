@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.kirsten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import junit.framework.TestCase;
+
+/** Unit tests for KirstenRuleEngine. */
+public class TestKirstenRuleEngine extends TestCase {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestKirstenRuleEngine.class);
+
+  private static final String URL = "http://www.sbi.dk/Beton/anvisning-234.html";
+  private static final String TITLE = "Vejledning om Betonkonstruktioner";
+
+  public void testSubstringRules() {
+    KirstenRuleEngine engine = engine(
+        new MetadataRule(1, "beton", "url", false, 0.5f),
+        new MetadataRule(2, "anvisning", "url", false, 2.0f),
+        new MetadataRule(3, "mursten", "url", false, 3.0f),
+        new MetadataRule(4, "VEJLEDNING", "title", false, 4.0f));
+    KirstenRuleEngine.Result result = engine.match(URL, TITLE);
+    assertRuleIds(result, 1, 2, 4);
+    assertEquals(4.0f, result.getFactor());
+  }
+
+  public void testRegexRules() {
+    KirstenRuleEngine engine = engine(
+        new MetadataRule(1, "^https?://www\\.sbi\\.dk/", "url", true, 2.0f),
+        new MetadataRule(2, "^www\\.sbi", "url", true, 3.0f),
+        new MetadataRule(3, "anvisning-[0-9]+\\.html$", "url", true, 5.0f),
+        new MetadataRule(4, "anvisning-\\d{3}", "url", true, 7.0f),
+        new MetadataRule(5, "^vejledning|tagrender", "title", true, 11.0f),
+        new MetadataRule(6, "[[:digit:]]", "title", true, 13.0f));
+    assertRuleIds(engine.match(URL, TITLE), 1, 3, 4, 5);
+  }
+
+  public void testRequiredLiteral() {
+    assertEquals("://www.sbi.dk/", KirstenRuleEngine.requiredLiteral("^https?://www\\.sbi\\.dk/"));
+    assertEquals("anvisning-", KirstenRuleEngine.requiredLiteral("anvisning-[0-9]+\\.html$"));
+    assertEquals("beto", KirstenRuleEngine.requiredLiteral("beton?(er|ing)"));
+    assertEquals("sten", KirstenRuleEngine.requiredLiteral("[[:<:]]mur+sten"));
+    assertNull(KirstenRuleEngine.requiredLiteral("beton|mursten"));
+    assertNull(KirstenRuleEngine.requiredLiteral("[0-9]+\\d"));
+    assertEquals("beton", KirstenRuleEngine.likeLiteral("sbi%beton_"));
+    assertNull(KirstenRuleEngine.likeLiteral("%_%"));
+  }
+
+  public void testPosixClasses() {
+    assertEquals("[\\p{Digit}]+\\bx", KirstenRuleEngine.toJavaRegex("[[:digit:]]+[[:<:]]x"));
+    assertEquals("[\\p{Alpha}-]", KirstenRuleEngine.toJavaRegex("[[:alpha:]-]"));
+  }
+
+  public void testLikeWildcards() {
+    KirstenRuleEngine engine = engine(
+        new MetadataRule(1, "sbi.dk/%/anvisning", "url", false, 2.0f),
+        new MetadataRule(2, "beton_anvisning", "url", false, 3.0f),
+        new MetadataRule(3, "anvisning_234", "url", false, 5.0f),
+        new MetadataRule(4, "anvisning\\_234", "url", false, 7.0f));
+    assertRuleIds(engine.match(URL, TITLE), 1, 2, 3);
+  }
+
+  public void testEmptyInput() {
+    KirstenRuleEngine engine = engine(
+        new MetadataRule(1, "beton", "title", false, 2.0f),
+        new MetadataRule(2, "", "url", false, 3.0f));
+    KirstenRuleEngine.Result result = engine.match(URL, null);
+    assertTrue(result.isEmpty());
+    assertEquals(1.0f, result.getFactor());
+  }
+
+  public void testAhoCorasick() {
+    AhoCorasick matcher = new AhoCorasick(Arrays.asList(
+        "he", "she", "his", "hers", ""));
+    assertEquals("{0, 1, 3}", matcher.match("ushers").toString());
+    assertEquals("{2}", matcher.match("this").toString());
+    assertTrue(matcher.match("").isEmpty());
+  }
+
+  /** Compare against rule by rule matching on random rules and texts. */
+  public void testRandomRules() {
+    Random random = new Random(42);
+    for (int round = 0; round < 20; round++) {
+      List<MetadataRule> rules = randomRules(random, 200);
+      KirstenRuleEngine engine = new KirstenRuleEngine(rules);
+      for (int i = 0; i < 200; i++) {
+        String url = randomText(random, 40);
+        String title = randomText(random, 20);
+        List<MetadataRule> expected = new ArrayList<MetadataRule>();
+        for (MetadataRule rule : rules) {
+          String text = "url".equals(rule.getType()) ? url : title;
+          if (toPattern(rule).matcher(text).find()) {
+            expected.add(rule);
+          }
+        }
+        int[] expectedIds = ids(expected);
+        int[] actualIds = engine.match(url, title).getRuleIds();
+        Arrays.sort(actualIds);
+        assertEquals(url + " / " + title, Arrays.toString(expectedIds),
+            Arrays.toString(actualIds));
+      }
+    }
+  }
+
+  /** A reloaded snapshot keeps the compiled rules while they are unchanged. */
+  public void testReuseCompiledRules() {
+    List<MetadataRule> rules = new ArrayList<MetadataRule>();
+    rules.add(new MetadataRule(1, "beton", "url", false, 0.5f));
+    rules.add(new MetadataRule(2, "^vejledning", "title", true, 2.0f));
+    KirstenSnapshot first = KirstenSnapshot.create(new UrlBoostMap(), rules, null);
+
+    List<MetadataRule> same = new ArrayList<MetadataRule>();
+    same.add(new MetadataRule(1, "beton", "url", false, 0.5f));
+    same.add(new MetadataRule(2, "^vejledning", "title", true, 2.0f));
+    KirstenSnapshot second = KirstenSnapshot.create(new UrlBoostMap(), same, first);
+    assertSame(first.getRuleEngine(), second.getRuleEngine());
+    assertEquals(1.0f, second.getRuleFactor(URL, TITLE));
+
+    same.set(1, new MetadataRule(2, "^vejledning", "title", true, 3.0f));
+    KirstenSnapshot third = KirstenSnapshot.create(new UrlBoostMap(), same, second);
+    assertNotSame(second.getRuleEngine(), third.getRuleEngine());
+    assertEquals(1.5f, third.getRuleFactor(URL, TITLE));
+  }
+
+  /** Compare against rule by rule matching on <code>count</code> realistic rules. */
+  private static void bench(int count) {
+    Random random = new Random(1);
+    String[] words = new String[5000];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = randomWord(random);
+    }
+    List<MetadataRule> rules = new ArrayList<MetadataRule>();
+    for (int id = 0; id < count; id++) {
+      String word = words[random.nextInt(words.length)];
+      String type = id % 3 == 0 ? "title" : "url";
+      int kind = random.nextInt(20);
+      if (kind < 12) {
+        rules.add(new MetadataRule(id, word, type, false, 1.1f));
+      } else if (kind < 15) {
+        rules.add(new MetadataRule(id, word + "/[a-z]+-\\d+", type, true, 1.1f));
+      } else if (kind < 17) {
+        rules.add(new MetadataRule(id, "^https?://www\\." + word + "\\.", type, true, 1.1f));
+      } else if (kind < 19) {
+        rules.add(new MetadataRule(id, word + "%" + words[random.nextInt(words.length)], type, false, 1.1f));
+      } else {
+        rules.add(new MetadataRule(id, "\\b" + word + "\\b", type, true, 1.1f));
+      }
+    }
+    String[][] docs = new String[2000][];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = new String[] {
+          "http://www." + words[random.nextInt(words.length)] + ".dk/"
+              + words[random.nextInt(words.length)] + "/"
+              + words[random.nextInt(words.length)] + "-" + random.nextInt(1000) + ".html",
+          words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)].toUpperCase()
+              + " " + words[random.nextInt(words.length)] };
+    }
+
+    long start = System.currentTimeMillis();
+    KirstenRuleEngine engine = new KirstenRuleEngine(rules);
+    LOG.info("compile time (" + rules.size() + " rules) "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    start = System.currentTimeMillis();
+    int matches = 0;
+    for (String[] doc : docs) {
+      matches += engine.match(doc[0], doc[1]).getRules().size();
+    }
+    LOG.info("engine time (" + docs.length + " docs) "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    Pattern[] patterns = new Pattern[rules.size()];
+    for (int i = 0; i < patterns.length; i++) {
+      patterns[i] = toPattern(rules.get(i));
+    }
+    start = System.currentTimeMillis();
+    int expected = 0;
+    for (String[] doc : docs) {
+      for (int i = 0; i < patterns.length; i++) {
+        String text = "url".equals(rules.get(i).getType()) ? doc[0] : doc[1];
+        if (patterns[i].matcher(text).find()) {
+          expected++;
+        }
+      }
+    }
+    LOG.info("rule by rule time (" + docs.length + " docs) "
+        + (System.currentTimeMillis() - start) + "ms");
+    if (expected != matches) {
+      throw new IllegalStateException("engine found " + matches
+          + " matches, rule by rule " + expected);
+    }
+  }
+
+  private static String randomWord(Random random) {
+    int length = 4 + random.nextInt(6);
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      word.append((char) ('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+
+  private static final String ALPHABET = "abcdeABC/.-";
+
+  private static String randomText(Random random, int maxLength) {
+    int length = random.nextInt(maxLength + 1);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return text.toString();
+  }
+
+  private static List<MetadataRule> randomRules(Random random, int count) {
+    List<MetadataRule> rules = new ArrayList<MetadataRule>();
+    for (int id = 0; id < count; id++) {
+      String type = random.nextBoolean() ? "url" : "title";
+      String rule = randomText(random, 4);
+      if (rule.length() == 0) {
+        rule = "x";
+      }
+      boolean regex = false;
+      switch (random.nextInt(6)) {
+      case 0:
+        rule = "^" + rule;
+        regex = true;
+        break;
+      case 1:
+        rule = rule.replace(".", "\\.") + "[a-c]+\\.";
+        regex = true;
+        break;
+      case 2:
+        rule = "(" + rule.replace('.', 'e') + "|ab?c)\\d";
+        regex = true;
+        break;
+      case 3:
+        rule = rule + "%" + randomText(random, 2);
+        break;
+      default:
+        break;
+      }
+      rules.add(new MetadataRule(id, rule, type, regex, 0.5f + random.nextFloat()));
+    }
+    return rules;
+  }
+
+  /** Rule by rule equivalent of the MySQL query. */
+  private static Pattern toPattern(MetadataRule rule) {
+    int flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+    if (rule.isRegex()) {
+      return Pattern.compile(rule.getRule(), flags);
+    }
+    StringBuilder regex = new StringBuilder();
+    String like = rule.getRule();
+    for (int i = 0; i < like.length(); i++) {
+      char c = like.charAt(i);
+      if (c == '\\' && i + 1 < like.length()) {
+        regex.append(Pattern.quote(String.valueOf(like.charAt(++i))));
+      } else if (c == '%') {
+        regex.append(".*");
+      } else if (c == '_') {
+        regex.append('.');
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString(), flags | Pattern.DOTALL);
+  }
+
+  private static KirstenRuleEngine engine(MetadataRule... rules) {
+    return new KirstenRuleEngine(Arrays.asList(rules));
+  }
+
+  private static int[] ids(List<MetadataRule> rules) {
+    int[] ids = new int[rules.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = rules.get(i).getId();
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private static void assertRuleIds(KirstenRuleEngine.Result result, int... expected) {
+    int[] actual = result.getRuleIds();
+    Arrays.sort(actual);
+    assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rules = 10000;
+    if (args.length == 2 && args[0].equals("-bench")) {
+      rules = Integer.parseInt(args[1]);
+    } else if (args.length != 0) {
+      System.err.println("TestKirstenRuleEngine [-bench <rules>]");
+      System.exit(-1);
+    }
+    bench(rules);
+  }
+}
@@ -35,16 +35,18 @@ import org.apache.nutch.protocol.ProtocolStatus;
 import org.apache.nutch.protocol.RobotRules;
 import org.apache.nutch.util.GZIPUtils;
 import org.apache.nutch.util.DeflateUtils;
+import org.apache.nutch.util.ReporterAware;
 
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
 
 /**
  * @author J&eacute;r&ocirc;me Charron
  */
-public abstract class HttpBase implements Protocol {
+public abstract class HttpBase implements Protocol, ReporterAware {
   
   
   public static final int BUFFER_SIZE = 8 * 1024;
@@ -52,6 +54,9 @@ public abstract class HttpBase implements Protocol {
   private static final byte[] EMPTY_CONTENT = new byte[0];
 
   private RobotRulesParser robots = null;
+
+  /** The reporter of the task using this protocol, if any. */
+  private volatile Reporter reporter = null;
  
   /** The proxy hostname. */ 
   protected String proxyHost = null;
@@ -91,6 +96,12 @@ public abstract class HttpBase implements Protocol {
   
   /** Do we use HTTP/1.1? */
   protected boolean useHttp11 = false;
+
+  /** How long an idle HTTP/1.1 connection is kept for reuse, in milliseconds. */
+  protected long keepAliveTimeout = 5000;
+
+  /** The maximum number of idle HTTP/1.1 connections kept per host. */
+  protected int keepAliveMaxIdle = 2;
   
   /** Skip page if Crawl-Delay longer than this value. */
   protected long maxCrawlDelay = -1L;
@@ -122,6 +133,8 @@ public abstract class HttpBase implements Protocol {
       this.accept = conf.get("http.accept", accept);
       // backward-compatible default setting
       this.useHttp11 = conf.getBoolean("http.useHttp11", false);
+      this.keepAliveTimeout = conf.getLong("http.keep.alive.timeout", 5000);
+      this.keepAliveMaxIdle = conf.getInt("http.keep.alive.max.idle", 2);
       this.robots.setConf(conf);
       logConf();
   }
@@ -246,6 +259,14 @@ public abstract class HttpBase implements Protocol {
   public boolean getUseHttp11() {
     return useHttp11;
   }
+
+  public long getKeepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+
+  public int getKeepAliveMaxIdle() {
+    return keepAliveMaxIdle;
+  }
   
   private static String getAgentString(String agentName,
                                        String agentVersion,
@@ -298,6 +319,10 @@ public abstract class HttpBase implements Protocol {
       logger.info("http.proxy.port = " + proxyPort);
       logger.info("http.timeout = " + timeout);
       logger.info("http.content.limit = " + maxContent);
+      if (useHttp11) {
+        logger.info("http.keep.alive.timeout = " + keepAliveTimeout);
+        logger.info("http.keep.alive.max.idle = " + keepAliveMaxIdle);
+      }
       logger.info("http.agent = " + userAgent);
       logger.info("http.accept.language = " + acceptLanguage);
       logger.info("http.accept = " + accept);
@@ -395,4 +420,16 @@ public abstract class HttpBase implements Protocol {
     return robots.getRobotRulesSet(this, url);
   }
 
+  public void setReporter(Reporter reporter) {
+    this.reporter = reporter;
+  }
+
+  /**
+   * Returns the reporter of the task using this protocol, or
+   * <code>null</code> outside of a task.
+   */
+  protected Reporter getReporter() {
+    return reporter;
+  }
+
 }
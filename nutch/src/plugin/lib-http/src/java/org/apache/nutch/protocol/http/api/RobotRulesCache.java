@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+// JDK imports
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hadoop imports
+import org.apache.hadoop.mapred.Reporter;
+
+// Nutch imports
+import org.apache.nutch.protocol.http.api.RobotRulesParser.RobotRuleSet;
+
+
+/**
+ * A cache of the robots.txt rules of hosts, bounded both in number of hosts
+ * and in memory, least recently used hosts being evicted first.
+ *
+ * <p>Rules expire after a while and are then fetched again. When the
+ * robots.txt of a host can't be fetched (server error, timeout...), all
+ * urls are allowed for a much shorter time, after which the robots.txt is
+ * tried again.</p>
+ *
+ * <p>Only one thread loads the rules of a host at a time: the other
+ * threads asking for that host meanwhile wait for its result.</p>
+ */
+public class RobotRulesCache {
+
+  public static final String COUNTER_GROUP = "RobotsCache";
+
+  private static class Entry {
+    final RobotRuleSet rules;
+    final long expires;
+    final long size;
+
+    Entry(RobotRuleSet rules, long expires, long size) {
+      this.rules = rules;
+      this.expires = expires;
+      this.size = size;
+    }
+  }
+
+  /** Approximate overhead of an entry, without its rules. */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private long size = 0;
+
+  private final ConcurrentHashMap<String, FutureTask<RobotRuleSet>> loading =
+    new ConcurrentHashMap<String, FutureTask<RobotRuleSet>>();
+
+  private volatile int maxEntries;
+  private volatile long maxSize;
+  private volatile long ttl;
+  private volatile long errorTtl;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadTime = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxEntries maximum number of hosts.
+   * @param maxSize approximate maximum memory used, in bytes.
+   * @param ttl time after which rules are fetched again, in milliseconds.
+   * @param errorTtl time after which a failed fetch is tried again, in
+   *        milliseconds.
+   */
+  public RobotRulesCache(int maxEntries, long maxSize, long ttl, long errorTtl) {
+    configure(maxEntries, maxSize, ttl, errorTtl);
+  }
+
+  /**
+   * Changes the limits of the cache. Entries over the new bounds are
+   * evicted on the next insertion.
+   */
+  public void configure(int maxEntries, long maxSize, long ttl, long errorTtl) {
+    this.maxEntries = maxEntries;
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.errorTtl = errorTtl;
+  }
+
+  /**
+   * Returns the rules of a host, loading them on a cache miss.
+   *
+   * @param host the lower cased host name.
+   * @param loader fetches and parses the robots.txt of the host. It throws
+   *        an exception when the robots.txt can't be fetched, in which case
+   *        the empty rules are returned and cached for a short time.
+   * @param reporter the reporter to count cache statistics with, or
+   *        <code>null</code>.
+   */
+  public RobotRuleSet get(String host, Callable<RobotRuleSet> loader, Reporter reporter) {
+    RobotRuleSet rules = lookup(host, reporter);
+    if (rules != null) {
+      count(hits, "hits", 1, reporter);
+      return rules;
+    }
+    count(misses, "misses", 1, reporter);
+
+    FutureTask<RobotRuleSet> task =
+      new FutureTask<RobotRuleSet>(new Load(host, loader, reporter));
+    FutureTask<RobotRuleSet> running = loading.putIfAbsent(host, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        loading.remove(host, task);
+      }
+      running = task;
+    } else {
+      count(waits, "waits", 1, reporter);
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return RobotRulesParser.getEmptyRules();
+    } catch (ExecutionException e) {
+      // Load handles the exceptions of the loader
+      return RobotRulesParser.getEmptyRules();
+    }
+  }
+
+  /**
+   * Returns the unexpired rules cached for a host, or <code>null</code>.
+   */
+  public RobotRuleSet get(String host) {
+    return lookup(host, null);
+  }
+
+  /**
+   * Caches the rules of a host, for the normal time to live.
+   */
+  public void put(String host, RobotRuleSet rules) {
+    put(host, rules, System.currentTimeMillis() + ttl);
+  }
+
+  /**
+   * Caches the rules of a host until the specified time.
+   */
+  public void put(String host, RobotRuleSet rules, long expires) {
+    Entry entry = new Entry(rules, expires,
+        ENTRY_OVERHEAD + 2 * host.length() + rules.estimateSize());
+    int evicted = 0;
+    synchronized (this) {
+      Entry previous = entries.put(host, entry);
+      if (previous != null) {
+        size -= previous.size;
+      }
+      size += entry.size;
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while ((entries.size() > maxEntries || size > maxSize) && it.hasNext()) {
+        Entry eldest = it.next().getValue();
+        if (eldest == entry) {
+          break;
+        }
+        size -= eldest.size;
+        it.remove();
+        evicted++;
+      }
+    }
+    evictions.addAndGet(evicted);
+  }
+
+  private RobotRuleSet lookup(String host, Reporter reporter) {
+    synchronized (this) {
+      Entry entry = entries.get(host);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expires > System.currentTimeMillis()) {
+        return entry.rules;
+      }
+      entries.remove(host);
+      size -= entry.size;
+    }
+    count(expirations, "expired", 1, reporter);
+    return null;
+  }
+
+  private void count(AtomicLong counter, String name, long value, Reporter reporter) {
+    counter.addAndGet(value);
+    if (reporter != null) {
+      reporter.incrCounter(COUNTER_GROUP, name, value);
+    }
+  }
+
+  /** Removes all the cached rules. */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() { return hits.get(); }
+
+  public long getMisses() { return misses.get(); }
+
+  public long getLoads() { return loads.get(); }
+
+  /** Total time spent loading rules, in milliseconds. */
+  public long getLoadTime() { return loadTime.get(); }
+
+  /** Number of misses served by another thread's load. */
+  public long getWaits() { return waits.get(); }
+
+  public long getErrors() { return errors.get(); }
+
+  public long getExpirations() { return expirations.get(); }
+
+  public long getEvictions() { return evictions.get(); }
+
+  public String toString() {
+    return "hosts=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+        + ", loads=" + getLoads() + ", load time=" + getLoadTime() + "ms, waits="
+        + getWaits() + ", errors=" + getErrors() + ", expired=" + getExpirations()
+        + ", evicted=" + getEvictions();
+  }
+
+
+  private class Load implements Callable<RobotRuleSet> {
+
+    private final String host;
+    private final Callable<RobotRuleSet> loader;
+    private final Reporter reporter;
+
+    Load(String host, Callable<RobotRuleSet> loader, Reporter reporter) {
+      this.host = host;
+      this.loader = loader;
+      this.reporter = reporter;
+    }
+
+    public RobotRuleSet call() {
+      // another thread may have loaded the rules since our lookup
+      RobotRuleSet rules = lookup(host, null);
+      if (rules != null) {
+        return rules;
+      }
+      long start = System.currentTimeMillis();
+      try {
+        rules = loader.call();
+        put(host, rules, System.currentTimeMillis() + ttl);
+      } catch (Exception e) {
+        count(errors, "errors", 1, reporter);
+        rules = RobotRulesParser.getEmptyRules();
+        put(host, rules, System.currentTimeMillis() + errorTtl);
+      }
+      count(loads, "loads", 1, reporter);
+      count(loadTime, "load time ms", System.currentTimeMillis() - start, reporter);
+      return rules;
+    }
+  }
+
+}
@@ -25,8 +25,8 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
 
 // Commons Logging imports
 import org.slf4j.Logger;
@@ -36,6 +36,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.HostDatum;
+import org.apache.nutch.crawl.HostDbStore;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.RobotRules;
@@ -56,7 +58,22 @@ public class RobotRulesParser implements Configurable {
 
   private boolean allowForbidden = false;
 
-  private static final Hashtable CACHE = new Hashtable();
+  /** Maximum number of hosts whose rules are cached. */
+  public static final String CACHE_SIZE = "http.robots.cache.size";
+
+  /** Approximate maximum memory used by the cached rules, in bytes. */
+  public static final String CACHE_MEMORY = "http.robots.cache.memory";
+
+  /** Time after which cached rules are fetched again, in seconds. */
+  public static final String CACHE_TTL = "http.robots.cache.ttl";
+
+  /** Time after which a failed robots.txt fetch is tried again, in seconds. */
+  public static final String CACHE_ERROR_TTL = "http.robots.cache.error.ttl";
+
+  private static final RobotRulesCache CACHE =
+    new RobotRulesCache(10000, 16 * 1024 * 1024, 86400 * 1000L, 300 * 1000L);
+
+  private long ttl = 86400 * 1000L;
   
   private static final String CHARACTER_ENCODING= "UTF-8";
   private static final int NO_PRECEDENCE= Integer.MAX_VALUE;
@@ -74,7 +91,7 @@ public class RobotRulesParser implements Configurable {
    */
   public static class RobotRuleSet implements RobotRules {
     ArrayList tmpEntries = new ArrayList();
-    RobotsEntry[] entries = null;
+    volatile RobotsEntry[] entries = null;
     long expireTime;
     long crawlDelay = -1;
 
@@ -170,11 +187,9 @@ public class RobotRulesParser implements Configurable {
         // path prefixes
       }
       
+      RobotsEntry[] entries = this.entries;
       if (entries == null) {
-        entries= new RobotsEntry[tmpEntries.size()];
-        entries= (RobotsEntry[]) 
-          tmpEntries.toArray(entries);
-        tmpEntries= null;
+        entries = compact();
       }
 
       int pos= 0;
@@ -189,6 +204,55 @@ public class RobotRulesParser implements Configurable {
       return true;
     }
 
+    /**
+     * Turns the rules into their final array representation, so that
+     * they can be shared by threads.
+     */
+    synchronized RobotsEntry[] compact() {
+      if (entries == null) {
+        RobotsEntry[] compacted = new RobotsEntry[tmpEntries.size()];
+        compacted = (RobotsEntry[]) tmpEntries.toArray(compacted);
+        tmpEntries = null;
+        entries = compacted;
+      }
+      return entries;
+    }
+
+    /**
+     * Returns the path prefixes of the rules, in order of precedence.
+     */
+    String[] getPrefixes() {
+      RobotsEntry[] entries = compact();
+      String[] prefixes = new String[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        prefixes[i] = entries[i].prefix;
+      }
+      return prefixes;
+    }
+
+    /**
+     * Returns whether each path prefix is allowed.
+     */
+    boolean[] getAllowed() {
+      RobotsEntry[] entries = compact();
+      boolean[] allowed = new boolean[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        allowed[i] = entries[i].allowed;
+      }
+      return allowed;
+    }
+
+    /**
+     * Returns an estimate of the memory used by these rules, in bytes.
+     */
+    long estimateSize() {
+      long size = 64;
+      for (RobotsEntry entry : compact()) {
+        size += 48 + 2 * entry.prefix.length();
+      }
+      return size;
+    }
+
     /**
      */
     public String toString() {
@@ -220,6 +284,10 @@ public class RobotRulesParser implements Configurable {
   public void setConf(Configuration conf) {
     this.conf = conf;
     allowForbidden = conf.getBoolean("http.robots.403.allow", false);
+    ttl = conf.getLong(CACHE_TTL, 86400) * 1000;
+    CACHE.configure(conf.getInt(CACHE_SIZE, 10000),
+        conf.getLong(CACHE_MEMORY, 16 * 1024 * 1024), ttl,
+        conf.getLong(CACHE_ERROR_TTL, 300) * 1000);
     //
     // Grab the agent names we advertise to robots files.
     //
@@ -422,6 +490,27 @@ public class RobotRulesParser implements Configurable {
     return rules;
   }
   
+  /** Returns the cache of the rules of all hosts, shared by the parsers. */
+  public static RobotRulesCache getCache() {
+    return CACHE;
+  }
+
+  /**
+   * Rebuilds the rules of a host stored in the host db.
+   */
+  RobotRuleSet getStoredRules(HostDatum datum) {
+    RobotRuleSet rules = new RobotRuleSet();
+    String[] prefixes = datum.getRobotsPrefixes();
+    boolean[] allowed = datum.getRobotsAllowed();
+    for (int i = 0; i < prefixes.length; i++) {
+      rules.addPrefix(prefixes[i], allowed[i]);
+    }
+    rules.setCrawlDelay(datum.getCrawlDelay());
+    rules.setExpireTime(datum.getRobotsTime() + ttl);
+    rules.compact();
+    return rules;
+  }
+
   public RobotRuleSet getRobotRulesSet(HttpBase http, Text url) {
     URL u = null;
     try {
@@ -432,63 +521,85 @@ public class RobotRulesParser implements Configurable {
     return getRobotRulesSet(http, u);
   }
   
-  private RobotRuleSet getRobotRulesSet(HttpBase http, URL url) {
+  private RobotRuleSet getRobotRulesSet(final HttpBase http, final URL url) {
 
-    String host = url.getHost().toLowerCase(); // normalize to lower case
+    final String host = url.getHost().toLowerCase(); // normalize to lower case
 
-    RobotRuleSet robotRules = (RobotRuleSet)CACHE.get(host);
+    return CACHE.get(host, new Callable<RobotRuleSet>() {
+      public RobotRuleSet call() throws Exception {
+        return fetchRules(http, url, host);
+      }
+    }, http.getReporter());
+  }
 
-    boolean cacheRule = true;
-    
-    if (robotRules == null) {                     // cache miss
-      URL redir = null;
-      if (LOG.isTraceEnabled()) { LOG.trace("cache miss " + url); }
-      try {
-        Response response = http.getResponse(new URL(url, "/robots.txt"),
-                                             new CrawlDatum(), true);
-        // try one level of redirection ?
-        if (response.getCode() == 301 || response.getCode() == 302) {
-          String redirection = response.getHeader("Location");
-          if (redirection == null) {
-            // some versions of MS IIS are known to mangle this header
-            redirection = response.getHeader("location");
-          }
-          if (redirection != null) {
-            if (!redirection.startsWith("http")) {
-              // RFC says it should be absolute, but apparently it isn't
-              redir = new URL(url, redirection);
-            } else {
-              redir = new URL(redirection);
-            }
-            
-            response = http.getResponse(redir, new CrawlDatum(), true);
-          }
-        }
+  /**
+   * Fetches and parses the rules of a host, on a cache miss.
+   *
+   * @throws Exception if the rules can't be fetched for now, in which case
+   *         they are tried again after <code>http.robots.cache.error.ttl</code>.
+   */
+  private RobotRuleSet fetchRules(HttpBase http, URL url, String host)
+      throws Exception {
+    RobotRuleSet robotRules;
+    URL redir = null;
+    if (LOG.isTraceEnabled()) { LOG.trace("cache miss " + url); }
+
+    // reuse the rules fetched by a previous job, if recent enough
+    HostDbStore hostDb = HostDbStore.get();
+    if (hostDb != null) {
+      HostDatum stored = hostDb.getRobotRules(host);
+      if (stored != null) {
+        return getStoredRules(stored);
+      }
+    }
 
-        if (response.getCode() == 200)               // found rules: parse them
-          robotRules = parseRules(response.getContent());
-        else if ( (response.getCode() == 403) && (!allowForbidden) )
-          robotRules = FORBID_ALL_RULES;            // use forbid all
-        else if (response.getCode() >= 500) {
-          cacheRule = false;
-          robotRules = EMPTY_RULES;
-        }else                                        
-          robotRules = EMPTY_RULES;                 // use default rules
-      } catch (Throwable t) {
-        if (LOG.isInfoEnabled()) {
-          LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
+    try {
+      Response response = http.getResponse(new URL(url, "/robots.txt"),
+                                           new CrawlDatum(), true);
+      // try one level of redirection ?
+      if (response.getCode() == 301 || response.getCode() == 302) {
+        String redirection = response.getHeader("Location");
+        if (redirection == null) {
+          // some versions of MS IIS are known to mangle this header
+          redirection = response.getHeader("location");
+        }
+        if (redirection != null) {
+          if (!redirection.startsWith("http")) {
+            // RFC says it should be absolute, but apparently it isn't
+            redir = new URL(url, redirection);
+          } else {
+            redir = new URL(redirection);
+          }
+          
+          response = http.getResponse(redir, new CrawlDatum(), true);
         }
-        cacheRule = false;
-        robotRules = EMPTY_RULES;
       }
 
-      if (cacheRule) {
-        CACHE.put(host, robotRules);  // cache rules for host
-        if (redir != null && !redir.getHost().equals(host)) {
-          // cache also for the redirected host
-          CACHE.put(redir.getHost(), robotRules);
-        }
+      if (response.getCode() == 200) {             // found rules: parse them
+        robotRules = parseRules(response.getContent());
+        robotRules.setExpireTime(System.currentTimeMillis() + ttl);
+        robotRules.compact();                       // before sharing it
+      } else if ( (response.getCode() == 403) && (!allowForbidden) )
+        robotRules = FORBID_ALL_RULES;            // use forbid all
+      else if (response.getCode() >= 500)
+        throw new ProtocolException("Server error " + response.getCode()
+            + " fetching robots.txt");
+      else                                        
+        robotRules = EMPTY_RULES;                 // use default rules
+    } catch (Exception e) {
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Couldn't get robots.txt for " + url + ": " + e.toString());
       }
+      throw e;
+    }
+
+    if (redir != null && !redir.getHost().equalsIgnoreCase(host)) {
+      // cache also for the redirected host
+      CACHE.put(redir.getHost().toLowerCase(), robotRules);
+    }
+    if (hostDb != null) {
+      hostDb.setRobotRules(host, robotRules.getPrefixes(),
+          robotRules.getAllowed(), robotRules.getCrawlDelay());
     }
     return robotRules;
   }
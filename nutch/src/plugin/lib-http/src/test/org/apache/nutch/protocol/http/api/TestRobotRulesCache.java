@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nutch.protocol.http.api.RobotRulesParser.RobotRuleSet;
+
+import junit.framework.TestCase;
+
+public class TestRobotRulesCache extends TestCase {
+
+  private static final RobotRulesParser PARSER =
+    new RobotRulesParser(new String[] { "nutchbot" });
+
+  /** Parses a robots.txt disallowing a path, counting the loads. */
+  private static class Loader implements Callable<RobotRuleSet> {
+
+    final AtomicInteger calls = new AtomicInteger();
+    final String disallowed;
+    volatile boolean fail = false;
+    volatile CountDownLatch latch = null;
+
+    Loader(String disallowed) {
+      this.disallowed = disallowed;
+    }
+
+    public RobotRuleSet call() throws Exception {
+      calls.incrementAndGet();
+      if (latch != null) {
+        latch.await();
+      }
+      if (fail) {
+        throw new IOException("timed out");
+      }
+      return PARSER.parseRules(("User-agent: *\nDisallow: " + disallowed + "\n").getBytes());
+    }
+  }
+
+  public void testHits() {
+    RobotRulesCache cache = new RobotRulesCache(100, 1024 * 1024, 60000, 1000);
+    Loader loader = new Loader("/private");
+    RobotRuleSet rules = cache.get("example.com", loader, null);
+    assertFalse(rules.isAllowed("/private/x"));
+    assertTrue(rules.isAllowed("/public"));
+    assertSame(rules, cache.get("example.com", loader, null));
+    assertEquals(1, loader.calls.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getLoads());
+  }
+
+  public void testLoadsAreShared() throws Exception {
+    final RobotRulesCache cache = new RobotRulesCache(100, 1024 * 1024, 60000, 1000);
+    final Loader loader = new Loader("/private");
+    loader.latch = new CountDownLatch(1);
+    final AtomicInteger wrong = new AtomicInteger();
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          if (cache.get("example.com", loader, null).isAllowed("/private")) {
+            wrong.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    // let the threads pile up on the pending load
+    Thread.sleep(200);
+    loader.latch.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, wrong.get());
+    assertEquals(1, loader.calls.get());
+    assertEquals(threads.length, cache.getHits() + cache.getMisses());
+    assertEquals(1, cache.getLoads());
+  }
+
+  public void testExpiry() throws Exception {
+    RobotRulesCache cache = new RobotRulesCache(100, 1024 * 1024, 50, 1000);
+    Loader loader = new Loader("/private");
+    cache.get("example.com", loader, null);
+    Thread.sleep(100);
+    cache.get("example.com", loader, null);
+    assertEquals(2, loader.calls.get());
+    assertEquals(1, cache.getExpirations());
+  }
+
+  public void testErrorsAreCachedBriefly() throws Exception {
+    RobotRulesCache cache = new RobotRulesCache(100, 1024 * 1024, 60000, 50);
+    Loader loader = new Loader("/private");
+    loader.fail = true;
+    // everything is allowed while the robots.txt can't be fetched
+    assertTrue(cache.get("example.com", loader, null).isAllowed("/private"));
+    assertTrue(cache.get("example.com", loader, null).isAllowed("/private"));
+    assertEquals(1, loader.calls.get());
+    assertEquals(1, cache.getErrors());
+
+    Thread.sleep(100);
+    loader.fail = false;
+    assertFalse(cache.get("example.com", loader, null).isAllowed("/private"));
+    assertEquals(2, loader.calls.get());
+  }
+
+  public void testBounds() {
+    RobotRulesCache cache = new RobotRulesCache(10, 1024 * 1024, 60000, 1000);
+    Loader loader = new Loader("/private");
+    for (int i = 0; i < 100; i++) {
+      cache.get("host" + i + ".com", loader, null);
+      // keep a host in use
+      cache.get("host0.com", loader, null);
+    }
+    assertEquals(10, cache.size());
+    assertEquals(90, cache.getEvictions());
+    assertNotNull(cache.get("host0.com"));
+    assertNull(cache.get("host1.com"));
+
+    // a memory bound of about ten small rule sets
+    StringBuilder path = new StringBuilder("/");
+    for (int i = 0; i < 100; i++) {
+      path.append('x');
+    }
+    cache = new RobotRulesCache(1000, 10 * 512, 60000, 1000);
+    loader = new Loader(path.toString());
+    for (int i = 0; i < 100; i++) {
+      cache.get("host" + i + ".com", loader, null);
+    }
+    assertTrue(cache.size() < 20);
+    assertEquals(100, cache.size() + cache.getEvictions());
+  }
+
+}
@@ -118,6 +118,13 @@ public abstract class RegexURLFilterBase implements URLFilter {
    * @return the name of the resource containing the rules to use.
    */
   protected abstract Reader getRulesReader(Configuration conf) throws IOException;
+
+  /**
+   * Returns the rules currently in use, in the order they are applied.
+   */
+  protected List<RegexRule> getRules() {
+    return rules;
+  }
   
   
   /* -------------------------- *
@@ -22,6 +22,7 @@ import java.net.MalformedURLException;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import org.apache.nutch.parse.Outlink;
@@ -90,6 +91,11 @@ public class DOMContentUtils {
     }
   }
   
+  /** Returns the link elements to extract, keyed on their lower case name. */
+  Map<String,LinkParams> getLinkParams() {
+    return linkParams;
+  }
+
   /**
    * This method takes a {@link StringBuffer} and a DOM {@link Node},
    * and will append all the content text found beneath the DOM node to 
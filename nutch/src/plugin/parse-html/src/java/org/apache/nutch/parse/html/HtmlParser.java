@@ -21,9 +21,7 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.net.URL;
 import java.net.MalformedURLException;
-import java.nio.charset.Charset;
 import java.io.*;
-import java.util.regex.*;
 
 import org.cyberneko.html.parsers.*;
 import org.xml.sax.InputSource;
@@ -49,58 +47,30 @@ public class HtmlParser implements Parser {
   // (e.g. http://cn.promo.yahoo.com/customcare/music.html)
   private static final int CHUNK_SIZE = 2000;
 
-  // NUTCH-1006 Meta equiv with single quotes not accepted
-  private static Pattern metaPattern =
-    Pattern.compile("<meta\\s+([^>]*http-equiv=(\"|')?content-type(\"|')?[^>]*)>",
-                    Pattern.CASE_INSENSITIVE);
-  private static Pattern charsetPattern =
-    Pattern.compile("charset=\\s*([a-z][_\\-0-9a-z]*)",
-                    Pattern.CASE_INSENSITIVE);
-  
   private String parserImpl;
 
+  // extract the content while parsing, without a DOM, when no html parse
+  // filter needs one
+  private boolean streaming;
+
+  private ThreadLocal<StreamingContentHandler> handlers;
+
   /**
    * Given a <code>byte[]</code> representing an html file of an 
    * <em>unknown</em> encoding,  read out 'charset' parameter in the meta tag   
    * from the first <code>CHUNK_SIZE</code> bytes.
    * If there's no meta tag for Content-Type or no charset is specified,
    * <code>null</code> is returned.  <br />
-   * FIXME: non-byte oriented character encodings (UTF-16, UTF-32)
-   * can't be handled with this. 
-   * We need to do something similar to what's done by mozilla
-   * (http://lxr.mozilla.org/seamonkey/source/parser/htmlparser/src/nsParser.cpp#1993).
-   * See also http://www.w3.org/TR/REC-xml/#sec-guessing
+   * Non-byte oriented character encodings (UTF-16, UTF-32) can't be
+   * handled with this, but their byte order mark is detected by
+   * {@link EncodingDetector}.
    * <br />
    *
    * @param content <code>byte[]</code> representation of an html file
    */
 
   private static String sniffCharacterEncoding(byte[] content) {
-    int length = content.length < CHUNK_SIZE ? 
-                 content.length : CHUNK_SIZE;
-
-    // We don't care about non-ASCII parts so that it's sufficient
-    // to just inflate each byte to a 16-bit value by padding. 
-    // For instance, the sequence {0x41, 0x82, 0xb7} will be turned into 
-    // {U+0041, U+0082, U+00B7}. 
-    String str = "";
-    try {
-      str = new String(content, 0, length,
-                       Charset.forName("ASCII").toString());
-    } catch (UnsupportedEncodingException e) {
-      // code should never come here, but just in case... 
-      return null;
-    }
-
-    Matcher metaMatcher = metaPattern.matcher(str);
-    String encoding = null;
-    if (metaMatcher.find()) {
-      Matcher charsetMatcher = charsetPattern.matcher(metaMatcher.group(1));
-      if (charsetMatcher.find()) 
-        encoding = new String(charsetMatcher.group(1));
-    }
-
-    return encoding;
+    return EncodingDetector.sniffCharacterEncoding(content, CHUNK_SIZE);
   }
 
   private String defaultCharEncoding;
@@ -129,7 +99,8 @@ public class HtmlParser implements Parser {
     Metadata metadata = new Metadata();
 
     // parse the content
-    DocumentFragment root;
+    DocumentFragment root = null;
+    StreamingContentHandler handler = null;
     try {
       byte[] contentInOctets = content.getContent();
       InputSource input = new InputSource(new ByteArrayInputStream(contentInOctets));
@@ -144,7 +115,12 @@ public class HtmlParser implements Parser {
 
       input.setEncoding(encoding);
       if (LOG.isTraceEnabled()) { LOG.trace("Parsing..."); }
-      root = parse(input);
+      if (streaming) {
+        handler = handlers.get();
+        handler.parse(input.getByteStream(), encoding, base, metaTags);
+      } else {
+        root = parse(input);
+      }
     } catch (IOException e) {
       return new ParseStatus(e).getEmptyParseResult(content.getUrl(), getConf());
     } catch (DOMException e) {
@@ -157,33 +133,48 @@ public class HtmlParser implements Parser {
     }
       
     // get meta directives
-    HTMLMetaProcessor.getMetaTags(metaTags, root, base);
+    if (handler == null) {
+      HTMLMetaProcessor.getMetaTags(metaTags, root, base);
+    }
     if (LOG.isTraceEnabled()) {
       LOG.trace("Meta tags for " + base + ": " + metaTags.toString());
     }
     // check meta directives
     if (!metaTags.getNoIndex()) {               // okay to index
-      StringBuffer sb = new StringBuffer();
-      if (LOG.isTraceEnabled()) { LOG.trace("Getting text..."); }
-      utils.getText(sb, root);          // extract text
-      text = sb.toString();
-      sb.setLength(0);
-      if (LOG.isTraceEnabled()) { LOG.trace("Getting title..."); }
-      utils.getTitle(sb, root);         // extract title
-      title = sb.toString().trim();
+      if (handler != null) {
+        text = handler.getText();
+        title = handler.getTitle();
+      } else {
+        StringBuffer sb = new StringBuffer();
+        if (LOG.isTraceEnabled()) { LOG.trace("Getting text..."); }
+        utils.getText(sb, root);          // extract text
+        text = sb.toString();
+        sb.setLength(0);
+        if (LOG.isTraceEnabled()) { LOG.trace("Getting title..."); }
+        utils.getTitle(sb, root);         // extract title
+        title = sb.toString().trim();
+      }
     }
       
     if (!metaTags.getNoFollow()) {              // okay to follow links
       ArrayList<Outlink> l = new ArrayList<Outlink>();   // extract outlinks
-      URL baseTag = utils.getBase(root);
+      URL baseTag = handler != null ? handler.getBase() : utils.getBase(root);
       if (LOG.isTraceEnabled()) { LOG.trace("Getting links..."); }
-      utils.getOutlinks(baseTag!=null?baseTag:base, l, root);
+      if (handler != null) {
+        handler.getOutlinks(baseTag!=null?baseTag:base, l);
+      } else {
+        utils.getOutlinks(baseTag!=null?baseTag:base, l, root);
+      }
       outlinks = l.toArray(new Outlink[l.size()]);
       if (LOG.isTraceEnabled()) {
         LOG.trace("found "+outlinks.length+" outlinks in "+content.getUrl());
       }
     }
     
+    if (handler != null) {
+      handler.reset();
+    }
+
     ParseStatus status = new ParseStatus(ParseStatus.SUCCESS);
     if (metaTags.getRefresh()) {
       status.setMinorCode(ParseStatus.SUCCESS_REDIRECT);
@@ -291,6 +282,18 @@ public class HtmlParser implements Parser {
     this.defaultCharEncoding = getConf().get(
         "parser.character.encoding.default", "windows-1252");
     this.utils = new DOMContentUtils(conf);
+    // only neko can stream, and the filters then get no DOM
+    this.streaming = getConf().getBoolean("parser.html.streaming", false)
+      && !parserImpl.equalsIgnoreCase("tagsoup");
+    if (streaming && htmlParseFilters.needsDom()) {
+      LOG.info("HtmlParser: not streaming, an html parse filter needs a DOM");
+      streaming = false;
+    }
+    this.handlers = new ThreadLocal<StreamingContentHandler>() {
+      protected StreamingContentHandler initialValue() {
+        return new StreamingContentHandler(utils, defaultCharEncoding);
+      }
+    };
     this.cachingPolicy = getConf().get("parser.caching.forbidden.policy",
         Nutch.CACHING_FORBIDDEN_CONTENT);
   }
@@ -0,0 +1,584 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.parse.html;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nutch.parse.HTMLMetaTags;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.html.DOMContentUtils.LinkParams;
+import org.apache.nutch.util.URLUtil;
+import org.apache.xerces.util.XMLChar;
+import org.apache.xerces.xni.Augmentations;
+import org.apache.xerces.xni.QName;
+import org.apache.xerces.xni.XMLAttributes;
+import org.apache.xerces.xni.XMLString;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.cyberneko.html.HTMLConfiguration;
+import org.cyberneko.html.filters.DefaultFilter;
+
+/**
+ * Extracts the text, title, base, meta tags and outlinks of an HTML
+ * document in a single pass over the events of the neko parser, without
+ * building a DOM tree.
+ *
+ * <p>The results are the ones {@link DOMContentUtils} and
+ * {@link HTMLMetaProcessor} get from the tree neko builds for the same
+ * document: a text node of that tree is a run of characters between two
+ * events which add a node, and only what links need to know about their
+ * children is kept while they are open.</p>
+ *
+ * <p>Instances are not thread-safe, but are meant to be reused: their
+ * buffers are kept from one document to the next, unless they grew larger
+ * than {@link #MAX_RETAINED} characters.</p>
+ */
+class StreamingContentHandler extends DefaultFilter {
+
+  /** Capacity above which a buffer is dropped after a document. */
+  static final int MAX_RETAINED = 64 * 1024;
+
+  private static final String DOCUMENT_FRAGMENT =
+    "http://cyberneko.org/html/features/document-fragment";
+
+  // the children of a link which tell whether it is a fixup artifact
+  private static final byte SAME_ELEMENT = 0;
+  private static final byte WHITESPACE = 1;
+  private static final byte OTHER = 2;
+
+  // the last child of an element, to merge text as the DOM does
+  private static final byte NONE = 0;
+  private static final byte TEXT = 1;
+  private static final byte CDATA = 2;
+  private static final byte NODE = 3;
+
+  private static final int SEARCHING = 0;
+  private static final int CAPTURING = 1;
+  private static final int DONE = 2;
+
+  /** An open element. */
+  private static class Frame {
+    String name;
+    /** Number of open script and style elements above this one. */
+    int skipBase;
+    int children;
+    final byte[] kinds = new byte[3];
+    byte last;
+
+    // for links only
+    LinkParams params;
+    int slot;
+    String target;
+    boolean noFollow;
+    boolean post;
+    int anchors;
+    StringBuilder text = new StringBuilder();
+    StringBuilder fallback = new StringBuilder();
+
+    void reset(String name, int skipBase) {
+      this.name = name;
+      this.skipBase = skipBase;
+      children = 0;
+      last = NONE;
+      params = null;
+      target = null;
+      noFollow = false;
+      post = false;
+      anchors = 0;
+      if (text.capacity() > MAX_RETAINED) {
+        text = new StringBuilder();
+      } else {
+        text.setLength(0);
+      }
+      if (fallback.capacity() > MAX_RETAINED) {
+        fallback = new StringBuilder();
+      } else {
+        fallback.setLength(0);
+      }
+    }
+  }
+
+  private final HTMLConfiguration config;
+  private final Map<String,LinkParams> linkParams;
+
+  // per document state
+  private HTMLMetaTags metaTags;
+  private URL currURL;
+  private StringBuilder text = new StringBuilder();
+  private StringBuilder title = new StringBuilder();
+  private StringBuilder run = new StringBuilder();
+  private boolean inRun;
+  private boolean inCDATA;
+  private int skipDepth;
+  private int bodyDepth;
+  private int titleState;
+  private int titleDepth;
+  private URL base;
+  private boolean baseDone;
+
+  private Frame[] stack = new Frame[64];
+  private int depth;
+  private Frame[] links = new Frame[16];
+  private int linkCount;
+  private final List<String> targets = new ArrayList<String>();
+  private final List<String> anchors = new ArrayList<String>();
+
+  /**
+   * @param utils the utilities whose link elements are extracted.
+   * @param defaultCharEncoding the encoding to use when the document
+   *        doesn't tell.
+   */
+  StreamingContentHandler(DOMContentUtils utils, String defaultCharEncoding) {
+    this.linkParams = utils.getLinkParams();
+    // the features HtmlParser gives neko to build a DOM
+    config = new HTMLConfiguration();
+    config.addRecognizedFeatures(new String[] { DOCUMENT_FRAGMENT });
+    config.setFeature(DOCUMENT_FRAGMENT, true);
+    config.setFeature("http://cyberneko.org/html/features/augmentations",
+        true);
+    config.setProperty("http://cyberneko.org/html/properties/default-encoding",
+        defaultCharEncoding);
+    config.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset",
+        true);
+    config.setFeature("http://cyberneko.org/html/features/balance-tags/ignore-outside-content",
+        false);
+    config.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment",
+        true);
+    config.setFeature("http://cyberneko.org/html/features/report-errors",
+        HtmlParser.LOG.isTraceEnabled());
+    // saves lower casing every element name
+    config.setProperty("http://cyberneko.org/html/properties/names/elems",
+        "lower");
+    config.setDocumentHandler(this);
+    for (int i = 0; i < stack.length; i++) {
+      stack[i] = new Frame();
+    }
+  }
+
+  /**
+   * Parses a document.
+   *
+   * @param in the content of the document.
+   * @param encoding its character encoding.
+   * @param currURL its URL, to resolve the base and refresh URLs of the
+   *        meta tags against.
+   * @param metaTags where to set the meta tags of the document.
+   */
+  void parse(InputStream in, String encoding, URL currURL,
+      HTMLMetaTags metaTags) throws IOException {
+    reset();
+    metaTags.reset();
+    this.metaTags = metaTags;
+    this.currURL = currURL;
+    XMLInputSource source = new XMLInputSource(null, null, null, in, encoding);
+    config.parse(source);
+  }
+
+  /**
+   * Forgets the last document, and drops the buffers which grew too large.
+   */
+  void reset() {
+    metaTags = null;
+    currURL = null;
+    text = clear(text);
+    title = clear(title);
+    run = clear(run);
+    inRun = false;
+    inCDATA = false;
+    skipDepth = 0;
+    bodyDepth = 0;
+    titleState = SEARCHING;
+    titleDepth = -1;
+    base = null;
+    baseDone = false;
+    depth = 0;
+    stack[0].reset("#document-fragment", 0);
+    for (int i = 1; i < stack.length; i++) {
+      if (stack[i].name == null) break;
+      stack[i].reset(null, 0);
+    }
+    for (int i = 0; i < linkCount; i++) {
+      links[i] = null;
+    }
+    linkCount = 0;
+    targets.clear();
+    anchors.clear();
+  }
+
+  private static StringBuilder clear(StringBuilder sb) {
+    if (sb.capacity() > MAX_RETAINED) {
+      return new StringBuilder();
+    }
+    sb.setLength(0);
+    return sb;
+  }
+
+  /** The text of the document, as {@link DOMContentUtils#getText}. */
+  String getText() {
+    return text.toString();
+  }
+
+  /** The title of the document, as {@link DOMContentUtils#getTitle}. */
+  String getTitle() {
+    return title.toString().trim();
+  }
+
+  /** The base of the document, as {@link DOMContentUtils#getBase}. */
+  URL getBase() {
+    return base;
+  }
+
+  /** Adds the outlinks of the document, as {@link DOMContentUtils#getOutlinks}. */
+  void getOutlinks(URL base, ArrayList<Outlink> outlinks) {
+    for (int i = 0; i < targets.size(); i++) {
+      String target = targets.get(i);
+      if (target == null) continue;
+      try {
+        URL url = URLUtil.resolveURL(base, target);
+        outlinks.add(new Outlink(url.toString(), anchors.get(i)));
+      } catch (MalformedURLException e) {
+        // don't care
+      }
+    }
+  }
+
+  public void startElement(QName element, XMLAttributes attrs,
+      Augmentations augs) throws XNIException {
+    endRun();
+    String name = element.rawname;
+    Frame parent = stack[depth];
+    addChild(parent, parent.params != null
+        && parent.params.elName.equalsIgnoreCase(name) ? SAME_ELEMENT : OTHER,
+        NODE);
+
+    if ("body".equals(name)) {
+      // title and base are searched before the body, meta tags outside it
+      if (titleState == SEARCHING) titleState = DONE;
+      baseDone = true;
+      bodyDepth++;
+    } else if ("title".equals(name) && titleState == SEARCHING) {
+      titleState = CAPTURING;
+      titleDepth = depth + 1;
+    } else if ("base".equals(name)) {
+      String href = getAttribute(attrs, "href");
+      if (href != null && !baseDone) {
+        try {
+          base = new URL(href);
+          baseDone = true;
+        } catch (MalformedURLException e) {}
+      }
+      if (href != null && bodyDepth == 0) {
+        HTMLMetaProcessor.processBase(metaTags, href, currURL);
+      }
+    } else if ("meta".equals(name) && bodyDepth == 0) {
+      HTMLMetaProcessor.processMeta(metaTags, getAttribute(attrs, "name"),
+          getAttribute(attrs, "http-equiv"), getAttribute(attrs, "content"),
+          currURL);
+    } else if ("a".equals(name)) {
+      // the text of links stops at the first nested anchor
+      for (int i = 0; i < linkCount; i++) {
+        links[i].anchors++;
+      }
+    }
+
+    Frame frame = push(name);
+    if ("script".equals(name) || "style".equals(name)) {
+      skipDepth++;
+    }
+    LinkParams params = linkParams.get(name);
+    if (params != null) {
+      startLink(frame, params, attrs);
+    }
+    if ("img".equals(name) && linkCount > 0) {
+      // the fallback anchor of links, an image being its own
+      appendAlt(attrs);
+    }
+  }
+
+  public void emptyElement(QName element, XMLAttributes attrs,
+      Augmentations augs) throws XNIException {
+    startElement(element, attrs, augs);
+    endElement(element, augs);
+  }
+
+  public void endElement(QName element, Augmentations augs)
+    throws XNIException {
+    endRun();
+    if (depth == 0) {
+      return;
+    }
+    Frame frame = stack[depth];
+    if (frame.params != null) {
+      endLink(frame);
+    }
+    if (titleState == CAPTURING && depth == titleDepth) {
+      titleState = DONE;
+    }
+    String name = frame.name;
+    if ("script".equals(name) || "style".equals(name)) {
+      skipDepth--;
+    } else if ("body".equals(name)) {
+      bodyDepth--;
+    }
+    depth--;
+  }
+
+  public void characters(XMLString chars, Augmentations augs)
+    throws XNIException {
+    Frame frame = stack[depth];
+    if (inCDATA) {
+      endRun();
+      if (frame.last != CDATA) {
+        addChild(frame, OTHER, CDATA);
+      }
+      return;
+    }
+    if (!inRun) {
+      inRun = true;
+      addChild(frame, WHITESPACE, TEXT);
+    }
+    int child = frame.children - 1;
+    if (frame.params != null && child < frame.kinds.length
+        && frame.kinds[child] == WHITESPACE) {
+      for (int i = chars.offset; i < chars.offset + chars.length; i++) {
+        if (!Character.isWhitespace(chars.ch[i])) {
+          frame.kinds[child] = OTHER;
+          break;
+        }
+      }
+    }
+    if (skipDepth == 0 || titleState == CAPTURING || linkCount > 0) {
+      run.append(chars.ch, chars.offset, chars.length);
+    }
+  }
+
+  public void ignorableWhitespace(XMLString chars, Augmentations augs)
+    throws XNIException {
+    characters(chars, augs);
+  }
+
+  public void comment(XMLString chars, Augmentations augs)
+    throws XNIException {
+    endRun();
+    addChild(stack[depth], OTHER, NODE);
+  }
+
+  public void processingInstruction(String target, XMLString data,
+      Augmentations augs) throws XNIException {
+    // as neko, which only keeps those whose data is a name
+    if (XMLChar.isValidName(data.toString())) {
+      endRun();
+      addChild(stack[depth], OTHER, NODE);
+    }
+  }
+
+  public void startCDATA(Augmentations augs) throws XNIException {
+    inCDATA = true;
+  }
+
+  public void endCDATA(Augmentations augs) throws XNIException {
+    inCDATA = false;
+  }
+
+  public void endDocument(Augmentations augs) throws XNIException {
+    endRun();
+  }
+
+  private void addChild(Frame frame, byte kind, byte last) {
+    if (frame.children < frame.kinds.length) {
+      frame.kinds[frame.children] = kind;
+    }
+    frame.children++;
+    frame.last = last;
+  }
+
+  private Frame push(String name) {
+    int skipBase = skipDepth;
+    depth++;
+    if (depth == stack.length) {
+      Frame[] grown = new Frame[stack.length * 2];
+      System.arraycopy(stack, 0, grown, 0, stack.length);
+      for (int i = stack.length; i < grown.length; i++) {
+        grown[i] = new Frame();
+      }
+      stack = grown;
+    }
+    Frame frame = stack[depth];
+    frame.reset(name, skipBase);
+    return frame;
+  }
+
+  private void startLink(Frame frame, LinkParams params, XMLAttributes attrs) {
+    frame.params = params;
+    frame.slot = targets.size();
+    targets.add(null);
+    anchors.add(null);
+    // the DOM keeps the last value of repeated attributes
+    for (int i = 0; i < attrs.getLength(); i++) {
+      String attrName = attrs.getQName(i);
+      if (params.attrName.equalsIgnoreCase(attrName)) {
+        frame.target = attrs.getValue(i);
+      } else if ("rel".equalsIgnoreCase(attrName)) {
+        frame.noFollow = "nofollow".equalsIgnoreCase(attrs.getValue(i));
+      } else if ("method".equalsIgnoreCase(attrName)) {
+        frame.post = "post".equalsIgnoreCase(attrs.getValue(i));
+      }
+    }
+    frame.anchors = "a".equals(frame.name) ? 1 : 0;
+    if (linkCount == links.length) {
+      Frame[] grown = new Frame[links.length * 2];
+      System.arraycopy(links, 0, grown, 0, links.length);
+      links = grown;
+    }
+    links[linkCount++] = frame;
+  }
+
+  private void endLink(Frame frame) {
+    links[--linkCount] = null;
+    if (frame.target == null || frame.noFollow || frame.post
+        || shouldThrowAwayLink(frame)) {
+      return;
+    }
+    String anchor = frame.text.length() > 0 ? frame.text.toString()
+        : frame.fallback.toString().trim();
+    targets.set(frame.slot, frame.target);
+    anchors.set(frame.slot, anchor);
+  }
+
+  // the same cases as DOMContentUtils, of empty links symptomatic of
+  // nekohtml's DOM-fixup process
+  private static boolean shouldThrowAwayLink(Frame frame) {
+    byte[] kinds = frame.kinds;
+    switch (frame.children) {
+    case 0:
+      return frame.params.childLen != 0;
+    case 1:
+      return kinds[0] == SAME_ELEMENT;
+    case 2:
+      return (kinds[0] == SAME_ELEMENT && kinds[1] == WHITESPACE)
+        || (kinds[0] == WHITESPACE && kinds[1] == SAME_ELEMENT);
+    case 3:
+      return kinds[0] == WHITESPACE && kinds[1] == SAME_ELEMENT
+        && kinds[2] == WHITESPACE;
+    default:
+      return false;
+    }
+  }
+
+  /** Adds the alt text of an image to the links which have no text yet. */
+  private void appendAlt(XMLAttributes attrs) {
+    String alt = getAttribute(attrs, "alt");
+    if (alt == null || alt.trim().length() == 0) {
+      return;
+    }
+    for (int i = 0; i < linkCount; i++) {
+      Frame link = links[i];
+      if (link.text.length() == 0) {
+        StringBuilder fallback = link.fallback;
+        if (fallback.length() > 0) fallback.append(' ');
+        fallback.append(alt);
+      }
+    }
+  }
+
+  /** Hands the text node which just ended to those who want it. */
+  private void endRun() {
+    if (!inRun) {
+      return;
+    }
+    inRun = false;
+    if (run.length() == 0) {
+      return;
+    }
+    if (skipDepth == 0) {
+      appendText(text);
+    }
+    if (titleState == CAPTURING && skipDepth == stack[titleDepth].skipBase) {
+      appendText(title);
+    }
+    for (int i = 0; i < linkCount; i++) {
+      Frame link = links[i];
+      boolean empty = link.text.length() == 0;
+      if (link.anchors <= 1 && skipDepth == link.skipBase) {
+        appendText(link.text);
+      }
+      if (empty) {
+        // kept as is, in case the link ends up without text
+        StringBuilder fallback = link.fallback;
+        if (link.text.length() > 0) {
+          fallback.setLength(0);
+        } else {
+          if (fallback.length() > 0) fallback.append(' ');
+          fallback.append(run);
+        }
+      }
+    }
+    run.setLength(0);
+  }
+
+  /**
+   * Appends the text of the current run with its whitespace collapsed and
+   * trimmed, separated by a space from what's already there.
+   */
+  private void appendText(StringBuilder sb) {
+    int start = 0;
+    int end = run.length();
+    while (start < end && run.charAt(start) <= ' ') start++;
+    while (end > start && run.charAt(end - 1) <= ' ') end--;
+    if (start == end) {
+      return;
+    }
+    if (sb.length() > 0) sb.append(' ');
+    boolean space = false;
+    for (int i = start; i < end; i++) {
+      char c = run.charAt(i);
+      if (isSpace(c)) {
+        if (!space) {
+          sb.append(' ');
+          space = true;
+        }
+      } else {
+        sb.append(c);
+        space = false;
+      }
+    }
+  }
+
+  /** Whether a character matches <code>\s</code> in a regular expression. */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+      || c == '\f' || c == '\r';
+  }
+
+  private static String getAttribute(XMLAttributes attrs, String name) {
+    String value = null;
+    for (int i = 0; i < attrs.getLength(); i++) {
+      if (name.equalsIgnoreCase(attrs.getQName(i))) {
+        value = attrs.getValue(i);
+      }
+    }
+    return value;
+  }
+
+}
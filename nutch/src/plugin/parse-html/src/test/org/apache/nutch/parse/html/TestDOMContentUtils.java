@@ -39,7 +39,7 @@ import org.apache.html.dom.*;
  */
 public class TestDOMContentUtils extends TestCase {
 
-  private static final String[] testPages= { 
+  static final String[] testPages= { 
     new String("<html><head><title> title </title><script> script </script>"
                + "</head><body> body <a href=\"http://www.nutch.org\">"
                + " anchor </a><!--comment-->"
@@ -158,7 +158,7 @@ public class TestDOMContentUtils extends TestCase {
   
   private static int SKIP = 9;
 
-  private static String[] testBaseHrefs= {
+  static String[] testBaseHrefs= {
     "http://www.nutch.org",     
     "http://www.nutch.org/docs/foo.html",     
     "http://www.nutch.org/docs/",     
@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.parse.html;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.html.dom.HTMLDocumentImpl;
+import org.apache.nutch.parse.HTMLMetaTags;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.util.NutchConfiguration;
+import org.cyberneko.html.parsers.DOMFragmentParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.DocumentFragment;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit tests for StreamingContentHandler: it must find what
+ * DOMContentUtils and HTMLMetaProcessor find in the DOM of a page.
+ */
+public class TestStreamingContentHandler extends TestCase {
+  public static final Logger LOG = LoggerFactory.getLogger(TestStreamingContentHandler.class);
+
+  private static final String ENCODING = "UTF-8";
+
+  private static final String[] pages = {
+    // nested and misplaced anchors
+    "<html><body><a href=\"a\">one <b>two <a href=\"b\">three</a> four</b>"
+      + " five</a> six <a href=\"c\"> <a href=\"d\">seven</a> </a></body></html>",
+    // image alt, script and style as links and text
+    "<html><head><script src=\"s.js\">var x = 1;</script>"
+      + "<style> p { } </style><link rel=\"stylesheet\" href=\"c.css\">"
+      + "</head><body><a href=\"img\"><img src=\"i.gif\" alt=\" alt text \">"
+      + "<script>document.write('x')</script></a>"
+      + "<a href=\"empty\"><img src=\"j.gif\" alt=\"  \"></a>"
+      + "<img src=\"k.gif\" alt=\"standalone\"></body></html>",
+    // comments, processing instructions and cdata splitting text
+    "<html><head><title>a<!-- c -->b</title></head><body>"
+      + "x<!-- comment -->y<?php echo 1; ?>z<![CDATA[ cdata ]]>w"
+      + "<a href=\"c\"><!-- only a comment --></a>"
+      + "<a href=\"p\"><?pi data?></a></body></html>",
+    // bases, meta tags, and meta tags after the body
+    "<html><head><base href=\"relative/\"><base href=\"http://base.org/dir/\">"
+      + "<base href=\"http://other.org/\">"
+      + "<META NAME=\"Keywords\" CONTENT=\"one, two\">"
+      + "<meta http-equiv=\"refresh\" content=\"5; url=next.html\">"
+      + "</head><body><meta name=\"robots\" content=\"noindex\">"
+      + "<a HREF=\"rel\" REL=\"NOFOLLOW\">no</a><a href=\"link\">yes</a>"
+      + "</body><meta name=\"description\" content=\"after\"></html>",
+    // forms, frames, areas and unusual whitespace
+    "<html><body><form action=\"get\"><input type=\"text\"></form>"
+      + "<form action=\"post\" method=\"post\">x</form>"
+      + "<form action=\"empty\"></form>"
+      + "<iframe src=\"frame.html\">inside</iframe>"
+      + "<p>non breaking space and\u000bvertical\ttab</p>"
+      + "<map><area href=\"area\"></map></body></html>",
+    // no markup before the text, unclosed elements, entities
+    "text before <title>late title</title> &amp; &lt;tags&gt; &eacute;"
+      + "<ul><li><a href=\"1\">one<li><a href=\"2\">two</ul>"
+      + "<table><tr><td><a href=\"t\">cell</td></table>",
+    // a title after the body, and an empty document
+    "<body><a href=\"x\"></a></body><title>ignored</title>",
+    "",
+  };
+
+  private Configuration conf;
+  private DOMContentUtils utils;
+  private DOMFragmentParser parser;
+  private StreamingContentHandler handler;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setBoolean("parser.html.form.use_action", true);
+    utils = new DOMContentUtils(conf);
+    parser = new DOMFragmentParser();
+    // as HtmlParser parses with neko
+    parser.setFeature("http://cyberneko.org/html/features/augmentations", true);
+    parser.setProperty("http://cyberneko.org/html/properties/default-encoding", ENCODING);
+    parser.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset", true);
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/ignore-outside-content", false);
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment", true);
+    handler = new StreamingContentHandler(utils, ENCODING);
+  }
+
+  public void testDOMContentUtilsPages() throws Exception {
+    for (int i = 0; i < TestDOMContentUtils.testPages.length; i++) {
+      compare(TestDOMContentUtils.testPages[i],
+          new URL(TestDOMContentUtils.testBaseHrefs[i]));
+    }
+  }
+
+  public void testRobotsMetaProcessorPages() throws Exception {
+    for (int i = 0; i < TestRobotsMetaProcessor.tests.length; i++) {
+      compare(TestRobotsMetaProcessor.tests[i], new URL("http://www.nutch.org"));
+    }
+  }
+
+  public void testTrickyPages() throws Exception {
+    for (int i = 0; i < pages.length; i++) {
+      compare(pages[i], new URL("http://www.nutch.org/docs/page.html"));
+    }
+  }
+
+  public void testReuse() throws Exception {
+    // a large document is not kept around, and doesn't leak in the next one
+    StringBuilder large = new StringBuilder("<html><body><a href=\"big\">");
+    for (int i = 0; i < 20000; i++) {
+      large.append("<p>paragraph ").append(i).append("</p>");
+    }
+    large.append("</a></body></html>");
+    compare(large.toString(), new URL("http://www.nutch.org/"));
+    handler.reset();
+    for (int i = 0; i < pages.length; i++) {
+      compare(pages[i], new URL("http://www.nutch.org/docs/page.html"));
+    }
+  }
+
+  private void compare(String page, URL url) throws Exception {
+    byte[] content = page.getBytes(ENCODING);
+    DocumentFragment root = parseDOM(content);
+
+    HTMLMetaTags domTags = new HTMLMetaTags();
+    HTMLMetaProcessor.getMetaTags(domTags, root, url);
+    HTMLMetaTags streamTags = new HTMLMetaTags();
+    handler.parse(new ByteArrayInputStream(content), ENCODING, url, streamTags);
+
+    StringBuffer sb = new StringBuffer();
+    utils.getText(sb, root);
+    assertEquals(page, sb.toString(), handler.getText());
+    sb.setLength(0);
+    utils.getTitle(sb, root);
+    assertEquals(page, sb.toString().trim(), handler.getTitle());
+    assertEquals(page, utils.getBase(root), handler.getBase());
+    assertEquals(page, domTags.toString(), streamTags.toString());
+
+    URL base = utils.getBase(root) != null ? utils.getBase(root) : url;
+    ArrayList<Outlink> domLinks = new ArrayList<Outlink>();
+    utils.getOutlinks(base, domLinks, root);
+    ArrayList<Outlink> streamLinks = new ArrayList<Outlink>();
+    handler.getOutlinks(base, streamLinks);
+    assertEquals(page, toString(domLinks), toString(streamLinks));
+  }
+
+  private DocumentFragment parseDOM(byte[] content) throws Exception {
+    InputSource input = new InputSource(new ByteArrayInputStream(content));
+    input.setEncoding(ENCODING);
+    HTMLDocumentImpl doc = new HTMLDocumentImpl();
+    doc.setErrorChecking(false);
+    DocumentFragment root = doc.createDocumentFragment();
+    parser.parse(input, root);
+    return root;
+  }
+
+  private static String toString(ArrayList<Outlink> outlinks) {
+    StringBuilder sb = new StringBuilder();
+    for (Outlink outlink : outlinks) {
+      sb.append(outlink.getToUrl()).append(" [")
+        .append(outlink.getAnchor()).append("]\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parses the pages of the tests a number of times, building a DOM or
+   * streaming, and logs the documents parsed per second and the memory
+   * allocated per document.
+   */
+  private void bench(int loops, boolean streaming) throws Exception {
+    String[] corpus = TestDOMContentUtils.testPages;
+    byte[][] contents = new byte[corpus.length][];
+    for (int i = 0; i < corpus.length; i++) {
+      contents[i] = corpus[i].getBytes(ENCODING);
+    }
+    URL url = new URL("http://www.nutch.org/");
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long allocated = allocatedBytes(threads);
+    long start = System.currentTimeMillis();
+    for (int n = 0; n < loops; n++) {
+      for (int i = 0; i < contents.length; i++) {
+        HTMLMetaTags metaTags = new HTMLMetaTags();
+        ArrayList<Outlink> outlinks = new ArrayList<Outlink>();
+        if (streaming) {
+          handler.parse(new ByteArrayInputStream(contents[i]), ENCODING, url, metaTags);
+          handler.getText();
+          handler.getTitle();
+          handler.getOutlinks(url, outlinks);
+        } else {
+          DocumentFragment root = parseDOM(contents[i]);
+          HTMLMetaProcessor.getMetaTags(metaTags, root, url);
+          StringBuffer sb = new StringBuffer();
+          utils.getText(sb, root);
+          sb.setLength(0);
+          utils.getTitle(sb, root);
+          utils.getBase(root);
+          utils.getOutlinks(url, outlinks, root);
+        }
+      }
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    long docs = (long) loops * contents.length;
+    LOG.info((streaming ? "streaming" : "DOM") + ": " + docs + " docs in "
+        + elapsed + "ms, " + (docs * 1000 / elapsed) + " docs/sec"
+        + (allocated < 0 ? "" : ", "
+            + (allocatedBytes(threads) - allocated) / docs + " bytes/doc"));
+  }
+
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int loops = 10000;
+    if (args.length == 2 && args[0].equals("-bench")) {
+      loops = Integer.parseInt(args[1]);
+    } else if (args.length != 0) {
+      System.err.println("TestStreamingContentHandler [-bench <iter>]");
+      System.exit(-1);
+    }
+    TestStreamingContentHandler test = new TestStreamingContentHandler();
+    test.setUp();
+    // warm up both
+    test.bench(loops / 10 + 1, false);
+    test.bench(loops / 10 + 1, true);
+    test.bench(loops, false);
+    test.bench(loops, true);
+  }
+
+}
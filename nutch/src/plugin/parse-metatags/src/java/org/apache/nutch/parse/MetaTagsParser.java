@@ -34,7 +34,7 @@ import org.w3c.dom.DocumentFragment;
  * they can be indexed with the index-metadata plugin with the prefix 'metatag.'
  ***/
 
-public class MetaTagsParser implements HtmlParseFilter {
+public class MetaTagsParser implements NoDomHtmlParseFilter {
 
   private static final Log LOG = LogFactory.getLog(MetaTagsParser.class
       .getName());
@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+// JDK imports
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Idle HTTP/1.1 connections kept open for reuse, per host and port. A
+ * connection is handed out to one request at a time; after a complete
+ * response it is given back and stays idle until the keep-alive timeout of
+ * the server or of the configuration expires.
+ */
+public class ConnectionPool {
+
+  /** An open connection and its response stream. */
+  public static class Connection {
+    final String key;
+    final Socket socket;
+    final PushbackInputStream in;
+    final boolean reused;
+    long idleUntil;
+
+    Connection(String key, Socket socket, boolean reused) throws IOException {
+      this.key = key;
+      this.socket = socket;
+      this.reused = reused;
+      this.in = new PushbackInputStream(
+          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE),
+          Http.BUFFER_SIZE);
+    }
+
+    private Connection(Connection c) {
+      this.key = c.key;
+      this.socket = c.socket;
+      this.in = c.in;
+      this.reused = true;
+    }
+
+    public Socket getSocket() {
+      return socket;
+    }
+
+    public PushbackInputStream getInputStream() {
+      return in;
+    }
+
+    /** Whether the connection was used for an earlier request. */
+    public boolean isReused() {
+      return reused;
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private final Map<String, LinkedList<Connection>> idle =
+    new HashMap<String, LinkedList<Connection>>();
+  private final long keepAliveTimeout;
+  private final int maxIdlePerHost;
+  private long nextEviction = 0;
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+
+  public ConnectionPool(long keepAliveTimeout, int maxIdlePerHost) {
+    this.keepAliveTimeout = keepAliveTimeout;
+    this.maxIdlePerHost = maxIdlePerHost;
+  }
+
+  /**
+   * Get an idle connection to the given address, or open a new one.
+   */
+  public Connection get(String host, int port, int timeout) throws IOException {
+    String key = host + ":" + port;
+    Connection c = takeIdle(key);
+    if (c != null) {
+      reused.incrementAndGet();
+      c.socket.setSoTimeout(timeout);
+      return c;
+    }
+    return open(key, host, port, timeout);
+  }
+
+  /**
+   * Close a reused connection the server turned out to have closed already.
+   * It is no longer counted as reused.
+   */
+  public void discardStale(Connection c) {
+    c.close();
+    if (c.reused) reused.decrementAndGet();
+  }
+
+  /** Open a new connection, bypassing the idle ones. */
+  public Connection open(String host, int port, int timeout) throws IOException {
+    return open(host + ":" + port, host, port, timeout);
+  }
+
+  private Connection open(String key, String host, int port, int timeout)
+    throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setSoTimeout(timeout);
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      Connection c = new Connection(key, socket, false);
+      opened.incrementAndGet();
+      return c;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Give a connection back after a complete response. The server's
+   * <code>Keep-Alive: timeout=</code> in seconds, if any, caps how long it is
+   * kept; pass -1 if the server did not send one.
+   */
+  public void release(Connection c, long serverTimeout) {
+    long timeout = keepAliveTimeout;
+    if (serverTimeout >= 0 && serverTimeout * 1000 < timeout) {
+      timeout = serverTimeout * 1000;
+    }
+    if (timeout <= 0 || maxIdlePerHost <= 0) {
+      c.close();
+      return;
+    }
+    Connection idleConnection = new Connection(c);
+    long now = System.currentTimeMillis();
+    idleConnection.idleUntil = now + timeout;
+    Connection evicted = null;
+    synchronized (this) {
+      LinkedList<Connection> list = idle.get(c.key);
+      if (list == null) {
+        list = new LinkedList<Connection>();
+        idle.put(c.key, list);
+      }
+      list.addLast(idleConnection);
+      if (list.size() > maxIdlePerHost) {
+        evicted = list.removeFirst();
+      }
+    }
+    if (evicted != null) evicted.close();
+    evictExpired(now);
+  }
+
+  private Connection takeIdle(String key) {
+    long now = System.currentTimeMillis();
+    evictExpired(now);
+    synchronized (this) {
+      LinkedList<Connection> list = idle.get(key);
+      while (list != null && !list.isEmpty()) {
+        // the most recently used connection is the least likely to be closed
+        Connection c = list.removeLast();
+        if (list.isEmpty()) idle.remove(key);
+        if (c.idleUntil > now && !c.socket.isClosed()) {
+          return c;
+        }
+        c.close();
+      }
+    }
+    return null;
+  }
+
+  /** Close connections idle for longer than their timeout, once a second. */
+  private void evictExpired(long now) {
+    synchronized (this) {
+      if (now < nextEviction) return;
+      nextEviction = now + 1000;
+      Iterator<LinkedList<Connection>> lists = idle.values().iterator();
+      while (lists.hasNext()) {
+        LinkedList<Connection> list = lists.next();
+        Iterator<Connection> it = list.iterator();
+        while (it.hasNext()) {
+          Connection c = it.next();
+          if (c.idleUntil <= now) {
+            it.remove();
+            c.close();
+          }
+        }
+        if (list.isEmpty()) lists.remove();
+      }
+    }
+  }
+
+  /** Close all idle connections. */
+  public synchronized void close() {
+    for (LinkedList<Connection> list : idle.values()) {
+      for (Connection c : list) {
+        c.close();
+      }
+    }
+    idle.clear();
+  }
+
+  public long getOpenedCount() {
+    return opened.get();
+  }
+
+  public long getReusedCount() {
+    return reused.get();
+  }
+
+  /** Share of requests served over a reused connection. */
+  public float getReuseRatio() {
+    long r = reused.get();
+    long total = r + opened.get();
+    return total == 0 ? 0 : (float) r / total;
+  }
+}
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Reporter;
 
 // Nutch imports
 import org.apache.nutch.crawl.CrawlDatum;
@@ -39,6 +40,9 @@ public class Http extends HttpBase {
 
   public static final Logger LOG = LoggerFactory.getLogger(Http.class);
 
+  /** Keep-alive connections, only used with HTTP/1.1. */
+  private ConnectionPool connectionPool = null;
+
 
   public Http() {
     super(LOG);
@@ -46,6 +50,13 @@ public class Http extends HttpBase {
 
   public void setConf(Configuration conf) {
     super.setConf(conf);
+    if (connectionPool != null) {
+      connectionPool.close();
+      connectionPool = null;
+    }
+    if (getUseHttp11()) {
+      connectionPool = new ConnectionPool(getKeepAliveTimeout(), getKeepAliveMaxIdle());
+    }
 //    Level logLevel = Level.WARNING;
 //    if (conf.getBoolean("http.verbose", false)) {
 //      logLevel = Level.FINE;
@@ -61,7 +72,19 @@ public class Http extends HttpBase {
 
   protected Response getResponse(URL url, CrawlDatum datum, boolean redirect)
     throws ProtocolException, IOException {
-    return new HttpResponse(this, url, datum);
+    HttpResponse response = new HttpResponse(this, url, datum, connectionPool);
+    Reporter reporter = getReporter();
+    if (connectionPool != null && reporter != null) {
+      if (response.isConnectionReused()) {
+        reporter.incrCounter("HttpConnections", "Connections reused", 1);
+      } else {
+        reporter.incrCounter("HttpConnections", "Connections opened", 1);
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("connection reuse ratio: " + connectionPool.getReuseRatio());
+      }
+    }
+    return response;
   }
 
 }
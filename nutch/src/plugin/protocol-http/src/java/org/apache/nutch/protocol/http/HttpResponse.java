@@ -17,7 +17,6 @@
 package org.apache.nutch.protocol.http;
 
 // JDK imports
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -27,6 +26,7 @@ import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
+import java.util.StringTokenizer;
 
 // Nutch imports
 import org.apache.nutch.crawl.CrawlDatum;
@@ -48,10 +48,22 @@ public class HttpResponse implements Response {
   private String base;
   private byte[] content;
   private int code;
+  private boolean http11Response = false;
+  private boolean connectionReused = false;
   private Metadata headers = new SpellCheckedMetadata();
 
   public HttpResponse(HttpBase http, URL url, CrawlDatum datum)
     throws ProtocolException, IOException {
+    this(http, url, datum, null);
+  }
+
+  /**
+   * Fetch a url. With a connection pool the request is sent as HTTP/1.1 over
+   * an idle connection to the host if there is one, and the connection is
+   * given back to the pool if the response allows it.
+   */
+  public HttpResponse(HttpBase http, URL url, CrawlDatum datum,
+      ConnectionPool pool) throws ProtocolException, IOException {
 
     this.http = http;
     this.url = url;
@@ -81,83 +93,88 @@ public class HttpResponse implements Response {
       port= url.getPort();
       portString= ":" + port;
     }
-    Socket socket = null;
-
-    try {
-      socket = new Socket();                    // create the socket
-      socket.setSoTimeout(http.getTimeout());
+    // connect
+    String sockHost = http.useProxy() ? http.getProxyHost() : host;
+    int sockPort = http.useProxy() ? http.getProxyPort() : port;
+
+    // make request
+    StringBuffer reqStr = new StringBuffer("GET ");
+    if (http.useProxy()) {
+    	reqStr.append(url.getProtocol()+"://"+host+portString+path);
+    } else {
+    	reqStr.append(path);
+    }
 
+    reqStr.append(pool != null ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
 
-      // connect
-      String sockHost = http.useProxy() ? http.getProxyHost() : host;
-      int sockPort = http.useProxy() ? http.getProxyPort() : port;
-      InetSocketAddress sockAddr= new InetSocketAddress(sockHost, sockPort);
-      socket.connect(sockAddr, http.getTimeout());
+    reqStr.append("Host: ");
+    reqStr.append(host);
+    reqStr.append(portString);
+    reqStr.append("\r\n");
 
-      // make request
-      OutputStream req = socket.getOutputStream();
+    reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
 
-      StringBuffer reqStr = new StringBuffer("GET ");
-      if (http.useProxy()) {
-      	reqStr.append(url.getProtocol()+"://"+host+portString+path);
-      } else {
-      	reqStr.append(path);
-      }
-
-      reqStr.append(" HTTP/1.0\r\n");
-
-      reqStr.append("Host: ");
-      reqStr.append(host);
-      reqStr.append(portString);
+    String userAgent = http.getUserAgent();
+    if ((userAgent == null) || (userAgent.length() == 0)) {
+      if (Http.LOG.isErrorEnabled()) { Http.LOG.error("User-agent is not set!"); }
+    } else {
+      reqStr.append("User-Agent: ");
+      reqStr.append(userAgent);
       reqStr.append("\r\n");
+    }
 
-      reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
-
-      String userAgent = http.getUserAgent();
-      if ((userAgent == null) || (userAgent.length() == 0)) {
-        if (Http.LOG.isErrorEnabled()) { Http.LOG.error("User-agent is not set!"); }
-      } else {
-        reqStr.append("User-Agent: ");
-        reqStr.append(userAgent);
-        reqStr.append("\r\n");
-      }
-
-      reqStr.append("Accept-Language: ");
-      reqStr.append(this.http.getAcceptLanguage());
-      reqStr.append("\r\n");
+    reqStr.append("Accept-Language: ");
+    reqStr.append(this.http.getAcceptLanguage());
+    reqStr.append("\r\n");
 
-      reqStr.append("Accept: ");
-      reqStr.append(this.http.getAccept());
-      reqStr.append("\r\n");
+    reqStr.append("Accept: ");
+    reqStr.append(this.http.getAccept());
+    reqStr.append("\r\n");
 
-      if (datum.getModifiedTime() > 0) {
-        reqStr.append("If-Modified-Since: " + HttpDateFormat.toString(datum.getModifiedTime()));
-        reqStr.append("\r\n");
-      }
+    if (datum.getModifiedTime() > 0) {
+      reqStr.append("If-Modified-Since: " + HttpDateFormat.toString(datum.getModifiedTime()));
       reqStr.append("\r\n");
-      
-      byte[] reqBytes= reqStr.toString().getBytes();
+    }
+    reqStr.append("\r\n");
 
-      req.write(reqBytes);
-      req.flush();
-        
-      PushbackInputStream in =                  // process response
-        new PushbackInputStream(
-          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE), 
-          Http.BUFFER_SIZE) ;
+    byte[] reqBytes= reqStr.toString().getBytes();
 
+    ConnectionPool.Connection connection = null;
+    boolean keepConnection = false;
+    try {
       StringBuffer line = new StringBuffer();
-
-      boolean haveSeenNonContinueStatus= false;
-      while (!haveSeenNonContinueStatus) {
-        // parse status code line
-        this.code = parseStatusLine(in, line); 
-        // parse headers
-        parseHeaders(in, line);
-        haveSeenNonContinueStatus= code != 100; // 100 is "Continue"
+      PushbackInputStream in;
+      if (pool == null) {
+        Socket socket = new Socket();           // create the socket
+        try {
+          socket.setSoTimeout(http.getTimeout());
+          socket.connect(new InetSocketAddress(sockHost, sockPort), http.getTimeout());
+        } catch (IOException e) {
+          socket.close();
+          throw e;
+        }
+        connection = new ConnectionPool.Connection(null, socket, false);
+        in = connection.getInputStream();
+        sendRequest(connection, reqBytes, line);
+      } else {
+        connection = pool.get(sockHost, sockPort, http.getTimeout());
+        try {
+          sendRequest(connection, reqBytes, line);
+        } catch (IOException e) {
+          if (!connection.isReused()) throw e;
+          // the server has closed the idle connection meanwhile, the request
+          // is safe to repeat on a new one
+          pool.discardStale(connection);
+          connection = null;
+          connection = pool.open(sockHost, sockPort, http.getTimeout());
+          sendRequest(connection, reqBytes, line);
+        }
+        in = connection.getInputStream();
+        connectionReused = connection.isReused();
       }
 
-      readPlainContent(in);
+      boolean complete = readContent(in, line);
+      keepConnection = pool != null && complete && isKeepAlive();
 
       String contentEncoding = getHeader(Response.CONTENT_ENCODING);
       if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
@@ -171,13 +188,95 @@ public class HttpResponse implements Response {
       }
 
     } finally {
-      if (socket != null)
-        socket.close();
+      if (connection != null) {
+        if (keepConnection) {
+          pool.release(connection, getKeepAliveTimeout());
+        } else {
+          connection.close();
+        }
+      }
     }
 
   }
 
-  
+  /** Whether the response was received over a connection used before. */
+  public boolean isConnectionReused() {
+    return connectionReused;
+  }
+
+  /** Send the request and read the status line and headers of the response. */
+  private void sendRequest(ConnectionPool.Connection connection,
+      byte[] reqBytes, StringBuffer line) throws IOException, HttpException {
+    OutputStream req = connection.getSocket().getOutputStream();
+    req.write(reqBytes);
+    req.flush();
+
+    PushbackInputStream in = connection.getInputStream();
+    headers = new SpellCheckedMetadata();
+    boolean haveSeenNonContinueStatus= false;
+    while (!haveSeenNonContinueStatus) {
+      // parse status code line
+      this.code = parseStatusLine(in, line);
+      // parse headers
+      parseHeaders(in, line);
+      haveSeenNonContinueStatus= code != 100; // 100 is "Continue"
+    }
+  }
+
+  /**
+   * Read the response body, returns true if it was read completely and the
+   * connection is positioned at the start of the next response.
+   */
+  private boolean readContent(PushbackInputStream in, StringBuffer line)
+    throws HttpException, IOException {
+    if ((code >= 100 && code < 200) || code == 204 || code == 304) {
+      content = new byte[0];                  // no body
+      return true;
+    }
+    String transferEncoding = getHeader("Transfer-Encoding");
+    if (transferEncoding != null
+        && "chunked".equalsIgnoreCase(transferEncoding.trim())) {
+      return readChunkedContent(in, line);
+    }
+    return readPlainContent(in);
+  }
+
+  /** Whether the server allows to send further requests over the connection. */
+  private boolean isKeepAlive() {
+    String connection = getHeader("Connection");
+    if (connection != null) {
+      connection = connection.toLowerCase();
+      if (connection.indexOf("close") != -1) return false;
+      if (connection.indexOf("keep-alive") != -1) return true;
+    }
+    // persistent by default in HTTP/1.1 only
+    return http11Response;
+  }
+
+  /**
+   * The timeout in seconds of the server's <code>Keep-Alive</code> header, 0
+   * if it allows no further requests, or -1 if it did not say.
+   */
+  private long getKeepAliveTimeout() {
+    String keepAlive = getHeader("Keep-Alive");
+    if (keepAlive == null) return -1;
+    long timeout = -1;
+    StringTokenizer tokens = new StringTokenizer(keepAlive, ", ");
+    while (tokens.hasMoreTokens()) {
+      String token = tokens.nextToken().toLowerCase();
+      try {
+        if (token.startsWith("timeout=")) {
+          timeout = Long.parseLong(token.substring(8));
+        } else if (token.startsWith("max=") && Long.parseLong(token.substring(4)) <= 0) {
+          return 0;
+        }
+      } catch (NumberFormatException e) {
+        // ignore malformed parameters
+      }
+    }
+    return timeout;
+  }
+
   /* ------------------------- *
    * <implementation:Response> *
    * ------------------------- */
@@ -207,10 +306,10 @@ public class HttpResponse implements Response {
    * ------------------------- */
   
 
-  private void readPlainContent(InputStream in) 
+  private boolean readPlainContent(InputStream in)
     throws HttpException, IOException {
 
-    int contentLength = Integer.MAX_VALUE;    // get content length
+    int contentLength = -1;                   // get content length
     String contentLengthString = headers.get(Response.CONTENT_LENGTH);
     if (contentLengthString != null) {
       contentLengthString = contentLengthString.trim();
@@ -221,30 +320,34 @@ public class HttpResponse implements Response {
         throw new HttpException("bad content length: "+contentLengthString);
       }
     }
+    int limit = contentLength >= 0 ? contentLength : Integer.MAX_VALUE;
     if (http.getMaxContent() >= 0
-      && contentLength > http.getMaxContent())   // limit download size
-      contentLength  = http.getMaxContent();
+      && limit > http.getMaxContent())        // limit download size
+      limit  = http.getMaxContent();
 
     ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
     byte[] bytes = new byte[Http.BUFFER_SIZE];
     int length = 0;                           // read content
-    for (int i = in.read(bytes); i != -1 && length + i <= contentLength; i = in.read(bytes)) {
-
+    while (length < limit) {
+      int i = in.read(bytes, 0, Math.min(bytes.length, limit - length));
+      if (i == -1) break;
       out.write(bytes, 0, i);
       length += i;
     }
     content = out.toByteArray();
+    // without a length the body ends with the connection
+    return contentLength >= 0 && length == contentLength;
   }
 
-  private void readChunkedContent(PushbackInputStream in,  
+  private boolean readChunkedContent(PushbackInputStream in,  
                                   StringBuffer line) 
     throws HttpException, IOException {
-    boolean doneChunks= false;
     int contentBytesRead= 0;
+    int maxContent= http.getMaxContent();
     byte[] bytes = new byte[Http.BUFFER_SIZE];
     ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
 
-    while (!doneChunks) {
+    while (true) {
       if (Http.LOG.isTraceEnabled()) {
         Http.LOG.trace("Http: starting chunk");
       }
@@ -270,12 +373,14 @@ public class HttpResponse implements Response {
       }
 
       if (chunkLen == 0) {
-        doneChunks= true;
         break;
       }
 
-      if ( (contentBytesRead + chunkLen) > http.getMaxContent() )
-        chunkLen= http.getMaxContent() - contentBytesRead;
+      boolean truncated= false;
+      if (maxContent >= 0 && (contentBytesRead + chunkLen) > maxContent) {
+        chunkLen= maxContent - contentBytesRead;
+        truncated= true;
+      }
 
       // read one chunk
       int chunkBytesRead= 0;
@@ -298,25 +403,27 @@ public class HttpResponse implements Response {
         out.write(bytes, 0, len);
         chunkBytesRead+= len;  
       }
+      contentBytesRead+= chunkBytesRead;
 
-      readLine(in, line, false);
+      if (truncated) {
+        // content limit reached, the rest of the body is left unread
+        content = out.toByteArray();
+        return false;
+      }
 
-    }
+      readLine(in, line, false);
 
-    if (!doneChunks) {
-      if (contentBytesRead != http.getMaxContent()) 
-        throw new HttpException("chunk eof: !doneChunk && didn't max out");
-      return;
     }
 
     content = out.toByteArray();
-    parseHeaders(in, line);
-
+    parseHeaders(in, line);                   // trailer
+    return true;
   }
 
   private int parseStatusLine(PushbackInputStream in, StringBuffer line)
     throws IOException, HttpException {
     readLine(in, line, false);
+    http11Response = line.indexOf("HTTP/1.1") == 0;
 
     int codeStart = line.indexOf(" ");
     int codeEnd = line.indexOf(" ", codeStart+1);
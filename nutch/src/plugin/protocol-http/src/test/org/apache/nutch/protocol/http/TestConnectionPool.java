@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestConnectionPool extends TestCase {
+
+  private ServerSocket server;
+  private AtomicInteger accepted = new AtomicInteger();
+  private volatile String[] responses;
+  private volatile boolean closeAfterResponse = false;
+
+  protected void setUp() throws Exception {
+    server = new ServerSocket(0);
+    Thread acceptor = new Thread() {
+      public void run() {
+        while (!server.isClosed()) {
+          try {
+            final Socket socket = server.accept();
+            accepted.incrementAndGet();
+            new Thread() {
+              public void run() {
+                serve(socket);
+              }
+            }.start();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  /** Answer requests in turn with the scripted responses. */
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+      OutputStream out = socket.getOutputStream();
+      String line;
+      while ((line = in.readLine()) != null) {
+        String path = line.split(" ")[1];
+        while ((line = in.readLine()) != null && line.length() > 0) {
+          // skip request headers
+        }
+        int i = Integer.parseInt(path.substring(1));
+        out.write(responses[i].getBytes("ISO-8859-1"));
+        out.flush();
+        if (closeAfterResponse) break;
+      }
+      socket.close();
+    } catch (IOException e) {
+      // connection closed
+    }
+  }
+
+  private Http createHttp(boolean http11) {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("http.agent.name", "test");
+    conf.set("http.robots.agents", "test,*");
+    conf.setBoolean("http.useHttp11", http11);
+    Http http = new Http();
+    http.setConf(conf);
+    return http;
+  }
+
+  private HttpResponse fetch(Http http, ConnectionPool pool, int i)
+    throws Exception {
+    URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/" + i);
+    return new HttpResponse(http, url, new CrawlDatum(), pool);
+  }
+
+  public void testKeepAlive() throws Exception {
+    responses = new String[] {
+        "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfirst",
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "3\r\nsec\r\n3;ext=1\r\nond\r\n0\r\n\r\n",
+        "HTTP/1.1 304 Not Modified\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nfinal" };
+    Http http = createHttp(true);
+    ConnectionPool pool = new ConnectionPool(5000, 2);
+    HttpResponse response = fetch(http, pool, 0);
+    assertEquals("first", new String(response.getContent(), "UTF-8"));
+    assertFalse(response.isConnectionReused());
+    response = fetch(http, pool, 1);
+    assertEquals("second", new String(response.getContent(), "UTF-8"));
+    assertTrue(response.isConnectionReused());
+    response = fetch(http, pool, 2);
+    assertEquals(304, response.getCode());
+    assertEquals(0, response.getContent().length);
+    response = fetch(http, pool, 3);
+    assertEquals("final", new String(response.getContent(), "UTF-8"));
+    // the server closed the connection, so the next request needs a new one
+    response = fetch(http, pool, 0);
+    assertFalse(response.isConnectionReused());
+    assertEquals(2, accepted.get());
+    assertEquals(3, pool.getReusedCount());
+    assertEquals(2, pool.getOpenedCount());
+    pool.close();
+  }
+
+  public void testStaleConnection() throws Exception {
+    // the server closes every connection, although the response allows to keep it
+    responses = new String[] { "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok" };
+    closeAfterResponse = true;
+    Http http = createHttp(true);
+    ConnectionPool pool = new ConnectionPool(5000, 2);
+    for (int i = 0; i < 3; i++) {
+      HttpResponse response = fetch(http, pool, 0);
+      assertEquals("ok", new String(response.getContent(), "UTF-8"));
+      Thread.sleep(50);
+    }
+    assertEquals(3, accepted.get());
+    assertEquals(0, pool.getReusedCount());
+    pool.close();
+  }
+
+  public void testContentLimit() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 100000; i++) body.append('x');
+    responses = new String[] {
+        "HTTP/1.1 200 OK\r\nContent-Length: 100000\r\n\r\n" + body,
+        "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok" };
+    Http http = createHttp(true);
+    ConnectionPool pool = new ConnectionPool(5000, 2);
+    HttpResponse response = fetch(http, pool, 0);
+    assertEquals(http.getMaxContent(), response.getContent().length);
+    // the truncated body leaves the connection unusable
+    response = fetch(http, pool, 1);
+    assertFalse(response.isConnectionReused());
+    pool.close();
+  }
+
+  public void testHttp10() throws Exception {
+    responses = new String[] { "HTTP/1.0 200 OK\r\n\r\nuntil closed" };
+    closeAfterResponse = true;
+    Http http = createHttp(false);
+    HttpResponse response = fetch(http, null, 0);
+    assertEquals("until closed", new String(response.getContent(), "UTF-8"));
+  }
+}
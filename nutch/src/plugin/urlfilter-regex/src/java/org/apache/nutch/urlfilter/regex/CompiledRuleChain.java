@@ -0,0 +1,561 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.regex;
+
+// JDK imports
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Automaton imports
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+
+/**
+ * An ordered list of regex url filter rules merged into as few
+ * deterministic automata as possible.
+ *
+ * <p>Consecutive rules that can be expressed as automata are grouped into
+ * a segment. For each segment two automata are built: one recognizing the
+ * urls matched by any rule of the segment, and one recognizing the urls
+ * whose <em>first</em> matching rule is an accepting one. A url is then
+ * checked against a whole segment in a single pass, with the same
+ * first-match-wins result as evaluating the rules one by one. Rules the
+ * automaton library cannot express (back references, look-arounds, word
+ * boundaries...) are kept as {@link Pattern}s between the segments.</p>
+ *
+ * <p>A back reference can still be over-approximated by the expression of
+ * the group it refers to. The resulting automaton matches every url the
+ * rule can match, so it is used to skip the much slower {@link Pattern}
+ * on most urls.</p>
+ */
+class CompiledRuleChain {
+
+  /**
+   * A segment is closed before one of its automata grows past this many
+   * states, since unions of unanchored rules can blow up.
+   */
+  static final int MAX_STATES = 10000;
+
+  /** Characters that <code>.</code> does not match in java regex. */
+  private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+
+  private final List<Step> steps = new ArrayList<Step>();
+
+  /** Urls matched by any rule of the open segment. */
+  private Automaton matched;
+
+  /** Urls accepted by the rules of the open segment. */
+  private Automaton accepted;
+
+  private int compiledRules = 0;
+
+  /**
+   * Appends a rule to the chain.
+   *
+   * @param sign whether urls matching this rule are accepted.
+   * @param regex the java regular expression of the rule.
+   * @param pattern the compiled form of <code>regex</code>.
+   */
+  void add(boolean sign, String regex, Pattern pattern) {
+    Automaton rule = toAutomaton(regex, false);
+    if (rule == null) {
+      closeSegment(false);
+      Automaton prefilter = toAutomaton(regex, true);
+      steps.add(new PatternStep(sign, pattern,
+          prefilter == null ? null : new RunAutomaton(prefilter)));
+      return;
+    }
+    if (matched == null) {
+      matched = Automaton.makeEmpty();
+      accepted = Automaton.makeEmpty();
+    }
+    Automaton nextMatched = matched.union(rule);
+    nextMatched.minimize();
+    Automaton nextAccepted = accepted;
+    if (sign) {
+      nextAccepted = accepted.union(rule.minus(matched));
+      nextAccepted.minimize();
+    }
+    if (nextMatched.getNumberOfStates() > MAX_STATES
+        || nextAccepted.getNumberOfStates() > MAX_STATES) {
+      closeSegment(false);
+      matched = rule;
+      accepted = sign ? rule : Automaton.makeEmpty();
+    } else {
+      matched = nextMatched;
+      accepted = nextAccepted;
+    }
+    compiledRules++;
+  }
+
+  /**
+   * Closes the chain. No rule can be added afterwards.
+   */
+  void finish() {
+    closeSegment(true);
+  }
+
+  /**
+   * Applies the rules to the specified url.
+   *
+   * @return the url if it is accepted, <code>null</code> otherwise.
+   */
+  String filter(String url) {
+    for (int i = 0; i < steps.size(); i++) {
+      Step step = steps.get(i);
+      if (step.matches(url)) {
+        return step.accepts(url) ? url : null;
+      }
+    }
+    return null;
+  }
+
+  /** Number of rules evaluated through automata. */
+  int getCompiledRules() {
+    return compiledRules;
+  }
+
+  /** Number of rules kept as java regular expressions. */
+  int getPatternRules() {
+    int count = 0;
+    for (Step step : steps) {
+      if (step instanceof PatternStep) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Number of automaton segments. */
+  int getSegments() {
+    return steps.size() - getPatternRules();
+  }
+
+  private void closeSegment(boolean last) {
+    if (matched == null) {
+      return;
+    }
+    // Nothing is left after the last segment, and an unmatched url is
+    // rejected, so there's no need to check whether a rule matched.
+    RunAutomaton any = last ? null : new RunAutomaton(matched);
+    steps.add(new AutomatonStep(any, new RunAutomaton(accepted)));
+    matched = null;
+    accepted = null;
+  }
+
+  /**
+   * Builds the automaton of the urls a rule matches, that is the strings
+   * where {@link java.util.regex.Matcher#find()} succeeds.
+   *
+   * @param approximate whether back references may be replaced by the
+   *        expression of their group, giving a superset of the urls the
+   *        rule matches.
+   * @return the automaton, or <code>null</code> if the rule can't be
+   *         expressed as one.
+   */
+  static Automaton toAutomaton(String regex, boolean approximate) {
+    String body = regex;
+    boolean anchorStart = body.startsWith("^");
+    if (anchorStart) {
+      body = body.substring(1);
+    }
+    boolean anchorEnd = body.endsWith("$") && !isEscaped(body, body.length() - 1);
+    if (anchorEnd) {
+      body = body.substring(0, body.length() - 1);
+    }
+    String translated = translate(body, approximate);
+    if (translated == null) {
+      return null;
+    }
+    Automaton automaton;
+    try {
+      automaton = new RegExp(translated, RegExp.NONE).toAutomaton();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!anchorStart) {
+      automaton = Automaton.makeAnyString().concatenate(automaton);
+    }
+    if (anchorEnd) {
+      // $ also matches before a line terminator ending the input
+      Automaton end = Automaton.makeEmptyString()
+        .union(Automaton.makeCharSet(LINE_TERMINATORS))
+        .union(Automaton.makeString("\r\n"));
+      automaton = automaton.concatenate(end);
+    } else {
+      automaton = automaton.concatenate(Automaton.makeAnyString());
+    }
+    automaton.minimize();
+    return automaton;
+  }
+
+  private static boolean isEscaped(String regex, int index) {
+    int backslashes = 0;
+    for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+  /**
+   * Translates an (unanchored) java regular expression into the syntax of
+   * {@link RegExp}.
+   *
+   * @param approximate see {@link #toAutomaton(String, boolean)}.
+   * @return the translated expression, or <code>null</code> if it uses a
+   *         construct that has no automaton equivalent.
+   */
+  static String translate(String regex, boolean approximate) {
+    StringBuilder out = new StringBuilder();
+    int length = regex.length();
+    int i = 0;
+    // translated capturing groups, by number, and the groups still open
+    // as {start in out, number or -1 if not capturing}
+    List<String> groups = new ArrayList<String>();
+    groups.add(null);
+    LinkedList<int[]> open = new LinkedList<int[]>();
+    // true where an alternative would be empty, which RegExp doesn't parse
+    boolean alternativeStart = true;
+    while (i < length) {
+      char c = regex.charAt(i);
+      if (alternativeStart && (c == '|' || c == ')')) {
+        return null;
+      }
+      alternativeStart = false;
+      switch (c) {
+      case '\\':
+        if (i + 1 >= length) {
+          return null;
+        }
+        char e = regex.charAt(i + 1);
+        if (e == 'Q') {
+          int end = regex.indexOf("\\E", i + 2);
+          String quoted = end < 0 ? regex.substring(i + 2) : regex.substring(i + 2, end);
+          if (quoted.length() == 0) {
+            return null;
+          }
+          out.append('(');
+          for (int j = 0; j < quoted.length(); j++) {
+            appendLiteral(out, quoted.charAt(j));
+          }
+          out.append(')');
+          i = end < 0 ? length : end + 2;
+        } else if (e >= '1' && e <= '9') {
+          // Java reads as many digits as make a valid group number
+          int number = e - '0';
+          i += 2;
+          while (i < length && Character.isDigit(regex.charAt(i))
+              && number * 10 + regex.charAt(i) - '0' < groups.size()) {
+            number = number * 10 + regex.charAt(i++) - '0';
+          }
+          if (!approximate || number >= groups.size() || groups.get(number) == null) {
+            return null;
+          }
+          out.append(groups.get(number));
+        } else {
+          String escape = translateEscape(e, false);
+          if (escape == null) {
+            return null;
+          }
+          out.append(escape);
+          i += 2;
+        }
+        break;
+      case '[':
+        int end = translateClass(regex, i, out);
+        if (end < 0) {
+          return null;
+        }
+        i = end;
+        break;
+      case '.':
+        out.append("[^").append(LINE_TERMINATORS).append(']');
+        i++;
+        break;
+      case '(':
+        int number = -1;
+        if (i + 1 < length && regex.charAt(i + 1) == '?') {
+          if (i + 2 < length && regex.charAt(i + 2) == ':') {
+            i += 3;
+          } else {
+            return null;
+          }
+        } else {
+          number = groups.size();
+          groups.add(null);
+          i++;
+        }
+        open.addFirst(new int[] { out.length(), number });
+        out.append('(');
+        alternativeStart = true;
+        break;
+      case '|':
+        out.append('|');
+        alternativeStart = true;
+        i++;
+        break;
+      case ')':
+        out.append(')');
+        if (open.isEmpty()) {
+          return null;
+        }
+        int[] group = open.removeFirst();
+        if (group[1] > 0) {
+          groups.set(group[1], out.substring(group[0]));
+        }
+        i++;
+        break;
+      case '*':
+      case '+':
+      case '?':
+        out.append(c);
+        i = translateQuantifierMode(regex, i + 1);
+        if (i < 0) {
+          return null;
+        }
+        break;
+      case '{':
+        int close = regex.indexOf('}', i);
+        if (close < 0 || !regex.substring(i + 1, close).matches("\\d+(,\\d*)?")) {
+          return null;
+        }
+        out.append(regex, i, close + 1);
+        i = translateQuantifierMode(regex, close + 1);
+        if (i < 0) {
+          return null;
+        }
+        break;
+      case '^':
+      case '$':
+        // only supported as anchors of the whole expression
+        return null;
+      default:
+        appendLiteral(out, c);
+        i++;
+      }
+    }
+    if (alternativeStart && length > 0) {
+      // trailing | or ( without content
+      return null;
+    }
+    return out.toString();
+  }
+
+  /**
+   * Skips a reluctant marker after a quantifier. Reluctant and greedy
+   * quantifiers find a match on the same inputs, possessive ones don't.
+   *
+   * @return the index after the quantifier, or -1 if it is possessive.
+   */
+  private static int translateQuantifierMode(String regex, int i) {
+    if (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '?') {
+        return i + 1;
+      } else if (c == '+') {
+        return -1;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Translates the character class starting at <code>start</code>.
+   *
+   * @return the index after the class, or -1 if it can't be translated.
+   */
+  private static int translateClass(String regex, int start, StringBuilder out) {
+    int length = regex.length();
+    int i = start + 1;
+    out.append('[');
+    if (i < length && regex.charAt(i) == '^') {
+      out.append('^');
+      i++;
+    }
+    if (i < length && regex.charAt(i) == ']') {
+      return -1;
+    }
+    boolean empty = true;
+    while (i < length) {
+      char c = regex.charAt(i);
+      if (c == ']') {
+        if (empty) {
+          return -1;
+        }
+        out.append(']');
+        return i + 1;
+      } else if (c == '[' || (c == '&' && i + 1 < length && regex.charAt(i + 1) == '&')) {
+        return -1;
+      }
+      char from;
+      if (c == '\\') {
+        if (i + 1 >= length) {
+          return -1;
+        }
+        String escape = translateEscape(regex.charAt(i + 1), true);
+        if (escape == null) {
+          return -1;
+        }
+        i += 2;
+        if (escape.length() > 2) {
+          // a predefined class, which can't start a range
+          out.append(escape);
+          empty = false;
+          continue;
+        }
+        from = escape.charAt(escape.length() - 1);
+      } else {
+        from = c;
+        i++;
+      }
+      if (i + 1 < length && regex.charAt(i) == '-' && regex.charAt(i + 1) != ']') {
+        char to = regex.charAt(i + 1);
+        if (to == '[') {
+          return -1;
+        }
+        i += 2;
+        if (to == '\\') {
+          if (i >= length) {
+            return -1;
+          }
+          String escape = translateEscape(regex.charAt(i), true);
+          if (escape == null || escape.length() > 2) {
+            return -1;
+          }
+          to = escape.charAt(escape.length() - 1);
+          i++;
+        }
+        appendLiteral(out, from);
+        out.append('-');
+        appendLiteral(out, to);
+      } else {
+        appendLiteral(out, from);
+      }
+      empty = false;
+    }
+    return -1;
+  }
+
+  /**
+   * Translates the escape <code>\c</code>.
+   *
+   * @param inClass whether the escape appears in a character class, in
+   *        which case predefined classes are returned without brackets.
+   * @return the translation, or <code>null</code> if it is not supported.
+   */
+  private static String translateEscape(char c, boolean inClass) {
+    String set = null;
+    boolean negated = false;
+    switch (c) {
+    case 'd': set = "0-9"; break;
+    case 'D': set = "0-9"; negated = true; break;
+    case 'w': set = "a-zA-Z_0-9"; break;
+    case 'W': set = "a-zA-Z_0-9"; negated = true; break;
+    case 's': set = " \t\n\u000B\f\r"; break;
+    case 'S': set = " \t\n\u000B\f\r"; negated = true; break;
+    case 't': return escapeLiteral('\t');
+    case 'n': return escapeLiteral('\n');
+    case 'r': return escapeLiteral('\r');
+    case 'f': return escapeLiteral('\f');
+    case 'a': return escapeLiteral('\u0007');
+    case 'e': return escapeLiteral('\u001B');
+    default:
+      if (Character.isLetterOrDigit(c)) {
+        // back references, boundaries, unicode classes, octal or hex
+        // escapes...
+        return null;
+      }
+      return escapeLiteral(c);
+    }
+    if (inClass) {
+      // a negated class can't be nested in another one
+      return negated ? null : set;
+    }
+    return (negated ? "[^" : "[") + set + "]";
+  }
+
+  private static String escapeLiteral(char c) {
+    StringBuilder out = new StringBuilder(2);
+    appendLiteral(out, c);
+    return out.toString();
+  }
+
+  private static void appendLiteral(StringBuilder out, char c) {
+    if (!Character.isLetterOrDigit(c)) {
+      out.append('\\');
+    }
+    out.append(c);
+  }
+
+
+  private static abstract class Step {
+
+    /** Whether any rule of this step matches the url. */
+    abstract boolean matches(String url);
+
+    /** Whether the first rule of this step matching the url accepts it. */
+    abstract boolean accepts(String url);
+  }
+
+  private static class AutomatonStep extends Step {
+
+    private final RunAutomaton matched;
+    private final RunAutomaton accepted;
+
+    AutomatonStep(RunAutomaton matched, RunAutomaton accepted) {
+      this.matched = matched;
+      this.accepted = accepted;
+    }
+
+    boolean matches(String url) {
+      return matched == null || matched.run(url);
+    }
+
+    boolean accepts(String url) {
+      return accepted.run(url);
+    }
+  }
+
+  private static class PatternStep extends Step {
+
+    private final boolean sign;
+    private final Pattern pattern;
+    private final RunAutomaton prefilter;
+
+    PatternStep(boolean sign, Pattern pattern, RunAutomaton prefilter) {
+      this.sign = sign;
+      this.pattern = pattern;
+      this.prefilter = prefilter;
+    }
+
+    boolean matches(String url) {
+      if (prefilter != null && !prefilter.run(url)) {
+        return false;
+      }
+      return pattern.matcher(url).find();
+    }
+
+    boolean accepts(String url) {
+      return sign;
+    }
+  }
+
+}
@@ -23,6 +23,9 @@ import java.io.StringReader;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.urlfilter.api.RegexRule;
 import org.apache.nutch.urlfilter.api.RegexURLFilterBase;
@@ -32,11 +35,21 @@ import org.apache.nutch.util.NutchConfiguration;
 /**
  * Filters URLs based on a file of regular expressions using the
  * {@link java.util.regex Java Regex implementation}.
+ *
+ * <p>When <code>urlfilter.regex.compiled</code> is set, the rules are merged
+ * into a {@link CompiledRuleChain} so that a url is checked against most
+ * of them in a single pass. The result is the same as evaluating the rules
+ * one by one.</p>
  */
 public class RegexURLFilter extends RegexURLFilterBase {
   
   public static final String URLFILTER_REGEX_FILE = "urlfilter.regex.file";
   public static final String URLFILTER_REGEX_RULES = "urlfilter.regex.rules";
+  public static final String URLFILTER_REGEX_COMPILED = "urlfilter.regex.compiled";
+
+  private static final Logger LOG = LoggerFactory.getLogger(RegexURLFilter.class);
+
+  private CompiledRuleChain chain;
 
   public RegexURLFilter() {
     super();
@@ -52,6 +65,14 @@ public class RegexURLFilter extends RegexURLFilterBase {
     super(reader);
   }
 
+  RegexURLFilter(Reader reader, boolean compiled)
+    throws IOException, IllegalArgumentException {
+    super(reader);
+    if (compiled) {
+      chain = compile();
+    }
+  }
+
   
   /* ----------------------------------- *
    * <implementation:RegexURLFilterBase> *
@@ -74,6 +95,37 @@ public class RegexURLFilter extends RegexURLFilterBase {
   protected RegexRule createRule(boolean sign, String regex) {
     return new Rule(sign, regex);
   }
+
+  // Inherited Javadoc
+  public String filter(String url) {
+    if (chain != null) {
+      return chain.filter(url);
+    }
+    return super.filter(url);
+  }
+
+  // Inherited Javadoc
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    chain = conf.getBoolean(URLFILTER_REGEX_COMPILED, false) ? compile() : null;
+  }
+
+  private CompiledRuleChain compile() {
+    long start = System.currentTimeMillis();
+    CompiledRuleChain compiled = new CompiledRuleChain();
+    for (RegexRule rule : getRules()) {
+      Rule r = (Rule) rule;
+      compiled.add(r.isAccept(), r.regex, r.pattern);
+    }
+    compiled.finish();
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Compiled " + compiled.getCompiledRules() + " url filter rules into "
+          + compiled.getSegments() + " automata in "
+          + (System.currentTimeMillis() - start) + " ms, "
+          + compiled.getPatternRules() + " rules kept as java regex");
+    }
+    return compiled;
+  }
   
   /* ------------------------------------ *
    * </implementation:RegexURLFilterBase> *
@@ -89,13 +141,19 @@ public class RegexURLFilter extends RegexURLFilterBase {
 
   private class Rule extends RegexRule {
     
+    private String regex;
     private Pattern pattern;
     
     Rule(boolean sign, String regex) {
       super(sign, regex);
+      this.regex = regex;
       pattern = Pattern.compile(regex);
     }
 
+    boolean isAccept() {
+      return accept();
+    }
+
     protected boolean match(String url) {
       return pattern.matcher(url).find();
     }
@@ -17,8 +17,15 @@
 package org.apache.nutch.urlfilter.regex;
 
 // JDK imports
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
 
 // JUnit imports
 import junit.framework.Test;
@@ -29,6 +36,10 @@ import org.apache.nutch.net.*;
 // Nutch imports
 import org.apache.nutch.urlfilter.api.RegexURLFilterBaseTest;
 
+// Automaton imports
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RunAutomaton;
+
 
 /**
  * JUnit based test of class <code>RegexURLFilter</code>.
@@ -36,6 +47,27 @@ import org.apache.nutch.urlfilter.api.RegexURLFilterBaseTest;
  * @author J&eacute;r&ocirc;me Charron
  */
 public class TestRegexURLFilter extends RegexURLFilterBaseTest {
+
+  private final static String SAMPLES = System.getProperty("test.data", ".");
+
+  /** The default rules of conf/regex-urlfilter.txt */
+  private final static String CONF_RULES =
+    "-^(file|ftp|mailto):\n" +
+    "-\\.(gif|GIF|jpg|JPG|png|PNG|ico|ICO|css|CSS|sit|SIT|eps|EPS|wmf|WMF|zip|ZIP|ppt|PPT|mpg|MPG|xls|XLS|gz|GZ|rpm|RPM|tgz|TGZ|mov|MOV|exe|EXE|jpeg|JPEG|bmp|BMP|js|JS)$\n" +
+    "-.*ds\\.dk\\/groupproduct\\/\n" +
+    "-.*ds\\.dk\\/group\\/\n" +
+    "+MovieID\n" +
+    "+index\\.aspx\\?p\\=\n" +
+    "+products\\.aspx\\?p\\=\n" +
+    "+members\\.aspx\\?p\\=\n" +
+    "+pdf\\.id\\=\n" +
+    "+action#\\/\n" +
+    "-www\\.sbi\\.dk\n" +
+    "-[?*!@=]\n" +
+    "-.*(/[^/]+)/[^/]+\\1/[^/]+\\1/\n" +
+    "+.\n";
+
+  private boolean compiled = false;
   
   public TestRegexURLFilter(String testName) {
     super(testName);
@@ -45,13 +77,20 @@ public class TestRegexURLFilter extends RegexURLFilterBaseTest {
     return new TestSuite(TestRegexURLFilter.class);
   }
   
-  public static void main(String[] args) {
-    TestRunner.run(suite());
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      TestRunner.run(suite());
+    } else if (args.length == 2 && args[0].equals("-bench")) {
+      bench(Integer.parseInt(args[1]));
+    } else {
+      System.err.println("TestRegexURLFilter [-bench <urls>]");
+      System.exit(-1);
+    }
   }
 
   protected URLFilter getURLFilter(Reader rules) {
     try {
-      return new RegexURLFilter(rules);
+      return new RegexURLFilter(rules, compiled);
     } catch (IOException e) {
       fail(e.toString());
       return null;
@@ -68,4 +107,143 @@ public class TestRegexURLFilter extends RegexURLFilterBaseTest {
     bench(800, "Benchmarks");
   }
 
+  public void testCompiled() {
+    compiled = true;
+    test("WholeWebCrawling");
+    test("IntranetCrawling");
+    test("Benchmarks");
+    bench(50, "Benchmarks");
+    bench(800, "Benchmarks");
+  }
+
+  public void testTranslation() {
+    String[] regexes = {
+      "^(file|ftp|mailto):", "\\.(gif|jpg)$", "[?*!@=]", "^.*//.*\\.fr/",
+      "b+.", ".", "^http://[a-z0-9-]+\\.example\\.com/", "a\\d{2,3}b",
+      "(?:ab)+c?", "a.*?b", "[^/]+/[\\w.]+$", "\\Q?*\\E", "x{2}", "[a\\-z]",
+      "\"quoted\"", "a&b~c#d@e<f>", "\\s\\S", "[\\d\\s]x", "\\.$", "a$"
+    };
+    String alphabet = "ab/.:?*!@=fhtpxyz0129-\"&~#<> \n\r_Qc";
+    Random random = new Random(0);
+    for (String regex : regexes) {
+      Automaton automaton = CompiledRuleChain.toAutomaton(regex, false);
+      assertNotNull(regex, automaton);
+      RunAutomaton run = new RunAutomaton(automaton);
+      Pattern pattern = Pattern.compile(regex);
+      for (int i = 0; i < 2000; i++) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int j = 0; j < length; j++) {
+          sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String s = sb.toString();
+        assertEquals(regex + " on " + s, pattern.matcher(s).find(), run.run(s));
+      }
+    }
+    // constructs without an automaton equivalent
+    String[] patterns = {
+      ".*(/[^/]+)/[^/]+\\1/", "\\bfoo", "a(?=b)", "a++", "[a-z&&[^b]]", "a^b",
+      "\\p{Alpha}", "(|a)"
+    };
+    for (String regex : patterns) {
+      assertNull(regex, CompiledRuleChain.toAutomaton(regex, false));
+    }
+    // back references are over-approximated by their group
+    String[] approximated = { ".*(/[^/]+)/[^/]+\\1/", "(a|b)x\\1", "((a)b)\\2\\1$" };
+    for (String regex : approximated) {
+      RunAutomaton run = new RunAutomaton(CompiledRuleChain.toAutomaton(regex, true));
+      Pattern pattern = Pattern.compile(regex);
+      for (int i = 0; i < 2000; i++) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int j = 0; j < length; j++) {
+          sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String s = sb.toString();
+        if (pattern.matcher(s).find()) {
+          assertTrue(regex + " on " + s, run.run(s));
+        }
+      }
+      String[] matching = { "/a/b/a/", "http://x/y/a/b/y/", "axa", "bxb", "abab" };
+      for (String s : matching) {
+        if (pattern.matcher(s).find()) {
+          assertTrue(regex + " on " + s, run.run(s));
+        }
+      }
+    }
+  }
+
+  public void testCompiledConfRules() throws IOException {
+    RegexURLFilter plain = new RegexURLFilter(new StringReader(CONF_RULES), false);
+    RegexURLFilter chain = new RegexURLFilter(new StringReader(CONF_RULES), true);
+    for (String url : readURLs(10)) {
+      assertEquals(url, plain.filter(url), chain.filter(url));
+    }
+  }
+
+  /**
+   * Replays <code>count</code> urls through the conf rules, one rule at a
+   * time and through the compiled chain.
+   */
+  private static void bench(int count) throws IOException {
+    List<String> urls = readURLs(0);
+    RegexURLFilter plain = new RegexURLFilter(new StringReader(CONF_RULES), false);
+    RegexURLFilter chain = new RegexURLFilter(new StringReader(CONF_RULES), true);
+    long start = System.currentTimeMillis();
+    int accepted = 0;
+    for (int i = 0; i < count; i++) {
+      if (plain.filter(urls.get(i % urls.size())) != null) {
+        accepted++;
+      }
+    }
+    long plainTime = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    int chainAccepted = 0;
+    for (int i = 0; i < count; i++) {
+      if (chain.filter(urls.get(i % urls.size())) != null) {
+        chainAccepted++;
+      }
+    }
+    long chainTime = System.currentTimeMillis() - start;
+    if (accepted != chainAccepted) {
+      throw new IllegalStateException("rules accepted " + accepted
+          + " urls, compiled " + chainAccepted);
+    }
+    LOG.info("bench " + count + " urls: rules " + plainTime + "ms, compiled "
+        + chainTime + "ms");
+  }
+
+  /**
+   * Reads the benchmark urls, adding <code>variants</code> random
+   * variations of each.
+   */
+  private static List<String> readURLs(int variants) throws IOException {
+    String[] suffixes = {
+      "", "/", ".gif", ".JPG", "?p=1", "index.aspx?p=2", "/a/b/a/c/a/", "MovieID",
+      "#top", "/x.css", "members.aspx?p=", ".js"
+    };
+    Random random = new Random(0);
+    List<String> urls = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(SAMPLES
+        + System.getProperty("file.separator") + "Benchmarks.urls"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() < 2) {
+          continue;
+        }
+        String url = line.substring(1);
+        urls.add(url);
+        for (int i = 0; i < variants; i++) {
+          urls.add(url + suffixes[random.nextInt(suffixes.length)]);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    urls.add("file:///etc/passwd");
+    urls.add("ftp://ftp.sbi.dk/");
+    return urls;
+  }
+
 }
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net.urlnormalizer.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import org.apache.nutch.net.urlnormalizer.regex.RegexURLNormalizer.Rule;
+
+/**
+ * The rules of a scope, compiled so that a url is only run through the
+ * rules that can match it.
+ *
+ * <p>Most rules require one of a few literals to match, for instance
+ * <code>sid</code> or <code>#</code>. The literals of all the rules are
+ * merged into one automaton, and a single pass over the lower cased url
+ * tells which rules are candidates. Only those are tried, with a
+ * {@link Matcher} reused by each thread, and the url is only rewritten
+ * when a rule actually finds a match. Rules without a required literal
+ * are always tried.</p>
+ */
+class RegexRuleSet {
+
+  private static final int ALPHABET = 128;
+
+  private final Rule[] rules;
+
+  /** Whether a rule needs one of its literals to be found to match. */
+  private final boolean[] guarded;
+
+  /** Transitions of the literal automaton, for lower cased ascii chars. */
+  private final int[][] next;
+
+  /** Rules one of whose literals ends at a state. */
+  private final int[][] found;
+
+  private final ThreadLocal<Matcher[]> matchers = new ThreadLocal<Matcher[]>() {
+    protected Matcher[] initialValue() {
+      Matcher[] m = new Matcher[rules.length];
+      for (int i = 0; i < rules.length; i++) {
+        m[i] = rules[i].pattern.matcher("");
+      }
+      return m;
+    }
+  };
+
+  private final ThreadLocal<boolean[]> candidates = new ThreadLocal<boolean[]>() {
+    protected boolean[] initialValue() {
+      return new boolean[rules.length];
+    }
+  };
+
+  RegexRuleSet(List<Rule> ruleList) {
+    rules = ruleList.toArray(new Rule[ruleList.size()]);
+    guarded = new boolean[rules.length];
+
+    // build the trie of the literals
+    List<int[]> trie = new ArrayList<int[]>();
+    List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+    trie.add(newState());
+    outputs.add(new ArrayList<Integer>());
+    for (int r = 0; r < rules.length; r++) {
+      String[] literals = RequiredLiterals.of(rules[r].pattern.pattern());
+      if (literals == null || !isAscii(literals)) {
+        continue;
+      }
+      guarded[r] = true;
+      for (String literal : literals) {
+        int state = 0;
+        for (int i = 0; i < literal.length(); i++) {
+          char c = literal.charAt(i);
+          if (trie.get(state)[c] <= 0) {
+            trie.get(state)[c] = trie.size();
+            trie.add(newState());
+            outputs.add(new ArrayList<Integer>());
+          }
+          state = trie.get(state)[c];
+        }
+        outputs.get(state).add(r);
+      }
+    }
+
+    // turn it into a DFA following the failure links, breadth first
+    next = trie.toArray(new int[trie.size()][]);
+    int[] fail = new int[next.length];
+    LinkedList<Integer> queue = new LinkedList<Integer>();
+    for (int c = 0; c < ALPHABET; c++) {
+      if (next[0][c] > 0) {
+        queue.add(next[0][c]);
+      } else {
+        next[0][c] = 0;
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.removeFirst();
+      outputs.get(state).addAll(outputs.get(fail[state]));
+      for (int c = 0; c < ALPHABET; c++) {
+        int child = next[state][c];
+        if (child > 0) {
+          fail[child] = next[fail[state]][c];
+          queue.add(child);
+        } else {
+          next[state][c] = next[fail[state]][c];
+        }
+      }
+    }
+    found = new int[next.length][];
+    for (int state = 0; state < next.length; state++) {
+      List<Integer> out = outputs.get(state);
+      found[state] = new int[out.size()];
+      for (int i = 0; i < out.size(); i++) {
+        found[state][i] = out.get(i);
+      }
+    }
+  }
+
+  private static int[] newState() {
+    int[] state = new int[ALPHABET];
+    Arrays.fill(state, -1);
+    return state;
+  }
+
+  private static boolean isAscii(String[] literals) {
+    for (String literal : literals) {
+      for (int i = 0; i < literal.length(); i++) {
+        if (literal.charAt(i) >= ALPHABET) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  List<Rule> getRules() {
+    return Arrays.asList(rules);
+  }
+
+  /** Applies all the rules, in order, to a url. */
+  String normalize(String url) {
+    if (rules.length == 0) {
+      return url;
+    }
+    Matcher[] m = matchers.get();
+    boolean[] candidate = candidates.get();
+    findCandidates(url, candidate);
+    for (int i = 0; i < rules.length; i++) {
+      if (guarded[i] && !candidate[i]) {
+        continue;
+      }
+      Matcher matcher = m[i].reset(url);
+      if (!matcher.find()) {
+        continue;
+      }
+      String result = matcher.replaceAll(rules[i].substitution);
+      if (!result.equals(url)) {
+        url = result;
+        // the next rules apply to the rewritten url
+        findCandidates(url, candidate);
+      }
+    }
+    return url;
+  }
+
+  private void findCandidates(String url, boolean[] candidate) {
+    Arrays.fill(candidate, false);
+    int state = 0;
+    for (int i = 0; i < url.length(); i++) {
+      char c = url.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      } else if (c >= ALPHABET) {
+        // a few non ascii chars lower case to ascii ones
+        c = Character.toLowerCase(c);
+        if (c >= ALPHABET) {
+          state = 0;
+          continue;
+        }
+      }
+      state = next[state][c];
+      int[] rulesFound = found[state];
+      for (int j = 0; j < rulesFound.length; j++) {
+        candidate[rulesFound[j]] = true;
+      }
+    }
+  }
+
+}
@@ -27,7 +27,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -69,27 +68,29 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
    * Class which holds a compiled pattern and its corresponding substition
    * string.
    */
-  private static class Rule {
+  static class Rule {
     public Pattern pattern;
 
     public String substitution;
   }
 
-  private ThreadLocal<HashMap<String, List<Rule>>> scopedRulesThreadLocal = 
-      new ThreadLocal<HashMap<String,List<Rule>>>() {
-    protected java.util.HashMap<String,java.util.List<Rule>> initialValue() {
-      return new HashMap<String, List<Rule>>();
+  private ThreadLocal<HashMap<String, RegexRuleSet>> scopedRulesThreadLocal = 
+      new ThreadLocal<HashMap<String,RegexRuleSet>>() {
+    protected java.util.HashMap<String,RegexRuleSet> initialValue() {
+      return new HashMap<String, RegexRuleSet>();
     };
   };
   
-  public HashMap<String, List<Rule>> getScopedRules() {
+  public HashMap<String, RegexRuleSet> getScopedRules() {
     return scopedRulesThreadLocal.get();
   }
   
-  private List<Rule> defaultRules; 
+  private RegexRuleSet defaultRules; 
   
   private static final List<Rule> EMPTY_RULES = Collections.emptyList();
 
+  private static final RegexRuleSet EMPTY_RULE_SET = new RegexRuleSet(EMPTY_RULES);
+
   /**
    * The default constructor which is called from UrlNormalizerFactory
    * (normalizerClass.newInstance()) in method: getNormalizer()*
@@ -111,7 +112,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
     super(conf);
     List<Rule> rules = readConfigurationFile(filename);
     if (rules != null) {
-      defaultRules = rules;
+      defaultRules = compile(rules);
     }
   }
 
@@ -140,23 +141,28 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         rules = EMPTY_RULES;
       }
     }
-    defaultRules = rules;
+    defaultRules = compile(rules);
   }
 
   // used in JUnit test.
   void setConfiguration(Reader reader, String scope) {
     List<Rule> rules = readConfiguration(reader);
-    getScopedRules().put(scope, rules);
+    getScopedRules().put(scope, compile(rules));
     LOG.debug("Set config for scope '" + scope + "': " + rules.size() + " rules.");
   }
   
+  private static RegexRuleSet compile(List<Rule> rules) {
+    return rules == EMPTY_RULES ? EMPTY_RULE_SET : new RegexRuleSet(rules);
+  }
+
   /**
-   * This function does the replacements by iterating through all the regex
-   * patterns. It accepts a string url as input and returns the altered string.
+   * This function does the replacements by applying the regex patterns in
+   * order, skipping those that can't match. It accepts a string url as input
+   * and returns the altered string.
    */
   public String regexNormalize(String urlString, String scope) {
-    HashMap<String, List<Rule>> scopedRules = getScopedRules();
-    List<Rule> curRules = scopedRules.get(scope);
+    HashMap<String, RegexRuleSet> scopedRules = getScopedRules();
+    RegexRuleSet curRules = scopedRules.get(scope);
     if (curRules == null) {
       // try to populate
       String configFile = getConf().get("urlnormalizer.regex.file." + scope);
@@ -164,30 +170,21 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         LOG.debug("resource for scope '" + scope + "': " + configFile);
         try {
           Reader reader = getConf().getConfResourceAsReader(configFile);
-          curRules = readConfiguration(reader);
+          curRules = compile(readConfiguration(reader));
           scopedRules.put(scope, curRules);
         } catch (Exception e) {
           LOG.warn("Couldn't load resource '" + configFile + "': " + e);
         }
       }
-      if (curRules == EMPTY_RULES || curRules == null) {
+      if (curRules == EMPTY_RULE_SET || curRules == null) {
         LOG.info("can't find rules for scope '" + scope + "', using default");
-        scopedRules.put(scope, EMPTY_RULES);
+        scopedRules.put(scope, EMPTY_RULE_SET);
       }
     }
-    if (curRules == EMPTY_RULES || curRules == null) {
+    if (curRules == EMPTY_RULE_SET || curRules == null) {
       curRules = defaultRules;
     }
-    Iterator<Rule> i = curRules.iterator();
-
-    while (i.hasNext()) {
-      Rule r = (Rule) i.next();
-
-      Matcher matcher = r.pattern.matcher(urlString);
-
-      urlString = matcher.replaceAll(r.substitution);
-    }
-    return urlString;
+    return curRules.normalize(urlString);
   }
 
   public String normalize(String urlString, String scope)
@@ -275,8 +272,8 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
           IOException {
     RegexURLNormalizer normalizer = new RegexURLNormalizer();
     normalizer.setConf(NutchConfiguration.create());
-    HashMap<String, List<Rule>> scopedRules = normalizer.getScopedRules();
-    Iterator<Rule> i = normalizer.defaultRules.iterator();
+    HashMap<String, RegexRuleSet> scopedRules = normalizer.getScopedRules();
+    Iterator<Rule> i = normalizer.defaultRules.getRules().iterator();
     System.out.println("* Rules for 'DEFAULT' scope:");
     while (i.hasNext()) {
       Rule r = i.next();
@@ -293,7 +290,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         String scope = it.next();
         if (URLNormalizers.SCOPE_DEFAULT.equals(scope)) continue;
         System.out.println("* Rules for '" + scope + "' scope:");
-        i = ((List<Rule>)scopedRules.get(scope)).iterator();
+        i = scopedRules.get(scope).getRules().iterator();
         while (i.hasNext()) {
           Rule r = (Rule) i.next();
           System.out.print("  " + r.pattern.pattern() + " -> ");
@@ -0,0 +1,396 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net.urlnormalizer.regex;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Extracts from a java regular expression a set of literals, one of which
+ * appears in every string the expression finds a match in.
+ *
+ * <p>Literals are lower cased, and must be looked for in the lower cased
+ * input, so that case insensitive parts of the expression are covered. The
+ * extraction is conservative: when in doubt, no literal is returned.</p>
+ */
+class RequiredLiterals {
+
+  /** Character classes with more characters than this are not used. */
+  private static final int MAX_CLASS_SIZE = 8;
+
+  /** Marks an atom that matches the empty string, such as \b or (?i). */
+  private static final Set<String> ZERO_WIDTH = new HashSet<String>();
+
+  /** Marks an atom with no usable literal, such as . or \w. */
+  private static final Set<String> NONE = new HashSet<String>();
+
+  private final String regex;
+  private int pos = 0;
+
+  /** The literal character of the last atom, if it was a single one. */
+  private int literal;
+
+  /** Whether the last quantifier allows more than its minimum. */
+  private boolean repeated;
+
+  private RequiredLiterals(String regex) {
+    this.regex = regex;
+  }
+
+  /**
+   * Returns the literals one of which every match of <code>regex</code>
+   * contains, or <code>null</code> if none could be found.
+   */
+  static String[] of(String regex) {
+    Set<String> literals;
+    try {
+      RequiredLiterals parser = new RequiredLiterals(regex);
+      literals = parser.alternation();
+      if (parser.pos != regex.length()) {
+        return null;
+      }
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (literals == null || literals.isEmpty() || literals.contains("")) {
+      return null;
+    }
+    return literals.toArray(new String[literals.size()]);
+  }
+
+  private Set<String> alternation() {
+    Set<String> result = concatenation();
+    while (pos < regex.length() && regex.charAt(pos) == '|') {
+      pos++;
+      Set<String> branch = concatenation();
+      if (result == null || branch == null) {
+        result = null;
+      } else {
+        result.addAll(branch);
+      }
+    }
+    return result;
+  }
+
+  private Set<String> concatenation() {
+    Set<String> best = null;
+    StringBuilder run = new StringBuilder();
+    while (pos < regex.length()) {
+      char c = regex.charAt(pos);
+      if (c == '|' || c == ')') {
+        break;
+      }
+      Set<String> atom = atom();
+      int min = quantifier();
+      if (atom == ZERO_WIDTH) {
+        // doesn't consume anything, so doesn't break a run of literals
+        continue;
+      }
+      if (literal >= 0 && min > 0) {
+        run.append((char) literal);
+        if (min == 1 && !repeated) {
+          continue;
+        }
+      }
+      best = better(best, run);
+      run.setLength(0);
+      if (literal < 0 && min > 0 && atom != NONE) {
+        best = better(best, atom);
+      }
+    }
+    return better(best, run);
+  }
+
+  /**
+   * Parses an atom. If it is a single literal character, it is stored in
+   * {@link #literal}.
+   */
+  private Set<String> atom() {
+    char c = regex.charAt(pos++);
+    Set<String> atom;
+    switch (c) {
+    case '(':
+      atom = group();
+      // the content of the group may have set it
+      literal = -1;
+      return atom;
+    case '[':
+      literal = -1;
+      return characterClass();
+    case '\\':
+      literal = -1;
+      return escape();
+    case '.':
+      literal = -1;
+      return NONE;
+    case '^':
+    case '$':
+      literal = -1;
+      return ZERO_WIDTH;
+    case '*':
+    case '+':
+    case '?':
+    case '{':
+      throw new IllegalArgumentException("dangling quantifier");
+    default:
+      literal = Character.toLowerCase(c);
+      return NONE;
+    }
+  }
+
+  private Set<String> group() {
+    boolean zeroWidth = false;
+    if (regex.charAt(pos) == '?') {
+      pos++;
+      char c = regex.charAt(pos);
+      if (c == '=' || c == '!') {
+        pos++;
+        zeroWidth = true;
+      } else if (c == '<' && !Character.isLetter(regex.charAt(pos + 1))) {
+        pos += 2;
+        zeroWidth = true;
+      } else if (c == '<') {
+        // named group
+        pos = regex.indexOf('>', pos) + 1;
+      } else if (c == ':' || c == '>') {
+        pos++;
+      } else {
+        // inline flags, either alone or for a group
+        while (Character.isLetter(regex.charAt(pos)) || regex.charAt(pos) == '-') {
+          if (regex.charAt(pos) == 'x') {
+            // whitespace and comments would be ignored
+            throw new IllegalArgumentException("comments mode");
+          }
+          pos++;
+        }
+        if (regex.charAt(pos) == ')') {
+          pos++;
+          return ZERO_WIDTH;
+        }
+        expect(':');
+      }
+    }
+    Set<String> content = alternation();
+    expect(')');
+    if (zeroWidth) {
+      return ZERO_WIDTH;
+    }
+    return content == null ? NONE : content;
+  }
+
+  private Set<String> characterClass() {
+    if (regex.charAt(pos) == '^' || regex.charAt(pos) == ']') {
+      if (regex.charAt(pos) == '^') {
+        pos++;
+      }
+      // a ] right after the opening bracket is a literal
+      if (regex.charAt(pos) == ']') {
+        pos++;
+      }
+      skipClass();
+      return NONE;
+    }
+    Set<String> chars = new HashSet<String>();
+    boolean usable = true;
+    while (true) {
+      char c = regex.charAt(pos++);
+      if (c == ']') {
+        break;
+      }
+      if (c == '[' || (c == '&' && regex.charAt(pos) == '&')) {
+        pos--;
+        skipClass();
+        return NONE;
+      }
+      if (c == '\\') {
+        char e = regex.charAt(pos++);
+        if (Character.isLetterOrDigit(e)) {
+          // \d, \w, \p{...}, octal or hex escapes
+          pos--;
+          skipClass();
+          return NONE;
+        }
+        c = e;
+      }
+      if (regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+        usable = false;
+      }
+      chars.add(String.valueOf(Character.toLowerCase(c)));
+    }
+    if (!usable || chars.size() > MAX_CLASS_SIZE) {
+      return NONE;
+    }
+    return chars;
+  }
+
+  /** Skips to the end of the character class containing the position. */
+  private void skipClass() {
+    int depth = 1;
+    while (depth > 0) {
+      char c = regex.charAt(pos++);
+      if (c == '\\') {
+        pos++;
+      } else if (c == '[') {
+        depth++;
+      } else if (c == ']') {
+        depth--;
+      }
+    }
+  }
+
+  private Set<String> escape() {
+    char c = regex.charAt(pos++);
+    switch (c) {
+    case 'b': case 'B': case 'A': case 'G': case 'z': case 'Z':
+      return ZERO_WIDTH;
+    case 't': literal = '\t'; return NONE;
+    case 'n': literal = '\n'; return NONE;
+    case 'r': literal = '\r'; return NONE;
+    case 'f': literal = '\f'; return NONE;
+    case 'c':
+      pos++;
+      return NONE;
+    case 'p': case 'P':
+      if (regex.charAt(pos) == '{') {
+        pos = regex.indexOf('}', pos) + 1;
+      } else {
+        pos++;
+      }
+      return NONE;
+    case 'x':
+      literal = Character.toLowerCase((char) Integer.parseInt(regex.substring(pos, pos + 2), 16));
+      pos += 2;
+      return NONE;
+    case 'u':
+      literal = Character.toLowerCase((char) Integer.parseInt(regex.substring(pos, pos + 4), 16));
+      pos += 4;
+      return NONE;
+    case 'Q':
+      int end = regex.indexOf("\\E", pos);
+      String quoted = end < 0 ? regex.substring(pos) : regex.substring(pos, end);
+      pos = end < 0 ? regex.length() : end + 2;
+      if (quoted.length() == 0) {
+        return ZERO_WIDTH;
+      }
+      if (quoted.length() == 1) {
+        literal = Character.toLowerCase(quoted.charAt(0));
+        return NONE;
+      }
+      // a quantifier would only apply to the last character, drop it
+      Set<String> literals = new HashSet<String>();
+      literals.add(lowerCase(quoted.substring(0, quoted.length() - 1)));
+      return literals;
+    default:
+      if (Character.isLetterOrDigit(c)) {
+        // back references, predefined classes, octal or control escapes
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+          pos++;
+        }
+        return NONE;
+      }
+      literal = Character.toLowerCase(c);
+      return NONE;
+    }
+  }
+
+  /**
+   * Parses an optional quantifier.
+   *
+   * @return the minimum number of repetitions.
+   */
+  private int quantifier() {
+    int min = 1;
+    repeated = false;
+    if (pos >= regex.length()) {
+      return min;
+    }
+    char c = regex.charAt(pos);
+    if (c == '*' || c == '?') {
+      min = 0;
+      repeated = true;
+      pos++;
+    } else if (c == '+') {
+      repeated = true;
+      pos++;
+    } else if (c == '{') {
+      int close = regex.indexOf('}', pos);
+      String bounds = regex.substring(pos + 1, close);
+      int comma = bounds.indexOf(',');
+      min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+      repeated = comma >= 0 || min > 1;
+      pos = close + 1;
+    } else {
+      return min;
+    }
+    // reluctant or possessive
+    if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+      pos++;
+    }
+    return min;
+  }
+
+  private void expect(char c) {
+    if (regex.charAt(pos++) != c) {
+      throw new IllegalArgumentException("expected " + c);
+    }
+  }
+
+  private static Set<String> better(Set<String> best, StringBuilder run) {
+    if (run.length() == 0) {
+      return best;
+    }
+    Set<String> literals = new HashSet<String>();
+    literals.add(run.toString());
+    return better(best, literals);
+  }
+
+  /**
+   * Chooses the more selective of two sets of literals: the one whose
+   * shortest literal is the longest.
+   */
+  private static Set<String> better(Set<String> a, Set<String> b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    int minA = shortest(a);
+    int minB = shortest(b);
+    if (minA != minB) {
+      return minA > minB ? a : b;
+    }
+    return a.size() <= b.size() ? a : b;
+  }
+
+  private static int shortest(Set<String> literals) {
+    int min = Integer.MAX_VALUE;
+    for (String literal : literals) {
+      min = Math.min(min, literal.length());
+    }
+    return min;
+  }
+
+  private static String lowerCase(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      sb.append(Character.toLowerCase(s.charAt(i)));
+    }
+    return sb.toString();
+  }
+
+}
@@ -29,6 +29,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -107,6 +109,76 @@ public class TestRegexURLNormalizer extends TestCase {
     }
   }
 
+  public void testRequiredLiterals() throws Exception {
+    assertLiterals("(?i)(;?\\b_?(l|j|bv_)?(sid|phpsessid|sessionid)=.*?)(\\?|&|#|$)",
+        "phpsessid", "sessionid", "sid");
+    assertLiterals("#.*?(\\?|&|$)", "#");
+    assertLiterals("[\\?&\\.]$", "&", ".", "?");
+    assertLiterals("(?<!:)/{2,}", "/");
+    assertLiterals("/((?i)index|default)\\.", "default", "index");
+    assertLiterals("a(b)?c", "a");
+    assertLiterals("\\w+", (String[]) null);
+    assertLiterals("a|.", (String[]) null);
+
+    // a rule must never be skipped on a string it matches
+    List<String> regexes = new ArrayList<String>();
+    Iterator it = normalizer.getScopedRules().values().iterator();
+    while (it.hasNext()) {
+      for (RegexURLNormalizer.Rule rule : ((RegexRuleSet) it.next()).getRules()) {
+        regexes.add(rule.pattern.pattern());
+      }
+    }
+    regexes.add("x(?<n>y)z");
+    regexes.add("[]a]b");
+    regexes.add("a\\Qb?\\E+c");
+    regexes.add("(?i:AB)c|d\\x41");
+    List<String> inputs = new ArrayList<String>();
+    it = testData.values().iterator();
+    while (it.hasNext()) {
+      for (NormalizedURL url : (NormalizedURL[]) it.next()) {
+        inputs.add(url.url);
+      }
+    }
+    String alphabet = "abcdxyzABSIDsid=?&#./:]_-";
+    Random random = new Random(0);
+    for (int i = 0; i < 5000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      inputs.add(sb.toString());
+    }
+    for (String regex : regexes) {
+      String[] literals = RequiredLiterals.of(regex);
+      if (literals == null) {
+        continue;
+      }
+      Pattern pattern = Pattern.compile(regex);
+      for (String input : inputs) {
+        if (pattern.matcher(input).find()) {
+          String lower = input.toLowerCase();
+          boolean found = false;
+          for (String literal : literals) {
+            found |= lower.contains(literal);
+          }
+          assertTrue(regex + " on " + input, found);
+        }
+      }
+    }
+  }
+
+  private static void assertLiterals(String regex, String... expected) {
+    String[] literals = RequiredLiterals.of(regex);
+    if (expected == null) {
+      assertNull(regex, literals);
+      return;
+    }
+    assertNotNull(regex, literals);
+    java.util.Arrays.sort(literals);
+    assertEquals(regex, java.util.Arrays.asList(expected), java.util.Arrays.asList(literals));
+  }
+
   private void normalizeTest(NormalizedURL[] urls, String scope) throws Exception {
     for (int i = 0; i < urls.length; i++) {
       String url = urls[i].url;
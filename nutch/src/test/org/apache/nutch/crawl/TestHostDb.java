@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestHostDb extends TestCase {
+
+  private static final String[] PREFIXES = { "/private", "/" };
+  private static final boolean[] ALLOWED = { false, true };
+
+  Configuration conf;
+  FileSystem fs;
+  Path testDir;
+  Path hostDb;
+
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.get(conf);
+    testDir = new Path("build/test/test-hostdb-" +
+            new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+    hostDb = new Path(testDir, "hostdb");
+  }
+
+  public void tearDown() {
+    try {
+      if (fs.exists(testDir))
+        fs.delete(testDir, true);
+    } catch (Exception e) { }
+  }
+
+  public void testUpdate() throws Exception {
+    // a first fetch job fetches the robots.txt of a host
+    HostDbStore store = HostDbStore.open(conf, hostDb);
+    assertSame(store, HostDbStore.get());
+    assertNull(store.getRobotRules("a.com"));
+    store.setRobotRules("a.com", PREFIXES, ALLOWED, 5000);
+    store.addFetch("a.com", 100, false);
+    store.addFetch("a.com", 30000, true);
+    store.addFetch("b.com", 200, false);
+    Path segment1 = writeSegment(store, "1");
+    store.close();
+    assertNull(HostDbStore.get());
+    new HostDb(conf).update(hostDb, new Path[] { segment1 });
+
+    // the next one reuses them
+    store = HostDbStore.open(conf, hostDb);
+    HostDatum datum = store.getRobotRules("a.com");
+    assertNotNull(datum);
+    assertTrue(Arrays.equals(PREFIXES, datum.getRobotsPrefixes()));
+    assertTrue(Arrays.equals(ALLOWED, datum.getRobotsAllowed()));
+    assertEquals(5000, datum.getCrawlDelay());
+    assertEquals(2, datum.getFetches());
+    assertEquals(1, datum.getErrors());
+    assertEquals(30000, datum.getResponseTime());
+    assertNull(store.getRobotRules("b.com"));
+    assertEquals(1, store.getStored("b.com").getFetches());
+    assertNull(store.getStored("c.com"));
+    assertEquals(1, store.getRobotsReused());
+
+    store.addFetch("a.com", 150, false);
+    Path segment2 = writeSegment(store, "2");
+    store.close();
+    new HostDb(conf).update(hostDb, new Path[] { segment2 });
+
+    store = HostDbStore.open(conf, hostDb);
+    datum = store.getRobotRules("a.com");
+    assertNotNull(datum);
+    assertEquals(3, datum.getFetches());
+    assertEquals(1, datum.getErrors());
+    assertEquals(150, datum.getResponseTime());
+    store.close();
+  }
+
+  public void testStaleRobotRules() throws Exception {
+    long twoDaysAgo = System.currentTimeMillis() - 2 * 86400 * 1000L;
+    HostDatum datum = new HostDatum();
+    datum.setRobotRules(PREFIXES, ALLOWED, -1, twoDaysAgo);
+    datum.addFetch(twoDaysAgo, 100, false);
+    Path segment = new Path(testDir, "segment");
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+        new Path(new Path(segment, HostDb.FETCH_DIR_NAME), "part-00000"),
+        Text.class, HostDatum.class);
+    writer.append(new Text("a.com"), datum);
+    writer.close();
+
+    // still recent enough when allowed three days
+    conf.setLong(HostDb.ROBOTS_MAX_AGE, 3 * 86400);
+    HostDbStore store = HostDbStore.open(conf, hostDb);
+    new HostDb(conf).update(hostDb, new Path[] { segment });
+    store.close();
+    store = HostDbStore.open(conf, hostDb);
+    assertNotNull(store.getRobotRules("a.com"));
+    store.close();
+
+    // not with the default of one day
+    conf.setLong(HostDb.ROBOTS_MAX_AGE, HostDb.DEFAULT_ROBOTS_MAX_AGE);
+    store = HostDbStore.open(conf, hostDb);
+    assertNull(store.getRobotRules("a.com"));
+    assertEquals(1, store.getRobotsStale());
+    store.close();
+    new HostDb(conf).update(hostDb, new Path[] { segment });
+    store = HostDbStore.open(conf, hostDb);
+    datum = store.getStored("a.com");
+    assertFalse(datum.hasRobotRules());
+    assertEquals(2, datum.getFetches());
+    store.close();
+  }
+
+  private Path writeSegment(HostDbStore store, String name) throws Exception {
+    Path segment = new Path(testDir, name);
+    store.write(new Path(new Path(segment, HostDb.FETCH_DIR_NAME), "part-00000"));
+    return segment;
+  }
+
+}
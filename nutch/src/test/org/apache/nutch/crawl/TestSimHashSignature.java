@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.parse.ParseImpl;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+
+public class TestSimHashSignature extends TestCase {
+
+  private SimHashSignature signature;
+
+  protected void setUp() {
+    signature = new SimHashSignature();
+    signature.setConf(NutchConfiguration.create());
+  }
+
+  private static String productSheet(Random random, int words) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      text.append("word").append(random.nextInt(500)).append(' ');
+    }
+    return text.toString();
+  }
+
+  private byte[] calculate(String text) {
+    return signature.calculate(null, new ParseImpl(text, null));
+  }
+
+  public void testNearDuplicates() {
+    String text = productSheet(new Random(1), 1000);
+    byte[] original = calculate(text);
+    assertEquals(SimHashSignature.LENGTH, original.length);
+
+    // case and punctuation don't count
+    assertEquals(0, SimHashSignature.distance(original,
+        calculate(text.toUpperCase().replace(' ', ','))));
+
+    // a few words changed
+    String changed = text.replace("word12 ", "other ").replace("word7 ", "");
+    int distance = SimHashSignature.distance(original, calculate(changed));
+    assertTrue("distance " + distance, distance <= 3);
+
+    // another text
+    distance = SimHashSignature.distance(original,
+        calculate(productSheet(new Random(2), 1000)));
+    assertTrue("distance " + distance, distance > 10);
+  }
+
+  public void testTokens() {
+    // tokens as short as the minimum length are ignored
+    assertEquals(SimHashSignature.simHash("abc", 2),
+        SimHashSignature.simHash("ab abc x", 2));
+    assertTrue(SimHashSignature.simHash("abc", 2)
+        != SimHashSignature.simHash("abd", 2));
+    assertEquals(0, SimHashSignature.simHash(" - ", 2));
+  }
+
+  public void testBytes() {
+    Random random = new Random(3);
+    for (int i = 0; i < 100; i++) {
+      long simHash = random.nextLong();
+      assertEquals(simHash, SimHashSignature.toLong(SimHashSignature.toBytes(simHash)));
+    }
+    assertEquals(64, SimHashSignature.distance(0L, -1L));
+    assertEquals(-1, SimHashSignature.distance(new byte[8], new byte[16]));
+  }
+
+  public void testFallback() {
+    Content content = new Content("http://www.example.com/", "http://www.example.com/",
+        "content".getBytes(), "text/plain", new Metadata(), NutchConfiguration.create());
+    // no text, so the MD5 of the content
+    assertEquals(16, signature.calculate(content, new ParseImpl("", null)).length);
+  }
+
+}
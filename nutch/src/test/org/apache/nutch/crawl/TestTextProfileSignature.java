@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.nutch.parse.ParseImpl;
+import org.apache.nutch.util.NutchConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unit tests for TextProfileSignature: profiles must be those the tokens
+ * counted in a HashMap give.
+ */
+public class TestTextProfileSignature extends TestCase {
+  public static final Logger LOG = LoggerFactory.getLogger(TestTextProfileSignature.class);
+
+  private static final String[] words = {
+    "the", "crawl", "Nutch", "NUTCH", "fetch", "a", "of", "to", "parse",
+    "index", "segment", "résumé", "Über", "日本語",
+    "2012", "x1", "abc", "ABC", "aBc", "link", "page", "url", "host"
+  };
+
+  private static final String[] separators = {
+    " ", " ", " ", "\n", ", ", ". ", "-", "\t", "'", "   "
+  };
+
+  private TextProfileSignature signature;
+
+  protected void setUp() {
+    signature = new TextProfileSignature();
+    signature.setConf(NutchConfiguration.create());
+  }
+
+  private static String randomText(Random random, int tokens, int vocabulary) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < tokens; i++) {
+      if (random.nextInt(4) == 0) {
+        text.append(words[random.nextInt(words.length)]);
+      } else {
+        // a made up word, from a vocabulary of some size
+        int word = random.nextInt(vocabulary);
+        text.append(Integer.toString(word, 36));
+        text.append(random.nextBoolean() ? "ing" : "TION");
+      }
+      text.append(separators[random.nextInt(separators.length)]);
+    }
+    return text.toString();
+  }
+
+  private void check(String text) {
+    for (int minTokenLen = 0; minTokenLen < 4; minTokenLen++) {
+      for (float quantRate : new float[] { 0.01f, 0.1f, 0.5f }) {
+        String expected = TextProfileSignature.getProfile(text, minTokenLen, quantRate);
+        String profile = new TextProfileSignature.Profile(text, minTokenLen)
+          .toString(quantRate);
+        assertEquals(text, expected, profile);
+      }
+    }
+    checkSignature(text);
+  }
+
+  private void checkSignature(String text) {
+    byte[] expected = MD5Hash.digest(TextProfileSignature.getProfile(text, 2, 0.01f))
+      .getDigest();
+    assertTrue(Arrays.equals(expected,
+        signature.calculate(null, new ParseImpl(text, null))));
+  }
+
+  public void testProfiles() {
+    check("a");
+    check("abc");
+    check("abc abc");
+    check("  abc ABC aBc, def; def ");
+    check("end with a token of three");
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      check(randomText(random, random.nextInt(2000), 1 + random.nextInt(3000)));
+    }
+  }
+
+  public void testLargeProfiles() {
+    Random random = new Random(7);
+    for (int i = 0; i < 5; i++) {
+      check(randomText(random, 200000, 50000));
+    }
+  }
+
+  public void testHashCollisions() {
+    // "一丠" and "丁丁" have the same hash code, so all the
+    // tokens made of them land in the same HashMap bucket, which the
+    // HashMap of some JDKs makes a tree
+    String[] blocks = { "一丠", "丁丁" };
+    StringBuilder text = new StringBuilder();
+    for (int n = 0; n < 3; n++) {
+      for (int i = 0; i < 16; i++) {
+        for (int j = 0; j < 4; j++) {
+          text.append(blocks[(i >> j) & 1]);
+        }
+        text.append(' ');
+      }
+      text.append("other tokens ");
+    }
+    check(text.toString());
+
+    // fewer of them are put in a bigger HashMap instead
+    check("一丠一丠 一丠丁丁 丁丁一丠 丁丁丁丁 一丠一丠一丠 一丠一丠丁丁"
+        + " 一丠丁丁一丠 一丠丁丁丁丁 丁丁一丠一丠 丁丁一丠丁丁 a b c");
+  }
+
+  public void testEmpty() {
+    check(" , . ");
+  }
+
+  /**
+   * Calculates the profiles of random texts a number of times, counting
+   * the tokens in a HashMap or not, and logs the texts profiled per second.
+   */
+  private static void bench(int loops, String[] texts, boolean hashMap) {
+    long start = System.currentTimeMillis();
+    for (int n = 0; n < loops; n++) {
+      for (String text : texts) {
+        if (hashMap) {
+          TextProfileSignature.getProfile(text, 2, 0.01f);
+        } else {
+          new TextProfileSignature.Profile(text, 2).toString(0.01f);
+        }
+      }
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    long profiles = (long) loops * texts.length;
+    LOG.info((hashMap ? "HashMap" : "Profile") + ": " + profiles
+        + " texts in " + elapsed + "ms, " + (profiles * 1000 / elapsed)
+        + " texts/sec");
+  }
+
+  public static void main(String[] args) throws Exception {
+    int loops = 1000;
+    if (args.length == 2 && args[0].equals("-bench")) {
+      loops = Integer.parseInt(args[1]);
+    } else if (args.length != 0) {
+      System.err.println("TestTextProfileSignature [-bench <iter>]");
+      System.exit(-1);
+    }
+    Random random = new Random(0);
+    String[] texts = new String[100];
+    for (int i = 0; i < texts.length; i++) {
+      texts[i] = randomText(random, 500 + random.nextInt(2000), 2000);
+    }
+    // warm up both
+    bench(loops / 10 + 1, texts, true);
+    bench(loops / 10 + 1, texts, false);
+    bench(loops, texts, true);
+    bench(loops, texts, false);
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestIndexStateDb extends TestCase {
+
+  JobConf job;
+  LocalFileSystem fs;
+  Path testDir;
+  Path stateDb;
+
+  public void setUp() throws Exception {
+    job = new JobConf(NutchConfiguration.create());
+    fs = FileSystem.getLocal(job);
+    testDir = new Path("build/test/test-indexstate-" +
+            new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+    stateDb = new Path(testDir, "indexstate");
+  }
+
+  public void tearDown() {
+    try {
+      if (fs.exists(testDir))
+        fs.delete(testDir, true);
+    } catch (Exception e) { }
+  }
+
+  private Path segment(String name, boolean parsed) throws Exception {
+    Path segment = new Path(testDir, "segments/" + name);
+    fs.mkdirs(new Path(segment, CrawlDatum.FETCH_DIR_NAME));
+    if (parsed) {
+      fs.mkdirs(new Path(segment, ParseData.DIR_NAME));
+    }
+    return segment;
+  }
+
+  /** Installs the state an indexing job would have written. */
+  private void install(List<Path> segments, String url, IndexState state)
+      throws Exception {
+    Path output = new Path(testDir, "tmp");
+    MapFile.Writer writer = new MapFile.Writer(job, fs,
+        new Path(new Path(output, IndexStateDb.STATE_DIR_NAME), "part-00000").toString(),
+        Text.class, IndexState.class);
+    writer.append(new Text(url), state);
+    writer.close();
+    FileOutputFormat.setOutputPath(job, output);
+    IndexStateDb.initJob(job, stateDb);
+    IndexStateDb.install(job, stateDb, segments);
+    fs.delete(output, true);
+  }
+
+  public void testSegments() throws Exception {
+    Path segment1 = segment("20130101000000", true);
+    Path unparsed = segment("20130102000000", false);
+    List<Path> segments = Arrays.asList(segment1, unparsed);
+    assertEquals(segments, IndexStateDb.selectSegments(fs, stateDb, segments));
+
+    install(segments, "http://a.com/", new IndexState("abc", 1.0f, 1000));
+    // indexed segments are skipped, unless changed since
+    Path segment2 = segment("20130103000000", true);
+    segments = Arrays.asList(segment1, unparsed, segment2);
+    assertEquals(Arrays.asList(unparsed, segment2),
+        IndexStateDb.selectSegments(fs, stateDb, segments));
+    // parsed again
+    fs.pathToFile(new Path(segment1, ParseData.DIR_NAME))
+      .setLastModified(System.currentTimeMillis() + 60000);
+    assertEquals(segments, IndexStateDb.selectSegments(fs, stateDb, segments));
+
+    install(Arrays.asList(segment1), "http://b.com/", new IndexState("def", 0.5f, 2000));
+    assertEquals(Arrays.asList(unparsed, segment2),
+        IndexStateDb.selectSegments(fs, stateDb, segments));
+
+    // the states of the last job are installed
+    MapFile.Reader reader = new MapFile.Reader(fs,
+        new Path(new Path(stateDb, IndexStateDb.CURRENT_NAME), "part-00000").toString(), job);
+    IndexState state = new IndexState();
+    assertNull(reader.get(new Text("http://a.com/"), state));
+    assertNotNull(reader.get(new Text("http://b.com/"), state));
+    assertEquals("def", state.getSignature());
+    assertEquals(0.5f, state.getBoost());
+    assertEquals(2000, state.getLastIndexed());
+    reader.close();
+    assertFalse(fs.exists(new Path(stateDb, IndexStateDb.LOCK_NAME)));
+  }
+
+  public void testIsIndexed() {
+    IndexState state = new IndexState("abc", 0.5f, 1000);
+    assertTrue(state.isIndexed("abc", 0.5f));
+    assertFalse(state.isIndexed("abd", 0.5f));
+    assertFalse(state.isIndexed("abc", 0.25f));
+    assertFalse(state.isIndexed(null, 0.5f));
+  }
+
+}
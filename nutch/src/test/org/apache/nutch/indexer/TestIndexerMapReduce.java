@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutch.parse.ParseText;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Unit tests for the IndexerMapReduce reducer with an index state db. */
+public class TestIndexerMapReduce extends TestCase {
+
+  JobConf job;
+  FileSystem fs;
+  Path testDir;
+
+  public void setUp() throws Exception {
+    job = new JobConf(NutchConfiguration.create());
+    // no indexing or scoring filters, the boost is 1.0
+    job.set("plugin.includes", "nutch-extensionpoints");
+    job.setBoolean(IndexerMapReduce.INDEXER_STATE, true);
+    job.setBoolean(IndexerMapReduce.INDEXER_DELETE, true);
+    fs = FileSystem.getLocal(job);
+    testDir = new Path("build/test/test-indexer-" +
+            new java.util.Random().nextInt());
+    fs.mkdirs(testDir);
+    // as the task running the reducer
+    job.set("mapred.work.output.dir", testDir.toString());
+    job.setBoolean("mapred.task.is.map", false);
+    job.setInt("mapred.task.partition", 0);
+  }
+
+  public void tearDown() {
+    try {
+      if (fs.exists(testDir))
+        fs.delete(testDir, true);
+    } catch (Exception e) { }
+  }
+
+  private static CrawlDatum datum(byte status) {
+    return new CrawlDatum(status, 3600);
+  }
+
+  private static ParseData parseData(String signature) {
+    Metadata contentMeta = new Metadata();
+    contentMeta.set(Nutch.SIGNATURE_KEY, signature);
+    contentMeta.set(Nutch.SEGMENT_NAME_KEY, "20130101000000");
+    return new ParseData(ParseStatus.STATUS_SUCCESS, "title", new Outlink[0],
+        contentMeta);
+  }
+
+  /**
+   * Reduces the values of a url, but null ones, returning the actions
+   * output.
+   */
+  private static List<NutchIndexAction> reduce(IndexerMapReduce reducer,
+      String url, Writable... values) throws Exception {
+    List<NutchWritable> wrapped = new ArrayList<NutchWritable>();
+    for (Writable value : values) {
+      if (value != null) {
+        wrapped.add(new NutchWritable(value));
+      }
+    }
+    final List<NutchIndexAction> actions = new ArrayList<NutchIndexAction>();
+    reducer.reduce(new Text(url), wrapped.iterator(),
+        new OutputCollector<Text, NutchIndexAction>() {
+          public void collect(Text key, NutchIndexAction action) {
+            actions.add(action);
+          }
+        }, Reporter.NULL);
+    return actions;
+  }
+
+  /** Reduces a url fetched and parsed with a signature. */
+  private static List<NutchIndexAction> reduceFetched(IndexerMapReduce reducer,
+      String url, String signature, IndexState state) throws Exception {
+    return reduce(reducer, url, datum(CrawlDatum.STATUS_DB_FETCHED),
+        datum(CrawlDatum.STATUS_FETCH_SUCCESS), parseData(signature),
+        new ParseText("text"), state);
+  }
+
+  public void testReduce() throws Exception {
+    IndexerMapReduce reducer = new IndexerMapReduce();
+    reducer.configure(job);
+
+    // in the index as it is
+    assertTrue(reduceFetched(reducer, "http://a.com/", "sig-a",
+        new IndexState("sig-a", 1.0f, 1000)).isEmpty());
+
+    // boost changed
+    List<NutchIndexAction> actions = reduceFetched(reducer, "http://b.com/",
+        "sig-b", new IndexState("sig-b", 0.5f, 1000));
+    assertEquals(1, actions.size());
+    assertEquals(NutchIndexAction.ADD, actions.get(0).action);
+    assertEquals("1.0", actions.get(0).doc.getFieldValue("boost"));
+
+    // signature changed
+    actions = reduceFetched(reducer, "http://c.com/", "sig-c",
+        new IndexState("sig-old", 1.0f, 1000));
+    assertEquals(1, actions.size());
+    assertEquals(NutchIndexAction.ADD, actions.get(0).action);
+
+    // gone, deleted by the job
+    actions = reduce(reducer, "http://d.com/", datum(CrawlDatum.STATUS_DB_FETCHED),
+        datum(CrawlDatum.STATUS_FETCH_GONE), new IndexState("sig-d", 1.0f, 1000));
+    assertEquals(1, actions.size());
+    assertEquals(NutchIndexAction.DELETE, actions.get(0).action);
+
+    // gone in the crawl db, deleted by SolrClean
+    assertTrue(reduce(reducer, "http://e.com/", datum(CrawlDatum.STATUS_DB_GONE),
+        new IndexState("sig-e", 1.0f, 1000)).isEmpty());
+
+    // not fetched again, stays in the index
+    assertTrue(reduce(reducer, "http://f.com/", datum(CrawlDatum.STATUS_DB_FETCHED),
+        new IndexState("sig-f", 1.0f, 1000)).isEmpty());
+
+    // new
+    actions = reduceFetched(reducer, "http://g.com/", "sig-g", null);
+    assertEquals(1, actions.size());
+    reducer.close();
+
+    MapFile.Reader reader = new MapFile.Reader(fs, new Path(new Path(testDir,
+        IndexStateDb.STATE_DIR_NAME), "part-r-00000").toString(), job);
+    IndexState state = new IndexState();
+    assertNotNull(reader.get(new Text("http://a.com/"), state));
+    assertEquals(1000, state.getLastIndexed());
+    assertNotNull(reader.get(new Text("http://b.com/"), state));
+    assertEquals(1.0f, state.getBoost());
+    assertTrue(state.getLastIndexed() > 1000);
+    assertNotNull(reader.get(new Text("http://c.com/"), state));
+    assertEquals("sig-c", state.getSignature());
+    assertNull(reader.get(new Text("http://d.com/"), state));
+    assertNull(reader.get(new Text("http://e.com/"), state));
+    assertNotNull(reader.get(new Text("http://f.com/"), state));
+    assertEquals("sig-f", state.getSignature());
+    assertNotNull(reader.get(new Text("http://g.com/"), state));
+    reader.close();
+  }
+
+}
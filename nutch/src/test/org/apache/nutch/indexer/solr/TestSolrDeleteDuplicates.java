@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer.solr;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrInputSplit;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrRecord;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrRecordReader;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import junit.framework.TestCase;
+
+public class TestSolrDeleteDuplicates extends TestCase {
+
+  private static final Pattern RANGE =
+    Pattern.compile("id:([\\[{])(\\S+) TO (\\S+?)([\\]}])");
+
+  /** Answers the range queries of the reader from sorted ids. */
+  private static class IdServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+
+    List<String> ids = new ArrayList<String>();
+    int queries = 0;
+
+    public NamedList<Object> request(SolrRequest request) {
+      SolrParams params = request.getParams();
+      assertEquals("id asc", params.get(CommonParams.SORT));
+      Matcher range = RANGE.matcher(params.get(CommonParams.FQ));
+      assertTrue(range.matches());
+      int rows = params.getInt(CommonParams.ROWS);
+      SolrDocumentList docs = new SolrDocumentList();
+      for (String id : ids) {
+        int lower = range.group(2).equals("*") ? 1 : id.compareTo(range.group(2));
+        int upper = range.group(3).equals("*") ? -1 : id.compareTo(range.group(3));
+        if ((lower > 0 || lower == 0 && range.group(1).equals("["))
+            && (upper < 0 || upper == 0 && range.group(4).equals("]"))
+            && docs.size() < rows) {
+          SolrDocument doc = new SolrDocument();
+          doc.setField(SolrConstants.ID_FIELD, id);
+          doc.setField(SolrConstants.DIGEST_FIELD, "digest-" + id);
+          doc.setField(SolrConstants.BOOST_FIELD, 1.0f);
+          doc.setField(SolrConstants.TIMESTAMP_FIELD, new Date(1000));
+          docs.add(doc);
+        }
+      }
+      queries++;
+      NamedList<Object> response = new NamedList<Object>();
+      response.add("response", docs);
+      return response;
+    }
+  }
+
+  public void testRangeQuery() {
+    assertEquals("id:[* TO *]", SolrDeleteDuplicates.getRangeQuery("", true, ""));
+    assertEquals("id:{http\\://a.com/ TO http\\://b.com/}",
+        SolrDeleteDuplicates.getRangeQuery("http://a.com/", false, "http://b.com/"));
+  }
+
+  public void testRead() throws Exception {
+    IdServer solr = new IdServer();
+    for (int i = 10; i < 30; i++) {
+      solr.ids.add("doc" + i);
+    }
+    SolrRecordReader reader = new SolrRecordReader(solr,
+        new SolrInputSplit("doc12", "doc24", 12), 4);
+    Text key = reader.createKey();
+    SolrRecord value = reader.createValue();
+    for (int i = 12; i < 24; i++) {
+      assertTrue(reader.next(key, value));
+      assertEquals("doc" + i, value.getId());
+      assertEquals("digest-doc" + i, key.toString());
+      assertEquals(1000, value.getTstamp());
+    }
+    assertFalse(reader.next(key, value));
+    assertEquals(1.0f, reader.getProgress());
+    reader.close();
+    // three full pages, and the empty one telling the end
+    assertEquals(4, solr.queries);
+
+    reader = new SolrRecordReader(solr, new SolrInputSplit("doc27", "", 3), 4);
+    for (int i = 27; i < 30; i++) {
+      assertTrue(reader.next(key, value));
+      assertEquals("doc" + i, value.getId());
+    }
+    assertFalse(reader.next(key, value));
+    reader.close();
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.indexer.solr.SolrDeleteDuplicates.SolrRecord;
+import org.apache.nutch.indexer.solr.SolrDeleteNearDuplicates.SimHashRecord;
+
+import junit.framework.TestCase;
+
+public class TestSolrDeleteNearDuplicates extends TestCase {
+
+  private static SimHashRecord record(String id, float boost, long tstamp,
+      long simHash) {
+    return new SimHashRecord(new SolrRecord(id, boost, tstamp), simHash);
+  }
+
+  public void testBands() {
+    Random random = new Random(1);
+    for (int bands = 1; bands <= 64; bands++) {
+      long simHash = random.nextLong();
+      // the bands put back together give the SimHash
+      long joined = 0;
+      int shift = 0;
+      for (int band = 0; band < bands; band++) {
+        long value = SolrDeleteNearDuplicates.getBand(simHash, band, bands);
+        joined |= value << shift;
+        shift += 64 / bands + (band < 64 % bands ? 1 : 0);
+      }
+      assertEquals(64, shift);
+      assertEquals(simHash, joined);
+    }
+  }
+
+  public void testNearDuplicatesShareABand() {
+    Random random = new Random(2);
+    int bands = 4;
+    for (int i = 0; i < 1000; i++) {
+      long simHash = random.nextLong();
+      long near = simHash;
+      for (int bit = 0; bit < 3; bit++) {
+        near ^= 1L << random.nextInt(64);
+      }
+      boolean shared = false;
+      for (int band = 0; band < bands; band++) {
+        shared |= SolrDeleteNearDuplicates.getBand(simHash, band, bands)
+          == SolrDeleteNearDuplicates.getBand(near, band, bands);
+      }
+      assertTrue(shared);
+    }
+  }
+
+  public void testFindDuplicates() {
+    List<SimHashRecord> records = new ArrayList<SimHashRecord>();
+    records.add(record("low-boost", 0.5f, 3, 0x0FL));
+    records.add(record("best", 1.0f, 1, 0x0L));
+    records.add(record("newer", 1.0f, 2, 0x0100L));
+    records.add(record("far", 2.0f, 1, 0xFFFFL));
+    records.add(record("chained", 0.1f, 1, 0x3FL));
+
+    Map<String, List<String>> duplicates = new HashMap<String, List<String>>();
+    assertFalse(SolrDeleteNearDuplicates.findDuplicates(
+        new ArrayList<SimHashRecord>(records), 4, 1000, duplicates));
+    // newer is kept over best. low-boost is near best only, which is not
+    // kept, and chained is near low-boost only.
+    assertEquals(2, duplicates.size());
+    assertEquals(Arrays.asList("newer"), duplicates.get("best"));
+    assertEquals(Arrays.asList("low-boost"), duplicates.get("chained"));
+
+    // chained is compared to the three documents kept before it
+    duplicates.clear();
+    assertFalse(SolrDeleteNearDuplicates.findDuplicates(
+        new ArrayList<SimHashRecord>(records), 4, 3, duplicates));
+    assertEquals(2, duplicates.size());
+
+    // only compared to the two best documents kept
+    duplicates.clear();
+    assertTrue(SolrDeleteNearDuplicates.findDuplicates(
+        new ArrayList<SimHashRecord>(records), 4, 2, duplicates));
+    assertEquals(1, duplicates.size());
+    assertTrue(duplicates.containsKey("best"));
+  }
+
+  private static List<String> survivors(String keptId, String... values)
+      throws Exception {
+    final List<String> ids = new ArrayList<String>();
+    List<Text> texts = new ArrayList<Text>();
+    for (String value : values) {
+      texts.add(new Text(value));
+    }
+    new SolrDeleteNearDuplicates.SurvivorReducer().reduce(new Text(keptId),
+        texts.iterator(), new OutputCollector<Text, NullWritable>() {
+          public void collect(Text id, NullWritable value) {
+            ids.add(id.toString());
+          }
+        }, Reporter.NULL);
+    return ids;
+  }
+
+  public void testSurvivors() throws Exception {
+    // the duplicates of a document kept in every band are deleted
+    assertEquals(Arrays.asList("a", "b"), survivors("kept", "a", "b"));
+    // not those of a document which is a duplicate in another band
+    assertEquals(0, survivors("kept", "a", "", "b").size());
+    assertEquals(0, survivors("kept", "").size());
+  }
+
+}
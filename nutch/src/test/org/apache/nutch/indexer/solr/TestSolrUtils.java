@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import junit.framework.TestCase;
+
+public class TestSolrUtils extends TestCase {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestSolrUtils.class);
+
+  private JobConf createJob() {
+    JobConf job = new JobConf(NutchConfiguration.create());
+    job.set(SolrConstants.SERVER_URL, "http://localhost:8983/solr");
+    return job;
+  }
+
+  public void testSharedConnectionManager() throws IOException {
+    JobConf job = createJob();
+    CommonsHttpSolrServer s1 = SolrUtils.getCommonsHttpSolrServer(job);
+    CommonsHttpSolrServer s2 = SolrUtils.getCommonsHttpSolrServer(job);
+    assertNotSame(s1.getHttpClient(), s2.getHttpClient());
+    assertSame(s1.getHttpClient().getHttpConnectionManager(),
+        s2.getHttpClient().getHttpConnectionManager());
+  }
+
+  public void testJavaBinPath() {
+    UpdateRequest req = new UpdateRequest();
+    assertEquals("/update", new SolrUtils.JavaBinRequestWriter().getPath(req));
+  }
+
+  private static UpdateRequest createRequest(int numDocs) {
+    UpdateRequest req = new UpdateRequest();
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      content.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+    }
+    for (int i = 0; i < numDocs; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "http://www.example.com/page/" + i);
+      doc.addField("url", "http://www.example.com/page/" + i);
+      doc.addField("title", "Example page <" + i + "> & more");
+      doc.addField("content", content.toString());
+      doc.addField("boost", 1.0f);
+      doc.addField("tstamp", "2013-10-18T12:00:00Z");
+      req.add(doc);
+    }
+    return req;
+  }
+
+  private static int marshal(JavaBinUpdateRequestCodec codec,
+      UpdateRequest req) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.marshal(req, out);
+    return out.size();
+  }
+
+  public void testJavaBinSize() throws IOException {
+    UpdateRequest req = createRequest(100);
+    int xmlBytes = req.getXML().getBytes("UTF-8").length;
+    int binBytes = marshal(new JavaBinUpdateRequestCodec(), req);
+    assertTrue(binBytes < xmlBytes);
+  }
+
+  /**
+   * Encodes a request of a number of documents as XML and as javabin ten
+   * times each, and logs the size and documents encoded per second.
+   */
+  private static void bench(int numDocs) throws IOException {
+    UpdateRequest req = createRequest(numDocs);
+    JavaBinUpdateRequestCodec codec = new JavaBinUpdateRequestCodec();
+
+    long xmlBytes = 0, binBytes = 0;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      xmlBytes = req.getXML().getBytes("UTF-8").length;
+    }
+    long xmlTime = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      binBytes = marshal(codec, req);
+    }
+    long binTime = System.currentTimeMillis() - start;
+
+    LOG.info("XML: " + xmlBytes + " bytes, "
+        + (10000L * numDocs / Math.max(1, xmlTime)) + " docs/sec; javabin: "
+        + binBytes + " bytes, " + (10000L * numDocs / Math.max(1, binTime))
+        + " docs/sec");
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = 1000;
+    if (args.length == 2 && args[0].equals("-bench")) {
+      numDocs = Integer.parseInt(args[1]);
+    } else if (args.length != 0) {
+      System.err.println("TestSolrUtils [-bench <docs>]");
+      System.exit(-1);
+    }
+    bench(numDocs);
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.indexer.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.nutch.indexer.IndexerMapReduce;
+import org.apache.nutch.indexer.NutchDocument;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+import junit.framework.TestCase;
+
+public class TestSolrWriter extends TestCase {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestSolrWriter.class);
+
+  /** Records the ids of all documents sent, failing the first requests. */
+  private static class MockSolrServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+
+    final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> deletes = Collections.synchronizedList(new ArrayList<String>());
+    final long latency;
+    int failures;
+    int requests;
+
+    MockSolrServer(long latency, int failures) {
+      this.latency = latency;
+      this.failures = failures;
+    }
+
+    public NamedList<Object> request(SolrRequest request)
+      throws SolrServerException, IOException {
+      synchronized (this) {
+        requests++;
+        if (failures > 0) {
+          failures--;
+          throw new SolrServerException("connection refused");
+        }
+      }
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        throw new SolrServerException(e);
+      }
+      List<SolrInputDocument> docs = ((UpdateRequest) request).getDocuments();
+      if (docs != null) {
+        for (SolrInputDocument doc : docs) {
+          ids.add((String) doc.getFieldValue("id"));
+        }
+      }
+      List<String> deleteIds = ((UpdateRequest) request).getDeleteById();
+      if (deleteIds != null) {
+        deletes.addAll(deleteIds);
+      }
+      return new NamedList<Object>();
+    }
+  }
+
+  private static JobConf createJob(int threads) {
+    JobConf job = new JobConf(NutchConfiguration.create());
+    job.setInt(SolrConstants.COMMIT_SIZE, 10);
+    job.setInt(SolrConstants.WRITER_THREADS, threads);
+    job.setLong(SolrConstants.WRITER_RETRY_DELAY, 1);
+    return job;
+  }
+
+  private static long index(SolrWriter writer, int numDocs) throws IOException {
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numDocs; i++) {
+      NutchDocument doc = new NutchDocument();
+      doc.add("id", "http://www.example.com/" + i);
+      writer.write(doc);
+    }
+    writer.close();
+    return System.currentTimeMillis() - start;
+  }
+
+  public void testSynchronous() throws IOException {
+    MockSolrServer server = new MockSolrServer(0, 0);
+    SolrWriter writer = new SolrWriter();
+    writer.init(server, createJob(0));
+    index(writer, 95);
+    assertEquals(95, server.ids.size());
+    assertEquals(10, server.requests);
+  }
+
+  public void testAsynchronous() throws IOException {
+    MockSolrServer server = new MockSolrServer(5, 0);
+    SolrWriter writer = new SolrWriter();
+    writer.init(server, createJob(4));
+    index(writer, 995);
+    // close() returns only after every batch was sent
+    assertEquals(995, server.ids.size());
+    assertEquals(100, server.requests);
+  }
+
+  public void testDeletes() throws IOException {
+    MockSolrServer server = new MockSolrServer(0, 0);
+    SolrWriter writer = new SolrWriter();
+    JobConf job = createJob(0);
+    job.setBoolean(IndexerMapReduce.INDEXER_DELETE, true);
+    writer.init(server, job);
+    for (int i = 0; i < 25; i++) {
+      writer.delete("http://www.example.com/gone/" + i);
+    }
+    index(writer, 10);
+    // deletes travel in the same requests as the added documents
+    assertEquals(25, server.deletes.size());
+    assertEquals(10, server.ids.size());
+    assertEquals(4, server.requests);
+  }
+
+  public void testRetry() throws IOException {
+    MockSolrServer server = new MockSolrServer(0, 2);
+    SolrWriter writer = new SolrWriter();
+    writer.init(server, createJob(2));
+    index(writer, 50);
+    assertEquals(50, server.ids.size());
+    assertEquals(7, server.requests);
+  }
+
+  public void testFailure() {
+    MockSolrServer server = new MockSolrServer(0, 100);
+    SolrWriter writer = new SolrWriter();
+    try {
+      writer.init(server, createJob(2));
+      index(writer, 50);
+      fail("failed batches must fail the writer");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Indexes a number of documents into a server answering each request
+   * after 20ms, with the synchronous writer and with 4 sender threads, and
+   * logs the time taken by each.
+   */
+  private static void bench(int numDocs) throws IOException {
+    MockSolrServer server = new MockSolrServer(20, 0);
+    SolrWriter writer = new SolrWriter();
+    writer.init(server, createJob(0));
+    long sync = index(writer, numDocs);
+
+    server = new MockSolrServer(20, 0);
+    writer = new SolrWriter();
+    writer.init(server, createJob(4));
+    long async = index(writer, numDocs);
+
+    LOG.info("SolrWriter: " + numDocs + " documents, synchronous " + sync
+        + "ms, 4 threads " + async + "ms");
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = 1000;
+    if (args.length == 2 && args[0].equals("-bench")) {
+      numDocs = Integer.parseInt(args[1]);
+    } else if (args.length != 0) {
+      System.err.println("TestSolrWriter [-bench <docs>]");
+      System.exit(-1);
+    }
+    bench(numDocs);
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TestURLNormalizeFilterCache extends TestCase {
+
+  /** Lower cases urls and rejects images, counting the computations. */
+  private static class LowerCaseCache extends URLNormalizeFilterCache {
+
+    AtomicInteger computed = new AtomicInteger();
+
+    LowerCaseCache(long maxSize) {
+      super(maxSize);
+    }
+
+    String compute(String url, String scope, URLNormalizers normalizers,
+        URLFilters filters) throws Exception {
+      computed.incrementAndGet();
+      if (url.startsWith("bad:")) {
+        throw new java.net.MalformedURLException(url);
+      }
+      return url.endsWith(".gif") ? null : url.toLowerCase();
+    }
+  }
+
+  public void testHits() {
+    LowerCaseCache cache = new LowerCaseCache(1024 * 1024);
+    String scope = URLNormalizers.SCOPE_OUTLINK;
+    assertEquals("http://a.com/x", cache.normalizeAndFilter("http://A.com/x", scope, null, null));
+    assertEquals("http://a.com/x", cache.normalizeAndFilter("http://A.com/x", scope, null, null));
+    assertNull(cache.normalizeAndFilter("http://a.com/x.gif", scope, null, null));
+    assertNull(cache.normalizeAndFilter("http://a.com/x.gif", scope, null, null));
+    assertNull(cache.normalizeAndFilter("bad:x", scope, null, null));
+    assertNull(cache.normalizeAndFilter("bad:x", scope, null, null));
+    assertEquals(3, cache.computed.get());
+    assertEquals(3, cache.getHits());
+    assertEquals(3, cache.getMisses());
+    assertEquals(0.5f, cache.getHitRate());
+
+    // another scope is another entry
+    cache.normalizeAndFilter("http://A.com/x", URLNormalizers.SCOPE_FETCHER, null, null);
+    assertEquals(4, cache.computed.get());
+    assertEquals(4, cache.size());
+  }
+
+  public void testEviction() {
+    LowerCaseCache cache = new LowerCaseCache(16 * 1024);
+    String scope = URLNormalizers.SCOPE_OUTLINK;
+    String hot = "http://example.com/menu";
+    for (int i = 0; i < 10000; i++) {
+      cache.normalizeAndFilter(hot, scope, null, null);
+      cache.normalizeAndFilter("http://example.com/page" + i, scope, null, null);
+    }
+    assertTrue(cache.getEvictions() > 0);
+    assertTrue(cache.size() < 200);
+    assertEquals(cache.getMisses(), cache.size() + cache.getEvictions());
+    // the hot url is only computed once, however many urls pass by
+    assertEquals(9999, cache.getHits());
+  }
+
+  public void testConcurrentAccess() throws Exception {
+    final LowerCaseCache cache = new LowerCaseCache(64 * 1024);
+    final String scope = URLNormalizers.SCOPE_OUTLINK;
+    final int lookups = 20000;
+    final AtomicInteger wrong = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int seed = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < lookups; i++) {
+            int n = (i * 31 + seed) % 2000;
+            String url = "http://Example.com/" + n + (n % 10 == 0 ? ".gif" : "");
+            String result = cache.normalizeAndFilter(url, scope, null, null);
+            String expected = n % 10 == 0 ? null : url.toLowerCase();
+            if (expected == null ? result != null : !expected.equals(result)) {
+              wrong.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, wrong.get());
+    assertEquals(threads.length * lookups, cache.getHits() + cache.getMisses());
+    assertEquals(cache.getMisses(), cache.computed.get());
+  }
+
+}
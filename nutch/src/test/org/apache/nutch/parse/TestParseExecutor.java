@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+
+/** Unit tests for ParseExecutor. */
+public class TestParseExecutor extends TestCase {
+
+  private Configuration conf;
+  private CountDownLatch release;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setInt(ParseExecutor.THREADS, 2);
+    conf.setInt(ParseExecutor.QUARANTINE_TIMEOUTS, 2);
+    release = new CountDownLatch(1);
+  }
+
+  protected void tearDown() throws Exception {
+    release.countDown();
+  }
+
+  private static Content content(String url, String type) {
+    return new Content(url, url, new byte[0], type, new Metadata(),
+        NutchConfiguration.create());
+  }
+
+  private static Callable<ParseResult> quick(final Content content) {
+    return new Callable<ParseResult>() {
+      public ParseResult call() {
+        return ParseStatus.STATUS_SUCCESS.getEmptyParseResult(content.getUrl(), null);
+      }
+    };
+  }
+
+  /** A parse which ignores interrupts until released. */
+  private Callable<ParseResult> hanging(final Content content) {
+    return new Callable<ParseResult>() {
+      public ParseResult call() {
+        while (true) {
+          try {
+            release.await();
+            return ParseStatus.STATUS_SUCCESS.getEmptyParseResult(content.getUrl(), null);
+          } catch (InterruptedException e) {
+            // keep hanging
+          }
+        }
+      }
+    };
+  }
+
+  public void testParse() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content content = content("http://www.example.com/", "text/html");
+    ParseResult result = executor.run("quick", content, quick(content), 10);
+    assertNotNull(result);
+    assertTrue(result.isSuccess());
+    long[] times = executor.getTimes("quick");
+    assertEquals(5, times.length);
+    assertEquals(1, times[0] + times[1] + times[2] + times[3] + times[4]);
+    assertNull(executor.getTimes("unknown"));
+  }
+
+  public void testErrors() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content content = content("http://www.example.com/", "text/html");
+    assertNull(executor.run("failing", content, new Callable<ParseResult>() {
+      public ParseResult call() throws Exception {
+        throw new Exception("failed");
+      }
+    }, 10));
+    assertNull(executor.run("failing", content, new Callable<ParseResult>() {
+      public ParseResult call() throws Exception {
+        throw new Exception("failed");
+      }
+    }, -1));
+    assertEquals(0, executor.getTimeouts());
+  }
+
+  public void testHungParsesKeepTheirThreads() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content a = content("http://a.example.com/", "application/a");
+    Content b = content("http://b.example.com/", "application/b");
+    Content c = content("http://c.example.com/", "text/html");
+    assertNull(executor.run("hanging", a, hanging(a), 1));
+    assertNull(executor.run("hanging", b, hanging(b), 1));
+    assertEquals(2, executor.getTimeouts());
+    assertEquals(2, executor.getHung());
+
+    // both threads hang, no parse can run
+    assertNull(executor.run("quick", c, quick(c), 1));
+    assertEquals(1, executor.getRejected());
+
+    // until the hung parses end
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (executor.getHung() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, executor.getHung());
+    assertNotNull(executor.run("quick", c, quick(c), 1));
+  }
+
+  public void testQuarantine() throws Exception {
+    conf.setInt(ParseExecutor.THREADS, 4);
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content first = content("http://slow.example.com/1", "application/slow");
+    Content second = content("http://slow.example.com/2", "application/slow");
+    Content other = content("http://www.example.com/", "text/html");
+    Content sameHost = content("http://slow.example.com/3", "text/html");
+
+    assertNull(executor.run("hanging", first, hanging(first), 1));
+    assertFalse(executor.isQuarantined(first));
+    assertNull(executor.run("hanging", second, hanging(second), 1));
+    assertTrue(executor.isQuarantined(first));
+    assertTrue(executor.isQuarantined(sameHost));
+    assertFalse(executor.isQuarantined(other));
+    assertEquals(2, executor.getQuarantined());
+  }
+
+  public void testSlowHostDoesNotBlockContentType() throws Exception {
+    conf.setInt(ParseExecutor.THREADS, 4);
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content first = content("http://slow.example.com/1", "text/html");
+    Content second = content("http://slow.example.com/2", "text/html");
+    Content other = content("http://www.example.com/", "text/html");
+
+    assertNull(executor.run("hanging", first, hanging(first), 1));
+    assertNull(executor.run("hanging", second, hanging(second), 1));
+    assertTrue(executor.isQuarantined(first));
+    assertFalse(executor.isQuarantined(other));
+    assertNotNull(executor.run("quick", other, quick(other), 1));
+  }
+
+  public void testQuarantineContentTypes() throws Exception {
+    conf.setInt(ParseExecutor.THREADS, 4);
+    conf.setBoolean(ParseExecutor.QUARANTINE_CONTENT_TYPES, true);
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content a = content("http://a.example.com/", "application/slow");
+    Content b = content("http://b.example.com/", "application/slow");
+    Content other = content("http://c.example.com/", "application/slow");
+    assertNull(executor.run("hanging", a, hanging(a), 1));
+    assertNull(executor.run("hanging", b, hanging(b), 1));
+    assertTrue(executor.isQuarantined(other));
+  }
+
+  public void testNoQuarantine() throws Exception {
+    conf.setInt(ParseExecutor.QUARANTINE_TIMEOUTS, 0);
+    ParseExecutor executor = new ParseExecutor(conf);
+    Content a = content("http://slow.example.com/1", "application/slow");
+    Content b = content("http://slow.example.com/2", "application/slow");
+    assertNull(executor.run("hanging", a, hanging(a), 1));
+    assertNull(executor.run("hanging", b, hanging(b), 1));
+    assertFalse(executor.isQuarantined(a));
+  }
+
+  public void testNestedParse() throws Exception {
+    conf.setInt(ParseExecutor.THREADS, 1);
+    final ParseExecutor executor = new ParseExecutor(conf);
+    final Content inner = content("http://www.example.com/a.zip/a", "text/html");
+    Content outer = content("http://www.example.com/a.zip", "application/zip");
+    // the nested parse runs in the thread of the outer one
+    ParseResult result = executor.run("outer", outer, new Callable<ParseResult>() {
+      public ParseResult call() {
+        return executor.run("inner", inner, quick(inner), 1);
+      }
+    }, 10);
+    assertNotNull(result);
+    assertEquals(0, executor.getRejected());
+    assertNotNull(executor.getTimes("inner"));
+  }
+
+}
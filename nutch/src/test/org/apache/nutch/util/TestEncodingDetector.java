@@ -57,7 +57,7 @@ public class TestEncodingDetector extends TestCase {
     detector.autoDetectClues(content, true);
     encoding = detector.guessEncoding(content, "windows-1252");
     // no information is available, so it should return default encoding
-    assertEquals("windows-1252", encoding.toLowerCase());
+    assertEquals("windows-1252", encoding);
 
     metadata.clear();
     metadata.set(Response.CONTENT_TYPE, "text/plain; charset=UTF-16");
@@ -66,7 +66,7 @@ public class TestEncodingDetector extends TestCase {
     detector = new EncodingDetector(conf);
     detector.autoDetectClues(content, true);
     encoding = detector.guessEncoding(content, "windows-1252");
-    assertEquals("utf-16", encoding.toLowerCase());
+    assertEquals("utf-16", encoding);
 
     metadata.clear();
     content = new Content("http://www.example.com", "http://www.example.com/",
@@ -75,7 +75,7 @@ public class TestEncodingDetector extends TestCase {
     detector.autoDetectClues(content, true);
     detector.addClue("windows-1254", "sniffed");
     encoding = detector.guessEncoding(content, "windows-1252");
-    assertEquals("windows-1254", encoding.toLowerCase());
+    assertEquals("windows-1254", encoding);
 
     // enable autodetection
     conf.setInt(EncodingDetector.MIN_CONFIDENCE_KEY, 50);
@@ -87,7 +87,74 @@ public class TestEncodingDetector extends TestCase {
     detector.autoDetectClues(content, true);
     detector.addClue("utf-32", "sniffed");
     encoding = detector.guessEncoding(content, "windows-1252");
-    assertEquals("utf-8", encoding.toLowerCase());
+    assertEquals("utf-8", encoding);
+
+    // no detection if the clues agree
+    content = new Content("http://www.example.com", "http://www.example.com/",
+        contentInOctets, "text/plain", metadata, conf);
+    detector = new EncodingDetector(conf);
+    detector.autoDetectClues(content, true);
+    detector.addClue("utf-16", "sniffed");
+    encoding = detector.guessEncoding(content, "windows-1252");
+    assertEquals("utf-16", encoding);
+
+    // nor if there's a byte order mark
+    byte[] marked = new byte[contentInOctets.length + 2];
+    marked[0] = (byte) 0xff;
+    marked[1] = (byte) 0xfe;
+    System.arraycopy(contentInOctets, 0, marked, 2, contentInOctets.length);
+    content = new Content("http://www.example.com", "http://www.example.com/",
+        marked, "text/plain", metadata, conf);
+    detector = new EncodingDetector(conf);
+    detector.autoDetectClues(content, true);
+    detector.addClue("utf-32", "sniffed");
+    encoding = detector.guessEncoding(content, "windows-1252");
+    assertEquals("utf-16", encoding);
+  }
+
+  public void testByteOrderMark() {
+    assertEquals("UTF-8", EncodingDetector.detectByteOrderMark(
+        new byte[] { (byte) 0xef, (byte) 0xbb, (byte) 0xbf, 'a' }));
+    assertEquals("UTF-16", EncodingDetector.detectByteOrderMark(
+        new byte[] { (byte) 0xfe, (byte) 0xff, 0, 'a' }));
+    assertEquals("UTF-16", EncodingDetector.detectByteOrderMark(
+        new byte[] { (byte) 0xff, (byte) 0xfe, 'a', 0 }));
+    assertEquals("UTF-32", EncodingDetector.detectByteOrderMark(
+        new byte[] { 0, 0, (byte) 0xfe, (byte) 0xff }));
+    assertEquals("UTF-32LE", EncodingDetector.detectByteOrderMark(
+        new byte[] { (byte) 0xff, (byte) 0xfe, 0, 0 }));
+    assertNull(EncodingDetector.detectByteOrderMark(new byte[] { (byte) 0xef }));
+    assertNull(EncodingDetector.detectByteOrderMark(contentInOctets));
+  }
+
+  private static String sniff(String html) throws UnsupportedEncodingException {
+    return EncodingDetector.sniffCharacterEncoding(html.getBytes("utf-8"), 2000);
+  }
+
+  public void testSniffing() throws UnsupportedEncodingException {
+    assertEquals("ISO-8859-2", sniff("<html><head><META HTTP-EQUIV=\"Content-Type\""
+        + " CONTENT=\"text/html; charset=ISO-8859-2\"></head></html>"));
+    assertEquals("utf-8", sniff("<meta\n http-equiv='content-type'"
+        + " content='text/html;charset= utf-8'>"));
+    assertEquals("windows-1251", sniff("<meta content=\"text/html; charset=windows-1251\""
+        + " http-equiv=content-type />"));
+    assertEquals("Shift_JIS", sniff("<meta charset=\"Shift_JIS\">"));
+    assertEquals("koi8-r", sniff("<meta name=\"description\" content=\"charset=x\">"
+        + "<meta charset=koi8-r>"));
+    assertEquals("utf-8", sniff("\u00e9\u00e8<meta http-equiv=\"Content-Type\""
+        + " content=\"text/html; charset=utf-8\">"));
+    assertNull(sniff("<metadata charset=\"utf-8\">"));
+    assertNull(sniff("<meta http-equiv=\"content-type\" content=\"text/html\">"));
+    assertNull(sniff("<meta http-equiv=\"content-type\" content=\"charset=utf-8\""));
+    assertNull(sniff(""));
+
+    // only in the first bytes
+    StringBuilder html = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      html.append(' ');
+    }
+    html.append("<meta charset=\"utf-8\">");
+    assertNull(sniff(html.toString()));
   }
 
 }
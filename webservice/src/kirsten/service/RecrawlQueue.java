@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kirsten;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of urls to recrawl, crawled in batches by a single background
+ * thread instead of one process per url.
+ * <p>
+ * Urls are appended to a journal file, so queued urls survive a restart,
+ * and kept once however often they are queued. When <code>batchSize</code>
+ * urls are queued, or the oldest url has waited <code>interval</code>
+ * milliseconds, the queued urls are appended to the waiting urls file of the
+ * crawl dir and one crawl command is run for all of them
+ * (<code>queuecrawl</code>). A failed crawl is run again after
+ * <code>interval</code> milliseconds, since it keeps the urls it was
+ * processing.
+ */
+public class RecrawlQueue {
+  private static final Logger LOG = LoggerFactory.getLogger(RecrawlQueue.class);
+
+  private final File journal;
+  private final File waiting;
+  private final String[] command;
+  private final File directory;
+  private final int batchSize;
+  private final long interval;
+
+  private final Set<String> queued = new LinkedHashSet<String>();
+  private long firstQueued = 0;
+  private boolean retry = false;
+  private boolean closed = false;
+  private Thread worker;
+
+  // Statistics of the last batch
+  private boolean running = false;
+  private long batches = 0;
+  private int lastBatchSize = 0;
+  private long lastBatchMillis = -1;
+  private int lastBatchExit = 0;
+  private long lastBatchEnd = 0;
+
+  public RecrawlQueue(File journal, File waiting, String[] command,
+      File directory, int batchSize, long interval) throws IOException {
+    this.journal = journal;
+    this.waiting = waiting;
+    this.command = command;
+    this.directory = directory;
+    this.batchSize = batchSize;
+    this.interval = interval;
+    load();
+  }
+
+  /** Reads the urls queued before a restart. */
+  private void load() throws IOException {
+    if (!journal.exists()) {
+      return;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new FileInputStream(journal), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() > 0) {
+          queued.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (!queued.isEmpty()) {
+      firstQueued = System.currentTimeMillis();
+      LOG.info("Recrawl queue: " + queued.size() + " urls left in " + journal);
+    }
+  }
+
+  /** Starts the thread running the crawls. */
+  public synchronized void start() {
+    worker = new Thread("recrawl-queue") {
+      public void run() {
+        work();
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Queues a url, unless it is queued already. Returns when the url has
+   * been written to the journal.
+   */
+  public void add(String url) throws IOException {
+    addAll(Collections.singletonList(url));
+  }
+
+  /** Queues several urls, with a single write to the journal. */
+  public synchronized void addAll(Collection<String> urls) throws IOException {
+    boolean empty = queued.isEmpty();
+    Set<String> added = new LinkedHashSet<String>();
+    StringBuilder text = new StringBuilder();
+    for (String url : urls) {
+      if (url.indexOf('\n') >= 0 || url.indexOf('\r') >= 0) {
+        throw new IOException("Url with a line break: " + url);
+      }
+      if (!queued.contains(url) && added.add(url)) {
+        text.append(url).append('\n');
+      }
+    }
+    if (added.isEmpty()) {
+      return;
+    }
+    append(journal, text.toString());
+    queued.addAll(added);
+    if (empty) {
+      firstQueued = System.currentTimeMillis();
+    }
+    // The worker waits for the interval from the first url on
+    if (empty || queued.size() >= batchSize) {
+      notifyAll();
+    }
+  }
+
+  private static void append(File file, String text) throws IOException {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(text.getBytes("UTF-8"));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Stops the thread once a running crawl has finished. */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  private void work() {
+    while (true) {
+      int size;
+      synchronized (this) {
+        try {
+          long wait;
+          while (!closed && (wait = timeToBatch()) > 0) {
+            wait(wait);
+          }
+          if (closed) {
+            return;
+          }
+          size = handOver();
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          LOG.error("Error handing over urls to " + waiting, e);
+          retry = true;
+          firstQueued = System.currentTimeMillis();
+          continue;
+        }
+        running = true;
+      }
+      long start = System.currentTimeMillis();
+      int exit = -1;
+      try {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(directory);
+        exit = runProcess(processBuilder);
+      } catch (Exception e) {
+        LOG.error("Error running recrawl", e);
+      }
+      long end = System.currentTimeMillis();
+      LOG.info("Recrawl of " + size + " urls finished with exit value " + exit
+        + " in " + (end - start) + "ms");
+      synchronized (this) {
+        running = false;
+        batches++;
+        lastBatchSize = size;
+        lastBatchMillis = end - start;
+        lastBatchExit = exit;
+        lastBatchEnd = end;
+        if (exit != 0) {
+          retry = true;
+          if (queued.isEmpty()) {
+            firstQueued = end;
+          }
+        }
+      }
+    }
+  }
+
+  /** Milliseconds until the next batch, or a day if nothing is queued. */
+  private long timeToBatch() {
+    if (queued.isEmpty() && !retry) {
+      return 24L * 3600 * 1000;
+    }
+    if (queued.size() >= batchSize) {
+      return 0;
+    }
+    return Math.max(0, firstQueued + interval - System.currentTimeMillis());
+  }
+
+  /**
+   * Moves the queued urls to the waiting urls file, then empties the
+   * journal. Urls written to both after a crash are crawled once.
+   */
+  private int handOver() throws IOException {
+    int size = queued.size();
+    if (size > 0) {
+      StringBuilder text = new StringBuilder();
+      for (String url : queued) {
+        text.append(url).append('\n');
+      }
+      append(waiting, text.toString());
+      new FileOutputStream(journal).close();
+      queued.clear();
+    }
+    retry = false;
+    return size;
+  }
+
+  /**
+   * Runs a process to its end, reading its output so it does not block on
+   * a full pipe. Returns its exit value.
+   */
+  public static int runProcess(ProcessBuilder processBuilder)
+    throws IOException, InterruptedException
+  {
+    processBuilder.redirectErrorStream(true);
+    Process process = processBuilder.start();
+    InputStream in = process.getInputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) >= 0) {
+      }
+    } finally {
+      in.close();
+    }
+    return process.waitFor();
+  }
+
+  /** Number of urls waiting for a crawl. */
+  public synchronized int getDepth() {
+    return queued.size();
+  }
+
+  /** Number of crawls run. */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  /** The state of the queue, as an XML element. */
+  public synchronized String toXml() {
+    return "<queue>"
+      + "<depth>" + queued.size() + "</depth>"
+      + "<running>" + (running ? "1" : "0") + "</running>"
+      + "<batches>" + batches + "</batches>"
+      + "<lastBatchSize>" + lastBatchSize + "</lastBatchSize>"
+      + "<lastBatchMillis>" + lastBatchMillis + "</lastBatchMillis>"
+      + "<lastBatchExit>" + lastBatchExit + "</lastBatchExit>"
+      + "<lastBatchEnd>" + lastBatchEnd + "</lastBatchEnd>"
+      + "</queue>";
+  }
+}
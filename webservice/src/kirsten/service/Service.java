@@ -19,19 +19,21 @@ package kirsten;
 
 import java.io.*;
 import java.net.URLDecoder;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.Statement;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.PreparedStatement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner; 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.*;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.http.*;
 import javax.servlet.http.HttpServletRequest;
@@ -42,9 +44,11 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
 import javax.xml.xpath.XPathExpressionException;
-import com.mysql.jdbc.Driver;
+import org.apache.nutch.kirsten.KirstenDB;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.ErrorHandler;
@@ -53,26 +57,74 @@ import org.xml.sax.SAXParseException;
 
 /**
  * Main class
+ * <p>
+ * Requests are processed asynchronously by a pool of as many threads as
+ * the Kirsten DB has connections, so slow DB calls do not hold container
+ * threads. A GET request updates a single url, a POST request the urls in
+ * an XML document:
+ * <pre>
+ * &lt;updates&gt;
+ *   &lt;update&gt;&lt;url&gt;http://...&lt;/url&gt;&lt;boost&gt;0.5&lt;/boost&gt;&lt;/update&gt;
+ *   ...
+ * &lt;/updates&gt;
+ * </pre>
+ * whose boosts are written in one batch. Without a recrawl queue (see
+ * {@link #startRecrawlQueue()}) a request may have at most
+ * {@link #MAX_SCRIPT_UPDATES} urls recrawled.
  */
 public class Service extends HttpServlet {
-  private Connection connect;
-  private PreparedStatement pstmt;
+
+  /** The most updates in a POST request. */
+  private static final int MAX_UPDATES = 10000;
+
+  /**
+   * The most urls a request may have recrawled without a recrawl queue,
+   * since each runs the <code>nutchScript</code> in a process of its own.
+   */
+  private static final int MAX_SCRIPT_UPDATES = 10;
+
+  /** Milliseconds before an unanswered request times out. */
+  private static final long ASYNC_TIMEOUT = 120000;
+
+  /** The update of a url requested, with the boost to set or null. */
+  private static class Update {
+    final String url;
+    final String boost;
+
+    Update(String url, String boost) {
+      this.url = url;
+      this.boost = boost;
+    }
+  }
+
+  /** Result of a request, written in the response. */
+  private static class Result {
+    boolean success = true;
+    StringBuilder message = new StringBuilder();
+
+    void fail(String reason) {
+      success = false;
+      message.append(reason);
+    }
+  }
+
+  private KirstenDB kirstenDb;
   private XPath xpath;
   private Logger LOG;
   private DocumentBuilderFactory dbf;
   private DocumentBuilder db;
   private Document doc;
-  private HttpServletRequest request;
-  private String message;
-  private String success;
   private String kirstenDbUrl;
   private String kirstenDbDbname;
   private String kirstenDbUsername;
   private String kirstenDbPassword;
-  private String url = null;
-  private Float boostFloat;
-  private String boost;
   private ServletContext context;
+  private ExecutorService workers;
+  private DocumentBuilderFactory updatesDbf;
+  private final Object exportLock = new Object();
+  private boolean exportRunning = false;
+  private boolean exportPending = false;
+  private RecrawlQueue recrawlQueue;
 
   public void init() throws ServletException
   {
@@ -81,61 +133,301 @@ public class Service extends HttpServlet {
       loadConf();
     } catch (Exception e){
       LOG.error("Error loading configuration for web service", e);
-      success = "0";
+    }
+    // The updates posted must not make the parser read other files
+    updatesDbf = DocumentBuilderFactory.newInstance();
+    try {
+      updatesDbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+    } catch (ParserConfigurationException e) {
+      throw new ServletException("Cannot configure XML parser", e);
+    }
+    workers = Executors.newFixedThreadPool(
+      kirstenDb != null ? kirstenDb.getMaxConnections() : 4);
+    try {
+      startRecrawlQueue();
+    } catch (Exception e) {
+      throw new ServletException("Error starting recrawl queue", e);
     }
   }
 
+  /**
+   * Starts a {@link RecrawlQueue} running the <code>crawlScript</code> init
+   * parameter, if it is set, on the crawl dir <code>nutchData</code> and the
+   * Solr <code>solrUrl</code>, every <code>recrawlBatchSize</code> urls
+   * (default 100) or <code>recrawlInterval</code> seconds (default 60).
+   * Without it every url recrawled runs the <code>nutchScript</code>.
+   */
+  private void startRecrawlQueue() throws IOException {
+    ServletContext servletContext = getServletContext();
+    String crawlScript = servletContext.getInitParameter("crawlScript");
+    if (crawlScript == null) {
+      return;
+    }
+    String nutchData = servletContext.getInitParameter("nutchData");
+    int batchSize = 100;
+    if (servletContext.getInitParameter("recrawlBatchSize") != null) {
+      batchSize = Integer.parseInt(servletContext.getInitParameter("recrawlBatchSize"));
+    }
+    long interval = 60;
+    if (servletContext.getInitParameter("recrawlInterval") != null) {
+      interval = Long.parseLong(servletContext.getInitParameter("recrawlInterval"));
+    }
+    recrawlQueue = new RecrawlQueue(
+      new File(nutchData, "queue/journal.txt"),
+      new File(nutchData, "queue/waiting/urls.txt"),
+      new String[] { "sh", crawlScript, nutchData, servletContext.getInitParameter("solrUrl") },
+      new File(nutchData), batchSize, interval * 1000);
+    recrawlQueue.start();
+  }
+
   public void doGet(HttpServletRequest request,
                     HttpServletResponse response)
             throws ServletException, IOException
   {
-    success = "1";
-    message = "";
-    
+    if ("/queue".equals(request.getServletPath())) {
+      writeQueueStatus(response);
+      return;
+    }
+    final Result result = new Result();
+    final List<Update> updates = new ArrayList<Update>();
+    String url = null;
+    String boost = null;
+
     try {
       url = request.getParameterValues("url")[0];
       url = URLDecoder.decode(url, "UTF-8");
     } catch (Exception e) {
-      success = "0";
-      message += "Missing or malformed URL. ";
+      result.fail("Missing or malformed URL. ");
+    }
+    String[] boosts = request.getParameterValues("boost");
+    if (boosts != null) {
+      boost = checkBoost(boosts[0], result);
     }
+    updates.add(new Update(url, boost));
+
+    process(request, new Runnable() {
+      public void run() {
+        if (result.success) {
+          update(updates, result);
+        }
+      }
+    }, result);
+  }
+
+  public void doPost(final HttpServletRequest request,
+                     HttpServletResponse response)
+            throws ServletException, IOException
+  {
+    final Result result = new Result();
+    process(request, new Runnable() {
+      public void run() {
+        List<Update> updates = readUpdates(request, result);
+        if (result.success) {
+          update(updates, result);
+        }
+      }
+    }, result);
+  }
+
+  /**
+   * Runs the work of a request in the worker pool, then writes the result
+   * as the response.
+   */
+  private void process(HttpServletRequest request, final Runnable work,
+      final Result result) throws IOException
+  {
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(ASYNC_TIMEOUT);
+    try {
+      workers.execute(new Runnable() {
+        public void run() {
+          try {
+            work.run();
+          } catch (RuntimeException e) {
+            LOG.error("Error processing request", e);
+            result.fail("Internal error. ");
+          }
+          try {
+            writeResult((HttpServletResponse) async.getResponse(), result);
+            async.complete();
+          } catch (Exception e) {
+            // Also when the request has timed out and been completed
+            LOG.error("Error writing response", e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.fail("Service is shutting down. ");
+      writeResult((HttpServletResponse) async.getResponse(), result);
+      async.complete();
+    }
+  }
+
+  /**
+   * Returns a boost given in a request, or null if it is not a number.
+   * Fails the request if it is greater than 1.
+   */
+  private static String checkBoost(String boost, Result result) {
     try {
-      boost = request.getParameterValues("boost")[0];
-      boostFloat = Float.parseFloat(boost);
-      if (boostFloat > 1) {
-        success = "0";
-        message += "Boost should be positive value between 0.00001 and 1.0. ";        
+      if (Float.parseFloat(boost) > 1) {
+        result.fail("Boost should be positive value between 0.00001 and 1.0. ");
       }
+      return boost;
     } catch (Exception e) {
-      boost = null;
+      return null;
     }
-    
-    if (success == "1") {
-      updateDB();
-    
-      try {
-        triggerUpdate();
-      } catch (Exception e) {
-        success = "0";
-        message += "Error initiating update script. ";
-        LOG.error("Error starting update script", e);
+  }
+
+  /** Reads the updates of a POST request. */
+  private List<Update> readUpdates(HttpServletRequest request, Result result) {
+    List<Update> updates = new ArrayList<Update>();
+    Document document;
+    try {
+      DocumentBuilder builder;
+      synchronized (updatesDbf) {
+        builder = updatesDbf.newDocumentBuilder();
       }
+      document = builder.parse(request.getInputStream());
+    } catch (Exception e) {
+      result.fail("Malformed XML. ");
+      return updates;
     }
-    
+    NodeList nodes = document.getElementsByTagName("update");
+    if (nodes.getLength() > MAX_UPDATES) {
+      result.fail("More than " + MAX_UPDATES + " updates. ");
+      return updates;
+    }
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Element element = (Element) nodes.item(i);
+      String url = getChildText(element, "url");
+      String boost = getChildText(element, "boost");
+      if (url == null || url.length() == 0) {
+        result.fail("Missing URL in update " + (i + 1) + ". ");
+        continue;
+      }
+      if (boost != null) {
+        boost = checkBoost(boost, result);
+      }
+      updates.add(new Update(url, boost));
+    }
+    return updates;
+  }
+
+  private static String getChildText(Element element, String name) {
+    NodeList nodes = element.getElementsByTagName(name);
+    if (nodes.getLength() == 0) {
+      return null;
+    }
+    return nodes.item(0).getTextContent().trim();
+  }
+
+  /**
+   * Whether an update has its url recrawled. A changed boost only needs the
+   * boost file exported again, when Solr reads the boosts from one.
+   */
+  private boolean needsRecrawl(Update update) {
+    return update.boost == null
+      || getServletContext().getInitParameter("boostScript") == null;
+  }
+
+  /**
+   * Writes the boosts of the updates to the DB in one batch, then has the
+   * urls recrawled, or the boosts exported. Fails without updating anything
+   * if more than {@link #MAX_SCRIPT_UPDATES} urls are to be recrawled
+   * without a recrawl queue.
+   */
+  private void update(List<Update> updates, Result result) {
+    if (recrawlQueue == null) {
+      int recrawls = 0;
+      for (Update update : updates) {
+        if (needsRecrawl(update)) {
+          recrawls++;
+        }
+      }
+      if (recrawls > MAX_SCRIPT_UPDATES) {
+        result.fail("More than " + MAX_SCRIPT_UPDATES
+          + " urls to recrawl, but no recrawl queue configured. ");
+        return;
+      }
+    }
+    Map<String, String> boosts = new LinkedHashMap<String, String>();
+    for (Update update : updates) {
+      boosts.put(update.url, update.boost);
+    }
+    updateDB(boosts, result);
+
+    try {
+      boolean export = false;
+      List<String> recrawls = new ArrayList<String>();
+      for (Update update : updates) {
+        if (!needsRecrawl(update)) {
+          export = true;
+        } else if (recrawlQueue != null) {
+          recrawls.add(update.url);
+        } else {
+          triggerUpdate(update.url);
+        }
+      }
+      if (!recrawls.isEmpty()) {
+        recrawlQueue.addAll(recrawls);
+      }
+      if (export) {
+        triggerExport();
+      }
+    } catch (Exception e) {
+      result.fail("Error initiating update script. ");
+      LOG.error("Error starting update script", e);
+    }
+  }
+
+  private void writeResult(HttpServletResponse response, Result result)
+    throws IOException
+  {
     // Set response content type
     response.setContentType("text/xml");
 
-    // Actual logic goes here.
     PrintWriter out = response.getWriter();
     out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
     out.println("<response>");
-    out.println("  <success>" + success + "</success>");
-    out.println("  <message>" + message + "</message>");
+    out.println("  <success>" + (result.success ? "1" : "0") + "</success>");
+    out.println("  <message>" + result.message + "</message>");
     out.println("</response>");
+    out.flush();
   }
   
+  /** Writes the depth of the recrawl queue and the latency of the last batch. */
+  private void writeQueueStatus(HttpServletResponse response) throws IOException {
+    response.setContentType("text/xml");
+    PrintWriter out = response.getWriter();
+    out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    out.println("<response>");
+    if (recrawlQueue != null) {
+      out.println("  <success>1</success>");
+      out.println("  " + recrawlQueue.toXml());
+    } else {
+      out.println("  <success>0</success>");
+      out.println("  <message>No recrawl queue configured. </message>");
+    }
+    out.println("</response>");
+  }
+
   public void destroy()
   {
+    if (workers != null) {
+      workers.shutdown();
+      try {
+        workers.awaitTermination(ASYNC_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // Close anyway
+      }
+    }
+    if (recrawlQueue != null) {
+      recrawlQueue.close();
+    }
+    if (kirstenDb != null) {
+      LOG.info("Kirsten DB pool: " + kirstenDb.getStats());
+      kirstenDb.close();
+    }
   }
 
   public String getNutchConf(Document document, String tagName) 
@@ -168,43 +460,27 @@ public class Service extends HttpServlet {
     catch (Exception e) {
       LOG.info("Error parsing configuration.", e);
     }
-  }
-  
-  public void updateDB() {
+    int poolSize = 4;
     try {
-      Class.forName("com.mysql.jdbc.Driver");
-      // Setup the connection with the DB
-      connect = DriverManager
-        .getConnection(kirstenDbUrl + "/" + kirstenDbDbname, kirstenDbUsername, kirstenDbPassword);
-    } catch (Exception e) {
-      LOG.error("Error connecting to DB", e);
+      poolSize = Integer.parseInt(getNutchConf(doc, "kirsten.db.pool.size"));
     }
+    catch (Exception e) {
+      // Not configured, use default
+    }
+    kirstenDb = KirstenDB.get(kirstenDbUrl + "/" + kirstenDbDbname,
+      kirstenDbUsername, kirstenDbPassword, poolSize);
+  }
+  
+  private void updateDB(Map<String, String> boosts, Result result) {
     try {
-      String query = 
-        "INSERT INTO webpage (url, boost) VALUES (?, ?) " +
-        "ON DUPLICATE KEY UPDATE boost = ?;";
-      pstmt = connect.prepareStatement(query);
-      pstmt.setString(1, url);
-      pstmt.setString(2, boost);
-      pstmt.setString(3, boost);
-      pstmt.executeUpdate();
+      kirstenDb.upsertBoosts(boosts);
     } catch (Exception e) {
       LOG.error("Exception on executeQuery", e);
-      success = "0";
-      message += "Error updating DB. ";
-    } finally {
-      try {
-        connect.close();
-        pstmt.close();
-      } catch (Exception e) {
-        LOG.error("Error closing DB connection", e);
-        success = "0";
-        message += "Error closing DB connection. ";
-      }
+      result.fail("Error updating DB. ");
     }
   }
 
-  public void triggerUpdate() 
+  public void triggerUpdate(String url) 
     throws java.io.IOException, java.lang.InterruptedException
   {
     // Create ProcessBuilder instance for UNIX command ls -l
@@ -222,4 +498,51 @@ public class Service extends HttpServlet {
     java.lang.Process p = processBuilder.start();
     LOG.info("Background process initiated");
   }
-}
\ No newline at end of file
+
+  /**
+   * Runs the <code>boostScript</code> in the background. Requests arriving
+   * while it runs are coalesced into a single run once it has finished, so
+   * a burst of boost changes starts at most two exports.
+   */
+  public void triggerExport() {
+    synchronized (exportLock) {
+      exportPending = true;
+      if (exportRunning) {
+        return;
+      }
+      exportRunning = true;
+    }
+    Thread thread = new Thread("boost-export") {
+      public void run() {
+        while (true) {
+          synchronized (exportLock) {
+            if (!exportPending) {
+              exportRunning = false;
+              return;
+            }
+            exportPending = false;
+          }
+          runExport();
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void runExport() {
+    try {
+      java.lang.ProcessBuilder processBuilder = new java.lang.ProcessBuilder(
+        "sh",
+        getServletContext().getInitParameter("boostScript")
+      );
+      processBuilder.directory(new java.io.File(getServletContext().getInitParameter("nutchData")));
+      long start = System.currentTimeMillis();
+      int exitValue = RecrawlQueue.runProcess(processBuilder);
+      LOG.info("Boost export finished with exit value " + exitValue + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    } catch (Exception e) {
+      LOG.error("Error running boost export script", e);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kirsten;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/** Unit tests for RecrawlQueue. */
+public class TestRecrawlQueue extends TestCase {
+
+  private File dir;
+  private RecrawlQueue queue;
+
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("recrawl", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  protected void tearDown() throws Exception {
+    if (queue != null) {
+      queue.close();
+    }
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private RecrawlQueue queue(int batchSize, long interval) throws IOException {
+    return new RecrawlQueue(new File(dir, "journal"), new File(dir, "waiting"),
+      new String[] { "sh", "-c", "exit 0" }, dir, batchSize, interval);
+  }
+
+  /** Waits up to <code>timeout</code> ms for a number of crawls. */
+  private static boolean waitForBatches(RecrawlQueue queue, long batches,
+      long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (queue.getBatches() < batches) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  public void testSingleUrlCrawledAfterInterval() throws Exception {
+    queue = queue(100, 200);
+    queue.start();
+    // let the worker wait for a first url
+    Thread.sleep(100);
+    queue.add("http://www.example.com/");
+    assertTrue(waitForBatches(queue, 1, 5000));
+    assertEquals(0, queue.getDepth());
+  }
+
+  public void testFullBatchCrawled() throws Exception {
+    queue = queue(2, 3600 * 1000L);
+    queue.start();
+    Thread.sleep(100);
+    queue.add("http://www.example.com/1");
+    queue.add("http://www.example.com/2");
+    assertTrue(waitForBatches(queue, 1, 5000));
+  }
+
+  public void testQueuedOnce() throws Exception {
+    queue = queue(100, 3600 * 1000L);
+    queue.add("http://www.example.com/");
+    queue.add("http://www.example.com/");
+    assertEquals(1, queue.getDepth());
+
+    // urls in the journal are queued again after a restart
+    queue = queue(100, 3600 * 1000L);
+    assertEquals(1, queue.getDepth());
+  }
+}